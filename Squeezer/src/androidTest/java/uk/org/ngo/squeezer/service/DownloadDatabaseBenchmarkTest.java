@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long it takes to queue, look up and cancel {@link #ENTRY_COUNT} downloads in the
+ * {@link DownloadDatabase}, one at a time and as a batch.
+ */
+public class DownloadDatabaseBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "DownloadDatabaseBenchmark";
+
+    private static final int ENTRY_COUNT = 10000;
+
+    private static final int LOOKUP_COUNT = 1000;
+
+    /** Ids far from those of real downloads, so the benchmark doesn't disturb them. */
+    private static final long FIRST_ID = 1000000000000L;
+
+    private static final long LAST_ID = FIRST_ID + ENTRY_COUNT - 1;
+
+    private DownloadDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new DownloadDatabase(getContext());
+        mDatabase.removeRange(FIRST_ID, LAST_ID);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.removeRange(FIRST_ID, LAST_ID);
+        super.tearDown();
+    }
+
+    private static List<DownloadDatabase.DownloadEntry> entries() {
+        List<DownloadDatabase.DownloadEntry> entries =
+                new ArrayList<DownloadDatabase.DownloadEntry>(ENTRY_COUNT);
+        for (long id = FIRST_ID; id <= LAST_ID; id++) {
+            entries.add(new DownloadDatabase.DownloadEntry(id, "temp" + id,
+                    "/Artist " + (id % 100) + "/Album " + (id % 1000) + "/Track " + id + ".flac"));
+        }
+        return entries;
+    }
+
+    private int countEntries() {
+        final int[] count = new int[1];
+        mDatabase.iterateDownloadEntries(FIRST_ID, LAST_ID, new DownloadDatabase.DownloadHandler() {
+            @Override
+            public void handle(DownloadDatabase.DownloadEntry entry) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    public void testQueueLookUpAndCancel() {
+        List<DownloadDatabase.DownloadEntry> entries = entries();
+
+        long start = System.nanoTime();
+        for (DownloadDatabase.DownloadEntry entry : entries) {
+            assertTrue(mDatabase.registerDownload(entry.downloadId, entry.tempName, entry.fileName));
+        }
+        long single = System.nanoTime() - start;
+        assertEquals(ENTRY_COUNT, countEntries());
+        mDatabase.removeRange(FIRST_ID, LAST_ID);
+
+        start = System.nanoTime();
+        assertTrue(mDatabase.registerDownloads(entries));
+        long batch = System.nanoTime() - start;
+        assertEquals(ENTRY_COUNT, countEntries());
+
+        Random random = new Random(42);
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            long id = LAST_ID - i * (ENTRY_COUNT / LOOKUP_COUNT) - random.nextInt(ENTRY_COUNT / LOOKUP_COUNT);
+            DownloadDatabase.DownloadEntry entry = mDatabase.popDownloadEntry(id);
+            assertNotNull(entry);
+            assertEquals("temp" + id, entry.tempName);
+        }
+        long lookups = System.nanoTime() - start;
+        assertEquals(ENTRY_COUNT - LOOKUP_COUNT, countEntries());
+
+        long[] ids = new long[ENTRY_COUNT];
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            ids[i] = FIRST_ID + i;
+        }
+        start = System.nanoTime();
+        mDatabase.remove(ids);
+        long remove = System.nanoTime() - start;
+        assertEquals(0, countEntries());
+
+        Log.i(TAG, String.format("%d downloads: register one at a time %.1f ms, as a batch %.1f ms; "
+                        + "%d lookups %.1f ms; batch remove %.1f ms",
+                ENTRY_COUNT, single / 1e6, batch / 1e6, LOOKUP_COUNT, lookups / 1e6, remove / 1e6));
+    }
+}
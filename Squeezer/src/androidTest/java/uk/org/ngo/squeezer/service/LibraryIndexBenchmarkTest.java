@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.model.Album;
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Measures how long it takes to open the first page of the album list, the first time (from
+ * the server) and again (from the {@link LibraryIndex}).
+ */
+public class LibraryIndexBenchmarkTest extends ServiceTestCase<SqueezeService> {
+    private static final String TAG = "LibraryIndexBenchmark";
+
+    /** Number of milliseconds to wait for a particular event to occur before aborting. */
+    private static final int TIMEOUT_IN_MS = 5000;
+
+    private static final int ALBUM_COUNT = 500;
+
+    private static final int WARM_RUNS = 10;
+
+    private final CountDownLatch mHandshakeComplete = new CountDownLatch(1);
+
+    private ISqueezeService mService;
+
+    private SqueezeboxServerMock mServer;
+
+    private int mPageSize;
+
+    public LibraryIndexBenchmarkTest() {
+        super(SqueezeService.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mPageSize = getSystemContext().getResources().getInteger(R.integer.PageSize);
+        mServer = SqueezeboxServerMock.starter().albumCount(ALBUM_COUNT).start();
+        mService = (ISqueezeService) bindService(new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT, "test", "test");
+        assertTrue(mHandshakeComplete.await(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        mService.disconnect();
+        shutdownService();
+        super.tearDown();
+    }
+
+    public void onEvent(HandshakeComplete event) {
+        mHandshakeComplete.countDown();
+    }
+
+    /** Collects the first page of albums. */
+    private class PageCallback implements IServiceItemListCallback<Album> {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final List<Album> albums = new ArrayList<Album>();
+
+        @Override
+        public synchronized void onItemsReceived(int count, int start, Map<String, String> parameters,
+                                                 List<Album> items, Class<Album> dataType) {
+            albums.addAll(items);
+            if (albums.size() == Math.min(count, mPageSize)) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public Object getClient() {
+            return LibraryIndexBenchmarkTest.this;
+        }
+    }
+
+    /**
+     * @return Nanoseconds until the first page of albums matching the search has arrived.
+     */
+    private long openAlbums(String search) throws InterruptedException {
+        PageCallback callback = new PageCallback();
+        long start = System.nanoTime();
+        mService.albums(callback, 0, "album", search);
+        assertTrue(callback.done.await(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(mPageSize, callback.albums.size());
+        assertEquals("Album 0", callback.albums.get(0).getName());
+        return elapsed;
+    }
+
+    public void testColdAndWarmOpen() throws InterruptedException {
+        // A search the index has not seen, the mock server ignores it.
+        String search = "benchmark" + System.currentTimeMillis();
+
+        long cold = openAlbums(search);
+        int requests = mServer.getAlbumRequests();
+        assertTrue(requests > 0);
+
+        long warm = 0;
+        for (int i = 0; i < WARM_RUNS; i++) {
+            warm += openAlbums(search);
+        }
+        warm /= WARM_RUNS;
+
+        // The warm opens were served from the index.
+        assertEquals(requests, mServer.getAlbumRequests());
+
+        Log.i(TAG, String.format("First page of %d albums: cold %.2f ms, warm %.2f ms",
+                ALBUM_COUNT, cold / 1e6, warm / 1e6));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.service.event.PlayerStateDiff;
+import uk.org.ngo.squeezer.service.event.SongTimeChanged;
+
+public class StatusEventCoalescerTest extends TestCase {
+
+    private EventBus mEventBus;
+
+    private StatusEventCoalescer mCoalescer;
+
+    /** Receives only the merged events. */
+    public static class DiffSubscriber {
+        final List<PlayerStateDiff> diffs = new ArrayList<PlayerStateDiff>();
+
+        public void onEvent(PlayerStateDiff event) {
+            diffs.add(event);
+        }
+    }
+
+    /** Receives one of the older per aspect events. */
+    public static class SongTimeSubscriber {
+        final List<SongTimeChanged> events = new ArrayList<SongTimeChanged>();
+
+        public void onEvent(SongTimeChanged event) {
+            events.add(event);
+        }
+    }
+
+    private static Player player(String id) {
+        Map<String, String> record = new HashMap<String, String>();
+        record.put("playerid", id);
+        record.put("name", "Player " + id);
+        return new Player(record);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEventBus = EventBus.builder().logNoSubscriberMessages(false).sendNoSubscriberEvent(false)
+                .build();
+        mCoalescer = new StatusEventCoalescer(mEventBus);
+    }
+
+    public void testChangesAreMerged() {
+        DiffSubscriber subscriber = new DiffSubscriber();
+        mEventBus.register(subscriber);
+        Player player = player("00:00:00:00:00:01");
+
+        assertTrue(mCoalescer.add(player, PlayerStateDiff.CHANGED_SONG_TIME, false, false));
+        assertFalse(mCoalescer.add(player, PlayerStateDiff.CHANGED_SONG_TIME, false, false));
+        assertFalse(mCoalescer.add(player, PlayerStateDiff.CHANGED_VOLUME, false, false));
+        assertTrue(subscriber.diffs.isEmpty());
+
+        mCoalescer.flush();
+
+        assertEquals(1, subscriber.diffs.size());
+        PlayerStateDiff diff = subscriber.diffs.get(0);
+        assertSame(player, diff.player);
+        assertEquals(PlayerStateDiff.CHANGED_SONG_TIME | PlayerStateDiff.CHANGED_VOLUME,
+                diff.changes);
+        assertTrue(diff.changed(PlayerStateDiff.CHANGED_VOLUME));
+        assertFalse(diff.changed(PlayerStateDiff.CHANGED_POWER));
+    }
+
+    public void testOneEventPerPlayer() {
+        DiffSubscriber subscriber = new DiffSubscriber();
+        mEventBus.register(subscriber);
+        Player first = player("00:00:00:00:00:01");
+        Player second = player("00:00:00:00:00:02");
+
+        mCoalescer.add(first, PlayerStateDiff.CHANGED_SONG_TIME, false, false);
+        mCoalescer.add(second, PlayerStateDiff.CHANGED_POWER, false, false);
+        mCoalescer.add(first, PlayerStateDiff.CHANGED_SONG_TIME, false, false);
+        mCoalescer.flush();
+
+        assertEquals(2, subscriber.diffs.size());
+        assertSame(first, subscriber.diffs.get(0).player);
+        assertSame(second, subscriber.diffs.get(1).player);
+
+        // A flush starts a new frame.
+        assertTrue(mCoalescer.add(first, PlayerStateDiff.CHANGED_SONG_TIME, false, false));
+    }
+
+    public void testFirstChangeDecidesInitialStatus() {
+        DiffSubscriber subscriber = new DiffSubscriber();
+        mEventBus.register(subscriber);
+        Player player = player("00:00:00:00:00:01");
+
+        mCoalescer.add(player, PlayerStateDiff.CHANGED_SONG_TIME, false, false);
+        mCoalescer.add(player, PlayerStateDiff.CHANGED_SHUFFLE | PlayerStateDiff.CHANGED_REPEAT,
+                true, true);
+        mCoalescer.add(player, PlayerStateDiff.CHANGED_SHUFFLE, false, false);
+        mCoalescer.flush();
+
+        assertTrue(subscriber.diffs.get(0).initialShuffleStatus);
+        assertTrue(subscriber.diffs.get(0).initialRepeatStatus);
+    }
+
+    public void testNoChanges() {
+        DiffSubscriber subscriber = new DiffSubscriber();
+        mEventBus.register(subscriber);
+
+        assertFalse(mCoalescer.add(player("00:00:00:00:00:01"), 0, false, false));
+        mCoalescer.flush();
+
+        assertTrue(subscriber.diffs.isEmpty());
+    }
+
+    public void testOlderEventsArePosted() {
+        SongTimeSubscriber subscriber = new SongTimeSubscriber();
+        mEventBus.register(subscriber);
+        Player player = player("00:00:00:00:00:01");
+
+        mCoalescer.add(player, PlayerStateDiff.CHANGED_SONG_TIME, false, false);
+        mCoalescer.add(player, PlayerStateDiff.CHANGED_SONG_TIME, false, false);
+        mCoalescer.flush();
+
+        assertEquals(1, subscriber.events.size());
+        assertSame(player, subscriber.events.get(0).player);
+    }
+}
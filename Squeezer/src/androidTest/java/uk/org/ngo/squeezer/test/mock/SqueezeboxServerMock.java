@@ -80,6 +80,11 @@ public class SqueezeboxServerMock extends Thread {
             return this;
         }
 
+        public Starter albumCount(int albumCount) {
+            this.albumCount = albumCount;
+            return this;
+        }
+
         private String username;
 
         private String password;
@@ -89,6 +94,8 @@ public class SqueezeboxServerMock extends Thread {
         private boolean canMusicFolder = true;
 
         private AlbumsSortOrder albumsSortOrder = AlbumsSortOrder.album;
+
+        private int albumCount;
     }
 
     public static Starter starter() {
@@ -101,6 +108,7 @@ public class SqueezeboxServerMock extends Thread {
         canRandomplay = starter.canRandomplay;
         canMusicFolder = starter.canMusicFolder;
         albumsSortOrder = starter.albumsSortOrder;
+        albumCount = starter.albumCount;
     }
 
     private String username;
@@ -113,6 +121,16 @@ public class SqueezeboxServerMock extends Thread {
 
     private AlbumsSortOrder albumsSortOrder;
 
+    /** Number of albums in the library. */
+    private int albumCount;
+
+    /** Number of album requests received. */
+    private volatile int albumRequests;
+
+    public int getAlbumRequests() {
+        return albumRequests;
+    }
+
     @Override
     public void run() {
         ServerSocket serverSocket;
@@ -188,6 +206,9 @@ public class SqueezeboxServerMock extends Thread {
                     out.println("pref jivealbumsort " + albumsSortOrder);
                 } else if ("version ?".equals(line)) {
                     out.println("version 7.7.2");
+                } else if ("albums".equals(tokens[0]) && tokens.length >= 3) {
+                    albumRequests++;
+                    out.println(albums(line, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
                 } else if ("players".equals(tokens[0])) {
                     //TODO implement
                 } else {
@@ -202,4 +223,20 @@ public class SqueezeboxServerMock extends Thread {
         } catch (IOException e) {}
     }
 
+    /**
+     * @return The reply to an albums request, with made up albums.
+     */
+    private String albums(String request, int start, int count) {
+        // The server replies with the request, URL encoded.
+        StringBuilder sb = new StringBuilder(request.replace(":", "%3A"));
+        sb.append(" count%3A").append(albumCount);
+        for (int i = start; i < start + count && i < albumCount; i++) {
+            sb.append(" id%3A").append(i)
+                    .append(" album%3AAlbum%20").append(i)
+                    .append(" artist%3AArtist%20").append(i % 100)
+                    .append(" year%3A").append(1950 + i % 60);
+        }
+        return sb.toString();
+    }
+
 }
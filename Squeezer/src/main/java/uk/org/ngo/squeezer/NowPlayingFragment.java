@@ -81,11 +81,8 @@ import uk.org.ngo.squeezer.service.event.ConnectionChanged;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
 import uk.org.ngo.squeezer.service.event.MusicChanged;
 import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateDiff;
 import uk.org.ngo.squeezer.service.event.PlayersChanged;
-import uk.org.ngo.squeezer.service.event.PowerStatusChanged;
-import uk.org.ngo.squeezer.service.event.RepeatStatusChanged;
-import uk.org.ngo.squeezer.service.event.ShuffleStatusChanged;
-import uk.org.ngo.squeezer.service.event.SongTimeChanged;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 
 public class NowPlayingFragment extends Fragment implements View.OnCreateContextMenuListener {
@@ -671,7 +668,8 @@ public class NowPlayingFragment extends Fragment implements View.OnCreateContext
             return;
         }
 
-        ImageFetcher.getInstance(mActivity).loadImage(song.getArtworkUrl(), albumArt);
+        ImageFetcher.getInstance(mActivity).loadImage(song.getArtworkUrl(), albumArt,
+                ImageFetcher.PRIORITY_NOW_PLAYING);
     }
 
     private boolean setSecondsElapsed(int seconds) {
@@ -1089,40 +1087,45 @@ public class NowPlayingFragment extends Fragment implements View.OnCreateContext
         updatePlayPauseIcon(event.playStatus);
     }
 
+    /**
+     * Updates the views for everything that changed on the active player in the last frame.
+     * <p>
+     * Changes to the current song are handled by {@link #onEventMainThread(MusicChanged)}, as
+     * that event is sticky.
+     */
     @MainThread
-    public void onEventMainThread(PowerStatusChanged event) {
-        if (event.player.equals(mService.getActivePlayer())) {
-            updatePowerMenuItems(event.canPowerOn, event.canPowerOff);
+    public void onEventMainThread(PlayerStateDiff event) {
+        if (!event.player.equals(mService.getActivePlayer())) {
+            return;
         }
-    }
 
-    @MainThread
-    public void onEventMainThread(RepeatStatusChanged event) {
-        if (event.player.equals(mService.getActivePlayer())) {
-            updateRepeatStatus(event.repeatStatus);
-            if (!event.initial) {
-                Toast.makeText(mActivity, mActivity.getServerString(event.repeatStatus.getText()),
+        PlayerState playerState = event.playerState;
+
+        if (event.changed(PlayerStateDiff.CHANGED_POWER)) {
+            updatePowerMenuItems(!playerState.isPoweredOn(), !playerState.isPoweredOn());
+        }
+
+        if (event.changed(PlayerStateDiff.CHANGED_REPEAT)) {
+            updateRepeatStatus(playerState.getRepeatStatus());
+            if (!event.initialRepeatStatus) {
+                Toast.makeText(mActivity,
+                        mActivity.getServerString(playerState.getRepeatStatus().getText()),
                         Toast.LENGTH_SHORT).show();
             }
         }
-    }
 
-    @MainThread
-    public void onEventMainThread(ShuffleStatusChanged event) {
-        if (event.player.equals(mService.getActivePlayer())) {
-            updateShuffleStatus(event.shuffleStatus);
-            if (!event.initial) {
+        if (event.changed(PlayerStateDiff.CHANGED_SHUFFLE)) {
+            updateShuffleStatus(playerState.getShuffleStatus());
+            if (!event.initialShuffleStatus) {
                 Toast.makeText(mActivity,
-                        mActivity.getServerString(event.shuffleStatus.getText()),
+                        mActivity.getServerString(playerState.getShuffleStatus().getText()),
                         Toast.LENGTH_SHORT).show();
             }
         }
-    }
 
-    @MainThread
-    public void onEventMainThread(SongTimeChanged event) {
-        if (event.player.equals(mService.getActivePlayer())) {
-            updateTimeDisplayTo(event.currentPosition, event.duration);
+        if (event.changed(PlayerStateDiff.CHANGED_SONG_TIME)) {
+            updateTimeDisplayTo(playerState.getCurrentTimeSecond(),
+                    playerState.getCurrentSongDuration());
         }
     }
 }
@@ -21,6 +21,11 @@ import android.content.SharedPreferences;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.ngo.squeezer.util.ServerDiscovery;
+
 public final class Preferences {
 
     public static final String NAME = "Squeezer";
@@ -31,6 +36,9 @@ public final class Preferences {
     // Optional Squeezebox Server name
     private static final String KEY_SERVER_NAME = "squeezer.server_name";
 
+    // Servers found by the last network scan, e.g. "Kitchen\t10.0.0.81\nStudy\t10.0.0.82"
+    private static final String KEY_DISCOVERED_SERVERS = "squeezer.discovered_servers";
+
     // Optional Squeezebox Server user name
     private static final String KEY_USERNAME = "squeezer.username";
 
@@ -80,6 +88,21 @@ public final class Preferences {
     // Preferred UI theme.
     public static final String KEY_ON_THEME_SELECT_ACTION = "squeezer.theme";
 
+    // Talk to the server with JSON-RPC instead of the CLI.
+    public static final String KEY_CLIENT_JSON = "squeezer.client.json";
+
+    // Delete downloaded songs that were removed from the server when syncing a folder.
+    public static final String KEY_SYNC_DELETE_REMOVED = "squeezer.sync.deleteremoved";
+
+    // Limit on the total rate of the downloads, in bytes per second, "0" for no limit.
+    public static final String KEY_DOWNLOAD_RATE_LIMIT = "squeezer.download.ratelimit";
+
+    // Settings only shown in debug builds.
+    public static final String KEY_DEVELOPER_CATEGORY = "squeezer.developer";
+
+    // Shows the artwork cache statistics, not persisted.
+    public static final String KEY_ARTWORK_CACHE_STATS = "squeezer.developer.artworkcachestats";
+
     private final Context context;
     private final SharedPreferences sharedPreferences;
 
@@ -175,6 +198,51 @@ public final class Preferences {
         editor.commit();
     }
 
+    /**
+     * @param bssId The network the servers were found on, or null.
+     * @return The names and addresses of the servers the last network scan found, in the order
+     *     they were saved.
+     */
+    public List<ServerDiscovery.Server> getDiscoveredServers(String bssId) {
+        List<ServerDiscovery.Server> servers = new ArrayList<ServerDiscovery.Server>();
+        String value = getStringPreference(discoveredServersKey(bssId), null);
+        if (value != null) {
+            for (String server : value.split("\n")) {
+                int tab = server.lastIndexOf('\t');
+                if (tab > 0) {
+                    servers.add(new ServerDiscovery.Server(server.substring(tab + 1),
+                            server.substring(0, tab), -1, null, null));
+                }
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Remember the servers a network scan found, to show them straight away next time.
+     *
+     * @param bssId The network the servers were found on, or null.
+     * @param servers The servers. Only their names and addresses are kept.
+     */
+    public void saveDiscoveredServers(String bssId, List<ServerDiscovery.Server> servers) {
+        StringBuilder value = new StringBuilder();
+        for (ServerDiscovery.Server server : servers) {
+            if (value.length() > 0) {
+                value.append('\n');
+            }
+            value.append(server.name.replace('\n', ' ').replace('\t', ' '))
+                    .append('\t').append(server.address);
+        }
+
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putString(discoveredServersKey(bssId), value.toString());
+        editor.commit();
+    }
+
+    private static String discoveredServersKey(String bssId) {
+        return bssId != null ? KEY_DISCOVERED_SERVERS + "_" + bssId : KEY_DISCOVERED_SERVERS;
+    }
+
     public String getTheme() {
         return getStringPreference(KEY_ON_THEME_SELECT_ACTION, null);
     }
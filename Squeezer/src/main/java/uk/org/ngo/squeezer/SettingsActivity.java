@@ -16,10 +16,12 @@
 
 package uk.org.ngo.squeezer;
 
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
@@ -44,6 +46,7 @@ import java.util.ArrayList;
 import uk.org.ngo.squeezer.itemlist.action.PlayableItemAction;
 import uk.org.ngo.squeezer.service.ISqueezeService;
 import uk.org.ngo.squeezer.service.SqueezeService;
+import uk.org.ngo.squeezer.util.ImageFetcher;
 import uk.org.ngo.squeezer.util.Scrobble;
 import uk.org.ngo.squeezer.util.ThemeManager;
 
@@ -66,6 +69,8 @@ public class SettingsActivity extends PreferenceActivity implements
 
     private ListPreference onSelectThemePref;
 
+    private ListPreference downloadRateLimitPref;
+
     private final ThemeManager mThemeManager = new ThemeManager();
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -116,6 +121,55 @@ public class SettingsActivity extends PreferenceActivity implements
         CheckBoxPreference startSqueezePlayerPref = (CheckBoxPreference) findPreference(
                 Preferences.KEY_SQUEEZEPLAYER_ENABLED);
         startSqueezePlayerPref.setChecked(preferences.getBoolean(Preferences.KEY_SQUEEZEPLAYER_ENABLED, true));
+
+        CheckBoxPreference clientJsonPref = (CheckBoxPreference) findPreference(
+                Preferences.KEY_CLIENT_JSON);
+        clientJsonPref.setChecked(preferences.getBoolean(Preferences.KEY_CLIENT_JSON, false));
+
+        downloadRateLimitPref = (ListPreference) findPreference(
+                Preferences.KEY_DOWNLOAD_RATE_LIMIT);
+        downloadRateLimitPref.setOnPreferenceChangeListener(this);
+        updateDownloadRateLimitSummary(downloadRateLimitPref.getValue());
+
+        fillDeveloperPreferences();
+    }
+
+    private void fillDeveloperPreferences() {
+        if (!BuildConfig.DEBUG) {
+            getPreferenceScreen().removePreference(
+                    findPreference(Preferences.KEY_DEVELOPER_CATEGORY));
+            return;
+        }
+
+        findPreference(Preferences.KEY_ARTWORK_CACHE_STATS).setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        showArtworkCacheStats();
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Show the artwork cache statistics, and write them to the log.
+     */
+    private void showArtworkCacheStats() {
+        final ImageFetcher imageFetcher = ImageFetcher.getInstance(this);
+        imageFetcher.logStats();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.settings_artwork_cache_stats_title)
+                .setMessage(imageFetcher.getStatsReport())
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.artwork_cache_stats_reset,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                imageFetcher.getStats().reset();
+                            }
+                        })
+                .show();
     }
 
     private void fillScrobblePreferences(SharedPreferences preferences) {
@@ -264,6 +318,13 @@ public class SettingsActivity extends PreferenceActivity implements
         onSelectThemePref.setSummary(entries[index]);
     }
 
+    private void updateDownloadRateLimitSummary(String value) {
+        CharSequence[] entries = downloadRateLimitPref.getEntries();
+        int index = downloadRateLimitPref.findIndexOfValue(value);
+
+        downloadRateLimitPref.setSummary(entries[index < 0 ? 0 : index]);
+    }
+
     /**
      * A preference has been changed by the user, but has not yet been persisted.
      *
@@ -297,6 +358,11 @@ public class SettingsActivity extends PreferenceActivity implements
             return true;
         }
 
+        if (Preferences.KEY_DOWNLOAD_RATE_LIMIT.equals(key)) {
+            updateDownloadRateLimitSummary(newValue.toString());
+            return true;
+        }
+
         // If the user has enabled Scrobbling but we don't think it will work
         // pop up a dialog with links to Google Play for apps to install.
         if (Preferences.KEY_SCROBBLE_ENABLED.equals(key)) {
@@ -2,8 +2,12 @@ package uk.org.ngo.squeezer;
 
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 
+import uk.org.ngo.squeezer.framework.ListPageCache;
+import uk.org.ngo.squeezer.util.ImageFetcher;
+
 // Trick to make the app context useful available everywhere.
 // See http://stackoverflow.com/questions/987072/using-application-context-everywhere
 
@@ -18,5 +22,19 @@ public class Squeezer extends Application {
     public static Context getContext() {
         return instance;
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ListPageCache.getInstance().onTrimMemory(level);
+        ImageFetcher.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ListPageCache.getInstance().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        ImageFetcher.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
 }
 
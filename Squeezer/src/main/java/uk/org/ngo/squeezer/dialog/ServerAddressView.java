@@ -19,6 +19,9 @@ package uk.org.ngo.squeezer.dialog;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.AdapterView;
@@ -30,18 +33,25 @@ import android.widget.LinearLayout;
 import android.widget.Spinner;
 import android.widget.TextView;
 
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import uk.org.ngo.squeezer.Preferences;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.util.ScanNetworkTask;
+import uk.org.ngo.squeezer.util.ServerDiscovery;
 
 /**
  * Scans the local network for servers, allow the user to choose one, set it as the preferred server
  * for this network, and optionally enter authentication information.
  * <p>
+ * The servers found by the last scan on this network are shown straight away, and replaced by
+ * the servers the new scan finds as they reply. The address and credentials are only filled in
+ * when the scan finishes, and only if the user hasn't edited them.
+ * <p>
  * A new network scan can be initiated manually if desired.
  */
 public class ServerAddressView extends LinearLayout implements ScanNetworkTask.ScanNetworkCallback {
@@ -55,11 +65,21 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
     private EditText mPasswordEditText;
     private View mScanResults;
     private View mScanProgress;
+    private Button mScanButton;
 
     private ScanNetworkTask mScanNetworkTask;
 
-    /** Map server names to IP addresses. */
-    private TreeMap<String, String> mDiscoveredServers;
+    /** The servers shown, in the order of the spinner. */
+    private List<ServerDiscovery.Server> mDiscoveredServers;
+
+    /** True once the user has edited the address or the credentials. */
+    private boolean mUserEdited;
+
+    /** True while the fields are filled in from a server, so it doesn't count as an edit. */
+    private boolean mFillingIn;
+
+    /** Position the spinner was set to by {@link #showServers(List, boolean)}, or -1. */
+    private int mProgrammaticSelection = -1;
 
     private ArrayAdapter<String> mServersAdapter;
 
@@ -86,6 +106,26 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
             mPasswordEditText = (EditText) findViewById(R.id.password);
             setServerAddress(serverAddress.address);
 
+            TextWatcher editWatcher = new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    if (!mFillingIn) {
+                        mUserEdited = true;
+                    }
+                }
+            };
+            mServerAddressEditText.addTextChangedListener(editWatcher);
+            mUserNameEditText.addTextChangedListener(editWatcher);
+            mPasswordEditText.addTextChangedListener(editWatcher);
+
             // Set up the servers spinner.
             mServersAdapter = new ArrayAdapter<String>(context, android.R.layout.simple_spinner_item);
             mServersAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
@@ -105,9 +145,9 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
             boolean isWifi = ni != null && ni.getType() == ConnectivityManager.TYPE_WIFI;
             if (isWifi) {
                 scanDisabledMessage.setVisibility(GONE);
+                mScanButton = (Button) findViewById(R.id.scan_button);
                 startNetworkScan(context);
-                Button scanButton = (Button) findViewById(R.id.scan_button);
-                scanButton.setOnClickListener(new OnClickListener() {
+                mScanButton.setOnClickListener(new OnClickListener() {
                     public void onClick(View v) {
                         startNetworkScan(context);
                     }
@@ -149,52 +189,107 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
      * Starts scanning for servers.
      */
     void startNetworkScan(Context context) {
-        mScanResults.setVisibility(GONE);
         mScanProgress.setVisibility(VISIBLE);
+        mScanButton.setEnabled(false);
+        showServers(mPreferences.getDiscoveredServers(mBssId), false);
         mScanNetworkTask = new ScanNetworkTask(context, this);
         mScanNetworkTask.execute();
     }
 
+    /**
+     * Called when a server is found, while the scan goes on.
+     * @param servers Servers found so far, sorted by name.
+     */
+    public void onServerFound(List<ServerDiscovery.Server> servers) {
+        if (mScanNetworkTask != null) {
+            showServers(servers, false);
+        }
+    }
+
     /**
      * Called when server scanning has finished.
-     * @param serverMap Discovered servers, key is the server name, value is the IP address.
+     * @param servers Discovered servers, sorted by name.
      */
-    public void onScanFinished(TreeMap<String, String> serverMap) {
-        mScanResults.setVisibility(VISIBLE);
-        mServerName.setVisibility(GONE);
-        mServersSpinner.setVisibility(GONE);
+    public void onScanFinished(List<ServerDiscovery.Server> servers) {
         mScanProgress.setVisibility(GONE);
+        mScanButton.setEnabled(true);
 
         if (mScanNetworkTask == null) {
             return;
         }
-
-        mDiscoveredServers = serverMap;
         mScanNetworkTask = null;
 
-        switch (mDiscoveredServers.size()) {
-            case 0:
-                // Do nothing, no servers found.
-                break;
+        showServers(servers, true);
+        if (!servers.isEmpty()) {
+            mPreferences.saveDiscoveredServers(mBssId, servers);
+        }
+    }
+
+    /**
+     * Show the servers. While scanning they are only listed. Once the scan has finished the user
+     * can choose one if there are several, and unless the user has edited the fields, the
+     * address and credentials of the only server, or the first one if the current address isn't
+     * one of them, are filled in.
+     * @param servers The servers, sorted by name.
+     * @param finished True if the scan has finished.
+     */
+    private void showServers(List<ServerDiscovery.Server> servers, boolean finished) {
+        boolean fillIn = finished && !mUserEdited;
+        mServerName.setVisibility(GONE);
+        mServersSpinner.setVisibility(GONE);
+        mDiscoveredServers = servers;
+
+        if (servers.isEmpty()) {
+            // Do nothing, no servers found.
+            return;
+        }
 
-            case 1:
+        if (servers.size() == 1 || !finished) {
+            if (fillIn) {
                 // Populate the edit text widget with the address found.
-                setServerAddress(mDiscoveredServers.get(mDiscoveredServers.firstKey()));
-                mServerName.setVisibility(VISIBLE);
-                mServerName.setText(mDiscoveredServers.firstKey());
-                break;
-
-            default:
-                // Show the spinner so the user can choose a server.
-                mServersAdapter.clear();
-                for (Entry<String, String> e : mDiscoveredServers.entrySet()) {
-                    mServersAdapter.add(e.getKey());
-                }
-                int position = getServerPosition(mServerAddressEditText.getText().toString());
-                if (position >= 0) mServersSpinner.setSelection(position);
-                mServersSpinner.setVisibility(VISIBLE);
-                mServersAdapter.notifyDataSetChanged();
+                setServerAddress(servers.get(0).address);
+            }
+            mServerName.setVisibility(VISIBLE);
+            mServerName.setText(TextUtils.join(", ", getDisplayNames(servers)));
+            return;
+        }
+
+        // Show the spinner so the user can choose a server.
+        mServersAdapter.clear();
+        for (String name : getDisplayNames(servers)) {
+            mServersAdapter.add(name);
         }
+        int position = getServerPosition(mServerAddressEditText.getText().toString());
+        if (position < 0) {
+            position = 0;
+            if (fillIn) {
+                setServerAddress(servers.get(0).address);
+            }
+        }
+        mProgrammaticSelection = position;
+        mServersSpinner.setSelection(position);
+        mServersSpinner.setVisibility(VISIBLE);
+        mServersAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * @return The names of the servers, with the address added to names that aren't unique.
+     */
+    private static List<String> getDisplayNames(List<ServerDiscovery.Server> servers) {
+        Set<String> names = new HashSet<String>();
+        Set<String> duplicates = new HashSet<String>();
+        for (ServerDiscovery.Server server : servers) {
+            if (!names.add(server.name)) {
+                duplicates.add(server.name);
+            }
+        }
+
+        List<String> displayNames = new ArrayList<String>(servers.size());
+        for (ServerDiscovery.Server server : servers) {
+            displayNames.add(duplicates.contains(server.name)
+                    ? server.name + " (" + server.address + ")" : server.name);
+        }
+        return displayNames;
     }
 
     private void setServerAddress(String address) {
@@ -213,27 +308,27 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
         serverAddress.bssId = mBssId;
         serverAddress.address = host + ":" + port;
 
+        mFillingIn = true;
         mServerAddressEditText.setText(serverAddress.address);
         mUserNameEditText.setText(mPreferences.getUserName(serverAddress));
         mPasswordEditText.setText(mPreferences.getPassword(serverAddress));
+        mFillingIn = false;
     }
 
     private String getServerName(String ipPort) {
         if (mDiscoveredServers != null)
-            for (Entry<String, String> entry : mDiscoveredServers.entrySet())
-                if (ipPort.equals(entry.getValue()))
-                    return entry.getKey();
+            for (ServerDiscovery.Server server : mDiscoveredServers)
+                if (ipPort.equals(server.address))
+                    return server.name;
         return null;
     }
 
     private int getServerPosition(String ipPort) {
         if (mDiscoveredServers != null) {
             String host = Util.parseHost(ipPort);
-            int position = 0;
-            for (Entry<String, String> entry : mDiscoveredServers.entrySet()) {
-                if (host.equals(entry.getValue()))
+            for (int position = 0; position < mDiscoveredServers.size(); position++) {
+                if (host.equals(mDiscoveredServers.get(position).address))
                     return position;
-                position++;
             }
         }
         return -1;
@@ -244,8 +339,12 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
      */
     private class MyOnItemSelectedListener implements OnItemSelectedListener {
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
-            String serverAddress = mDiscoveredServers.get(parent.getItemAtPosition(pos).toString());
-            setServerAddress(serverAddress);
+            // Selections made by showServers() are not the user's choice.
+            boolean programmatic = (pos == mProgrammaticSelection);
+            mProgrammaticSelection = -1;
+            if (!programmatic) {
+                setServerAddress(mDiscoveredServers.get(pos).address);
+            }
         }
 
         public void onNothingSelected(AdapterView<?> parent) {
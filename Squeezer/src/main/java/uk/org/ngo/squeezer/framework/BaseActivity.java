@@ -48,6 +48,7 @@ import uk.org.ngo.squeezer.HomeActivity;
 import uk.org.ngo.squeezer.Preferences;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.VolumePanel;
+import uk.org.ngo.squeezer.model.MusicFolderItem;
 import uk.org.ngo.squeezer.model.Player;
 import uk.org.ngo.squeezer.model.PlayerState;
 import uk.org.ngo.squeezer.service.ISqueezeService;
@@ -202,14 +203,6 @@ public abstract class BaseActivity extends ActionBarActivity implements HasUiThr
         super.onPause();
     }
 
-    /**
-     * Clear the image memory cache if memory gets low.
-     */
-    @Override
-    public void onLowMemory() {
-        ImageFetcher.onLowMemory();
-    }
-
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -447,6 +440,19 @@ public abstract class BaseActivity extends ActionBarActivity implements HasUiThr
             Toast.makeText(this, R.string.DOWNLOAD_MANAGER_NEEDED, Toast.LENGTH_LONG).show();
     }
 
+    /**
+     * Initiate sync of the songs in the supplied music folder.
+     *
+     * @param item Music folder to sync
+     * @see ISqueezeService#syncMusicFolder(MusicFolderItem)
+     */
+    public void syncMusicFolder(MusicFolderItem item) {
+        if (canDownload())
+            mService.syncMusicFolder(item);
+        else
+            Toast.makeText(this, R.string.DOWNLOAD_MANAGER_NEEDED, Toast.LENGTH_LONG).show();
+    }
+
     @StringDef({PLAYLIST_PLAY_NOW, PLAYLIST_ADD_TO_END, PLAYLIST_PLAY_AFTER_CURRENT})
     @Retention(RetentionPolicy.SOURCE)
     public @interface PlaylistControlCmd {}
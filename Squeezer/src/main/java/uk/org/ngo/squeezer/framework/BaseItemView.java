@@ -238,6 +238,13 @@ public abstract class BaseItemView<T extends Item> implements ItemView<T> {
         return view;
     }
 
+    /**
+     * Does nothing, override this if the view shows artwork.
+     */
+    @Override
+    public void prefetchArtwork(T item) {
+    }
+
     /**
      * Binds the text to {@link ViewHolder#text1}.
      * <p>
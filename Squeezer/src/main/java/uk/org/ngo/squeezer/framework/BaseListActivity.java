@@ -18,6 +18,7 @@ package uk.org.ngo.squeezer.framework;
 
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
@@ -35,10 +36,12 @@ import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
 
+import uk.org.ngo.squeezer.BuildConfig;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
 import uk.org.ngo.squeezer.util.ImageFetcher;
+import uk.org.ngo.squeezer.util.ImageWorker;
 import uk.org.ngo.squeezer.util.RetainFragment;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -114,7 +117,7 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
                 // Release strong reference when a view is recycled
                 final ImageView imageView = (ImageView) view.findViewById(R.id.icon);
                 if (imageView != null) {
-                    imageView.setImageBitmap(null);
+                    ImageWorker.clearImage(imageView);
                 }
             }
         });
@@ -123,6 +126,12 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
         mListView.setOnCreateContextMenuListener(getItemAdapter());
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        ImageFetcher.getInstance(this).cancelPrefetches();
+    }
+
     public void onEventMainThread(HandshakeComplete event) {
         maybeOrderVisiblePages(mListView);
         setAdapter();
@@ -267,9 +276,19 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
 
     @Override
     public void onItemsReceived(int count, int start, Map<String, String> parameters, List<T> items, Class<T> dataType) {
+        String cacheKey = getPageCacheKey();
+        if (cacheKey != null) {
+            ListPageCache.getInstance().add(cacheKey, count, start, items);
+        }
         onItemsReceived(count, start, items);
     }
 
+    @Override
+    protected void onPageFromCache(int count, int start, List<Item> items) {
+        //noinspection unchecked
+        onItemsReceived(count, start, (List<T>) (List<?>) items);
+    }
+
     @Override
     public Object getClient() {
         return this;
@@ -277,6 +296,18 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
 
     protected class ScrollListener extends ItemListActivity.ScrollListener {
 
+        private final PrefetchWindow mPrefetchWindow = new PrefetchWindow();
+
+        /** True between the start of a scroll and the list coming to rest. */
+        private boolean mScrolling;
+
+        // Image counters of ImageFetcher at the start of the scroll.
+        private long mShownCount;
+
+        private long mShownFromMemoryCount;
+
+        private long mTimeToFirstPixelMillis;
+
         ScrollListener() {
             super();
         }
@@ -289,12 +320,72 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
         public void onScrollStateChanged(AbsListView listView, int scrollState) {
             super.onScrollStateChanged(listView, scrollState);
 
+            ImageFetcher imageFetcher = ImageFetcher.getInstance(BaseListActivity.this);
             if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING ||
                     scrollState == AbsListView.OnScrollListener.SCROLL_STATE_TOUCH_SCROLL) {
-                ImageFetcher.getInstance(BaseListActivity.this).setPauseWork(true);
+                imageFetcher.setPauseWork(true);
+                if (!mScrolling) {
+                    mScrolling = true;
+                    mShownCount = imageFetcher.getShownCount();
+                    mShownFromMemoryCount = imageFetcher.getShownFromMemoryCount();
+                    mTimeToFirstPixelMillis = imageFetcher.getTimeToFirstPixelMillis();
+                }
             } else {
-                ImageFetcher.getInstance(BaseListActivity.this).setPauseWork(false);
+                imageFetcher.setPauseWork(false);
+                if (mScrolling) {
+                    mScrolling = false;
+                    mPrefetchWindow.reset();
+                    if (BuildConfig.DEBUG) {
+                        logTimeToFirstPixel(imageFetcher);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Prefetches the artwork of the items that are about to scroll in to view, as far ahead
+         * as the scroll velocity calls for.
+         */
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            super.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+
+            if (!mScrolling || visibleItemCount == 0) {
+                return;
+            }
+
+            if (mPrefetchWindow.update(firstVisibleItem, visibleItemCount, totalItemCount,
+                    SystemClock.uptimeMillis())) {
+                ImageFetcher.getInstance(BaseListActivity.this).cancelPrefetches();
+            }
+
+            // Nearest items first.
+            ItemAdapter<T> adapter = getItemAdapter();
+            int start = mPrefetchWindow.getStart();
+            int end = mPrefetchWindow.getEnd();
+            for (int i = 0; i < end - start; i++) {
+                int position = (mPrefetchWindow.getDirection() > 0 ? start + i : end - 1 - i);
+                T item = adapter.peekItem(position);
+                if (item != null) {
+                    adapter.getItemView().prefetchArtwork(item);
+                }
+            }
+        }
+
+        /**
+         * Logs how quickly the artwork of the rows that came in to view during the scroll was
+         * shown.
+         */
+        private void logTimeToFirstPixel(ImageFetcher imageFetcher) {
+            long shown = imageFetcher.getShownCount() - mShownCount;
+            if (shown == 0) {
+                return;
             }
+            long fromMemory = imageFetcher.getShownFromMemoryCount() - mShownFromMemoryCount;
+            long millis = imageFetcher.getTimeToFirstPixelMillis() - mTimeToFirstPixelMillis;
+            Log.d(getTag(), "Scroll showed " + shown + " images, " + fromMemory
+                    + " from memory, mean time to first pixel " + (millis / shown) + "ms");
         }
     }
 }
@@ -216,6 +216,17 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
         return item;
     }
 
+    /**
+     * Returns the item at the position if it has been received, without ordering its page.
+     *
+     * @param position Position of the item in the adapter.
+     * @return The item, or null if it has not been received.
+     */
+    public T peekItem(int position) {
+        T[] page = pages.get(pageNumber(position));
+        return page != null ? page[position % pageSize] : null;
+    }
+
     public void setItem(int position, T item) {
         getPage(position)[position % pageSize] = item;
     }
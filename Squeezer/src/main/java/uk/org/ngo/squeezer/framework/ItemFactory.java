@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import java.util.Map;
+
+/**
+ * Creates items from the records the server sends.
+ * <p>
+ * Every item that is received in a list exposes one of these as a public static field named
+ * <code>FACTORY</code>, in the same way as a {@link android.os.Parcelable} exposes a
+ * <code>CREATOR</code>. List handlers call it for every record, so it must not use reflection.
+ *
+ * @param <T> The type of item to create.
+ */
+public interface ItemFactory<T extends Item> {
+    /**
+     * @param record Item data from the server.
+     *
+     * @return A new item, initialised from the record.
+     */
+    T newItem(Map<String, String> record);
+}
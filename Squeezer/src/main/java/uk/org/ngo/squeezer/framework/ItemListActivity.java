@@ -27,6 +27,7 @@ import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 
@@ -117,6 +118,49 @@ public abstract class ItemListActivity extends BaseActivity {
      */
     protected abstract void orderPage(@NonNull ISqueezeService service, int start);
 
+    /**
+     * Describes the list shown by this activity, for the {@link ListPageCache}. Lists that can be
+     * cached return a key made with {@link #pageCacheKey(String, Object...)} from the command and
+     * all the parameters that select and order the items.
+     *
+     * @return The key, or null if the list is not cached. This is the default.
+     */
+    protected String getPageCacheKey() {
+        return null;
+    }
+
+    /**
+     * Build a key for {@link #getPageCacheKey()}.
+     *
+     * @param command The command that lists the items, e.g. <code>albums</code>.
+     * @param parameters The sort order, search string, filters, etc. Nulls are allowed.
+     * @return The key.
+     */
+    protected static String pageCacheKey(String command, Object... parameters) {
+        StringBuilder sb = new StringBuilder(command);
+        for (Object parameter : parameters) {
+            sb.append('|');
+            if (parameter instanceof FilterItem) {
+                sb.append(((FilterItem) parameter).getFilterParameter());
+            } else if (parameter != null) {
+                sb.append(parameter);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Called with a page found in the {@link ListPageCache}, instead of ordering it. The
+     * default implementation does nothing, subclasses that return a key from
+     * {@link #getPageCacheKey()} must show the items.
+     *
+     * @param count The number of items in the list.
+     * @param start The position of the first item of the page.
+     * @param items The items.
+     */
+    protected void onPageFromCache(int count, int start, List<Item> items) {
+    }
+
     /**
      * List can clear any information about which items have been received and ordered, by calling
      * {@link #clearAndReOrderItems()}. This will call back to this method, which must clear any
@@ -127,13 +171,29 @@ public abstract class ItemListActivity extends BaseActivity {
     /**
      * Orders a page worth of data, starting at the specified position, if it has not already been
      * ordered, and if the service is connected and the handshake has completed.
+     * <p>
+     * A page that is in the {@link ListPageCache} is taken from there instead, even while the
+     * list is scrolling.
      *
      * @param pagePosition position in the list to start the fetch.
      * @return True if the page needed to be ordered (even if the order failed), false otherwise.
      */
     public boolean maybeOrderPage(int pagePosition) {
-        if (!mListScrolling && !mReceivedPages.contains(pagePosition) && !mOrderedPages
-                .contains(pagePosition) && !mOrderedPagesBeforeHandshake.contains(pagePosition)) {
+        if (mReceivedPages.contains(pagePosition) || mOrderedPages.contains(pagePosition)
+                || mOrderedPagesBeforeHandshake.contains(pagePosition)) {
+            return false;
+        }
+
+        String cacheKey = getPageCacheKey();
+        if (cacheKey != null) {
+            ListPageCache.Page page = ListPageCache.getInstance().get(cacheKey, pagePosition);
+            if (page != null) {
+                onPageFromCache(page.count, pagePosition, page.items);
+                return true;
+            }
+        }
+
+        if (!mListScrolling) {
             ISqueezeService service = getService();
 
             // If the service connection hasn't happened yet then store the page
@@ -284,8 +344,8 @@ public abstract class ItemListActivity extends BaseActivity {
             mPrevScrollState = scrollState;
         }
 
-        // Do not use: is not called when the scroll completes, appears to be
-        // called multiple time during a scroll, including during flinging.
+        // Do not use to detect the end of a scroll: is not called when the scroll completes,
+        // appears to be called multiple time during a scroll, including during flinging.
         @Override
         public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
                 int totalItemCount) {
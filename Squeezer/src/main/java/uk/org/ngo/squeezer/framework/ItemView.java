@@ -75,6 +75,14 @@ public interface ItemView<T extends Item> {
      */
     View getAdapterView(View convertView, ViewGroup parent, String text);
 
+    /**
+     * Start loading the artwork the view of the item shows, so that it is ready when the item
+     * scrolls in to view. Called for items just outside the visible part of the list.
+     *
+     * @param item The item that is about to be displayed.
+     */
+    void prefetchArtwork(T item);
+
     /**
      * @return The generic argument of the implementation
      */
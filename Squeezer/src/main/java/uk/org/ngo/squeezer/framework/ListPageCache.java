@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.Squeezer;
+
+/**
+ * Process wide cache of the pages of items shown by {@link ItemListActivity} instances.
+ * <p>
+ * Pages are keyed by the list they belong to, which is described by the command, sort order,
+ * search string and filters (see {@link ItemListActivity#getPageCacheKey()}), and the start of
+ * the page. Returning to a list, or opening it again, shows the cached pages without asking the
+ * service.
+ * <p>
+ * Items arrive in chunks, which are collected until the page is complete. The cache is bounded
+ * by the number of items it holds, sized from the heap, and is trimmed when the system is low on
+ * memory. It is emptied when the server's library changes, or the connection is lost.
+ * <p>
+ * This class is thread safe.
+ */
+public class ListPageCache {
+
+    /** Rough size of an item in memory, in bytes, to size the cache from the heap. */
+    private static final int ITEM_SIZE_ESTIMATE = 512;
+
+    /** Most items to keep, however big the heap. */
+    private static final int MAX_ITEMS = 20000;
+
+    private static ListPageCache sInstance;
+
+    /** A complete page of items. */
+    public static class Page {
+        /** Number of items in the whole list. */
+        public final int count;
+
+        public final List<Item> items;
+
+        Page(int count, List<Item> items) {
+            this.count = count;
+            this.items = items;
+        }
+    }
+
+    private final int mPageSize;
+
+    private final LruCache<String, Page> mPages;
+
+    /** Pages of which some chunks have arrived, by key. */
+    private final Map<String, Page> mPartialPages = new HashMap<String, Page>();
+
+    public static synchronized ListPageCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ListPageCache(
+                    Squeezer.getContext().getResources().getInteger(R.integer.PageSize),
+                    (int) Math.min(MAX_ITEMS,
+                            Runtime.getRuntime().maxMemory() / 16 / ITEM_SIZE_ESTIMATE));
+        }
+        return sInstance;
+    }
+
+    ListPageCache(int pageSize, int maxItems) {
+        mPageSize = pageSize;
+        mPages = new LruCache<String, Page>(maxItems) {
+            @Override
+            protected int sizeOf(String key, Page page) {
+                return Math.max(1, page.items.size());
+            }
+        };
+    }
+
+    private static String key(String listKey, int pageStart) {
+        return listKey + '@' + pageStart;
+    }
+
+    /**
+     * @param listKey The list.
+     * @param pageStart The position of the first item of the page.
+     * @return The cached page, or null.
+     */
+    @Nullable
+    public Page get(String listKey, int pageStart) {
+        return mPages.get(key(listKey, pageStart));
+    }
+
+    /**
+     * Add a chunk of items received for a list. The page is cached once all its chunks have
+     * arrived, in order.
+     *
+     * @param listKey The list.
+     * @param count Number of items in the whole list.
+     * @param start Position of the first of the items.
+     * @param items The items.
+     */
+    public void add(String listKey, int count, int start, List<? extends Item> items) {
+        int pageStart = start - start % mPageSize;
+        String key = key(listKey, pageStart);
+        Page page;
+        synchronized (mPartialPages) {
+            page = mPartialPages.remove(key);
+            if (start == pageStart) {
+                page = new Page(count, new ArrayList<Item>(items));
+            } else if (page != null && page.count == count
+                    && pageStart + page.items.size() == start) {
+                page.items.addAll(items);
+            } else {
+                // A chunk is missing, the page will be ordered again.
+                return;
+            }
+
+            if (page.items.size() < Math.min(mPageSize, count - pageStart)) {
+                mPartialPages.put(key, page);
+                return;
+            }
+        }
+        mPages.put(key, page);
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void clear() {
+        synchronized (mPartialPages) {
+            mPartialPages.clear();
+        }
+        mPages.evictAll();
+    }
+
+    /**
+     * Give memory back, depending on how badly the system needs it.
+     *
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(mPages.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Evict the least recently used pages until the cache holds no more than maxItems.
+     */
+    private void trimToSize(int maxItems) {
+        // The snapshot is ordered from least to most recently used.
+        for (String key : mPages.snapshot().keySet()) {
+            if (mPages.size() <= maxItems) {
+                break;
+            }
+            mPages.remove(key);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+/**
+ * Works out which items of a scrolling list to prefetch, from how fast and which way it scrolls.
+ * <p>
+ * The positions ahead of the visible items, in the direction of scrolling, are prefetched. How
+ * far ahead depends on the scroll velocity: enough items to cover {@link #LOOKAHEAD_MILLIS} of
+ * scrolling, but at least one screen and at most {@link #MAX_SCREENS} screens. Each position is
+ * handed out once per run of scrolling in the same direction.
+ * <p>
+ * This class is not thread safe, it is meant to be used from the main thread.
+ */
+class PrefetchWindow {
+
+    /** How far ahead to prefetch, as a time at the current velocity. */
+    static final int LOOKAHEAD_MILLIS = 1000;
+
+    /** The most screens of items to prefetch ahead. */
+    static final int MAX_SCREENS = 4;
+
+    /** Position of the first visible item, or -1 before the first update. */
+    private int mFirstVisible = -1;
+
+    /** When the first visible position last changed. */
+    private long mTime;
+
+    /** Smoothed scroll velocity, in items per second. Negative when scrolling up. */
+    private float mVelocity;
+
+    /** 1 when scrolling down, -1 when scrolling up, 0 before the list has moved. */
+    private int mDirection;
+
+    /** The end of the positions handed out when scrolling down. */
+    private int mPrefetchedEnd;
+
+    /** The start of the positions handed out when scrolling up. */
+    private int mPrefetchedStart;
+
+    /** The positions to prefetch after the last update, start inclusive, end exclusive. */
+    private int mStart;
+
+    private int mEnd;
+
+    PrefetchWindow() {
+        reset();
+    }
+
+    /**
+     * Forget the scrolling so far, e.g. because the list is idle.
+     */
+    void reset() {
+        mFirstVisible = -1;
+        mVelocity = 0;
+        mDirection = 0;
+        mPrefetchedEnd = Integer.MIN_VALUE;
+        mPrefetchedStart = Integer.MAX_VALUE;
+        mStart = mEnd = 0;
+    }
+
+    /**
+     * Update with the latest scroll position, and work out the positions to prefetch next.
+     *
+     * @param firstVisible Position of the first visible item.
+     * @param visibleCount The number of visible items.
+     * @param count The number of items in the list.
+     * @param time The current time, in milliseconds.
+     * @return True if the scroll direction reversed, so prefetches for the old direction
+     *     should be cancelled.
+     */
+    boolean update(int firstVisible, int visibleCount, int count, long time) {
+        mStart = mEnd = 0;
+        if (mFirstVisible == -1) {
+            mFirstVisible = firstVisible;
+            mTime = time;
+            return false;
+        }
+
+        int moved = firstVisible - mFirstVisible;
+        if (moved == 0) {
+            // Nothing new to prefetch until the next item comes in to view.
+            return false;
+        }
+
+        int direction = (moved > 0 ? 1 : -1);
+        boolean reversed = (mDirection != 0 && direction != mDirection);
+        float velocity = moved * 1000f / Math.max(1, time - mTime);
+        if (reversed) {
+            mPrefetchedEnd = Integer.MIN_VALUE;
+            mPrefetchedStart = Integer.MAX_VALUE;
+        }
+        if (direction != mDirection) {
+            mVelocity = velocity;
+        } else {
+            mVelocity = (mVelocity + velocity) / 2;
+        }
+        mDirection = direction;
+        mFirstVisible = firstVisible;
+        mTime = time;
+
+        int lookahead = Math.round(Math.abs(mVelocity) * LOOKAHEAD_MILLIS / 1000);
+        lookahead = Math.max(visibleCount, Math.min(visibleCount * MAX_SCREENS, lookahead));
+        if (direction > 0) {
+            int end = Math.min(count, firstVisible + visibleCount + lookahead);
+            mStart = Math.max(firstVisible + visibleCount, mPrefetchedEnd);
+            mEnd = Math.max(mStart, end);
+            mPrefetchedEnd = Math.max(mPrefetchedEnd, mEnd);
+        } else {
+            int start = Math.max(0, firstVisible - lookahead);
+            mEnd = Math.min(firstVisible, mPrefetchedStart);
+            mStart = Math.min(start, mEnd);
+            mPrefetchedStart = Math.min(mPrefetchedStart, mStart);
+        }
+
+        return reversed;
+    }
+
+    /**
+     * @return 1 when scrolling down, -1 when scrolling up, 0 before the list has moved.
+     */
+    int getDirection() {
+        return mDirection;
+    }
+
+    /**
+     * @return The smoothed scroll velocity, in items per second.
+     */
+    float getVelocity() {
+        return mVelocity;
+    }
+
+    /**
+     * @return The first position to prefetch after the last update.
+     */
+    int getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return The position after the last one to prefetch after the last update.
+     */
+    int getEnd() {
+        return mEnd;
+    }
+}
@@ -173,6 +173,16 @@ public class AlbumListActivity extends BaseListActivity<Album>
                 : R.layout.item_list_albums;
     }
 
+    @Override
+    protected String getPageCacheKey() {
+        // The sort order is not known until the first page is ordered.
+        if (sortOrder == null) {
+            return null;
+        }
+        return pageCacheKey("albums", sortOrder, getSearchString(), artist, getYear(), getGenre(),
+                song);
+    }
+
     @Override
     protected void orderPage(@NonNull ISqueezeService service, int start) {
         if (sortOrder == null) {
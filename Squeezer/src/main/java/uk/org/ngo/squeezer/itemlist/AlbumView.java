@@ -96,6 +96,14 @@ public class AlbumView extends AlbumArtView<Album> {
         }
     }
 
+    @Override
+    public void prefetchArtwork(Album item) {
+        Uri artworkUrl = item.getArtworkUrl();
+        if (!artworkUrl.equals(Uri.EMPTY)) {
+            ImageFetcher.getInstance(getActivity()).prefetch(artworkUrl, mIconWidth, mIconHeight);
+        }
+    }
+
     @Override
     protected PlayableItemAction getOnSelectAction() {
         String actionType = preferences.getString(Preferences.KEY_ON_SELECT_ALBUM_ACTION,
@@ -96,6 +96,11 @@ public class ArtistListActivity extends BaseListActivity<Artist> implements
         }
     }
 
+    @Override
+    protected String getPageCacheKey() {
+        return pageCacheKey("artists", getSearchString(), album, genre);
+    }
+
     @Override
     protected void orderPage(@NonNull ISqueezeService service, int start) {
         service.artists(this, start, getSearchString(), album, genre);
@@ -32,6 +32,11 @@ public class GenreListActivity extends BaseListActivity<Genre> {
         return new GenreView(this);
     }
 
+    @Override
+    protected String getPageCacheKey() {
+        return pageCacheKey("genres");
+    }
+
     @Override
     protected void orderPage(@NonNull ISqueezeService service, int start) {
         service.genres(start, null, this);
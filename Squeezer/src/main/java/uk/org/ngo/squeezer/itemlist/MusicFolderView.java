@@ -118,6 +118,9 @@ public class MusicFolderView extends PlaylistItemView<MusicFolderItem> {
         if (("track".equals(item.getType()) || "folder".equals(item.getType()))
                 && (item.getUrl() != null)) {
             menu.add(Menu.NONE, R.id.download, Menu.NONE, R.string.DOWNLOAD_ITEM);
+            if ("folder".equals(item.getType())) {
+                menu.add(Menu.NONE, R.id.sync, Menu.NONE, R.string.SYNC_ITEM);
+            }
         }
     }
 
@@ -132,6 +135,9 @@ public class MusicFolderView extends PlaylistItemView<MusicFolderItem> {
                     getActivity().downloadItem(selectedItem);
                 }
                 return true;
+            case R.id.sync:
+                getActivity().syncMusicFolder(selectedItem);
+                return true;
         }
         return super.doItemContext(menuItem, index, selectedItem);
     }
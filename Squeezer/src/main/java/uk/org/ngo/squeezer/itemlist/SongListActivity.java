@@ -33,6 +33,8 @@ import android.widget.AdapterView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.List;
+
 import uk.org.ngo.squeezer.Preferences;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Util;
@@ -268,10 +270,24 @@ public class SongListActivity extends BaseListActivity<Song>
         return (listLayout == SongViewDialog.SongListLayout.grid) ? new SongGridView(this) : new SongViewWithArt(this);
     }
 
+    @Override
+    protected String getPageCacheKey() {
+        return pageCacheKey("songs", sortOrder, searchString, album, artist, year, genre);
+    }
+
     @Override
     protected void orderPage(@NonNull ISqueezeService service, int start) {
         service.songs(this, start, sortOrder.name(), searchString, album, artist, year, genre);
+        updatePlayButtons();
+    }
+
+    @Override
+    protected void onPageFromCache(int count, int start, List<Item> items) {
+        super.onPageFromCache(count, start, items);
+        updatePlayButtons();
+    }
 
+    private void updatePlayButtons() {
         boolean canPlay = (getCurrentPlaylistItem() != null);
         if (playButton != null) {
             playButton.setVisible(canPlay);
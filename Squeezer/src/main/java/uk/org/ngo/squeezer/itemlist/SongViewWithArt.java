@@ -55,6 +55,14 @@ public class SongViewWithArt extends SongView {
         }
     }
 
+    @Override
+    public void prefetchArtwork(Song item) {
+        Uri artworkUrl = item.getArtworkUrl();
+        if (!artworkUrl.equals(Uri.EMPTY)) {
+            ImageFetcher.getInstance(getActivity()).prefetch(artworkUrl, mIconWidth, mIconHeight);
+        }
+    }
+
     /**
      * Binds the label to {@link ViewHolder#text1}. Sets {@link ViewHolder#icon} to the generic
      * pending icon, and clears {@link ViewHolder#text2}.
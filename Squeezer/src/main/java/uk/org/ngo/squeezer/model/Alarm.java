@@ -24,6 +24,7 @@ import java.util.TreeSet;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 
 public class Alarm extends Item {
@@ -106,6 +107,13 @@ public class Alarm extends Item {
         return sb.toString();
     }
 
+    public static final ItemFactory<Alarm> FACTORY = new ItemFactory<Alarm>() {
+        @Override
+        public Alarm newItem(Map<String, String> record) {
+            return new Alarm(record);
+        }
+    };
+
     public static final Creator<Alarm> CREATOR = new Creator<Alarm>() {
         public Alarm[] newArray(int size) {
             return new Alarm[size];
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 
 public class AlarmPlaylist extends Item {
@@ -56,6 +57,13 @@ public class AlarmPlaylist extends Item {
         singleton = Util.parseDecimalIntOrZero(record.get("singleton")) == 1;
     }
 
+    public static final ItemFactory<AlarmPlaylist> FACTORY = new ItemFactory<AlarmPlaylist>() {
+        @Override
+        public AlarmPlaylist newItem(Map<String, String> record) {
+            return new AlarmPlaylist(record);
+        }
+    };
+
     public static final Creator<AlarmPlaylist> CREATOR = new Creator<AlarmPlaylist>() {
         public AlarmPlaylist[] newArray(int size) {
             return new AlarmPlaylist[size];
@@ -28,6 +28,7 @@ import java.util.Map;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.ArtworkItem;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 @JsonObject
 public class Album extends ArtworkItem {
@@ -100,6 +101,13 @@ public class Album extends ArtworkItem {
         mArtworkUrl = Uri.parse(Strings.nullToEmpty(record.get("artwork_url")));
     }
 
+    public static final ItemFactory<Album> FACTORY = new ItemFactory<Album>() {
+        @Override
+        public Album newItem(Map<String, String> record) {
+            return new Album(record);
+        }
+    };
+
     public static final Creator<Album> CREATOR = new Creator<Album>() {
         @Override
         public Album[] newArray(int size) {
@@ -20,6 +20,7 @@ import android.os.Parcel;
 
 import java.util.Map;
 
+import uk.org.ngo.squeezer.framework.ItemFactory;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 
 
@@ -58,6 +59,13 @@ public class Artist extends PlaylistItem {
         name = record.containsKey("contributor") ? record.get("contributor") : record.get("artist");
     }
 
+    public static final ItemFactory<Artist> FACTORY = new ItemFactory<Artist>() {
+        @Override
+        public Artist newItem(Map<String, String> record) {
+            return new Artist(record);
+        }
+    };
+
     public static final Creator<Artist> CREATOR = new Creator<Artist>() {
         @Override
         public Artist[] newArray(int size) {
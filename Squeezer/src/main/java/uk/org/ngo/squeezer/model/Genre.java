@@ -20,6 +20,7 @@ import android.os.Parcel;
 
 import java.util.Map;
 
+import uk.org.ngo.squeezer.framework.ItemFactory;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 
 
@@ -52,6 +53,13 @@ public class Genre extends PlaylistItem {
         name = record.get("genre");
     }
 
+    public static final ItemFactory<Genre> FACTORY = new ItemFactory<Genre>() {
+        @Override
+        public Genre newItem(Map<String, String> record) {
+            return new Genre(record);
+        }
+    };
+
     public static final Creator<Genre> CREATOR = new Creator<Genre>() {
         @Override
         public Genre[] newArray(int size) {
@@ -25,6 +25,7 @@ import com.google.common.base.Strings;
 
 import java.util.Map;
 
+import uk.org.ngo.squeezer.framework.ItemFactory;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 
 /**
@@ -115,6 +116,13 @@ public class MusicFolderItem extends PlaylistItem {
         mDownloadUrl = Uri.parse(Strings.nullToEmpty(record.get("download_url")));
     }
 
+    public static final ItemFactory<MusicFolderItem> FACTORY = new ItemFactory<MusicFolderItem>() {
+        @Override
+        public MusicFolderItem newItem(Map<String, String> record) {
+            return new MusicFolderItem(record);
+        }
+    };
+
     public static final Creator<MusicFolderItem> CREATOR = new Creator<MusicFolderItem>() {
         @Override
         public MusicFolderItem[] newArray(int size) {
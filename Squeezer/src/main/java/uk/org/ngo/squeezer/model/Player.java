@@ -36,6 +36,7 @@ import java.util.Set;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 
 public class Player extends Item {
@@ -149,6 +150,13 @@ public class Player extends Item {
         mPlayerState = playerState;
     }
 
+    public static final ItemFactory<Player> FACTORY = new ItemFactory<Player>() {
+        @Override
+        public Player newItem(Map<String, String> record) {
+            return new Player(record);
+        }
+    };
+
     public static final Creator<Player> CREATOR = new Creator<Player>() {
         @Override
         public Player[] newArray(int size) {
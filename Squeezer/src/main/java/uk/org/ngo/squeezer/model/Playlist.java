@@ -20,6 +20,7 @@ import android.os.Parcel;
 
 import java.util.Map;
 
+import uk.org.ngo.squeezer.framework.ItemFactory;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 
 
@@ -52,6 +53,13 @@ public class Playlist extends PlaylistItem {
         name = record.get("playlist");
     }
 
+    public static final ItemFactory<Playlist> FACTORY = new ItemFactory<Playlist>() {
+        @Override
+        public Playlist newItem(Map<String, String> record) {
+            return new Playlist(record);
+        }
+    };
+
     public static final Creator<Playlist> CREATOR = new Creator<Playlist>() {
         @Override
         public Playlist[] newArray(int size) {
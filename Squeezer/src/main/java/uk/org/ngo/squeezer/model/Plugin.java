@@ -23,6 +23,7 @@ import java.util.Map;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 
 public class Plugin extends Item {
@@ -106,6 +107,13 @@ public class Plugin extends Item {
         weight = Util.parseDecimalIntOrZero(record.get("weight"));
     }
 
+    public static final ItemFactory<Plugin> FACTORY = new ItemFactory<Plugin>() {
+        @Override
+        public Plugin newItem(Map<String, String> record) {
+            return new Plugin(record);
+        }
+    };
+
     public static final Creator<Plugin> CREATOR = new Creator<Plugin>() {
         @Override
         public Plugin[] newArray(int size) {
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 /**
  * Represents a single item in a plugin.
@@ -106,6 +107,13 @@ public class PluginItem extends Item {
         audio = (Util.parseDecimalIntOrZero(record.get("isaudio")) != 0);
     }
 
+    public static final ItemFactory<PluginItem> FACTORY = new ItemFactory<PluginItem>() {
+        @Override
+        public PluginItem newItem(Map<String, String> record) {
+            return new PluginItem(record);
+        }
+    };
+
     public static final Creator<PluginItem> CREATOR = new Creator<PluginItem>() {
         @Override
         public PluginItem[] newArray(int size) {
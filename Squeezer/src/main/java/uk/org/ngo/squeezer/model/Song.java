@@ -27,6 +27,7 @@ import java.util.Map;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.ArtworkItem;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 public class Song extends ArtworkItem {
     private static final String TAG = "Song";
@@ -188,6 +189,13 @@ public class Song extends ArtworkItem {
         mAlbum = album;
     }
 
+    public static final ItemFactory<Song> FACTORY = new ItemFactory<Song>() {
+        @Override
+        public Song newItem(Map<String, String> record) {
+            return new Song(record);
+        }
+    };
+
     public static final Creator<Song> CREATOR = new Creator<Song>() {
         @Override
         public Song[] newArray(int size) {
@@ -20,6 +20,7 @@ import android.os.Parcel;
 
 import java.util.Map;
 
+import uk.org.ngo.squeezer.framework.ItemFactory;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 
 
@@ -39,6 +40,13 @@ public class Year extends PlaylistItem {
         setId(record.get("year"));
     }
 
+    public static final ItemFactory<Year> FACTORY = new ItemFactory<Year>() {
+        @Override
+        public Year newItem(Map<String, String> record) {
+            return new Year(record);
+        }
+    };
+
     public static final Creator<Year> CREATOR = new Creator<Year>() {
         @Override
         public Year[] newArray(int size) {
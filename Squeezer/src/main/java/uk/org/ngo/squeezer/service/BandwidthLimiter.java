@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the rate at which downloads transfer bytes.
+ * <p>
+ * Downloads call {@link #acquire(int)} for each chunk they transfer. One limiter can be shared
+ * by several downloads, to limit their total rate.
+ */
+abstract class BandwidthLimiter {
+
+    /** A limiter that doesn't limit. */
+    static final BandwidthLimiter UNLIMITED = new BandwidthLimiter() {
+        @Override
+        void acquire(int bytes) {
+        }
+    };
+
+    /**
+     * @param bytesPerSecond The rate to limit to, or 0 for no limit.
+     * @return A limiter that spreads the bytes evenly, without bursts.
+     */
+    static BandwidthLimiter create(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return UNLIMITED;
+        }
+
+        final RateLimiter rateLimiter = RateLimiter.create(bytesPerSecond);
+        return new BandwidthLimiter() {
+            @Override
+            void acquire(int bytes) {
+                rateLimiter.acquire(bytes);
+            }
+        };
+    }
+
+    /**
+     * Blocks until the bytes may be transferred.
+     *
+     * @param bytes The number of bytes about to be transferred, or just transferred.
+     */
+    abstract void acquire(int bytes);
+}
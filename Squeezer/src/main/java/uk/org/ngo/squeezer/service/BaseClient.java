@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.Squeezer;
+import uk.org.ngo.squeezer.Util;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.model.Album;
+import uk.org.ngo.squeezer.model.Artist;
+import uk.org.ngo.squeezer.model.Genre;
+import uk.org.ngo.squeezer.model.MusicFolderItem;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.Plugin;
+import uk.org.ngo.squeezer.model.PluginItem;
+import uk.org.ngo.squeezer.model.Song;
+import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateDiff;
+import uk.org.ngo.squeezer.service.event.PlayerVolume;
+import uk.org.ngo.squeezer.service.event.PlayersChanged;
+import uk.org.ngo.squeezer.service.event.PlaylistCreateFailed;
+import uk.org.ngo.squeezer.service.event.PlaylistRenameFailed;
+
+/**
+ * Functionality shared by the network clients of the server, independent of the protocol used
+ * to talk to it.
+ * <p>
+ * Both the CLI and JSON-RPC deliver results as sets of named values, so the code that turns them
+ * in to model objects and events lives here.
+ */
+abstract class BaseClient implements IClient {
+
+    private static final String TAG = "BaseClient";
+
+    /** Map Player IDs to the {@link uk.org.ngo.squeezer.model.Player} with that ID. */
+    final Map<String, Player> mPlayers = new ConcurrentHashMap<String, Player>();
+
+    /** The prefix for URLs for downloads and cover art. */
+    String mUrlPrefix;
+
+    /** Shared event bus for status changes. */
+    @NonNull final EventBus mEventBus;
+
+    final int pageSize = Squeezer.getContext().getResources().getInteger(R.integer.PageSize);
+
+    /**
+     * Keeps track of asynchronous request waiting for a reply
+     * <p>
+     * When a request is made, the callback is put this list, along with a
+     * unique correlation id.
+     * <p>
+     * When the reply comes the callback is called, and the request is removed from this list.
+     * <p>
+     * When the client hosting callbacks goes away, all requests with callbacks hosted by it, is
+     * removed from this list.
+     * <p>
+     * If a reply with with matching entry is this list comes in, it is discarded.
+     */
+    final Map<Integer, IServiceItemListCallback> pendingRequests
+            = new ConcurrentHashMap<Integer, IServiceItemListCallback>();
+
+    /** Merges the status changes of a frame into one event per player. */
+    private final StatusEventCoalescer mStatusEvents;
+
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlushStatusEvents = new Runnable() {
+        @Override
+        public void run() {
+            mStatusEvents.flush();
+        }
+    };
+
+    BaseClient(@NonNull EventBus eventBus) {
+        mEventBus = eventBus;
+        mStatusEvents = new StatusEventCoalescer(eventBus);
+    }
+
+    @Override
+    public void cancelClientRequests(Object client) {
+        for (Map.Entry<Integer, IServiceItemListCallback> entry : pendingRequests.entrySet()) {
+            if (entry.getValue().getClient() == client) {
+                Log.i(TAG, "cancel request: [" + entry.getKey() + ";" + entry.getValue() +"]");
+                pendingRequests.remove(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void requestItems(String cmd, int start, IServiceItemListCallback callback) {
+        requestItems(cmd, start, null, callback);
+    }
+
+    class GenreListHandler extends BaseListHandler<Genre> {
+        GenreListHandler() {
+            super(Genre.class, Genre.FACTORY);
+        }
+    }
+
+    class ArtistListHandler extends BaseListHandler<Artist> {
+        ArtistListHandler() {
+            super(Artist.class, Artist.FACTORY);
+        }
+    }
+
+    /**
+     * Handler that adds <code>artwork_url</code> tags to items.
+     */
+    class AlbumListHandler extends BaseListHandler<Album> {
+        AlbumListHandler() {
+            super(Album.class, Album.FACTORY);
+        }
+
+        @Override
+        public void add(Map<String, String> record) {
+            addArtworkUrlTag(record);
+            super.add(record);
+        }
+    }
+
+    /**
+     * Handler that adds <code>download_url</code> tags to items.
+     */
+    class MusicFolderListHandler extends BaseListHandler<MusicFolderItem> {
+        MusicFolderListHandler() {
+            super(MusicFolderItem.class, MusicFolderItem.FACTORY);
+        }
+
+        @Override
+        public void add(Map<String, String> record) {
+            addDownloadUrlTag(record);
+            super.add(record);
+        }
+    }
+
+    /**
+     * Handler that adds <code>artwork_url</code> and <code>download_url</code> tags to items.
+     */
+    class SongListHandler extends BaseListHandler<Song> {
+        SongListHandler() {
+            super(Song.class, Song.FACTORY);
+        }
+
+        @Override
+        public void add(Map<String, String> record) {
+            addArtworkUrlTag(record);
+            addDownloadUrlTag(record);
+            super.add(record);
+        }
+    }
+
+    class PluginListHandler extends BaseListHandler<Plugin> {
+        PluginListHandler() {
+            super(Plugin.class, Plugin.FACTORY);
+        }
+
+        @Override
+        public void add(Map<String, String> record) {
+            fixImageTag("icon", record);
+            super.add(record);
+        }
+    }
+
+    class PluginItemListHandler extends BaseListHandler<PluginItem> {
+        PluginItemListHandler() {
+            super(PluginItem.class, PluginItem.FACTORY);
+        }
+
+        @Override
+        public void add(Map<String, String> record) {
+            fixImageTag("image", record);
+            super.add(record);
+        }
+    }
+
+    /**
+     * Adds a <code>artwork_url</code> entry for the item passed in.
+     * <p>
+     * If an <code>artwork_url</code> entry already exists and is absolute it is preserved.
+     * If it exists but is relative it is canonicalised.  Otherwise it is synthesised from
+     * the <code>artwork_track_id</code> tag (if it exists) otherwise the item's <code>id</code>.
+     * <p>
+     * Synthesised URLs are for the full size artwork. {@link
+     * uk.org.ngo.squeezer.util.ImageFetcher} asks the server for resized versions of them when
+     * the artwork is shown small.
+     *
+     * @param record The record to modify.
+     */
+    void addArtworkUrlTag(Map<String, String> record) {
+        String artworkUrl = record.get("artwork_url");
+
+        // Nothing to do if the artwork_url tag already exists and is absolute.
+        if (artworkUrl != null && artworkUrl.startsWith("http")) {
+            return;
+        }
+
+        // If artworkUrl is non-null it must be relative. Canonicalise it and return.
+        if (artworkUrl != null) {
+            record.put("artwork_url", mUrlPrefix + "/" + artworkUrl);
+            return;
+        }
+
+        // Need to generate an artwork_url value.
+
+        // Prefer using the artwork_track_id entry to generate the URL
+        String artworkTrackId = record.get("artwork_track_id");
+
+        if (artworkTrackId != null) {
+            record.put("artwork_url", mUrlPrefix + "/music/" + artworkTrackId + "/cover.jpg");
+            return;
+        }
+
+        // If coverart exists but artwork_track_id is missing then use the item's ID.
+        if ("1".equals(record.get("coverart"))) {
+            record.put("artwork_url", mUrlPrefix + "/music/" + record.get("id") + "/cover.jpg");
+            return;
+        }
+    }
+
+    /**
+     * Adds a <code>download_url</code> entry for the item passed in.
+     *
+     * @param record The record to modify.
+     */
+    void addDownloadUrlTag(Map<String, String> record) {
+        record.put("download_url", mUrlPrefix + "/music/" + record.get("id") + "/download");
+    }
+
+    /**
+     * Make sure the icon/image tag is an absolute URL.
+     *
+     * @param record The record to modify.
+     */
+    void fixImageTag(String imageTag, Map<String, String> record) {
+        String image = record.get(imageTag);
+        if (image == null) {
+            return;
+        }
+
+        if (Uri.parse(image).isAbsolute()) {
+            return;
+        }
+
+        record.put(imageTag, mUrlPrefix + (image.startsWith("/") ? image : "/" + image));
+    }
+
+    /**
+     * Handle the result of a <code>playlists new</code> command.
+     *
+     * @param tokenMap The command parameters and the result.
+     */
+    void onPlaylistsNew(Map<String, String> tokenMap) {
+        if (tokenMap.get("overwritten_playlist_id") != null) {
+            mEventBus.post(new PlaylistCreateFailed(Squeezer.getContext().getString(R.string.PLAYLIST_EXISTS_MESSAGE,
+                    tokenMap.get("name"))));
+        }
+    }
+
+    /**
+     * Handle the result of a <code>playlists rename</code> command. If this was a dry run and
+     * there is no conflict then do the actual rename.
+     *
+     * @param tokenMap The command parameters and the result.
+     */
+    void onPlaylistsRename(Map<String, String> tokenMap) {
+        if (tokenMap.get("dry_run") != null) {
+            if (tokenMap.get("overwritten_playlist_id") != null) {
+                mEventBus.post(new PlaylistRenameFailed(Squeezer.getContext().getString(R.string.PLAYLIST_EXISTS_MESSAGE,
+                        tokenMap.get("newname"))));
+            } else {
+                sendCommand(
+                        "playlists rename playlist_id:" + tokenMap.get("playlist_id")
+                                + " newname:" + Util.encode(tokenMap.get("newname")));
+            }
+        }
+    }
+
+    /**
+     * Store localized strings received from the server, and fetch the next strings until the
+     * list is completely translated.
+     *
+     * @param tokenMap Map of {@link ServerString} names to localized strings.
+     */
+    void onStringsReceived(Map<String, String> tokenMap) {
+        int maxOrdinal = 0;
+        for (Map.Entry<String, String> entry : tokenMap.entrySet()) {
+            if (entry.getValue() != null) {
+                ServerString serverString;
+                try {
+                    serverString = ServerString.valueOf(entry.getKey());
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                serverString.setLocalizedString(entry.getValue());
+                if (serverString.ordinal() > maxOrdinal) {
+                    maxOrdinal = serverString.ordinal();
+                }
+            }
+        }
+
+        // Fetch the next strings until the list is completely translated
+        if (maxOrdinal < ServerString.values().length - 1) {
+            sendCommand("getstring " + ServerString.values()[maxOrdinal + 1].name());
+        }
+    }
+
+    /**
+     * Update the state of a player from the result of a <code>status</code> query, and post
+     * events for everything that changed.
+     *
+     * @param player The player the status is for.
+     * @param tokenMap The status, with the fields of the current song (if any) at the top level.
+     */
+    void parseStatus(Player player, Map<String, String> tokenMap) {
+        PlayerState playerState = player.getPlayerState();
+
+        addArtworkUrlTag(tokenMap);
+        addDownloadUrlTag(tokenMap);
+
+        boolean unknownRepeatStatus = playerState.getRepeatStatus() == null;
+        boolean unknownShuffleStatus = playerState.getShuffleStatus() == null;
+
+        boolean changedPower = playerState.setPoweredOn(Util.parseDecimalIntOrZero(tokenMap.get("power")) == 1);
+        boolean changedShuffleStatus = playerState.setShuffleStatus(tokenMap.get("playlist shuffle"));
+        boolean changedRepeatStatus = playerState.setRepeatStatus(tokenMap.get("playlist repeat"));
+        boolean changedCurrentPlaylistIndex = playerState.setCurrentPlaylistIndex(Util.parseDecimalIntOrZero(tokenMap.get("playlist_cur_index")));
+        boolean changedCurrentPlaylist = playerState.setCurrentPlaylist(tokenMap.get("playlist_name"));
+        boolean changedSleep = playerState.setSleep(Util.parseDecimalIntOrZero(tokenMap.get("will_sleep_in")));
+        boolean changedSleepDuration = playerState.setSleepDuration(Util.parseDecimalIntOrZero(tokenMap.get("sleep")));
+        boolean changedSong = playerState.setCurrentSong(new Song(tokenMap));
+        boolean changedSongDuration = playerState.setCurrentSongDuration(Util.parseDecimalIntOrZero(tokenMap.get("duration")));
+        boolean changedSongTime = playerState.setCurrentTimeSecond(Util.parseDecimalIntOrZero(tokenMap.get("time")));
+        boolean changedVolume = playerState.setCurrentVolume(Util.parseDecimalIntOrZero(tokenMap.get("mixer volume")));
+        boolean changedSyncMaster = playerState.setSyncMaster(tokenMap.get("sync_master"));
+        boolean changedSyncSlaves = playerState.setSyncSlaves(Splitter.on(",").omitEmptyStrings().splitToList(Strings.nullToEmpty(tokenMap.get("sync_slaves"))));
+        boolean changedSubscription = playerState.setSubscriptionType(tokenMap.get("subscribe"));
+
+        player.setPlayerState(playerState);
+
+        // Kept as its own method because other methods call it, unlike the explicit
+        // calls to the callbacks below.
+        updatePlayStatus(player.getId(), tokenMap.get("mode"));
+
+        // XXX: Handled by onEvent(PlayStatusChanged) in the service.
+        //updatePlayerSubscription(player, calculateSubscriptionTypeFor(player));
+
+        // With second-to-second updates from several players, posting an event per change
+        // floods the main thread. The changes are merged, and posted once per frame.
+        int changes = 0;
+        if (changedPower) changes |= PlayerStateDiff.CHANGED_POWER;
+        if (changedShuffleStatus) changes |= PlayerStateDiff.CHANGED_SHUFFLE;
+        if (changedRepeatStatus) changes |= PlayerStateDiff.CHANGED_REPEAT;
+        if (changedCurrentPlaylistIndex || changedCurrentPlaylist) changes |= PlayerStateDiff.CHANGED_PLAYLIST;
+        if (changedSleep || changedSleepDuration) changes |= PlayerStateDiff.CHANGED_SLEEP;
+        if (changedSong) changes |= PlayerStateDiff.CHANGED_SONG;
+        if (changedSongDuration || changedSongTime) changes |= PlayerStateDiff.CHANGED_SONG_TIME;
+        if (changedVolume) changes |= PlayerStateDiff.CHANGED_VOLUME;
+        if (changedSyncMaster || changedSyncSlaves) changes |= PlayerStateDiff.CHANGED_SYNC;
+        if (changedSubscription) changes |= PlayerStateDiff.CHANGED_SUBSCRIPTION;
+
+        if (mStatusEvents.add(player, changes, unknownShuffleStatus, unknownRepeatStatus)) {
+            mMainThreadHandler.postDelayed(mFlushStatusEvents, StatusEventCoalescer.FRAME_MILLIS);
+        }
+    }
+
+    void updatePlayerVolume(String playerId, int newVolume) {
+        Player player = mPlayers.get(playerId);
+        if (player == null) {
+            return;
+        }
+        player.getPlayerState().setCurrentVolume(newVolume);
+        mEventBus.post(new PlayerVolume(newVolume, player));
+    }
+
+    void updatePlayStatus(@NonNull String playerId, String playStatus) {
+        Player player = mPlayers.get(playerId);
+
+        if (player == null) {
+            return;
+        }
+
+        // Handle unknown states.
+        if (!PlayerState.PLAY_STATE_PLAY.equals(playStatus) &&
+                !PlayerState.PLAY_STATE_PAUSE.equals(playStatus) &&
+                !PlayerState.PLAY_STATE_STOP.equals(playStatus)) {
+            return;
+        }
+
+        PlayerState playerState = player.getPlayerState();
+
+        if (playerState.setPlayStatus(playStatus)) {
+            mEventBus.post(new PlayStatusChanged(playStatus, player));
+        }
+    }
+
+    /**
+     * Queries for all players known by the server.
+     * </p>
+     * Posts a PlayersChanged message if the list of players has changed.
+     */
+    void fetchPlayers() {
+        requestItems("players", -1, new IServiceItemListCallback<Player>() {
+            private final HashMap<String, Player> players = new HashMap<String, Player>();
+
+            @Override
+            public void onItemsReceived(int count, int start, Map<String, String> parameters,
+                                        List<Player> items, Class<Player> dataType) {
+                for (Player player : items) {
+                    players.put(player.getId(), player);
+                }
+
+                // If all players have been received then determine the new active player.
+                if (start + items.size() >= count) {
+                    if (players.equals(mPlayers)) {
+                        return;
+                    }
+
+                    mPlayers.clear();
+                    mPlayers.putAll(players);
+
+                    // XXX: postSticky?
+                    mEventBus.postSticky(new PlayersChanged(mPlayers));
+                }
+            }
+
+            @Override
+            public Object getClient() {
+                return BaseClient.this;
+            }
+        });
+    }
+}
@@ -1,31 +1,36 @@
 package uk.org.ngo.squeezer.service;
 
-import android.support.v4.app.Fragment.InstantiationException;
-
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import uk.org.ngo.squeezer.util.Reflection;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ItemFactory;
 
 /**
  * Base class that constructs a list of model objects based on CLI results from
  * the server.
+ * <p>
+ * Items are created with the {@link ItemFactory} of the item type, so a page of results costs
+ * one plain constructor call per item.
  *
  * @param <T> Item subclasses.
  */
-abstract class BaseListHandler<T extends Item> implements ListHandler<T> {
-    private static final String TAG = BaseListHandler.class.getSimpleName();
+class BaseListHandler<T extends Item> implements ListHandler<T> {
+    /**
+     * The items parsed so far, by thread. Lines are parsed on several threads at once, and each
+     * thread works on its own list.
+     */
+    private final ThreadLocal<List<T>> items = new ThreadLocal<List<T>>();
 
-    protected List<T> items;
+    private final Class<T> dataType;
 
-    @SuppressWarnings("unchecked")
-    private final Class<T> dataType = (Class<T>) Reflection
-            .getGenericClass(this.getClass(), ListHandler.class, 0);
+    private final ItemFactory<T> factory;
 
-    private Constructor<T> constructor;
+    BaseListHandler(Class<T> dataType, ItemFactory<T> factory) {
+        this.dataType = dataType;
+        this.factory = factory;
+    }
 
     @Override
     public Class<T> getDataType() {
@@ -34,31 +39,17 @@ abstract class BaseListHandler<T extends Item> implements ListHandler<T> {
 
     @Override
     public List<T> getItems() {
-        return items;
+        return items.get();
     }
 
     @Override
     public void clear() {
-        items = new ArrayList<T>() {
-            private static final long serialVersionUID = 1321113152942485275L;
-        };
+        items.set(new ArrayList<T>());
     }
 
     @Override
     public void add(Map<String, String> record) {
-        if (constructor == null) {
-            try {
-                constructor = dataType.getDeclaredConstructor(Map.class);
-            } catch (Exception e) {
-                throw new InstantiationException(
-                        "Unable to create constructor for " + dataType.getName(), e);
-            }
-        }
-        try {
-            items.add(constructor.newInstance(record));
-        } catch (Exception e) {
-            throw new InstantiationException("Unable to create new " + dataType.getName(), e);
-        }
+        items.get().add(factory.newItem(record));
     }
 
 }
@@ -16,17 +16,13 @@
 
 package uk.org.ngo.squeezer.service;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
-import android.app.DownloadManager;
-import android.content.Context;
-import android.os.Build;
+import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 
 import uk.org.ngo.squeezer.R;
-import uk.org.ngo.squeezer.util.AsyncTask;
 
 /**
  * An activity which gives the option, using a dialog theme, to cancel pending
@@ -56,30 +52,8 @@ public class CancelDownloadsActivity extends Activity {
 
     private void cancelDownloads() {
         Log.i(TAG, "cancelDownloads");
-        new CancelDownloadsTask(this).execute();
-    }
-
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
-    static class CancelDownloadsTask extends AsyncTask<Void, Void, Void> {
-        final DownloadDatabase downloadDatabase;
-        final DownloadManager downloadManager;
-
-        public CancelDownloadsTask(Context context) {
-            downloadDatabase = new DownloadDatabase(context);
-            downloadManager =(DownloadManager)context.getSystemService(Context.DOWNLOAD_SERVICE);
-        }
-
-        @Override
-        protected Void doInBackground(Void... params) {
-            downloadDatabase.iterateDownloadEntries(new DownloadDatabase.DownloadHandler() {
-                @Override
-                public void handle(DownloadDatabase.DownloadEntry entry) {
-                    downloadManager.remove(entry.downloadId);
-                    downloadDatabase.remove(entry.downloadId);
-                }
-            });
-            return null;
-        }
+        startService(new Intent(this, SqueezeService.class)
+                .setAction(SqueezeService.ACTION_CANCEL_DOWNLOADS));
     }
 
 }
@@ -16,7 +16,6 @@
 
 package uk.org.ngo.squeezer.service;
 
-import android.net.Uri;
 import android.os.Looper;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
@@ -25,14 +24,13 @@ import android.util.Log;
 
 import com.crashlytics.android.Crashlytics;
 import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
-import com.google.common.base.Strings;
 
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -43,42 +41,24 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.regex.Pattern;
 
 import de.greenrobot.event.EventBus;
-import uk.org.ngo.squeezer.R;
-import uk.org.ngo.squeezer.Squeezer;
+import uk.org.ngo.squeezer.BuildConfig;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.model.Alarm;
 import uk.org.ngo.squeezer.model.AlarmPlaylist;
-import uk.org.ngo.squeezer.model.Album;
-import uk.org.ngo.squeezer.model.Artist;
-import uk.org.ngo.squeezer.model.Genre;
-import uk.org.ngo.squeezer.model.MusicFolderItem;
 import uk.org.ngo.squeezer.model.Player;
 import uk.org.ngo.squeezer.model.PlayerState;
 import uk.org.ngo.squeezer.model.Playlist;
-import uk.org.ngo.squeezer.model.Plugin;
-import uk.org.ngo.squeezer.model.PluginItem;
-import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.model.Year;
 import uk.org.ngo.squeezer.service.event.ConnectionChanged;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
-import uk.org.ngo.squeezer.service.event.MusicChanged;
-import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
+import uk.org.ngo.squeezer.service.event.LibraryChanged;
 import uk.org.ngo.squeezer.service.event.PlayerPrefReceived;
-import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
-import uk.org.ngo.squeezer.service.event.PlayerVolume;
-import uk.org.ngo.squeezer.service.event.PlayersChanged;
-import uk.org.ngo.squeezer.service.event.PlaylistCreateFailed;
-import uk.org.ngo.squeezer.service.event.PlaylistRenameFailed;
 import uk.org.ngo.squeezer.service.event.PlaylistTracksAdded;
 import uk.org.ngo.squeezer.service.event.PlaylistTracksDeleted;
-import uk.org.ngo.squeezer.service.event.PowerStatusChanged;
-import uk.org.ngo.squeezer.service.event.RepeatStatusChanged;
-import uk.org.ngo.squeezer.service.event.ShuffleStatusChanged;
-import uk.org.ngo.squeezer.service.event.SongTimeChanged;
 
-class CliClient implements IClient {
+class CliClient extends BaseClient {
 
     private static final String TAG = "CliClient";
 
@@ -92,15 +72,6 @@ class CliClient implements IClient {
      */
     private static final Joiner mNewlineJoiner = Joiner.on("\n").skipNulls();
 
-    /** Map Player IDs to the {@link uk.org.ngo.squeezer.model.Player} with that ID. */
-    private final Map<String, Player> mPlayers = new HashMap<String, Player>();
-
-    /** The prefix for URLs for downloads and cover art. */
-    private String mUrlPrefix;
-
-    /** Shared event bus for status changes. */
-    @NonNull private final EventBus mEventBus;
-
     /** Executor for off-main-thread work. */
     @NonNull
     private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
@@ -150,6 +121,9 @@ class CliClient implements IClient {
 
         final String cmd;
 
+        /** Number of space separated words in {@link #cmd}. */
+        final private int cmdTokenCount;
+
         final private Set<String> taggedParameters;
 
         final private SqueezeParserInfo[] parserInfos;
@@ -168,6 +142,7 @@ class CliClient implements IClient {
             playerSpecific = (PLAYER_SPECIFIC_HANDLER_LISTS & handlerList) != 0;
             prefixed = (PREFIXED_HANDLER_LISTS & handlerList) != 0;
             this.cmd = cmd;
+            cmdTokenCount = mSpaceSplitPattern.split(cmd).length;
             this.taggedParameters = taggedParameters;
             this.parserInfos = parserInfos;
         }
@@ -222,7 +197,7 @@ class CliClient implements IClient {
                         "players",
                         new HashSet<String>(Arrays.asList("playerprefs", "charset")),
                         "playerindex",
-                        new BaseListHandler<Player>() {}
+                        new BaseListHandler<Player>(Player.class, Player.FACTORY)
                 )
         );
         list.add(
@@ -230,7 +205,7 @@ class CliClient implements IClient {
                         HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC,
                         "alarms",
                         new HashSet<String>(Arrays.asList("filter", "dow")),
-                        new SqueezeParserInfo(new BaseListHandler<Alarm>(){})
+                        new SqueezeParserInfo(new BaseListHandler<Alarm>(Alarm.class, Alarm.FACTORY))
                 )
         );
         list.add(
@@ -255,7 +230,7 @@ class CliClient implements IClient {
                         "years",
                         new HashSet<String>(Arrays.asList("charset")),
                         "year",
-                        new BaseListHandler<Year>(){}
+                        new BaseListHandler<Year>(Year.class, Year.FACTORY)
                 )
         );
         list.add(
@@ -287,7 +262,7 @@ class CliClient implements IClient {
                 new ExtendedQueryFormatCmd(
                         "playlists",
                         new HashSet<String>(Arrays.asList("search", "tags", "charset")),
-                        new BaseListHandler<Playlist>(){})
+                        new BaseListHandler<Playlist>(Playlist.class, Playlist.FACTORY))
         );
         list.add(
                 new ExtendedQueryFormatCmd(
@@ -301,7 +276,7 @@ class CliClient implements IClient {
                         "alarm playlists",
                         new HashSet<String>(),
                         "category",
-                        new BaseListHandler<AlarmPlaylist>(){})
+                        new BaseListHandler<AlarmPlaylist>(AlarmPlaylist.class, AlarmPlaylist.FACTORY))
         );
         list.add(
                 new ExtendedQueryFormatCmd(
@@ -361,22 +336,34 @@ class CliClient implements IClient {
         return map;
     }
 
-    private final int pageSize = Squeezer.getContext().getResources().getInteger(R.integer.PageSize);
-
     CliClient(@NonNull EventBus eventBus) {
-        mEventBus = eventBus;
+        super(eventBus);
     }
 
-    void initialize() {
+    @Override
+    public void initialize() {
         mEventBus.postSticky(new ConnectionChanged(ConnectionState.DISCONNECTED));
     }
 
     // Call through to connectionState implementation for the moment.
-    void disconnect(boolean loginFailed) {
+    @Override
+    public void disconnect(boolean loginFailed) {
         connectionState.disconnect(mEventBus, loginFailed);
         mPlayers.clear();
+        mPipelines.clear();
     }
 
+    /**
+     * Tokenizers for received lines, one per thread that handles them, so their buffers can be
+     * reused from line to line.
+     */
+    private final ThreadLocal<CliLineTokenizer> mTokenizer = new ThreadLocal<CliLineTokenizer>() {
+        @Override
+        protected CliLineTokenizer initialValue() {
+            return new CliLineTokenizer();
+        }
+    };
+
     // All requests are tagged with a correlation id, which can be used when
     // asynchronous responses are received.
     private int _correlationid = 0;
@@ -392,7 +379,8 @@ class CliClient implements IClient {
      *
      * @param commands List of commands to send
      */
-    synchronized void sendCommandImmediately(String... commands) {
+    @Override
+    public synchronized void sendCommandImmediately(String... commands) {
         if (commands.length == 0) {
             return;
         }
@@ -424,7 +412,8 @@ class CliClient implements IClient {
      *
      * @param commands List of commands to send
      */
-    void sendCommand(final String... commands) {
+    @Override
+    public void sendCommand(final String... commands) {
         if (Looper.getMainLooper() != Looper.myLooper()) {
             sendCommandImmediately(commands);
         } else {
@@ -442,48 +431,25 @@ class CliClient implements IClient {
      *
      * @param command The command to send
      */
+    @Override
     public void sendPlayerCommand(final Player player, final String command) {
         sendCommand(Util.encode(player.getId()) + " " + command);
     }
 
-    /**
-     * Keeps track of asynchronous request waiting for a reply
-     * <p>
-     * When a request is made, the callback is put this list, along with a
-     * unique correlation id.
-     * <p>
-     * When the reply comes the callback is called, and the request is removed from this list.
-     * <p>
-     * When the client hosting callbacks goes away, all requests with callbacks hosted by it, is
-     * removed from this list.
-     * <p>
-     * If a reply with with matching entry is this list comes in, it is discarded.
-     */
-    private final Map<Integer, IServiceItemListCallback> pendingRequests
-            = new ConcurrentHashMap<Integer, IServiceItemListCallback>();
-
-    public void cancelClientRequests(Object client) {
-        for (Map.Entry<Integer, IServiceItemListCallback> entry : pendingRequests.entrySet()) {
-            if (entry.getValue().getClient() == client) {
-                Log.i(TAG, "cancel request: [" + entry.getKey() + ";" + entry.getValue() +"]");
-                pendingRequests.remove(entry.getKey());
-            }
-        }
-    }
-
     /**
      * Send an asynchronous request to the SqueezeboxServer for the specified items.
      * <p>
      * Items are returned to the caller via the specified callback.
      * <p>
-     * See {@link #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for details.
+     * See {@link #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, CliLineTokenizer)} for
+     * details.
      *
      * @param playerId Id of the current player or null
      * @param cmd Identifies the type of items
      * @param start First item to return
      * @param pageSize No of items to return
      * @param parameters Item specific parameters for the request
-     * @see #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)
+     * @see #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, CliLineTokenizer)
      */
     private void internalRequestItems(String playerId, String cmd, int start, int pageSize, List<String> parameters, IServiceItemListCallback callback) {
         pendingRequests.put(_correlationid, callback);
@@ -513,17 +479,18 @@ class CliClient implements IClient {
      * to the caller when they arrive.
      * <p>
      * If start is < 0, it means the caller wants the entire list. They are ordered in
-     * pages, and transferred to the caller as they arrive.
+     * pages, several at a time, and transferred to the caller in order as they arrive.
      * <p>
      * Otherwise request a page of items starting from start.
      * <p>
-     * See {@link #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for details.
+     * See {@link #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, CliLineTokenizer)} for
+     * details.
      *
      * @param playerId Id of the current player or null
      * @param cmd Identifies the type of items
      * @param start First item to return
      * @param parameters Item specific parameters for the request
-     * @see #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)
+     * @see #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, CliLineTokenizer)
      */
     private void internalRequestItems(String playerId, String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
         boolean full_list = (start < 0);
@@ -541,23 +508,22 @@ class CliClient implements IClient {
         internalRequestItems(player.getId(), cmd, start, parameters, callback);
     }
 
-    void requestItems(String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
+    @Override
+    public void requestItems(String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
         internalRequestItems(null, cmd, start, parameters, callback);
     }
 
-    void requestItems(String cmd, int start, IServiceItemListCallback callback) {
-        requestItems(cmd, start, null, callback);
-    }
-
     void requestItems(String cmd, int start, int pageSize, List<String> parameters, IServiceItemListCallback callback) {
         internalRequestItems(null, cmd, start, pageSize, parameters, callback);
     }
 
-    void requestItems(String cmd, int start, int pageSize, IServiceItemListCallback callback) {
+    @Override
+    public void requestItems(String cmd, int start, int pageSize, IServiceItemListCallback callback) {
         requestItems(cmd, start, pageSize, null, callback);
     }
 
-    void requestPlayerItems(@Nullable Player player, String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
+    @Override
+    public void requestPlayerItems(@Nullable Player player, String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
         if (player == null) {
             return;
         }
@@ -565,7 +531,7 @@ class CliClient implements IClient {
     }
 
     /**
-     * Data for {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)}
+     * Data for {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, CliLineTokenizer)}
      *
      * @author kaa
      */
@@ -619,18 +585,24 @@ class CliClient implements IClient {
      * <p>
      * Transfer of each data type are started by an asynchronous request by one of the public method
      * in this module. This method will forward the data using the supplied {@link ListHandler}, and
-     * and order the next page if necessary, repeating the current query parameters.
+     * and order the next page if necessary, repeating the current query parameters. Full lists
+     * are ordered through a {@link PagePipeline}, so several pages are in flight at once.
      * <p>
      * Activities should just initiate the request, and supply a callback to receive a page of
      * data.
+     * <p>
+     * Keys and values are read straight from the tokenizer, and values are only decoded when they
+     * are stored in a record or parameter map, so large pages create as few strings as possible.
      *
      * @param cmd Describes of the CLI command
-     * @param tokens List of tokens with value or key:value.
+     * @param tokens The tokenized line, with tokens of the form value or key:value.
      */
-    void parseSqueezerList(ExtendedQueryFormatCmd cmd, List<String> tokens) {
-        Log.v(TAG, "Parsing list, cmd: " +cmd + ", tokens: " + tokens);
+    void parseSqueezerList(ExtendedQueryFormatCmd cmd, CliLineTokenizer tokens) {
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "Parsing list, cmd: " + cmd + ", tokens: " + tokens);
+        }
 
-        final int ofs = mSpaceSplitPattern.split(cmd.cmd).length + (cmd.playerSpecific ? 1 : 0) + (cmd.prefixed ? 1 : 0);
+        final int ofs = cmd.cmdTokenCount + (cmd.playerSpecific ? 1 : 0) + (cmd.prefixed ? 1 : 0);
         int actionsCount = 0;
         final String playerid = (cmd.playerSpecific ? tokens.get(0) + " " : "");
         final String prefix = (cmd.prefixed ? tokens.get(cmd.playerSpecific ? 1 : 0) + " " : "");
@@ -655,224 +627,236 @@ class CliClient implements IClient {
 
         SqueezeParserInfo parserInfo = null;
         for (int idx = ofs + 2; idx < tokens.size(); idx++) {
-            String token = tokens.get(idx);
-            int colonPos = token.indexOf("%3A");
-            if (colonPos == -1) {
-                Log.e(TAG, "Expected colon in list token. '" + token + "'");
+            if (!tokens.hasValue(idx)) {
+                Log.e(TAG, "Expected colon in list token. '" + tokens.get(idx) + "'");
                 return;
             }
-            String key = Util.decode(token.substring(0, colonPos));
-            String value = Util.decode(token.substring(colonPos + 3));
-            Log.v(TAG, "key=" + key + ", value: " + value);
+            String key = tokens.key(idx);
 
             if ("rescan".equals(key)) {
-                rescan = (Util.parseDecimalIntOrZero(value) == 1);
+                rescan = (tokens.intValueOrZero(idx) == 1);
             } else if ("full_list".equals(key)) {
-                full_list = (Util.parseDecimalIntOrZero(value) == 1);
-                taggedParameters.put(key, token);
+                full_list = (tokens.intValueOrZero(idx) == 1);
+                taggedParameters.put(key, tokens.get(idx));
             } else if ("correlationid".equals(key)) {
-                correlationId = Util.parseDecimalIntOrZero(value);
-                taggedParameters.put(key, token);
+                correlationId = tokens.intValueOrZero(idx);
+                taggedParameters.put(key, tokens.get(idx));
             } else if ("actions".equals(key)) {
                 // Apparently squeezer returns some commands which are
                 // included in the count of the current request
                 actionsCount++;
             }
             if (countIdSet.contains(key)) {
-                counts.put(key, Util.parseDecimalIntOrZero(value));
+                counts.put(key, tokens.intValueOrZero(idx));
             } else {
                 SqueezeParserInfo newParserInfo = itemDelimeterMap.get(key);
                 if (newParserInfo != null && parserInfo != null && parserInfo.isComplete(record)) {
                     parserInfo.handler.add(record);
-                    Log.v(TAG, "record=" + record);
+                    if (BuildConfig.DEBUG) {
+                        Log.v(TAG, "record=" + record);
+                    }
                     record.clear();
                 }
                 if (newParserInfo != null) parserInfo = newParserInfo;
                 if (parserInfo != null) {
-                    record.put(key, value);
+                    record.put(key, tokens.value(idx));
                 } else if (cmd.taggedParameters.contains(key)) {
-                    taggedParameters.put(key, token);
+                    taggedParameters.put(key, tokens.get(idx));
                 } else {
-                    parameters.put(key, value);
+                    parameters.put(key, tokens.value(idx));
                 }
             }
         }
 
         if (parserInfo != null && !record.isEmpty()) {
             parserInfo.handler.add(record);
-            Log.v(TAG, "record=" + record);
+            if (BuildConfig.DEBUG) {
+                Log.v(TAG, "record=" + record);
+            }
         }
 
-        // Process the lists for all the registered handlers
-        int end = start + itemsPerResponse;
-        int max = 0;
+        if (rescan) {
+            mEventBus.post(new LibraryChanged(null));
+        }
+
+        ListPage page = new ListPage(cmd, start, parameters, actionsCount, counts);
         IServiceItemListCallback callback = pendingRequests.get(correlationId);
-        for (SqueezeParserInfo parser : cmd.parserInfos) {
-            Integer count = counts.get(parser.count_id);
-            int countValue = (count == null ? 0 : count);
-            if (count != null || start == 0) {
-                if (callback != null) {
-                    callback.onItemsReceived(countValue - actionsCount, start, parameters, parser.handler.getItems(), parser.handler.getDataType());
-                }
-                if (countValue > max) {
-                    max = countValue;
-                }
-            }
+
+        if (full_list) {
+            onFullListPage(cmd, correlationId, playerid + prefix + cmd.cmd,
+                    taggedParameters.values(), page, itemsPerResponse, callback);
+            return;
         }
 
+        // Process the lists for all the registered handlers
+        int end = start + itemsPerResponse;
+        int max = deliverPage(callback, cmd, page);
+
         // If the client is still around check if we need to order more items,
         // otherwise were done, so remove the callback
         if (callback != null) {
-            if ((full_list || end % pageSize != 0) && end < max) {
-                int count = (end + pageSize > max ? max - end : full_list ? pageSize : pageSize - itemsPerResponse);
-                StringBuilder cmdline = new StringBuilder();
-                cmdline.append(playerid);
-                cmdline.append(prefix);
-                cmdline.append(cmd.cmd);
-                cmdline.append(" ");
-                cmdline.append(end);
-                cmdline.append(" ");
-                cmdline.append(count);
-                for (String parameter : taggedParameters.values()) {
-                    cmdline.append(" ").append(parameter);
-                }
-                sendCommandImmediately(cmdline.toString());
+            if (end % pageSize != 0 && end < max) {
+                int count = (end + pageSize > max ? max - end : pageSize - itemsPerResponse);
+                sendCommandImmediately(buildPageCommand(playerid + prefix + cmd.cmd, end, count,
+                        taggedParameters.values()));
             } else
                 pendingRequests.remove(correlationId);
         }
     }
 
-    private class GenreListHandler extends BaseListHandler<Genre> {}
-
-    private class ArtistListHandler extends BaseListHandler<Artist> {}
-
     /**
-     * Handler that adds <code>artwork_url</code> tags to items.
+     * A parsed page of an extended query format reply, kept until it can be handed to the
+     * callback.
      */
-    private class AlbumListHandler extends BaseListHandler<Album> {
-        @Override
-        public void add(Map<String, String> record) {
-            addArtworkUrlTag(record);
-            super.add(record);
+    private static class ListPage {
+        final int start;
+
+        final Map<String, String> parameters;
+
+        final int actionsCount;
+
+        /** The items from each of the command's parsers. */
+        final List<List<? extends Item>> items;
+
+        /** The total count reported for each of the command's parsers, null if not reported. */
+        final Integer[] counts;
+
+        /** The largest of the reported counts. */
+        final int total;
+
+        ListPage(ExtendedQueryFormatCmd cmd, int start, Map<String, String> parameters,
+                 int actionsCount, Map<String, Integer> counts) {
+            this.start = start;
+            this.parameters = parameters;
+            this.actionsCount = actionsCount;
+            items = new ArrayList<List<? extends Item>>(cmd.parserInfos.length);
+            this.counts = new Integer[cmd.parserInfos.length];
+            int total = 0;
+            for (int i = 0; i < cmd.parserInfos.length; i++) {
+                SqueezeParserInfo parser = cmd.parserInfos[i];
+                // Handlers start a new list when cleared, so the list can be kept.
+                items.add(parser.handler.getItems());
+                this.counts[i] = counts.get(parser.count_id);
+                if (this.counts[i] != null && this.counts[i] > total) {
+                    total = this.counts[i];
+                }
+            }
+            this.total = total;
         }
     }
 
     /**
-     * Handler that adds <code>download_url</code> tags to items.
+     * Hand a page to the callback, once for each of the command's parsers.
+     *
+     * @return The largest total count reported in the page.
      */
-    private class MusicFolderListHandler extends BaseListHandler<MusicFolderItem> {
-        @Override
-        public void add(Map<String, String> record) {
-            addDownloadUrlTag(record);
-            super.add(record);
+    private int deliverPage(@Nullable IServiceItemListCallback callback,
+                            ExtendedQueryFormatCmd cmd, ListPage page) {
+        int max = 0;
+        for (int i = 0; i < cmd.parserInfos.length; i++) {
+            Integer count = page.counts[i];
+            int countValue = (count == null ? 0 : count);
+            if (count != null || page.start == 0) {
+                if (callback != null) {
+                    callback.onItemsReceived(countValue - page.actionsCount, page.start,
+                            page.parameters, page.items.get(i),
+                            cmd.parserInfos[i].handler.getDataType());
+                }
+                if (countValue > max) {
+                    max = countValue;
+                }
+            }
         }
+        return max;
     }
 
     /**
-     * Handler that adds <code>artwork_url</code> and <code>download_url</code> tags to items.
+     * Pipelines of the full list requests in progress, by correlation id.
      */
-    private class SongListHandler extends BaseListHandler<Song> {
-        @Override
-        public void add(Map<String, String> record) {
-            addArtworkUrlTag(record);
-            addDownloadUrlTag(record);
-            super.add(record);
-        }
-    }
-
-    private class PluginListHandler extends BaseListHandler<Plugin> {
-        @Override
-        public void add(Map<String, String> record) {
-            fixImageTag("icon", record);
-            super.add(record);
-        }
-    }
-
-    private class PluginItemListHandler extends BaseListHandler<PluginItem> {
-        @Override
-        public void add(Map<String, String> record) {
-            fixImageTag("image", record);
-            super.add(record);
-        }
-    }
+    private final Map<Integer, PagePipeline<ListPage>> mPipelines
+            = new ConcurrentHashMap<Integer, PagePipeline<ListPage>>();
 
     /**
-     * Adds a <code>artwork_url</code> entry for the item passed in.
+     * Handle a page of a full list request.
      * <p>
-     * If an <code>artwork_url</code> entry already exists and is absolute it is preserved.
-     * If it exists but is relative it is canonicalised.  Otherwise it is synthesised from
-     * the <code>artwork_track_id</code> tag (if it exists) otherwise the item's <code>id</code>.
+     * The first page tells how long the list is. The rest of the list is then fetched through a
+     * {@link PagePipeline}, which keeps several page requests in flight, and gives the pages to
+     * the callback in order.
      *
-     * @param record The record to modify.
+     * @param cmd The command.
+     * @param correlationId The correlation id of the request.
+     * @param cmdPrefix The command, with the player id and prefix if it has them.
+     * @param taggedParameters The tagged parameters to repeat in each request.
+     * @param page The received page.
+     * @param itemsPerResponse The number of items requested for the page.
+     * @param callback The callback, null if the request has been cancelled.
      */
-    private void addArtworkUrlTag(Map<String, String> record) {
-        String artworkUrl = record.get("artwork_url");
-
-        // Nothing to do if the artwork_url tag already exists and is absolute.
-        if (artworkUrl != null && artworkUrl.startsWith("http")) {
+    private void onFullListPage(ExtendedQueryFormatCmd cmd, int correlationId,
+                                final String cmdPrefix, final Collection<String> taggedParameters,
+                                ListPage page, int itemsPerResponse,
+                                @Nullable IServiceItemListCallback callback) {
+        if (callback == null) {
+            mPipelines.remove(correlationId);
             return;
         }
 
-        // If artworkUrl is non-null it must be relative. Canonicalise it and return.
-        if (artworkUrl != null) {
-            record.put("artwork_url", mUrlPrefix + "/" + artworkUrl);
-            return;
+        long now = System.nanoTime();
+        PagePipeline<ListPage> pipeline = mPipelines.get(correlationId);
+        if (pipeline == null) {
+            int max = deliverPage(callback, cmd, page);
+            pipeline = new PagePipeline<ListPage>(pageSize, page.start + itemsPerResponse, max);
+            mPipelines.put(correlationId, pipeline);
+        } else {
+            for (ListPage ready : pipeline.onPageReceived(page.start, itemsPerResponse, page.total, page, now)) {
+                deliverPage(callback, cmd, ready);
+            }
         }
 
-        // Need to generate an artwork_url value.
-
-        // Prefer using the artwork_track_id entry to generate the URL
-        String artworkTrackId = record.get("artwork_track_id");
-
-        if (artworkTrackId != null) {
-            record.put("artwork_url", mUrlPrefix + "/music/" + artworkTrackId + "/cover.jpg");
+        if (pipeline.isComplete()) {
+            mPipelines.remove(correlationId);
+            pendingRequests.remove(correlationId);
             return;
         }
 
-        // If coverart exists but artwork_track_id is missing then use the item's ID.
-        if ("1".equals(record.get("coverart"))) {
-            record.put("artwork_url", mUrlPrefix + "/music/" + record.get("id") + "/cover.jpg");
-            return;
+        final List<String> commands = new ArrayList<String>();
+        pipeline.fill(new PagePipeline.Sender() {
+            @Override
+            public void requestPage(int start, int count) {
+                commands.add(buildPageCommand(cmdPrefix, start, count, taggedParameters));
+            }
+        }, now);
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "Correlation id " + correlationId + ": " + pipeline);
         }
-    }
-
-    /**
-     * Adds a <code>download_url</code> entry for the item passed in.
-     *
-     * @param record The record to modify.
-     */
-    private void addDownloadUrlTag(Map<String, String> record) {
-        record.put("download_url", mUrlPrefix + "/music/" + record.get("id") + "/download");
-    }
-
-    /**
-     * Make sure the icon/image tag is an absolute URL.
-     *
-     * @param record The record to modify.
-     */
-    private void fixImageTag(String imageTag, Map<String, String> record) {
-        String image = record.get(imageTag);
-        if (image == null) {
-            return;
+        if (!commands.isEmpty()) {
+            sendCommandImmediately(commands.toArray(new String[commands.size()]));
         }
+    }
 
-        if (Uri.parse(image).isAbsolute()) {
-            return;
+    private static String buildPageCommand(String cmdPrefix, int start, int count,
+                                           Collection<String> taggedParameters) {
+        StringBuilder cmdline = new StringBuilder(cmdPrefix);
+        cmdline.append(" ");
+        cmdline.append(start);
+        cmdline.append(" ");
+        cmdline.append(count);
+        for (String parameter : taggedParameters) {
+            cmdline.append(" ").append(parameter);
         }
-
-        record.put(imageTag, mUrlPrefix + (image.startsWith("/") ? image : "/" + image));
+        return cmdline.toString();
     }
 
     // Shims around ConnectionState methods.
 
-    void startConnect(final SqueezeService service, String hostPort, final String userName,
+    @Override
+    public void startConnect(final SqueezeService service, String hostPort, final String userName,
                       final String password) {
         connectionState.startConnect(service, mEventBus, mExecutor, this, hostPort, userName, password);
 
     }
 
     private interface CmdHandler {
-        void handle(List<String> tokens);
+        void handle(CliLineTokenizer tokens);
     }
 
     private final Map<String, CmdHandler> globalHandlers = initializeGlobalHandlers();
@@ -899,7 +883,7 @@ class CliClient implements IClient {
             if (cmd.handlerList == CliClient.HANDLER_LIST_GLOBAL) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(CliLineTokenizer tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -907,29 +891,15 @@ class CliClient implements IClient {
         }
         handlers.put("playlists", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 if ("delete".equals(tokens.get(1))) {
                     ;
                 } else if ("edit".equals(tokens.get(1))) {
                     ;
                 } else if ("new".equals(tokens.get(1))) {
-                    HashMap<String, String> tokenMap = parseTokens(tokens);
-                    if (tokenMap.get("overwritten_playlist_id") != null) {
-                        mEventBus.post(new PlaylistCreateFailed(Squeezer.getContext().getString(R.string.PLAYLIST_EXISTS_MESSAGE,
-                                tokenMap.get("name"))));
-                    }
+                    onPlaylistsNew(parseTokens(tokens));
                 } else if ("rename".equals(tokens.get(1))) {
-                    HashMap<String, String> tokenMap = parseTokens(tokens);
-                    if (tokenMap.get("dry_run") != null) {
-                        if (tokenMap.get("overwritten_playlist_id") != null) {
-                            mEventBus.post(new PlaylistRenameFailed(Squeezer.getContext().getString(R.string.PLAYLIST_EXISTS_MESSAGE,
-                                    tokenMap.get("newname"))));
-                        } else {
-                            sendCommandImmediately(
-                                    "playlists rename playlist_id:" + tokenMap.get("playlist_id")
-                                            + " newname:" + Util.encode(tokenMap.get("newname")));
-                        }
-                    }
+                    onPlaylistsRename(parseTokens(tokens));
                 } else if ("tracks".equals(tokens.get(1))) {
                     parseSqueezerList(extQueryFormatCmdMap.get("playlists tracks"), tokens);
                 } else {
@@ -939,7 +909,7 @@ class CliClient implements IClient {
         });
         handlers.put("alarm", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 if ("playlists".equals(tokens.get(1))) {
                     parseSqueezerList(extQueryFormatCmdMap.get("alarm playlists"), tokens);
                 }
@@ -947,14 +917,14 @@ class CliClient implements IClient {
         });
         handlers.put("login", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.i(TAG, "Authenticated: " + tokens);
                 onAuthenticated();
             }
         });
         handlers.put("pref", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.i(TAG, "Preference received: " + tokens);
                 if ("httpport".equals(tokens.get(1)) && tokens.size() >= 3) {
                     connectionState.setHttpPort(Integer.parseInt(tokens.get(2)));
@@ -963,13 +933,13 @@ class CliClient implements IClient {
                     connectionState.setPreferedAlbumSort(tokens.get(2));
                 }
                 if ("mediadirs".equals(tokens.get(1)) && tokens.size() >= 3) {
-                    connectionState.setMediaDirs(Util.decode(tokens.get(2)));
+                    connectionState.setMediaDirs(tokens.decoded(2));
                 }
             }
         });
         handlers.put("can", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.i(TAG, "Capability received: " + tokens);
                 if ("favorites".equals(tokens.get(1)) && tokens.size() >= 4) {
                     connectionState.setCanFavorites(Util.parseDecimalIntOrZero(tokens.get(3)) == 1);
@@ -987,28 +957,51 @@ class CliClient implements IClient {
                 }
             }
         });
-        handlers.put("getstring", new CmdHandler() {
+        handlers.put("serverstatus", new CmdHandler() {
+            /**
+             * Tell the library index when the library was last scanned, or that it is being
+             * scanned now.
+             */
             @Override
-            public void handle(List<String> tokens) {
-                int maxOrdinal = 0;
-                Map<String, String> tokenMap = parseTokens(tokens);
-                for (Map.Entry<String, String> entry : tokenMap.entrySet()) {
-                    if (entry.getValue() != null) {
-                        ServerString serverString = ServerString.valueOf(entry.getKey());
-                        serverString.setLocalizedString(entry.getValue());
-                        if (serverString.ordinal() > maxOrdinal) {
-                            maxOrdinal = serverString.ordinal();
-                        }
+            public void handle(CliLineTokenizer tokens) {
+                String lastScan = null;
+                boolean rescan = false;
+                for (int idx = 3; idx < tokens.size(); idx++) {
+                    if (!tokens.hasValue(idx)) {
+                        continue;
+                    }
+                    String key = tokens.key(idx);
+                    if ("lastscan".equals(key)) {
+                        lastScan = tokens.value(idx);
+                    } else if ("rescan".equals(key)) {
+                        rescan = (tokens.intValueOrZero(idx) == 1);
                     }
                 }
-
-                // Fetch the next strings until the list is completely translated
-                if (maxOrdinal < ServerString.values().length - 1) {
-                    sendCommandImmediately(
-                            "getstring " + ServerString.values()[maxOrdinal + 1].name());
+                if (rescan) {
+                    mEventBus.post(new LibraryChanged(null));
+                } else if (lastScan != null) {
+                    mEventBus.post(new LibraryChanged(lastScan));
                 }
             }
         });
+        handlers.put("rescan", new CmdHandler() {
+            /**
+             * The server notifies <code>rescan done</code> when a scan has finished. Ask for the
+             * new last scan time, so the library index is rebuilt against it.
+             */
+            @Override
+            public void handle(CliLineTokenizer tokens) {
+                if (tokens.size() >= 2 && "done".equals(tokens.get(1))) {
+                    sendCommandImmediately("serverstatus 0 0");
+                }
+            }
+        });
+        handlers.put("getstring", new CmdHandler() {
+            @Override
+            public void handle(CliLineTokenizer tokens) {
+                onStringsReceived(parseTokens(tokens));
+            }
+        });
         handlers.put("version", new CmdHandler() {
             /**
              * Seeing the <code>version</code> result indicates that the
@@ -1017,7 +1010,7 @@ class CliClient implements IClient {
              * post a {@link HandshakeComplete} event.
              */
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.i(TAG, "Version received: " + tokens);
                 mUrlPrefix = "http://" + getCurrentHost() + ":" + getHttpPort();
                 Crashlytics.setString("server_version", tokens.get(1));
@@ -1038,7 +1031,7 @@ class CliClient implements IClient {
             if (cmd.handlerList == CliClient.HANDLER_LIST_PREFIXED) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(CliLineTokenizer tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1062,7 +1055,7 @@ class CliClient implements IClient {
             if (cmd.handlerList == CliClient.HANDLER_LIST_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(CliLineTokenizer tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1070,16 +1063,16 @@ class CliClient implements IClient {
         }
         handlers.put("play", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.v(TAG, "play registered");
-                updatePlayStatus(Util.decode(tokens.get(0)), PlayerState.PLAY_STATE_PLAY);
+                updatePlayStatus(tokens.decoded(0), PlayerState.PLAY_STATE_PLAY);
             }
         });
         handlers.put("stop", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.v(TAG, "stop registered");
-                updatePlayStatus(Util.decode(tokens.get(0)), PlayerState.PLAY_STATE_STOP);
+                updatePlayStatus(tokens.decoded(0), PlayerState.PLAY_STATE_STOP);
             }
         });
         handlers.put("pause", new CmdHandler() {
@@ -1088,31 +1081,31 @@ class CliClient implements IClient {
              * @param tokens
              */
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.v(TAG, "pause registered: " + tokens);
-                updatePlayStatus(Util.decode(tokens.get(0)), parsePause(tokens.size() >= 3 ? tokens.get(2) : null));
+                updatePlayStatus(tokens.decoded(0), parsePause(tokens.size() >= 3 ? tokens.get(2) : null));
             }
         });
         handlers.put("playlist", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 parsePlaylistNotification(tokens);
             }
         });
         handlers.put("playerpref", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.i(TAG, "Player preference received: " + tokens);
                 if (tokens.size() == 4) {
-                    Player player = mPlayers.get(Util.decode(tokens.get(0)));
+                    Player player = mPlayers.get(tokens.decoded(0));
                     if (player == null) {
                         return;
                     }
 
-                    String pref = Util.decode(tokens.get(2));
+                    String pref = tokens.decoded(2);
                     if (Player.Pref.VALID_PLAYER_PREFS.contains(pref)) {
                         mEventBus.post(new PlayerPrefReceived(player, pref,
-                                Util.decode(tokens.get(3))));
+                                tokens.decoded(3)));
                     }
                 }
             }
@@ -1128,7 +1121,7 @@ class CliClient implements IClient {
             if (cmd.handlerList == HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(CliLineTokenizer tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1138,7 +1131,7 @@ class CliClient implements IClient {
         // &lt;playerid> client &lt;new|disconnect|reconnect>
         handlers.put("client", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.i(TAG, "client received: " + tokens);
                 // Something has happened to the player list, we just fetch the full list again.
                 //
@@ -1153,97 +1146,16 @@ class CliClient implements IClient {
         });
         handlers.put("status", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 if (tokens.size() >= 3 && "-".equals(tokens.get(2))) {
-                    Player player = mPlayers.get(Util.decode(tokens.get(0)));
+                    Player player = mPlayers.get(tokens.decoded(0));
 
                     // XXX: Can we ever see a status for a player we don't know about?
                     // XXX: Maybe the better thing to do is to add it.
                     if (player == null)
                         return;
 
-                    PlayerState playerState = player.getPlayerState();
-
-                    HashMap<String, String> tokenMap = parseTokens(tokens);
-                    addArtworkUrlTag(tokenMap);
-                    addDownloadUrlTag(tokenMap);
-
-                    boolean unknownRepeatStatus = playerState.getRepeatStatus() == null;
-                    boolean unknownShuffleStatus = playerState.getShuffleStatus() == null;
-
-                    boolean changedPower = playerState.setPoweredOn(Util.parseDecimalIntOrZero(tokenMap.get("power")) == 1);
-                    boolean changedShuffleStatus = playerState.setShuffleStatus(tokenMap.get("playlist shuffle"));
-                    boolean changedRepeatStatus = playerState.setRepeatStatus(tokenMap.get("playlist repeat"));
-                    boolean changedCurrentPlaylistIndex = playerState.setCurrentPlaylistIndex(Util.parseDecimalIntOrZero(tokenMap.get("playlist_cur_index")));
-                    boolean changedCurrentPlaylist = playerState.setCurrentPlaylist(tokenMap.get("playlist_name"));
-                    boolean changedSleep = playerState.setSleep(Util.parseDecimalIntOrZero(tokenMap.get("will_sleep_in")));
-                    boolean changedSleepDuration = playerState.setSleepDuration(Util.parseDecimalIntOrZero(tokenMap.get("sleep")));
-                    boolean changedSong = playerState.setCurrentSong(new Song(tokenMap));
-                    boolean changedSongDuration = playerState.setCurrentSongDuration(Util.parseDecimalIntOrZero(tokenMap.get("duration")));
-                    boolean changedSongTime = playerState.setCurrentTimeSecond(Util.parseDecimalIntOrZero(tokenMap.get("time")));
-                    boolean changedVolume = playerState.setCurrentVolume(Util.parseDecimalIntOrZero(tokenMap.get("mixer volume")));
-                    boolean changedSyncMaster = playerState.setSyncMaster(tokenMap.get("sync_master"));
-                    boolean changedSyncSlaves = playerState.setSyncSlaves(Splitter.on(",").omitEmptyStrings().splitToList(Strings.nullToEmpty(tokenMap.get("sync_slaves"))));
-                    boolean changedSubscription = playerState.setSubscriptionType(tokenMap.get("subscribe"));
-
-                    player.setPlayerState(playerState);
-
-                    // Kept as its own method because other methods call it, unlike the explicit
-                    // calls to the callbacks below.
-                    updatePlayStatus(player.getId(), tokenMap.get("mode"));
-
-                    // XXX: Handled by onEvent(PlayStatusChanged) in the service.
-                    //updatePlayerSubscription(player, calculateSubscriptionTypeFor(player));
-
-                    // Note to self: The problem here is that with second-to-second updates enabled
-                    // the playerlistactivity callback will be called every second.  Thinking that
-                    // a better approach would be for clients to register a single callback and a
-                    // bitmask of events they're interested in based on the change* variables.
-                    // Each callback would be called a maximum of once, with the new player and a
-                    // bitmask that corresponds to which changes happened (so the client can
-                    // distinguish between the types of changes).
-
-                    // Might also be worth investigating Otto as an event bus instead.
-
-                    // Quick and dirty fix -- only call onPlayerStateReceived for changes to the
-                    // player state (ignore changes to Song, SongDuration, SongTime).
-
-                    if (changedPower || changedSleep || changedSleepDuration || changedVolume
-                            || changedSong || changedSyncMaster || changedSyncSlaves) {
-                        mEventBus.post(new PlayerStateChanged(player, playerState));
-                    }
-
-                    // Power status
-                    if (changedPower) {
-                        mEventBus.post(new PowerStatusChanged(
-                                player,
-                                !player.getPlayerState().isPoweredOn(),
-                                !player.getPlayerState().isPoweredOn()));
-                    }
-
-                    // Current song
-                    if (changedSong) {
-                        mEventBus.postSticky(new MusicChanged(player, playerState));
-                    }
-
-                    // Shuffle status.
-                    if (changedShuffleStatus) {
-                        mEventBus.post(new ShuffleStatusChanged(player,
-                                unknownShuffleStatus, playerState.getShuffleStatus()));
-                    }
-
-                    // Repeat status.
-                    if (changedRepeatStatus) {
-                        mEventBus.post(new RepeatStatusChanged(player,
-                                unknownRepeatStatus, playerState.getRepeatStatus()));
-                    }
-
-                    // Position in song
-                    if (changedSongDuration || changedSongTime) {
-                        mEventBus.post(new SongTimeChanged(player,
-                                playerState.getCurrentTimeSecond(),
-                                playerState.getCurrentSongDuration()));
-                    }
+                    parseStatus(player, parseTokens(tokens));
                 } else {
                     parseSqueezerList(extQueryFormatCmdMap.get("status"), tokens);
                 }
@@ -1251,10 +1163,10 @@ class CliClient implements IClient {
         });
         handlers.put("prefset", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(CliLineTokenizer tokens) {
                 Log.v(TAG, "Prefset received: " + tokens);
                 if (tokens.size() == 5 && tokens.get(2).equals("server")) {
-                    String playerId = Util.decode(tokens.get(0));
+                    String playerId = tokens.decoded(0);
                     Player player = mPlayers.get(playerId);
                     if (player == null) {
                         return;
@@ -1266,8 +1178,8 @@ class CliClient implements IClient {
 
                     @Player.Pref.Name String pref = tokens.get(3);
                     if (Player.Pref.VALID_PLAYER_PREFS.contains(pref)) {
-                        String value = Util.decode(tokens.get(4));
-                        mEventBus.post(new PlayerPrefReceived(player, pref, Util.decode(tokens.get(4))));
+                        String value = tokens.decoded(4);
+                        mEventBus.post(new PlayerPrefReceived(player, pref, tokens.decoded(4)));
                     }
                 }
             }
@@ -1283,7 +1195,7 @@ class CliClient implements IClient {
             if (cmd.handlerList == CliClient.HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(CliLineTokenizer tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1303,7 +1215,7 @@ class CliClient implements IClient {
             Crashlytics.setString("lastReceivedLine", serverLine);
         }
 
-        List<String> tokens = Arrays.asList(mSpaceSplitPattern.split(serverLine));
+        CliLineTokenizer tokens = mTokenizer.get().reset(serverLine);
         if (tokens.size() < 2) {
             return;
         }
@@ -1333,46 +1245,24 @@ class CliClient implements IClient {
         }
     }
 
-    private HashMap<String, String> parseTokens(List<String> tokens) {
-        HashMap<String, String> tokenMap = new HashMap<String, String>();
-        String[] kv;
-        for (String token : tokens) {
-            kv = parseToken(token);
-            if (kv.length == 0)
-                continue;
-
-            tokenMap.put(kv[0], kv[1]);
-        }
-        return tokenMap;
-    }
-
     /**
-     * Parse a token in to a key-value pair.  The value is optional.
+     * Parse the tokens of a line in to a map of key-value pairs.  Values are optional.
      * <p>
-     * The token is assumed to be URL encoded, with the key and value separated by ':' (encoded
-     * as '%3A').
+     * The tokens are assumed to be URL encoded, with the key and value separated by ':' (encoded
+     * as '%3A'). Empty tokens are skipped.
      *
-     * @param token The string to decode.
-     * @return An array -- empty if token is null or empty, otherwise with two elements. The first
-     * is the key, the second, which may be null, is the value. The elements are decoded.
+     * @param tokens The tokenized line.
+     * @return Map of decoded keys to decoded values. The value is null for tokens without one.
      */
-    private String[] parseToken(@Nullable String token) {
-        String key, value;
-
-        if (token == null || token.length() == 0) {
-            return new String[]{};
-        }
+    private HashMap<String, String> parseTokens(CliLineTokenizer tokens) {
+        HashMap<String, String> tokenMap = new HashMap<String, String>();
+        for (int idx = 0; idx < tokens.size(); idx++) {
+            if (tokens.length(idx) == 0)
+                continue;
 
-        int colonPos = token.indexOf("%3A");
-        if (colonPos == -1) {
-            key = Util.decode(token);
-            value = null;
-        } else {
-            key = Util.decode(token.substring(0, colonPos));
-            value = Util.decode(token.substring(colonPos + 3));
+            tokenMap.put(tokens.key(idx), tokens.value(idx));
         }
-
-        return new String[]{key, value};
+        return tokenMap;
     }
 
     private @PlayerState.PlayState String parsePause(String explicitPause) {
@@ -1389,17 +1279,17 @@ class CliClient implements IClient {
         return PlayerState.PLAY_STATE_PAUSE;
     }
 
-    private void parsePlaylistNotification(List<String> tokens) {
+    private void parsePlaylistNotification(CliLineTokenizer tokens) {
         Log.v(TAG, "Playlist notification received: " + tokens);
         String notification = tokens.get(2);
         if ("newsong".equals(notification)) {
             sendCommand(tokens.get(0), "status - 1 tags:" + SqueezeService.SONGTAGS);
         } else if ("play".equals(notification)) {
-            updatePlayStatus(Util.decode(tokens.get(0)), PlayerState.PLAY_STATE_PLAY);
+            updatePlayStatus(tokens.decoded(0), PlayerState.PLAY_STATE_PLAY);
         } else if ("stop".equals(notification)) {
-            updatePlayStatus(Util.decode(tokens.get(0)), PlayerState.PLAY_STATE_STOP);
+            updatePlayStatus(tokens.decoded(0), PlayerState.PLAY_STATE_STOP);
         } else if ("pause".equals(notification)) {
-            updatePlayStatus(Util.decode(tokens.get(0)), parsePause(tokens.size() >= 4 ? tokens.get(3) : null));
+            updatePlayStatus(tokens.decoded(0), parsePause(tokens.size() >= 4 ? tokens.get(3) : null));
         } else if ("addtracks".equals(notification)) {
             mEventBus.postSticky(new PlaylistTracksAdded());
         } else if ("delete".equals(notification)) {
@@ -1407,36 +1297,6 @@ class CliClient implements IClient {
         }
     }
 
-    private void updatePlayerVolume(String playerId, int newVolume) {
-        Player player = mPlayers.get(playerId);
-        if (player == null) {
-            return;
-        }
-        player.getPlayerState().setCurrentVolume(newVolume);
-        mEventBus.post(new PlayerVolume(newVolume, player));
-    }
-
-    private void updatePlayStatus(@NonNull String playerId, String playStatus) {
-        Player player = mPlayers.get(playerId);
-
-        if (player == null) {
-            return;
-        }
-
-        // Handle unknown states.
-        if (!playStatus.equals(PlayerState.PLAY_STATE_PLAY) &&
-                !playStatus.equals(PlayerState.PLAY_STATE_PAUSE) &&
-                !playStatus.equals(PlayerState.PLAY_STATE_STOP)) {
-            return;
-        }
-
-        PlayerState playerState = player.getPlayerState();
-
-        if (playerState.setPlayStatus(playStatus)) {
-            mEventBus.post(new PlayStatusChanged(playStatus, player));
-        }
-    }
-
     /**
      * Handshake with the SqueezeServer, learn some of its supported features, and start listening
      * for asynchronous updates of server state.
@@ -1458,6 +1318,7 @@ class CliClient implements IClient {
                 "pref httpport ?", // learn the HTTP port (needed for images)
                 "pref jivealbumsort ?", // learn the preferred album sort order
                 "pref mediadirs ?", // learn the base path(s) of the server music library
+                "serverstatus 0 0", // learn when the library was last scanned
 
                 // Fetch the version number. This must be the last thing
                 // fetched, as seeing the result triggers the
@@ -1466,63 +1327,32 @@ class CliClient implements IClient {
         );
     }
 
-    /**
-     * Queries for all players known by the server.
-     * </p>
-     * Posts a PlayersChanged message if the list of players has changed.
-     */
-    private void fetchPlayers() {
-        requestItems("players", -1, new IServiceItemListCallback<Player>() {
-            private final HashMap<String, Player> players = new HashMap<String, Player>();
-
-            @Override
-            public void onItemsReceived(int count, int start, Map<String, String> parameters,
-                                        List<Player> items, Class<Player> dataType) {
-                for (Player player : items) {
-                    players.put(player.getId(), player);
-                }
-
-                // If all players have been received then determine the new active player.
-                if (start + items.size() >= count) {
-                    if (players.equals(mPlayers)) {
-                        return;
-                    }
-
-                    mPlayers.clear();
-                    mPlayers.putAll(players);
-
-                    // XXX: postSticky?
-                    mEventBus.postSticky(new PlayersChanged(mPlayers));
-                }
-            }
-
-            @Override
-            public Object getClient() {
-                return CliClient.this;
-            }
-        });
-    }
-
-    boolean isConnected() {
+    @Override
+    public boolean isConnected() {
         return connectionState.isConnected();
     }
 
-    boolean isConnectInProgress() {
+    @Override
+    public boolean isConnectInProgress() {
         return connectionState.isConnectInProgress();
     }
 
-    int getHttpPort() {
+    @Override
+    public int getHttpPort() {
         return connectionState.getHttpPort();
     }
 
-    String getCurrentHost() {
+    @Override
+    public String getCurrentHost() {
         return connectionState.getCurrentHost();
     }
 
-    String[] getMediaDirs() {
+    @Override
+    public String[] getMediaDirs() {
         return connectionState.getMediaDirs();
     }
 
+    @Override
     public String getPreferredAlbumSort() {
         return connectionState.getPreferredAlbumSort();
     }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the lines the server sends on the CLI port.
+ * <p>
+ * Unlike a {@link java.io.BufferedReader}, the socket is read through one direct buffer that is
+ * reused for the life of the connection, the bytes of a line are collected in a reused array, and
+ * the only allocation per line is the resulting string. Lines are decoded as UTF-8, whatever the
+ * platform default is.
+ * <p>
+ * Lines longer than the maximum are skipped rather than buffered, so a misbehaving server can not
+ * exhaust the heap. {@link #getSkippedLines()} tells how many were skipped.
+ * <p>
+ * This class is not thread safe, it is meant to be used from the listening thread.
+ */
+class CliLineReader {
+
+    /** Size of the buffer the socket is read in to. */
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /** A line array that has grown beyond this is dropped after use, to give the memory back. */
+    private static final int MAX_RETAINED_LINE_CAPACITY = 1024 * 1024;
+
+    private final ReadableByteChannel mChannel;
+
+    private final int mMaxLineLength;
+
+    /** Bytes read from the channel and not yet consumed, between position and limit. */
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /** The bytes of the current line. */
+    private byte[] mLine = new byte[BUFFER_SIZE];
+
+    /** Number of bytes in {@link #mLine}. */
+    private int mLength;
+
+    /** True while the rest of an overlong line is being skipped. */
+    private boolean mSkipping;
+
+    private int mSkippedLines;
+
+    /**
+     * @param channel The channel to read from, in blocking mode.
+     * @param maxLineLength The length, in bytes, of the longest line that will be returned.
+     */
+    CliLineReader(ReadableByteChannel channel, int maxLineLength) {
+        mChannel = channel;
+        mMaxLineLength = maxLineLength;
+        mBuffer.flip();
+    }
+
+    /**
+     * Reads a line, blocking until a whole line has arrived.
+     *
+     * @return The line, without the line terminator, or null at the end of the stream.
+     * @throws IOException If the channel could not be read.
+     */
+    String readLine() throws IOException {
+        while (true) {
+            while (mBuffer.hasRemaining()) {
+                int start = mBuffer.position();
+                int limit = mBuffer.limit();
+                int newline = -1;
+                for (int i = start; i < limit; i++) {
+                    if (mBuffer.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+
+                append(newline == -1 ? limit - start : newline - start);
+                if (newline == -1) {
+                    break;
+                }
+
+                mBuffer.get(); // The newline.
+                if (mSkipping) {
+                    mSkipping = false;
+                } else {
+                    return takeLine();
+                }
+            }
+
+            mBuffer.clear();
+            int read = mChannel.read(mBuffer);
+            mBuffer.flip();
+            if (read == -1) {
+                // Like BufferedReader, return an unterminated last line.
+                if (mLength > 0 && !mSkipping) {
+                    return takeLine();
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return The number of lines that were skipped for being too long.
+     */
+    int getSkippedLines() {
+        return mSkippedLines;
+    }
+
+    /**
+     * Move bytes from the buffer to the current line.
+     */
+    private void append(int count) {
+        if (mSkipping || mLength + count > mMaxLineLength) {
+            if (!mSkipping) {
+                mSkipping = true;
+                mSkippedLines++;
+                mLength = 0;
+            }
+            mBuffer.position(mBuffer.position() + count);
+            return;
+        }
+
+        if (mLength + count > mLine.length) {
+            int capacity = Math.min(mMaxLineLength, Math.max(mLine.length * 2, mLength + count));
+            byte[] line = new byte[capacity];
+            System.arraycopy(mLine, 0, line, 0, mLength);
+            mLine = line;
+        }
+        mBuffer.get(mLine, mLength, count);
+        mLength += count;
+    }
+
+    private String takeLine() {
+        int length = mLength;
+        if (length > 0 && mLine[length - 1] == '\r') {
+            length--;
+        }
+
+        String line;
+        try {
+            line = new String(mLine, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Can't happen, every Java platform supports UTF-8. String(byte[], Charset) needs
+            // API level 9.
+            throw new IllegalStateException(e);
+        }
+
+        mLength = 0;
+        if (mLine.length > MAX_RETAINED_LINE_CAPACITY) {
+            mLine = new byte[BUFFER_SIZE];
+        }
+        return line;
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * Reusable tokenizer for lines received from the server's CLI.
+ * <p>
+ * CLI lines consist of space separated, URL encoded tokens, most of them of the form
+ * <code>key%3Avalue</code>. Instead of splitting the line into new strings and decoding each of
+ * them up front, {@link #reset(String)} only records where each token starts and ends. Keys and
+ * values are decoded from the original line when they are read, so tokens that are never looked
+ * at cost nothing, and the small set of keys the server uses are shared instead of being
+ * allocated again for every token.
+ * <p>
+ * The tokenizer is also a read-only {@link java.util.List} of the raw (still encoded) tokens, for
+ * handlers that only look at a few positional tokens. Those strings are created on demand.
+ * <p>
+ * Instances are not thread safe, and the contents are only valid until the next call to
+ * {@link #reset(String)}.
+ */
+final class CliLineTokenizer extends AbstractList<String> {
+
+    /** Length of the encoded form of the key/value separator, "%3A". */
+    private static final int ENCODED_COLON_LENGTH = 3;
+
+    /** Upper bound on the number of distinct keys that are shared between lines. */
+    private static final int MAX_SHARED_KEYS = 512;
+
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    /** The line being tokenized. */
+    private String mLine = "";
+
+    /** Number of tokens in the current line. */
+    private int mCount;
+
+    /** Start offset of each token in {@link #mLine}. */
+    private int[] mStarts = new int[64];
+
+    /** End offset (exclusive) of each token in {@link #mLine}. */
+    private int[] mEnds = new int[64];
+
+    /** Offset of the encoded colon in each token, or -1 if the token has no value. */
+    private int[] mColons = new int[64];
+
+    /** Raw tokens that have been requested through {@link #get(int)}. */
+    private String[] mRawTokens = new String[64];
+
+    /** Work area for decoding. */
+    private char[] mScratch = new char[256];
+
+    /** Open addressed hash table of decoded keys seen so far. */
+    private String[] mSharedKeys = new String[64];
+
+    private int mSharedKeyCount;
+
+    /**
+     * Tokenize a new line, discarding the state from the previous line.
+     *
+     * @param line The line received from the server.
+     * @return This tokenizer.
+     */
+    CliLineTokenizer reset(String line) {
+        Arrays.fill(mRawTokens, 0, mCount, null);
+        mLine = line;
+        mCount = 0;
+
+        final int length = line.length();
+        int start = 0;
+        while (start <= length) {
+            int end = line.indexOf(' ', start);
+            if (end == -1) {
+                end = length;
+            }
+            // String.split() drops trailing empty tokens, keep doing the same.
+            if (end == length && start == length) {
+                break;
+            }
+            addToken(start, end, findColon(start, end));
+            start = end + 1;
+        }
+
+        // Drop empty tokens at the end of the line, as String.split() does.
+        while (mCount > 0 && mStarts[mCount - 1] == mEnds[mCount - 1]) {
+            mCount--;
+        }
+        return this;
+    }
+
+    /** @return The position of the first encoded colon in the given region, or -1. */
+    private int findColon(int from, int to) {
+        final String line = mLine;
+        for (int i = from; i + 2 < to; i++) {
+            if (line.charAt(i) == '%' && line.charAt(i + 1) == '3'
+                    && (line.charAt(i + 2) == 'A' || line.charAt(i + 2) == 'a')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addToken(int start, int end, int colon) {
+        if (mCount == mStarts.length) {
+            // Arrays.copyOf needs API 9.
+            int capacity = mCount * 2;
+            mStarts = grow(mStarts, capacity);
+            mEnds = grow(mEnds, capacity);
+            mColons = grow(mColons, capacity);
+            String[] rawTokens = new String[capacity];
+            System.arraycopy(mRawTokens, 0, rawTokens, 0, mCount);
+            mRawTokens = rawTokens;
+        }
+        mStarts[mCount] = start;
+        mEnds[mCount] = end;
+        mColons[mCount] = colon;
+        mCount++;
+    }
+
+    /** @return The number of tokens in the current line. */
+    @Override
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return The raw token at the given position, exactly as it was received (still URL
+     *     encoded).
+     */
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        String token = mRawTokens[index];
+        if (token == null) {
+            token = mLine.substring(mStarts[index], mEnds[index]);
+            mRawTokens[index] = token;
+        }
+        return token;
+    }
+
+    /** @return The length of the raw token at the given position. */
+    int length(int index) {
+        checkIndex(index);
+        return mEnds[index] - mStarts[index];
+    }
+
+    /** @return True if the token at the given position is of the form <code>key:value</code>. */
+    boolean hasValue(int index) {
+        checkIndex(index);
+        return mColons[index] != -1;
+    }
+
+    /**
+     * Returns the decoded key of the token at the given position.
+     * <p>
+     * Keys are shared between lines, so in the steady state this does not allocate. If the token
+     * has no value the whole token is decoded and returned.
+     *
+     * @return The decoded key.
+     */
+    String key(int index) {
+        checkIndex(index);
+        int colon = mColons[index];
+        if (colon == -1) {
+            return decode(mStarts[index], mEnds[index]);
+        }
+        int length = decodeToScratch(mStarts[index], colon);
+        return sharedKey(mScratch, length);
+    }
+
+    /** @return The decoded value of the token at the given position, or null if it has none. */
+    String value(int index) {
+        checkIndex(index);
+        int colon = mColons[index];
+        if (colon == -1) {
+            return null;
+        }
+        return decode(colon + ENCODED_COLON_LENGTH, mEnds[index]);
+    }
+
+    /** @return The whole token at the given position, decoded. */
+    String decoded(int index) {
+        checkIndex(index);
+        return decode(mStarts[index], mEnds[index]);
+    }
+
+    /**
+     * Parse the value of the token at the given position as a decimal integer, without creating
+     * any intermediate strings. Like {@link uk.org.ngo.squeezer.Util#parseDecimalInt(String, int)}
+     * anything after a decimal point is ignored.
+     *
+     * @return The parsed value, or <code>defaultValue</code> if the token has no value or it is not
+     *     a number.
+     */
+    int intValue(int index, int defaultValue) {
+        checkIndex(index);
+        int colon = mColons[index];
+        if (colon == -1) {
+            return defaultValue;
+        }
+        return parseDecimalInt(colon + ENCODED_COLON_LENGTH, mEnds[index], defaultValue);
+    }
+
+    /** @see #intValue(int, int) */
+    int intValueOrZero(int index) {
+        return intValue(index, 0);
+    }
+
+    private int parseDecimalInt(int from, int to, int defaultValue) {
+        final String line = mLine;
+        int i = from;
+        boolean negative = false;
+        if (i < to && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        if (i == to || line.charAt(i) == '.') {
+            return defaultValue;
+        }
+
+        long result = 0;
+        for (; i < to; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            result = result * 10 + (c - '0');
+            if (result > (long) Integer.MAX_VALUE + 1) {
+                return defaultValue;
+            }
+        }
+        if (negative) {
+            result = -result;
+        }
+        if (result > Integer.MAX_VALUE || result < Integer.MIN_VALUE) {
+            return defaultValue;
+        }
+        return (int) result;
+    }
+
+    /** @return The raw line, without any allocation. */
+    @Override
+    public String toString() {
+        return mLine;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+        }
+    }
+
+    /**
+     * Decode the given region of the line. Returns a substring of the line when there is nothing
+     * to decode.
+     */
+    private String decode(int from, int to) {
+        if (!needsDecoding(from, to)) {
+            return mLine.substring(from, to);
+        }
+        int length = decodeToScratch(from, to);
+        return new String(mScratch, 0, length);
+    }
+
+    private boolean needsDecoding(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = mLine.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the given region of the line into {@link #mScratch} using the same rules as
+     * {@link java.net.URLDecoder} with UTF-8. Malformed escapes are kept as-is and invalid UTF-8
+     * sequences are replaced with U+FFFD, instead of throwing.
+     *
+     * @return The number of decoded characters in {@link #mScratch}.
+     */
+    private int decodeToScratch(int from, int to) {
+        // Decoding never produces more chars than the input has.
+        if (mScratch.length < to - from) {
+            mScratch = new char[Math.max(to - from, mScratch.length * 2)];
+        }
+        final String line = mLine;
+        final char[] out = mScratch;
+        int n = 0;
+        int i = from;
+        while (i < to) {
+            char c = line.charAt(i);
+            if (c == '+') {
+                out[n++] = ' ';
+                i++;
+                continue;
+            }
+            int b = (c == '%') ? escapedByte(i, to) : -1;
+            if (b == -1) {
+                out[n++] = c;
+                i++;
+                continue;
+            }
+            i += 3;
+            if (b < 0x80) {
+                out[n++] = (char) b;
+                continue;
+            }
+
+            // Start of a multi-byte UTF-8 sequence.
+            int remaining;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                remaining = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                remaining = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                remaining = 3;
+                codePoint = b & 0x07;
+            } else {
+                out[n++] = REPLACEMENT_CHAR;
+                continue;
+            }
+
+            boolean valid = true;
+            while (remaining > 0) {
+                int next = (i < to && line.charAt(i) == '%') ? escapedByte(i, to) : -1;
+                if (next == -1 || (next & 0xC0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                i += 3;
+                remaining--;
+            }
+
+            if (!valid || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                out[n++] = REPLACEMENT_CHAR;
+            } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                // Character.highSurrogate() and lowSurrogate() need API 19.
+                n += Character.toChars(codePoint, out, n);
+            } else {
+                out[n++] = (char) codePoint;
+            }
+        }
+        return n;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /** @return The byte encoded as <code>%XX</code> at position <code>i</code>, or -1. */
+    private int escapedByte(int i, int to) {
+        if (i + 2 >= to) {
+            return -1;
+        }
+        int hi = Character.digit(mLine.charAt(i + 1), 16);
+        int lo = Character.digit(mLine.charAt(i + 2), 16);
+        if (hi == -1 || lo == -1) {
+            return -1;
+        }
+        return (hi << 4) | lo;
+    }
+
+    /**
+     * Find or create the shared key string with the given characters.
+     */
+    private String sharedKey(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+
+        String[] table = mSharedKeys;
+        int mask = table.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if (candidate.hashCode() == hash && contentEquals(candidate, chars, length)) {
+                return candidate;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String key = new String(chars, 0, length);
+        if (mSharedKeyCount < MAX_SHARED_KEYS) {
+            table[slot] = key;
+            if (++mSharedKeyCount * 2 > table.length) {
+                growSharedKeys();
+            }
+        }
+        return key;
+    }
+
+    private static boolean contentEquals(String s, char[] chars, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growSharedKeys() {
+        String[] old = mSharedKeys;
+        String[] table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String key : old) {
+            if (key != null) {
+                int hash = key.hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (table[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = key;
+            }
+        }
+        mSharedKeys = table;
+    }
+}
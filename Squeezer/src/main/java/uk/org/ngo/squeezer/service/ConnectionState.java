@@ -20,9 +20,8 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -31,6 +30,7 @@ import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -45,6 +45,12 @@ public class ConnectionState {
 
     private static final String TAG = "ConnectionState";
 
+    /**
+     * Longest line, in bytes, that is accepted from the server. Full lists are fetched in pages of
+     * at most {@link PagePipeline#MAX_PAGE_SIZE} items, which stay well below this.
+     */
+    private static final int MAX_LINE_LENGTH = 8 * 1024 * 1024;
+
     /** {@link java.util.regex.Pattern} that splits strings on semi-colons. */
     private static final Pattern mSemicolonSplitPattern = Pattern.compile(";");
 
@@ -223,8 +229,8 @@ public class ConnectionState {
         return mConnectionState == CONNECTION_STARTED;
     }
 
-    void startListeningThread(@NonNull EventBus eventBus, @NonNull Executor executor, CliClient cli) {
-        Thread listeningThread = new ListeningThread(eventBus, executor, cli, socketRef.get(),
+    void startListeningThread(@NonNull EventBus eventBus, CliClient cli) {
+        Thread listeningThread = new ListeningThread(eventBus, cli, socketRef.get(),
                 currentConnectionGeneration.incrementAndGet());
         listeningThread.start();
     }
@@ -233,17 +239,14 @@ public class ConnectionState {
 
         @NonNull private final EventBus mEventBus;
 
-        @NonNull private final Executor mExecutor;
-
         private final Socket socket;
 
         private final CliClient cli;
 
         private final int generationNumber;
 
-        private ListeningThread(@NonNull EventBus eventBus, @NonNull Executor executor, CliClient cli, Socket socket, int generationNumber) {
+        private ListeningThread(@NonNull EventBus eventBus, CliClient cli, Socket socket, int generationNumber) {
             mEventBus = eventBus;
-            mExecutor = executor;
             this.cli = cli;
             this.socket = socket;
             this.generationNumber = generationNumber;
@@ -253,15 +256,23 @@ public class ConnectionState {
         public void run() {
             Log.d(TAG, "Listening thread started");
 
-            BufferedReader in;
+            CliLineReader in = new CliLineReader(socket.getChannel(), MAX_LINE_LENGTH);
+            LineDispatcher dispatcher = new LineDispatcher(new LineDispatcher.LineHandler() {
+                @Override
+                public void onLineReceived(String line) {
+                    cli.onLineReceived(line);
+                }
+            });
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            } catch (IOException e) {
-                Log.v(TAG, "IOException while creating BufferedReader: " + e);
-                cli.disconnect(false);
-                return;
+                listen(in, dispatcher);
+            } finally {
+                dispatcher.shutdown();
             }
+        }
+
+        private void listen(CliLineReader in, LineDispatcher dispatcher) {
             IOException exception = null;
+            int skippedLines = 0;
             while (true) {
                 String line;
                 try {
@@ -270,6 +281,10 @@ public class ConnectionState {
                     line = null;
                     exception = e;
                 }
+                if (in.getSkippedLines() > skippedLines) {
+                    skippedLines = in.getSkippedLines();
+                    Log.w(TAG, "Skipped a line longer than " + MAX_LINE_LENGTH + " bytes");
+                }
                 if (line == null) {
                     // Socket disconnected.  This is expected
                     // if we're not the main connection generation anymore,
@@ -283,20 +298,14 @@ public class ConnectionState {
                     }
                     return;
                 }
-                final String inputLine = line;
 
                 // If a login attempt was in progress and this is a line that does not start
                 // with "login " then the login must have been successful (otherwise the
                 // server would have disconnected), so update the connection state accordingly.
-                if (mConnectionState == LOGIN_STARTED && !inputLine.startsWith("login ")) {
+                if (mConnectionState == LOGIN_STARTED && !line.startsWith("login ")) {
                     setConnectionState(mEventBus, LOGIN_COMPLETED);
                 }
-                mExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        cli.onLineReceived(inputLine);
-                    }
-                });
+                dispatcher.dispatch(line);
             }
         }
     }
@@ -306,15 +315,7 @@ public class ConnectionState {
                       final CliClient cli, String hostPort, final String userName,
                       final String password) {
         Log.v(TAG, "startConnect");
-        // Common mistakes, based on crash reports...
-        if (hostPort.startsWith("Http://") || hostPort.startsWith("http://")) {
-            hostPort = hostPort.substring(7);
-        }
-
-        // Ending in whitespace?  From LatinIME, probably?
-        while (hostPort.endsWith(" ")) {
-            hostPort = hostPort.substring(0, hostPort.length() - 1);
-        }
+        hostPort = cleanHostPort(hostPort);
 
         final int port = Util.parsePort(hostPort);
         final String host = Util.parseHost(hostPort);
@@ -332,17 +333,19 @@ public class ConnectionState {
             public void run() {
                 Log.d(TAG, "Ensuring service is disconnected");
                 service.disconnect();
-                Socket socket = new Socket();
                 try {
+                    // Opened as a channel, so the listening thread can read it through NIO.
+                    Socket socket = SocketChannel.open().socket();
                     Log.d(TAG, "Connecting to: " + cleanHostPort);
                     setConnectionState(eventBus, CONNECTION_STARTED);
                     socket.connect(new InetSocketAddress(host, port),
                             4000 /* ms timeout */);
                     socketRef.set(socket);
                     Log.d(TAG, "Connected to: " + cleanHostPort);
-                    socketWriter.set(new PrintWriter(socket.getOutputStream(), true));
+                    socketWriter.set(new PrintWriter(
+                            new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true));
                     setConnectionState(eventBus, CONNECTION_COMPLETED);
-                    startListeningThread(eventBus, executor, cli);
+                    startListeningThread(eventBus, cli);
                     onCliPortConnectionEstablished(eventBus, cli, userName, password);
                     Authenticator.setDefault(new Authenticator() {
                         @Override
@@ -362,6 +365,25 @@ public class ConnectionState {
         });
     }
 
+    /**
+     * Fix common mistakes in a user entered server address.
+     *
+     * @param hostPort The address, as <code>host:port</code>.
+     * @return The address, without a scheme or trailing whitespace.
+     */
+    static String cleanHostPort(String hostPort) {
+        // Common mistakes, based on crash reports...
+        if (hostPort.startsWith("Http://") || hostPort.startsWith("http://")) {
+            hostPort = hostPort.substring(7);
+        }
+
+        // Ending in whitespace?  From LatinIME, probably?
+        while (hostPort.endsWith(" ")) {
+            hostPort = hostPort.substring(0, hostPort.length() - 1);
+        }
+        return hostPort;
+    }
+
     /**
      * Authenticate on the SqueezeServer.
      * <p>
@@ -401,4 +423,8 @@ public class ConnectionState {
         return currentHost.get();
     }
 
+    void setCurrentHost(String host) {
+        currentHost.set(host);
+    }
+
 }
@@ -16,27 +16,42 @@
 
 package uk.org.ngo.squeezer.service;
 
-import android.content.ContentValues;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import uk.org.ngo.squeezer.util.UIUtils;
 
 /**
  * Encapsulates the download database implementation
+ * <p>
+ * Writes go through statements that are compiled once per opened database, and the methods
+ * that take several entries write them in one transaction, so queuing a large folder costs one
+ * commit instead of one per song. Downloads are looked up through an index on their id, and the
+ * database is in write-ahead logging mode where available, so reads don't wait for the
+ * download threads' writes.
  */
 public class DownloadDatabase {
 
     private class DOWNLOAD_DATABASE {
         private static final String NAME = "download";
-        private static final int VERSION = 1;
+        private static final int VERSION = 3;
 
         private class SONG {
             private static final String TABLE = "download";
+            private static final String DOWNLOAD_ID_INDEX = "download_download_id";
 
             private class COLUMNS {
                 private static final String DOWNLOAD_ID = "download_id";
@@ -44,12 +59,44 @@ public class DownloadDatabase {
                 private static final String FILE_NAME = "file_name";
             }
         }
+
+        private class SYNCED_TRACK {
+            private static final String TABLE = "synced_track";
+
+            private class COLUMNS {
+                private static final String LOCAL_PATH = "local_path";
+                private static final String SERVER_LENGTH = "server_length";
+                private static final String SERVER_MODIFIED = "server_modified";
+                private static final String LOCAL_LENGTH = "local_length";
+                private static final String LOCAL_MODIFIED = "local_modified";
+                private static final String HASH = "hash";
+            }
+        }
     }
 
-    private final SQLiteDatabase db;
+    private final Context context;
 
     public DownloadDatabase(Context context) {
-        db = OpenHelper.getInstance(context).getWritableDatabase();
+        this.context = context.getApplicationContext();
+        // Open the database now, rather than on the first use.
+        OpenHelper.getInstance(this.context).getWritableDatabase();
+    }
+
+    /**
+     * @return The database. Asked for on each use, as {@link OpenHelper#clear(Context)} closes
+     *     it.
+     */
+    private SQLiteDatabase getDatabase() {
+        return OpenHelper.getInstance(context).getWritableDatabase();
+    }
+
+    /**
+     * @return The compiled statements of the database. Must be called and the statements used
+     *     while holding {@link OpenHelper#mInstanceLock}, so {@link OpenHelper#clear(Context)}
+     *     can't close them in use.
+     */
+    private Statements getStatements() {
+        return OpenHelper.getInstance(context).getStatements();
     }
 
     private static class OpenHelper  extends SQLiteOpenHelper {
@@ -57,6 +104,8 @@ public class DownloadDatabase {
         private static final Object mInstanceLock = new Object();
         private static OpenHelper mInstance;
 
+        private Statements mStatements;
+
         private OpenHelper(Context context) {
             // calls the super constructor, requesting the default cursor
             // factory.
@@ -80,6 +129,12 @@ public class DownloadDatabase {
         public static void clear(Context context) {
             synchronized (mInstanceLock) {
                 if (mInstance != null) {
+                    // Writers hold the instance lock, so none of them is using the statements.
+                    // They compile them again from the next instance.
+                    if (mInstance.mStatements != null) {
+                        mInstance.mStatements.close();
+                        mInstance.mStatements = null;
+                    }
                     mInstance.close();
                     mInstance  = null;
                 }
@@ -88,21 +143,110 @@ public class DownloadDatabase {
             }
         }
 
+        /**
+         * @return The compiled statements of the database, shared by all its users.
+         */
+        public synchronized Statements getStatements() {
+            if (mStatements == null) {
+                mStatements = new Statements(getWritableDatabase());
+            }
+            return mStatements;
+        }
+
         @Override
         public void onCreate(SQLiteDatabase sqLiteDatabase) {
             sqLiteDatabase.execSQL("CREATE TABLE " + DOWNLOAD_DATABASE.SONG.TABLE + "(" +
                     DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + " INTEGER, " +
                     DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME + " TEXT, " +
                     DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME + " TEXT)");
+            createDownloadIdIndex(sqLiteDatabase);
+            createSyncedTrackTable(sqLiteDatabase);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-            // Upgrades just creates a new database. The database keeps track of
-            // active downloads, so it holds only temporary information.
-            onCreate(sqLiteDatabase);
+            // Version 2 added the synced tracks, version 3 the index of the downloads. The
+            // downloads in progress are kept.
+            if (oldVersion < 2) {
+                createSyncedTrackTable(sqLiteDatabase);
+            }
+            if (oldVersion < 3) {
+                createDownloadIdIndex(sqLiteDatabase);
+            }
         }
 
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public void onOpen(SQLiteDatabase sqLiteDatabase) {
+            super.onOpen(sqLiteDatabase);
+            if (UIUtils.hasHoneycomb() && !sqLiteDatabase.isReadOnly()) {
+                sqLiteDatabase.enableWriteAheadLogging();
+            }
+        }
+
+        private void createDownloadIdIndex(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE INDEX " + DOWNLOAD_DATABASE.SONG.DOWNLOAD_ID_INDEX +
+                    " ON " + DOWNLOAD_DATABASE.SONG.TABLE + "(" +
+                    DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + ")");
+        }
+
+        private void createSyncedTrackTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + DOWNLOAD_DATABASE.SYNCED_TRACK.TABLE + "(" +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH + " TEXT PRIMARY KEY, " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.SERVER_LENGTH + " INTEGER, " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.SERVER_MODIFIED + " TEXT, " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_LENGTH + " INTEGER, " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_MODIFIED + " INTEGER, " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.HASH + " TEXT)");
+        }
+
+    }
+
+    /**
+     * The compiled write statements, and the database they are compiled for. A statement can't
+     * be used by two threads at once, so they are only used while holding {@link
+     * OpenHelper#mInstanceLock}, which also keeps the transactions of the batch methods apart,
+     * and keeps them from being closed in use.
+     */
+    private static class Statements {
+        final SQLiteDatabase db;
+        final SQLiteStatement insertDownload;
+        final SQLiteStatement deleteDownload;
+        final SQLiteStatement deleteDownloadRange;
+        final SQLiteStatement replaceSyncedTrack;
+        final SQLiteStatement deleteSyncedTrack;
+
+        Statements(SQLiteDatabase db) {
+            this.db = db;
+            insertDownload = db.compileStatement("INSERT INTO " + DOWNLOAD_DATABASE.SONG.TABLE + "(" +
+                    DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + ", " +
+                    DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME + ", " +
+                    DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME + ") VALUES (?, ?, ?)");
+            deleteDownload = db.compileStatement("DELETE FROM " + DOWNLOAD_DATABASE.SONG.TABLE +
+                    " WHERE " + DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?");
+            deleteDownloadRange = db.compileStatement("DELETE FROM " + DOWNLOAD_DATABASE.SONG.TABLE +
+                    " WHERE " + DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + ">=? AND " +
+                    DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "<=?");
+            replaceSyncedTrack = db.compileStatement("INSERT OR REPLACE INTO " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.TABLE + "(" +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH + ", " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.SERVER_LENGTH + ", " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.SERVER_MODIFIED + ", " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_LENGTH + ", " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_MODIFIED + ", " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.HASH + ") VALUES (?, ?, ?, ?, ?, ?)");
+            deleteSyncedTrack = db.compileStatement("DELETE FROM " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.TABLE + " WHERE " +
+                    DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH + "=?");
+        }
+
+        void close() {
+            insertDownload.close();
+            deleteDownload.close();
+            deleteDownloadRange.close();
+            replaceSyncedTrack.close();
+            deleteSyncedTrack.close();
+        }
     }
 
     /**
@@ -114,11 +258,37 @@ public class DownloadDatabase {
      * @return False if we could not register the download
      */
     public boolean registerDownload(long downloadId, @NonNull String tempName, @NonNull String fileName) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID, downloadId);
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME, tempName);
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME, fileName);
-        return (db.insert(DOWNLOAD_DATABASE.SONG.TABLE, null, contentValues) != -1);
+        return registerDownloads(Collections.singletonList(new DownloadEntry(downloadId, tempName, fileName)));
+    }
+
+    /**
+     * Register several download entries at once, in one transaction.
+     *
+     * @param entries The downloads to register
+     * @return False if we could not register the downloads, in which case none are registered
+     */
+    public boolean registerDownloads(@NonNull List<DownloadEntry> entries) {
+        synchronized (OpenHelper.mInstanceLock) {
+            Statements statements = getStatements();
+            SQLiteDatabase db = statements.db;
+            SQLiteStatement insert = statements.insertDownload;
+            db.beginTransaction();
+            try {
+                for (DownloadEntry entry : entries) {
+                    insert.bindLong(1, entry.downloadId);
+                    insert.bindString(2, entry.tempName);
+                    insert.bindString(3, entry.fileName);
+                    if (insert.executeInsert() == -1) {
+                        return false;
+                    }
+                }
+                db.setTransactionSuccessful();
+                return true;
+            } finally {
+                insert.clearBindings();
+                db.endTransaction();
+            }
+        }
     }
 
     /**
@@ -130,61 +300,219 @@ public class DownloadDatabase {
      */
     @Nullable
     public DownloadEntry popDownloadEntry(long downloadId) {
-        DownloadEntry entry = null;
+        synchronized (OpenHelper.mInstanceLock) {
+            Statements statements = getStatements();
+            SQLiteDatabase db = statements.db;
+            db.beginTransaction();
+            try {
+                DownloadEntry entry = null;
+                Cursor cursor = queryDownloadEntries(downloadId, downloadId);
+                try {
+                    if (cursor.moveToNext()) {
+                        entry = readDownloadEntry(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (entry != null) {
+                    deleteDownload(statements, downloadId);
+                }
+                db.setTransactionSuccessful();
+                return entry;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    public void iterateDownloadEntries(DownloadHandler callback) {
+        iterateDownloadEntries(Long.MIN_VALUE, Long.MAX_VALUE, callback);
+    }
 
-        Cursor cursor = db.rawQuery("select * from " + DOWNLOAD_DATABASE.SONG.TABLE +
-                " where " + DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?",
-                new String[]{String.valueOf(downloadId)});
+    /**
+     * Calls the callback with each of the registered downloads with an id in the given range.
+     *
+     * @param fromId Lowest id, inclusive
+     * @param toId Highest id, inclusive
+     */
+    public void iterateDownloadEntries(long fromId, long toId, DownloadHandler callback) {
+        Cursor cursor = queryDownloadEntries(fromId, toId);
         try {
-            if (cursor.moveToNext()) {
-                entry = new DownloadEntry();
-                entry.downloadId = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID));
-                entry.tempName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME));
-                entry.fileName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME));
+            while (cursor.moveToNext()) {
+                callback.handle(readDownloadEntry(cursor));
             }
         } finally {
             cursor.close();
         }
-        if (entry != null) {
-            db.delete(DOWNLOAD_DATABASE.SONG.TABLE, DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?",
-                    new String[]{String.valueOf(downloadId)});
+    }
+
+    public void remove(long... downloadIds) {
+        synchronized (OpenHelper.mInstanceLock) {
+            Statements statements = getStatements();
+            SQLiteDatabase db = statements.db;
+            db.beginTransaction();
+            try {
+                for (long downloadId : downloadIds) {
+                    deleteDownload(statements, downloadId);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Unregister the downloads with an id in the given range.
+     *
+     * @param fromId Lowest id, inclusive
+     * @param toId Highest id, inclusive
+     */
+    public void removeRange(long fromId, long toId) {
+        synchronized (OpenHelper.mInstanceLock) {
+            SQLiteStatement delete = getStatements().deleteDownloadRange;
+            delete.bindLong(1, fromId);
+            delete.bindLong(2, toId);
+            delete.execute();
         }
+    }
+
+    private static void deleteDownload(Statements statements, long downloadId) {
+        SQLiteStatement delete = statements.deleteDownload;
+        delete.bindLong(1, downloadId);
+        delete.execute();
+    }
+
+    private Cursor queryDownloadEntries(long fromId, long toId) {
+        return getDatabase().rawQuery("select * from " + DOWNLOAD_DATABASE.SONG.TABLE +
+                " where " + DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + ">=? and " +
+                DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "<=?",
+                new String[]{String.valueOf(fromId), String.valueOf(toId)});
+    }
 
+    private static DownloadEntry readDownloadEntry(Cursor cursor) {
+        DownloadEntry entry = new DownloadEntry();
+        entry.downloadId = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID));
+        entry.tempName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME));
+        entry.fileName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME));
         return entry;
     }
 
-    public void iterateDownloadEntries(DownloadHandler callback) {
-        Cursor cursor = db.rawQuery("select * from " + DOWNLOAD_DATABASE.SONG.TABLE, null);
-        try {
-            while (cursor.moveToNext()) {
-                DownloadEntry entry = new DownloadEntry();
-                entry.downloadId = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID));
-                entry.tempName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME));
-                entry.fileName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME));
-                callback.handle(entry);
+    /**
+     * Record a downloaded track, so a later sync can tell whether it changed.
+     *
+     * @param track The track, replacing any earlier record of the same local path
+     */
+    public void putSyncedTrack(@NonNull SyncedTrack track) {
+        synchronized (OpenHelper.mInstanceLock) {
+            SQLiteStatement replace = getStatements().replaceSyncedTrack;
+            replace.bindString(1, track.localPath);
+            replace.bindLong(2, track.serverLength);
+            if (track.serverModified != null) {
+                replace.bindString(3, track.serverModified);
+            } else {
+                replace.bindNull(3);
             }
+            replace.bindLong(4, track.localLength);
+            replace.bindLong(5, track.localModified);
+            replace.bindString(6, track.hash);
+            replace.executeInsert();
+        }
+    }
+
+    /**
+     * @param localPath Path of the track, relative to the music folder on the device
+     * @return The record of the track, or null if it hasn't been downloaded
+     */
+    @Nullable
+    public SyncedTrack getSyncedTrack(@NonNull String localPath) {
+        Cursor cursor = getDatabase().rawQuery("select * from " + DOWNLOAD_DATABASE.SYNCED_TRACK.TABLE +
+                " where " + DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH + "=?",
+                new String[]{localPath});
+        try {
+            return cursor.moveToNext() ? readSyncedTrack(cursor) : null;
         } finally {
             cursor.close();
         }
     }
 
-    public void remove(long... downloadIds) {
-        db.beginTransaction();
+    /**
+     * @param folderPath Path of a folder, relative to the music folder on the device
+     * @return The records of the tracks in the folder and the folders in it
+     */
+    @NonNull
+    public List<SyncedTrack> getSyncedTracks(@NonNull String folderPath) {
+        // Paths that start with the folder and a slash sort between these.
+        Cursor cursor = getDatabase().rawQuery("select * from " + DOWNLOAD_DATABASE.SYNCED_TRACK.TABLE +
+                " where " + DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH + ">=? and " +
+                DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH + "<?",
+                new String[]{folderPath + "/", folderPath + (char) ('/' + 1)});
         try {
-            for (long downloadId : downloadIds) {
-                db.delete(DOWNLOAD_DATABASE.SONG.TABLE, DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?",
-                        new String[]{String.valueOf(downloadId)});
+            List<SyncedTrack> tracks = new ArrayList<SyncedTrack>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                tracks.add(readSyncedTrack(cursor));
             }
-            db.setTransactionSuccessful();
+            return tracks;
         } finally {
-            db.endTransaction();
+            cursor.close();
         }
     }
 
+    public void removeSyncedTracks(@NonNull Collection<String> localPaths) {
+        synchronized (OpenHelper.mInstanceLock) {
+            Statements statements = getStatements();
+            SQLiteDatabase db = statements.db;
+            SQLiteStatement delete = statements.deleteSyncedTrack;
+            db.beginTransaction();
+            try {
+                for (String localPath : localPaths) {
+                    delete.bindString(1, localPath);
+                    delete.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static SyncedTrack readSyncedTrack(Cursor cursor) {
+        SyncedTrack track = new SyncedTrack();
+        track.localPath = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_PATH));
+        track.serverLength = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.SERVER_LENGTH));
+        track.serverModified = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.SERVER_MODIFIED));
+        track.localLength = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_LENGTH));
+        track.localModified = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.LOCAL_MODIFIED));
+        track.hash = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.SYNCED_TRACK.COLUMNS.HASH));
+        return track;
+    }
+
     public static class DownloadEntry {
         public long downloadId;
         public String tempName;
         public String fileName;
+
+        public DownloadEntry() {
+        }
+
+        public DownloadEntry(long downloadId, @NonNull String tempName, @NonNull String fileName) {
+            this.downloadId = downloadId;
+            this.tempName = tempName;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * What is known of a downloaded track: the length and Last-Modified header the server sent,
+     * and the length, modification time and MD5 hash of the file on the device.
+     */
+    public static class SyncedTrack {
+        public String localPath;
+        public long serverLength;
+        @Nullable public String serverModified;
+        public long localLength;
+        public long localModified;
+        public String hash;
     }
 
     public interface DownloadHandler {
@@ -0,0 +1,596 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.annotation.TargetApi;
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.crashlytics.android.Crashlytics;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.service.event.DownloadProgressChanged;
+
+/**
+ * Downloads songs for offline use, a few at a time.
+ * <p>
+ * Each batch of requests is registered in the {@link DownloadDatabase} in one transaction, and
+ * the songs are downloaded by a pool of {@link #MAX_PARALLEL_DOWNLOADS} threads, so a large
+ * folder neither takes hours nor hammers the server. Files are downloaded with a {@link
+ * FileDownloader}, which resumes partial files, so a failed download is retried from where it
+ * stopped. A song is downloaded to a hidden part file next to it, and renamed when it is
+ * complete, so the media scanner never sees a partial song. Completed files are handed to the
+ * media scanner.
+ * <p>
+ * The total rate of the downloads can be limited with {@link
+ * #setBandwidthLimiter(BandwidthLimiter)}.
+ * <p>
+ * Each downloaded song is recorded as a {@link DownloadDatabase.SyncedTrack}. A request to sync
+ * a song downloads it only if the file on the device is not intact, or the file on the server
+ * has changed since. Songs deleted from a folder on the server can be deleted from the device
+ * with {@link #deleteRemoved(String, Set)}.
+ * <p>
+ * A {@link DownloadProgressChanged} event is posted at most once per {@link
+ * #REPORT_INTERVAL_MILLIS}, and when the downloads are all done.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+class DownloadEngine {
+    private static final String TAG = "DownloadEngine";
+
+    /** Number of songs downloaded at once. */
+    static final int MAX_PARALLEL_DOWNLOADS = 3;
+
+    /** Attempts at each song before it counts as failed. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Delay before the first retry, later retries wait longer. */
+    private static final long RETRY_DELAY_MILLIS = 2000;
+
+    static final long REPORT_INTERVAL_MILLIS = 1000;
+
+    /** A song to download. */
+    static class Request {
+        @NonNull
+        final Uri url;
+
+        final String title;
+
+        /** Path of the song, relative to the music folder on the device. */
+        @NonNull
+        final String localPath;
+
+        /** Download the song only if it changed since it was last downloaded. */
+        final boolean sync;
+
+        Request(@NonNull Uri url, String title, @NonNull String localPath) {
+            this(url, title, localPath, false);
+        }
+
+        Request(@NonNull Uri url, String title, @NonNull String localPath, boolean sync) {
+            this.url = url;
+            this.title = title;
+            this.localPath = localPath;
+            this.sync = sync;
+        }
+    }
+
+    private final Context mContext;
+
+    private final DownloadDatabase mDatabase;
+
+    private final EventBus mEventBus;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final DownloadProgress mProgress = new DownloadProgress();
+
+    private volatile BandwidthLimiter mBandwidthLimiter = BandwidthLimiter.UNLIMITED;
+
+    /** Shared by all downloads, so the limit applies to their total rate. */
+    private final BandwidthLimiter mSharedLimiter = new BandwidthLimiter() {
+        @Override
+        void acquire(int bytes) {
+            mBandwidthLimiter.acquire(bytes);
+        }
+    };
+
+    /**
+     * Ids of registered downloads. They are negative, so they can't be mistaken for the ids of
+     * downloads left with the platform download manager by earlier versions.
+     */
+    private final AtomicLong mLastId = new AtomicLong();
+
+    /**
+     * Counted down once the downloads registered before the process ended are removed. Ids
+     * start again from -1 in every process, so registering new downloads has to wait for it.
+     */
+    private final CountDownLatch mStartupCleanup = new CountDownLatch(1);
+
+    /** Incremented when the downloads are cancelled, jobs from earlier generations stop. */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicLong mLastReportTime = new AtomicLong();
+
+    /** Local paths of the songs queued or downloading, so a song isn't downloaded twice at once. */
+    private final Set<String> mPendingPaths = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @param context The context.
+     * @param eventBus The bus to post {@link DownloadProgressChanged} events to.
+     */
+    DownloadEngine(Context context, EventBus eventBus) {
+        mContext = context.getApplicationContext();
+        mDatabase = new DownloadDatabase(mContext);
+        mEventBus = eventBus;
+        mExecutor = new ThreadPoolExecutor(MAX_PARALLEL_DOWNLOADS, MAX_PARALLEL_DOWNLOADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "Download #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        // Downloads this engine registered before the process ended can't be resumed, as the
+        // database doesn't have their URLs. Their part files are kept, and are resumed if the
+        // songs are asked for again.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    removeRegisteredDownloads(Long.MIN_VALUE);
+                } finally {
+                    mStartupCleanup.countDown();
+                }
+                removeLegacyDownloads();
+            }
+        });
+    }
+
+    /**
+     * Limit the total rate of the downloads. Applies to the downloads in progress too.
+     *
+     * @param limiter The limiter, or {@link BandwidthLimiter#UNLIMITED}.
+     */
+    void setBandwidthLimiter(@NonNull BandwidthLimiter limiter) {
+        mBandwidthLimiter = limiter;
+    }
+
+    /**
+     * Download songs. Returns at once, the songs are registered and downloaded in the
+     * background.
+     *
+     * @param requests The songs to download.
+     * @param authorization The value of the Authorization header to send, or null.
+     */
+    void enqueue(@NonNull List<Request> requests, @Nullable String authorization) {
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        final int generation = mGeneration.get();
+        final FileDownloader downloader = new FileDownloader(authorization, mSharedLimiter);
+        final List<Job> jobs = new ArrayList<Job>(requests.size());
+        for (Request request : requests) {
+            if (mPendingPaths.add(request.localPath)) {
+                jobs.add(new Job(mLastId.decrementAndGet(), request, downloader, generation));
+            }
+        }
+        if (jobs.isEmpty()) {
+            return;
+        }
+        mProgress.addFiles(jobs.size());
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                awaitStartupCleanup();
+                if (generation != mGeneration.get()) {
+                    for (Job job : jobs) {
+                        mPendingPaths.remove(job.mRequest.localPath);
+                    }
+                    return;
+                }
+
+                List<DownloadDatabase.DownloadEntry> entries =
+                        new ArrayList<DownloadDatabase.DownloadEntry>(jobs.size());
+                for (Job job : jobs) {
+                    entries.add(new DownloadDatabase.DownloadEntry(job.mId,
+                            job.mPartFile.getName(), job.mRequest.localPath));
+                }
+                if (!mDatabase.registerDownloads(entries)) {
+                    Crashlytics.log(Log.WARN, TAG, "Could not register " + jobs.size()
+                            + " downloads");
+                    for (Job job : jobs) {
+                        mPendingPaths.remove(job.mRequest.localPath);
+                        mProgress.fileFailed(0);
+                    }
+                    report(true);
+                    return;
+                }
+
+                for (Job job : jobs) {
+                    mExecutor.execute(job);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the downloads that have not finished. Their part files are deleted.
+     */
+    void cancelAll() {
+        mGeneration.incrementAndGet();
+        final long lastId = mLastId.get();
+        List<Runnable> queued = new ArrayList<Runnable>();
+        mExecutor.getQueue().drainTo(queued);
+        mProgress.cancelRemaining();
+        report(true);
+
+        // Running jobs clean up after themselves when they see the cancellation.
+        for (Runnable runnable : queued) {
+            if (runnable instanceof Job) {
+                Job job = (Job) runnable;
+                FileDownloader.deletePartFile(job.mPartFile);
+                mPendingPaths.remove(job.mRequest.localPath);
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeRegisteredDownloads(lastId);
+            }
+        });
+    }
+
+    /**
+     * Delete the downloaded songs of a folder that are no longer on the server. Songs that were
+     * never downloaded by this engine are left alone.
+     *
+     * @param folderPath Path of the folder, relative to the music folder on the device.
+     * @param listedPaths Local paths of all the songs the server lists in the folder and the
+     *     folders in it.
+     */
+    void deleteRemoved(@NonNull final String folderPath, @NonNull final Set<String> listedPaths) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> removed = new ArrayList<String>();
+                for (DownloadDatabase.SyncedTrack track : mDatabase.getSyncedTracks(folderPath)) {
+                    if (listedPaths.contains(track.localPath)
+                            || mPendingPaths.contains(track.localPath)) {
+                        continue;
+                    }
+
+                    File file = new File(getMusicFolder(), track.localPath);
+                    if (file.delete() || !file.exists()) {
+                        removed.add(track.localPath);
+                        // Takes the file out of the media store.
+                        mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
+                                Uri.fromFile(file)));
+                    } else {
+                        Crashlytics.log(Log.WARN, TAG, "Could not delete " + file);
+                    }
+                }
+                mDatabase.removeSyncedTracks(removed);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Deleted " + removed.size() + " songs removed from " + folderPath);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop downloading, e.g. when the service is destroyed. Part files are kept, to be resumed
+     * later.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Wait until the downloads registered before the process ended are removed, so the removal
+     * doesn't take downloads registered since with it. It runs first on the executor, so it
+     * doesn't take long.
+     */
+    private void awaitStartupCleanup() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mStartupCleanup.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Remove downloads registered by the engine from the database.
+     *
+     * @param fromId Only remove downloads registered up to this id, so downloads registered
+     *     later, which have lower ids, are kept.
+     */
+    private void removeRegisteredDownloads(long fromId) {
+        mDatabase.removeRange(fromId, -1);
+    }
+
+    /**
+     * Cancel the downloads earlier versions left with the platform download manager. Nothing
+     * moves them to the music folder any more.
+     */
+    private void removeLegacyDownloads() {
+        final DownloadManager downloadManager =
+                (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+        final List<Long> ids = new ArrayList<Long>();
+        mDatabase.iterateDownloadEntries(1, Long.MAX_VALUE, new DownloadDatabase.DownloadHandler() {
+            @Override
+            public void handle(DownloadDatabase.DownloadEntry entry) {
+                ids.add(entry.downloadId);
+            }
+        });
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        for (long id : ids) {
+            downloadManager.remove(id);
+        }
+        mDatabase.removeRange(1, Long.MAX_VALUE);
+        Crashlytics.log(Log.INFO, TAG, "Cancelled " + ids.size() + " legacy downloads");
+    }
+
+    private static File getMusicFolder() {
+        return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
+    }
+
+    private static String hash(File file) throws IOException {
+        return Files.hash(file, Hashing.md5()).toString();
+    }
+
+    /**
+     * Post the progress, if it hasn't been posted for a while.
+     *
+     * @param force Post it now regardless.
+     */
+    private void report(boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        long lastReportTime = mLastReportTime.get();
+        if (force) {
+            mLastReportTime.set(now);
+        } else if (now - lastReportTime < REPORT_INTERVAL_MILLIS
+                || !mLastReportTime.compareAndSet(lastReportTime, now)) {
+            return;
+        }
+        mProgress.sample(now);
+        mEventBus.post(mProgress.toEvent());
+    }
+
+    /** Downloads one song. */
+    private class Job implements Runnable, FileDownloader.Listener {
+        private final long mId;
+
+        private final Request mRequest;
+
+        private final FileDownloader mDownloader;
+
+        private final int mGenerationWhenQueued;
+
+        private final File mFile;
+
+        private final File mPartFile;
+
+        private long mLength = -1;
+
+        @Nullable
+        private String mLastModified;
+
+        private long mDownloaded;
+
+        Job(long id, Request request, FileDownloader downloader, int generation) {
+            mId = id;
+            mRequest = request;
+            mDownloader = downloader;
+            mGenerationWhenQueued = generation;
+            mFile = new File(getMusicFolder(), request.localPath);
+            // In the same folder, so it can be renamed atomically, and hidden from the media
+            // scanner. Named after the song, so a later download of the same song can resume it.
+            mPartFile = new File(mFile.getParentFile(), "." + mFile.getName() + ".part");
+        }
+
+        private boolean isCancelled() {
+            return mGenerationWhenQueued != mGeneration.get();
+        }
+
+        @Override
+        public void run() {
+            try {
+                download();
+            } finally {
+                mPendingPaths.remove(mRequest.localPath);
+            }
+        }
+
+        private void download() {
+            if (isCancelled()) {
+                return;
+            }
+
+            File file = mFile;
+            DownloadDatabase.SyncedTrack known = (mRequest.sync ? getIntactCopy(file) : null);
+            boolean completed = false;
+            boolean unchanged = false;
+            IOException error = null;
+            try {
+                URL url = new URL(mRequest.url.toString());
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS && !completed && !unchanged;
+                        attempt++) {
+                    try {
+                        if (known == null) {
+                            mDownloader.download(url, mPartFile, file, this);
+                            completed = true;
+                        } else if (mDownloader.downloadIfModified(url, mPartFile, file,
+                                known.serverModified, known.serverLength, this)) {
+                            completed = true;
+                        } else {
+                            unchanged = true;
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                        if (isCancelled() || mExecutor.isShutdown()) {
+                            break;
+                        }
+                        if (attempt < MAX_ATTEMPTS) {
+                            Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // Shut down while waiting to retry.
+            }
+
+            mDatabase.remove(mId);
+            if (isCancelled()) {
+                // Already taken off the progress.
+                if (!completed) {
+                    FileDownloader.deletePartFile(mPartFile);
+                }
+                return;
+            }
+
+            if (unchanged) {
+                mProgress.fileUnchanged();
+            } else if (completed) {
+                recordSyncedTrack(file);
+                mProgress.fileCompleted(mLength < 0 ? file.length() : mLength, mDownloaded);
+                mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
+                        Uri.fromFile(file)));
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Downloaded " + file);
+                }
+            } else if (mExecutor.isShutdown()) {
+                // The part file is kept to resume from.
+                return;
+            } else {
+                mProgress.fileFailed(mDownloaded);
+                Crashlytics.log(Log.ERROR, TAG, "Could not download " + mRequest.url + " to "
+                        + file + ": " + error);
+            }
+            report(mProgress.isDone());
+        }
+
+        /**
+         * @return The record of the song if the file on the device is as it was downloaded,
+         *     otherwise null.
+         */
+        @Nullable
+        private DownloadDatabase.SyncedTrack getIntactCopy(File file) {
+            DownloadDatabase.SyncedTrack track = mDatabase.getSyncedTrack(mRequest.localPath);
+            if (track == null || !file.isFile() || file.length() != track.localLength) {
+                return null;
+            }
+
+            if (file.lastModified() != track.localModified) {
+                // Touched, e.g. restored from a backup, it is intact if the content is.
+                try {
+                    if (!hash(file).equals(track.hash)) {
+                        return null;
+                    }
+                } catch (IOException e) {
+                    return null;
+                }
+                track.localModified = file.lastModified();
+                mDatabase.putSyncedTrack(track);
+            }
+            return track;
+        }
+
+        private void recordSyncedTrack(File file) {
+            DownloadDatabase.SyncedTrack track = new DownloadDatabase.SyncedTrack();
+            track.localPath = mRequest.localPath;
+            track.serverLength = (mLength < 0 ? file.length() : mLength);
+            track.serverModified = mLastModified;
+            track.localLength = file.length();
+            track.localModified = file.lastModified();
+            try {
+                track.hash = hash(file);
+            } catch (IOException e) {
+                Crashlytics.log(Log.WARN, TAG, "Could not hash " + file + ": " + e);
+                return;
+            }
+            mDatabase.putSyncedTrack(track);
+        }
+
+        @Override
+        public void onStarted(long length, long resumedFrom, @Nullable String lastModified) {
+            mLength = length;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public void onBytes(long count) throws IOException {
+            if (isCancelled()) {
+                throw new InterruptedIOException("Cancelled");
+            }
+            mDownloaded += count;
+            mProgress.addBytes(count, SystemClock.elapsedRealtime());
+            report(false);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import uk.org.ngo.squeezer.service.event.DownloadProgressChanged;
+
+/**
+ * The progress of the downloads that have been asked for since the downloads were last all
+ * done: how many files and bytes are done, the throughput and an estimate of the time left.
+ * <p>
+ * The throughput is a moving average of samples taken at most once per {@link
+ * #SAMPLE_INTERVAL_MILLIS}. The time left assumes the files still to come are the mean size of
+ * those completed so far. The current time is passed in, so the estimates can be tested.
+ * <p>
+ * This class is thread safe.
+ */
+class DownloadProgress {
+
+    /** Minimum time between throughput samples. */
+    static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+    /** Weight of the latest sample in the throughput average. */
+    private static final float SMOOTHING = 0.3f;
+
+    private int mFiles;
+
+    private int mCompleted;
+
+    private int mFailed;
+
+    /** Bytes downloaded. */
+    private long mBytes;
+
+    /** Bytes downloaded for the files that have finished, successfully or not. */
+    private long mSettledBytes;
+
+    /** Total length of the completed files. */
+    private long mCompletedLength;
+
+    private long mSampleTime = -1;
+
+    private long mSampleBytes;
+
+    private float mBytesPerSecond;
+
+    /**
+     * Count more files to download. Starts afresh if the earlier downloads are all done.
+     */
+    synchronized void addFiles(int count) {
+        if (isDone()) {
+            mFiles = mCompleted = mFailed = 0;
+            mBytes = mSettledBytes = mCompletedLength = 0;
+            mSampleTime = -1;
+            mBytesPerSecond = 0;
+        }
+        mFiles += count;
+    }
+
+    /**
+     * Stop counting the files that have not finished, as they will not be downloaded after all.
+     */
+    synchronized void cancelRemaining() {
+        mFiles = mCompleted + mFailed;
+    }
+
+    /**
+     * @param count Bytes just downloaded.
+     * @param now The current time, in milliseconds.
+     */
+    synchronized void addBytes(long count, long now) {
+        mBytes += count;
+        sample(now);
+    }
+
+    /**
+     * @param length The length of the file.
+     * @param downloaded The bytes downloaded for the file, less than the length if it was
+     *     resumed.
+     */
+    synchronized void fileCompleted(long length, long downloaded) {
+        mCompleted++;
+        mCompletedLength += length;
+        mSettledBytes += downloaded;
+    }
+
+    /**
+     * Stop counting a file that was already up to date, so didn't need downloading.
+     */
+    synchronized void fileUnchanged() {
+        mFiles--;
+    }
+
+    /**
+     * @param downloaded The bytes downloaded for the file before it failed.
+     */
+    synchronized void fileFailed(long downloaded) {
+        mFailed++;
+        mSettledBytes += downloaded;
+    }
+
+    /**
+     * Update the throughput, if the last sample was long enough ago.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    synchronized void sample(long now) {
+        if (mSampleTime < 0) {
+            mSampleTime = now;
+            mSampleBytes = mBytes;
+            return;
+        }
+
+        long elapsed = now - mSampleTime;
+        if (elapsed < SAMPLE_INTERVAL_MILLIS) {
+            return;
+        }
+
+        float bytesPerSecond = (mBytes - mSampleBytes) * 1000f / elapsed;
+        mBytesPerSecond = (mBytesPerSecond == 0 ? bytesPerSecond
+                : SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * mBytesPerSecond);
+        mSampleTime = now;
+        mSampleBytes = mBytes;
+    }
+
+    /**
+     * @return True if every file has completed or failed.
+     */
+    synchronized boolean isDone() {
+        return mCompleted + mFailed >= mFiles;
+    }
+
+    synchronized int getFileCount() {
+        return mFiles;
+    }
+
+    synchronized int getCompletedCount() {
+        return mCompleted;
+    }
+
+    synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized float getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @return The progress so far, as an event.
+     */
+    synchronized DownloadProgressChanged toEvent() {
+        return new DownloadProgressChanged(mFiles, mCompleted, mFailed, mBytes,
+                (long) mBytesPerSecond, getSecondsLeft());
+    }
+
+    /**
+     * @return The estimated number of seconds until all the files are done, or -1 if there is
+     *     nothing to estimate it from yet.
+     */
+    synchronized long getSecondsLeft() {
+        if (mCompleted == 0 || mBytesPerSecond <= 0) {
+            return -1;
+        }
+
+        int filesLeft = mFiles - mCompleted - mFailed;
+        long bytesLeft = filesLeft * (mCompletedLength / mCompleted) - (mBytes - mSettledBytes);
+        return (long) Math.ceil(Math.max(0, bytesLeft) / mBytesPerSecond);
+    }
+}
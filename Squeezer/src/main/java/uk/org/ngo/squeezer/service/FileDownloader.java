@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Downloads a file over HTTP, resuming a partial download where it left off.
+ * <p>
+ * The response is streamed in to a part file with {@link FileChannel#transferFrom}, a chunk at a
+ * time. When it is complete the part file is renamed to the final name, so the final file is
+ * never seen half written. Keep the part file in the same folder as the final file, so the
+ * rename is atomic.
+ * <p>
+ * If a part file is there from an earlier attempt, only the rest of the file is asked for with a
+ * Range request. Servers that don't support ranges send the whole file, which replaces the part
+ * file.
+ * <p>
+ * The transfer rate can be limited with a {@link BandwidthLimiter}.
+ * <p>
+ * A file that was downloaded before can be downloaded only if it changed on the server, see
+ * {@link #downloadIfModified(URL, File, File, String, long, Listener)}.
+ * <p>
+ * This class is thread safe, one instance can run several downloads at once.
+ */
+class FileDownloader {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private static final int READ_TIMEOUT = 30000;
+
+    /** Bytes transferred between checks for interruption and calls to the listener. */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** Receives the progress of a download. */
+    interface Listener {
+        /**
+         * @param length The length of the whole file in bytes, or -1 if the server didn't say.
+         * @param resumedFrom The bytes that were already in the part file.
+         * @param lastModified The Last-Modified header of the file, or null if the server
+         *     didn't send one.
+         */
+        void onStarted(long length, long resumedFrom, @Nullable String lastModified);
+
+        /**
+         * @param count The number of bytes just written.
+         * @throws IOException To stop the download, e.g. when it is cancelled.
+         */
+        void onBytes(long count) throws IOException;
+    }
+
+    /** The value of the Authorization header, or null. */
+    @Nullable
+    private final String mAuthorization;
+
+    private final BandwidthLimiter mBandwidthLimiter;
+
+    /**
+     * @param authorization The value of the Authorization header to send, or null.
+     */
+    FileDownloader(@Nullable String authorization) {
+        this(authorization, BandwidthLimiter.UNLIMITED);
+    }
+
+    /**
+     * @param authorization The value of the Authorization header to send, or null.
+     * @param bandwidthLimiter Limits the rate of the downloads.
+     */
+    FileDownloader(@Nullable String authorization, BandwidthLimiter bandwidthLimiter) {
+        mAuthorization = authorization;
+        mBandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Download a file. Blocks until it is done.
+     *
+     * @param url The URL of the file.
+     * @param partFile Where to keep the bytes until the download is complete.
+     * @param file Where to put the file when it is complete. An existing file is replaced.
+     * @param listener Receives the progress.
+     * @throws IOException If the download failed. What was downloaded is kept in the part file,
+     *     for the next attempt to resume from.
+     */
+    void download(URL url, File partFile, File file, Listener listener) throws IOException {
+        downloadIfModified(url, partFile, file, null, -1, listener);
+    }
+
+    /**
+     * Download a file, unless it is the same as when it was downloaded before. Blocks until it
+     * is done.
+     * <p>
+     * The file is asked for with an If-Modified-Since header. It is unchanged if the server
+     * answers "Not Modified", or if it sends the same Last-Modified header and length as before,
+     * as not every server honours If-Modified-Since. Servers that send no Last-Modified header
+     * are judged by the length alone.
+     * <p>
+     * If there is a part file, a changed file was being downloaded, and it is resumed regardless.
+     * The resume is asked for with an If-Range header holding the ETag, or else the
+     * Last-Modified header, that the part file was downloaded with, so if the file has changed
+     * since, the server sends all of the new file instead. A part file without either is
+     * downloaded again from the start.
+     *
+     * @param lastModified The Last-Modified header of the earlier download, or null if there was
+     *     none.
+     * @param length The length of the earlier download, or -1 to download regardless.
+     * @return False if the file is unchanged, and was not downloaded.
+     * @throws IOException If the download failed. What was downloaded is kept in the part file,
+     *     for the next attempt to resume from.
+     * @see #download(URL, File, File, Listener)
+     */
+    boolean downloadIfModified(URL url, File partFile, File file, @Nullable String lastModified,
+            long length, Listener listener) throws IOException {
+        long resumeFrom = partFile.length();
+        File validatorFile = getValidatorFile(partFile);
+        String validator = null;
+        if (resumeFrom > 0) {
+            validator = readValidator(validatorFile);
+            if (validator == null) {
+                // Nothing to tell whether the file on the server still starts with these bytes.
+                resumeFrom = 0;
+            }
+        }
+        boolean validate = (length >= 0 && resumeFrom == 0);
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (mAuthorization != null) {
+            connection.setRequestProperty("Authorization", mAuthorization);
+        }
+        if (resumeFrom > 0) {
+            connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+            connection.setRequestProperty("If-Range", validator);
+        }
+        if (validate && lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+
+        try {
+            int responseCode = connection.getResponseCode();
+            String responseLastModified = connection.getHeaderField("Last-Modified");
+            if (validate && (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                    || (responseCode == HttpURLConnection.HTTP_OK
+                    && connection.getContentLength() == length
+                    && (lastModified == null
+                    ? responseLastModified == null : lastModified.equals(responseLastModified))))) {
+                // Disconnecting drops the body of an ignored If-Modified-Since.
+                return false;
+            }
+
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // The whole file, it replaces the part file.
+                resumeFrom = 0;
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL || resumeFrom == 0) {
+                if (responseCode == 416) { // Requested Range Not Satisfiable.
+                    // The part file doesn't fit the file on the server, start again next time.
+                    deletePartFile(partFile);
+                }
+                throw new IOException("HTTP " + responseCode + " for " + url);
+            } else {
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange == null || !contentRange.startsWith("bytes " + resumeFrom + "-")) {
+                    // Appending these bytes would corrupt the file, start again next time.
+                    deletePartFile(partFile);
+                    throw new IOException("Content-Range " + contentRange + " for " + url
+                            + " doesn't start at " + resumeFrom);
+                }
+            }
+
+            // Recorded before any bytes are written, so the part file is never resumed
+            // without it.
+            writeValidator(validatorFile, getValidator(connection));
+
+            long contentLength = connection.getContentLength();
+            listener.onStarted(contentLength < 0 ? -1 : resumeFrom + contentLength, resumeFrom,
+                    responseLastModified);
+
+            File folder = partFile.getParentFile();
+            if (folder != null && !folder.exists()) {
+                folder.mkdirs();
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                RandomAccessFile out = new RandomAccessFile(partFile, "rw");
+                try {
+                    out.setLength(resumeFrom);
+                    transfer(Channels.newChannel(in), out.getChannel(), resumeFrom,
+                            contentLength, listener);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        // Replaces an existing file in one step. Where rename doesn't replace, fall back to
+        // deleting the file first.
+        if (!partFile.renameTo(file) && !(file.delete() && partFile.renameTo(file))) {
+            throw new IOException("Could not rename " + partFile + " to " + file);
+        }
+        validatorFile.delete();
+        return true;
+    }
+
+    /**
+     * Delete a part file, along with what identifies the version of the file it holds the start
+     * of.
+     */
+    static void deletePartFile(File partFile) {
+        partFile.delete();
+        getValidatorFile(partFile).delete();
+    }
+
+    /** @return Where to keep the If-Range validator for the given part file. */
+    static File getValidatorFile(File partFile) {
+        return new File(partFile.getPath() + ".validator");
+    }
+
+    /**
+     * @return The strong ETag of the response, or else its Last-Modified header, or null if it
+     *     has neither. Weak ETags can't be used in an If-Range header.
+     */
+    @Nullable
+    private static String getValidator(HttpURLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    @Nullable
+    private static String readValidator(File validatorFile) {
+        try {
+            String validator = Files.toString(validatorFile, Charsets.UTF_8).trim();
+            return validator.length() == 0 ? null : validator;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeValidator(File validatorFile, @Nullable String validator)
+            throws IOException {
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+        File folder = validatorFile.getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        Files.write(validator, validatorFile, Charsets.UTF_8);
+    }
+
+    /**
+     * Write the response to the part file.
+     *
+     * @param position Where to start writing in the part file.
+     * @param expected The number of bytes the server said it would send, or -1.
+     */
+    private void transfer(ReadableByteChannel source, FileChannel destination, long position,
+            long expected, Listener listener) throws IOException {
+        long transferred = 0;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+            // Blocks until a whole chunk has arrived, or the response has ended.
+            long count = destination.transferFrom(source, position + transferred, CHUNK_SIZE);
+            if (count <= 0) {
+                break;
+            }
+            transferred += count;
+            listener.onBytes(count);
+            mBandwidthLimiter.acquire((int) count);
+        }
+
+        if (expected >= 0 && transferred < expected) {
+            throw new IOException("Connection closed after " + transferred + " of " + expected
+                    + " bytes");
+        }
+    }
+}
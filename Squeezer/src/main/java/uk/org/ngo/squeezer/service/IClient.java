@@ -16,17 +16,97 @@
 
 package uk.org.ngo.squeezer.service;
 
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.model.Player;
 
 /**
  * Interface implemented by all network clients of the server.
+ * <p>
+ * Commands and parameters are always given in the CLI syntax, with URL encoded values. Clients
+ * that use a different protocol are responsible for translating them.
  */
 interface IClient {
 
+    /**
+     * Post the initial (disconnected) connection state.
+     */
+    void initialize();
+
+    /**
+     * Start an asynchronous connection to the server.
+     *
+     * @param service The service to disconnect before connecting.
+     * @param hostPort The server address, as <code>host:port</code>.
+     * @param userName Username, may be null.
+     * @param password Password, may be null.
+     */
+    void startConnect(SqueezeService service, String hostPort, String userName, String password);
+
+    /**
+     * Disconnect from the server.
+     *
+     * @param loginFailed True if the disconnect is because the server rejected the credentials.
+     */
+    void disconnect(boolean loginFailed);
+
+    /**
+     * Send the supplied commands to the SqueezeboxServer.
+     *
+     * @param commands List of commands to send
+     */
+    void sendCommand(String... commands);
+
+    /**
+     * Send the supplied commands to the SqueezeboxServer from the calling thread.
+     * <p>
+     * <b>Note</b> don't call this from the main (UI) thread. If you are unsure if you are on the
+     * main thread, then use {@link #sendCommand(String...)} instead.
+     *
+     * @param commands List of commands to send
+     */
+    void sendCommandImmediately(String... commands);
+
     /**
      * Send the specified command for the specified player to the SqueezeboxServer
      *
      * @param command The command to send
      */
     void sendPlayerCommand(final Player player, final String command);
+
+    /**
+     * Cancel all pending requests that have callbacks hosted by the given client.
+     */
+    void cancelClientRequests(Object client);
+
+    /**
+     * Send an asynchronous request to the SqueezeboxServer for the specified items.
+     *
+     * @param cmd Identifies the type of items
+     * @param start First item to return, or -1 for all items
+     * @param parameters Item specific parameters for the request
+     * @param callback Receives the items as they arrive
+     */
+    void requestItems(String cmd, int start, List<String> parameters, IServiceItemListCallback callback);
+
+    void requestItems(String cmd, int start, IServiceItemListCallback callback);
+
+    void requestItems(String cmd, int start, int pageSize, IServiceItemListCallback callback);
+
+    void requestPlayerItems(@Nullable Player player, String cmd, int start, List<String> parameters, IServiceItemListCallback callback);
+
+    boolean isConnected();
+
+    boolean isConnectInProgress();
+
+    int getHttpPort();
+
+    String getCurrentHost();
+
+    String[] getMediaDirs();
+
+    String getPreferredAlbumSort();
 }
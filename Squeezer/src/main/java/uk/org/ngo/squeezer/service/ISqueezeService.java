@@ -223,5 +223,14 @@ public interface ISqueezeService {
      */
     void downloadItem(FilterItem item) throws SqueezeService.HandshakeNotCompleteException;
 
+    /**
+     * Bring the downloaded copy of a music folder up to date: download the songs that are new or
+     * changed since they were last downloaded, and, if the preferences say so, delete the songs
+     * that are no longer on the server.
+     *
+     * @param item The music folder to sync
+     */
+    void syncMusicFolder(MusicFolderItem item) throws SqueezeService.HandshakeNotCompleteException;
+
 
 }
@@ -16,8 +16,885 @@
 
 package uk.org.ngo.squeezer.service;
 
-public class JsonClient  {
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.crashlytics.android.Crashlytics;
+import com.google.common.base.Splitter;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.Util;
+import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.model.Alarm;
+import uk.org.ngo.squeezer.model.AlarmPlaylist;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.Playlist;
+import uk.org.ngo.squeezer.model.Year;
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.service.event.LibraryChanged;
+import uk.org.ngo.squeezer.service.event.PlayerPrefReceived;
+import uk.org.ngo.squeezer.service.event.PlaylistTracksAdded;
+import uk.org.ngo.squeezer.service.event.PlaylistTracksDeleted;
+
+/**
+ * Client for the server's JSON-RPC interface, with status updates delivered through Cometd.
+ * <p>
+ * Results arrive as typed JSON, so list items are built straight from the parsed values instead
+ * of URL decoding every token of a CLI line. Commands are given in CLI syntax, as they are for
+ * {@link CliClient}, and are translated by splitting them on spaces and decoding each word.
+ * <p>
+ * Requests are sent and their results processed on a single thread, in the order they were
+ * made. Cometd messages are received by a polling thread and handed to the same thread.
+ */
+class JsonClient extends BaseClient {
+
     private static final String TAG = JsonClient.class.getSimpleName();
 
+    /** The CLI port, which is what the server address preference normally contains. */
+    private static final int CLI_PORT = 9090;
+
+    /** The default port of the server's web interface. */
+    private static final int HTTP_PORT = 9000;
+
+    /** {@link Splitter} that splits CLI commands in to words. */
+    private static final Splitter mSpaceSplitter = Splitter.on(' ').omitEmptyStrings();
+
+    final ConnectionState connectionState = new ConnectionState();
+
+    /** Executor for requests and the processing of their results. */
+    @NonNull
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+
+    /**
+     * Incremented once per connection, so a polling thread that outlives its connection knows
+     * that it should quietly stop.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicReference<JsonRpcConnection> mConnection
+            = new AtomicReference<JsonRpcConnection>();
+
+    /** Cometd client ID of the current connection, null if Cometd is unavailable. */
+    private final AtomicReference<String> mClientId = new AtomicReference<String>();
+
+    private final AtomicInteger mCorrelationId = new AtomicInteger();
+
+    /** Status subscription types, by the ID of the subscribed player. */
+    private final Map<String, String> mStatusSubscriptions = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Describes a list in the result of a command, and the handler for its items.
+     */
+    private static class LoopInfo {
+        /** Name of the list in the result, e.g. <code>albums_loop</code>. */
+        final String loop;
+
+        /** Name of the result value that holds the total number of items in the list. */
+        final String countId;
+
+        final ListHandler<? extends Item> handler;
+
+        LoopInfo(String loop, String countId, ListHandler<? extends Item> handler) {
+            this.loop = loop;
+            this.countId = countId;
+            this.handler = handler;
+        }
+
+        LoopInfo(String loop, ListHandler<? extends Item> handler) {
+            this(loop, "count", handler);
+        }
+    }
+
+    /**
+     * A command that returns a list of items, the JSON counterpart of
+     * {@link CliClient.ExtendedQueryFormatCmd}.
+     */
+    private static class ListCmd {
+        final String cmd;
+
+        final LoopInfo[] loops;
+
+        ListCmd(String cmd, LoopInfo... loops) {
+            this.cmd = cmd;
+            this.loops = loops;
+        }
+
+        @Nullable
+        LoopInfo getLoop(String loop) {
+            for (LoopInfo loopInfo : loops) {
+                if (loopInfo.loop.equals(loop)) {
+                    return loopInfo;
+                }
+            }
+            return null;
+        }
+
+        @Nullable
+        LoopInfo getCount(String countId) {
+            for (LoopInfo loopInfo : loops) {
+                if (loopInfo.countId.equals(countId)) {
+                    return loopInfo;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Map<String, ListCmd> listCmds = initializeListCmds();
+
+    private Map<String, ListCmd> initializeListCmds() {
+        List<ListCmd> list = new ArrayList<ListCmd>();
+
+        list.add(new ListCmd("players", new LoopInfo("players_loop", new BaseListHandler<Player>(Player.class, Player.FACTORY))));
+        list.add(new ListCmd("alarms", new LoopInfo("alarms_loop", new BaseListHandler<Alarm>(Alarm.class, Alarm.FACTORY))));
+        list.add(new ListCmd("artists", new LoopInfo("artists_loop", new ArtistListHandler())));
+        list.add(new ListCmd("albums", new LoopInfo("albums_loop", new AlbumListHandler())));
+        list.add(new ListCmd("years", new LoopInfo("years_loop", new BaseListHandler<Year>(Year.class, Year.FACTORY))));
+        list.add(new ListCmd("genres", new LoopInfo("genres_loop", new GenreListHandler())));
+        list.add(new ListCmd("musicfolder", new LoopInfo("folder_loop", new MusicFolderListHandler())));
+        list.add(new ListCmd("songs", new LoopInfo("titles_loop", new SongListHandler())));
+        list.add(new ListCmd("playlists", new LoopInfo("playlists_loop", new BaseListHandler<Playlist>(Playlist.class, Playlist.FACTORY))));
+        list.add(new ListCmd("playlists tracks", new LoopInfo("playlisttracks_loop", new SongListHandler())));
+        list.add(new ListCmd("alarm playlists", new LoopInfo("item_loop", new BaseListHandler<AlarmPlaylist>(AlarmPlaylist.class, AlarmPlaylist.FACTORY))));
+        list.add(
+                new ListCmd("search",
+                        new LoopInfo("genres_loop", "genres_count", new GenreListHandler()),
+                        new LoopInfo("albums_loop", "albums_count", new AlbumListHandler()),
+                        new LoopInfo("contributors_loop", "contributors_count", new ArtistListHandler()),
+                        new LoopInfo("tracks_loop", "tracks_count", new SongListHandler())
+                )
+        );
+        list.add(new ListCmd("status", new LoopInfo("playlist_loop", "playlist_tracks", new SongListHandler())));
+        list.add(new ListCmd("radios", new LoopInfo("radioss_loop", new PluginListHandler())));
+        list.add(new ListCmd("apps", new LoopInfo("appss_loop", new PluginListHandler())));
+        // "<plugin> items", e.g. "favorites items".
+        list.add(new ListCmd("items", new LoopInfo("loop_loop", new PluginItemListHandler())));
+
+        Map<String, ListCmd> map = new HashMap<String, ListCmd>();
+        for (ListCmd cmd : list) {
+            map.put(cmd.cmd, cmd);
+        }
+        return map;
+    }
+
+    /**
+     * A request for a list of items, which may take several pages to complete.
+     */
+    private class ListRequest implements JsonRpcConnection.ResultHandler {
+        final int correlationId;
+
+        @Nullable final String playerId;
+
+        /** The words of the command, e.g. "favorites", "items". */
+        final List<String> cmd;
+
+        final ListCmd listCmd;
+
+        final List<String> parameters;
+
+        final boolean fullList;
+
+        /** Values in the result of the current page that are not part of a list. */
+        Map<String, String> resultParameters;
+
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        ListRequest(int correlationId, @Nullable String playerId, String cmd, ListCmd listCmd,
+                    @Nullable List<String> parameters, boolean fullList) {
+            this.correlationId = correlationId;
+            this.playerId = playerId;
+            this.cmd = mSpaceSplitter.splitToList(cmd);
+            this.listCmd = listCmd;
+            this.parameters = (parameters == null ? new ArrayList<String>() : parameters);
+            this.fullList = fullList;
+        }
+
+        @Override
+        public void onField(String key, String value) {
+            if (listCmd.getCount(key) != null) {
+                counts.put(key, Util.parseDecimalIntOrZero(value));
+            } else {
+                resultParameters.put(key, value);
+            }
+        }
+
+        @Override
+        public void onLoopItem(String loop, Map<String, String> record) {
+            LoopInfo loopInfo = listCmd.getLoop(loop);
+            if (loopInfo != null) {
+                loopInfo.handler.add(record);
+                if (BuildConfig.DEBUG) {
+                    Log.v(TAG, "record=" + record);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "{ cmd:'" + cmd + "', player:" + playerId + ", parameters:" + parameters + " }";
+        }
+    }
+
+    /**
+     * Result of a command with its lists flattened: the values of the first item of each list
+     * are merged in to the result, so the status of a player includes its current song, as it
+     * does on the CLI.
+     */
+    private static class FlatResult extends HashMap<String, String>
+            implements JsonRpcConnection.ResultHandler {
+        private final Set<String> mLoops = new HashSet<String>();
+
+        @Override
+        public void onField(String key, String value) {
+            put(key, value);
+        }
+
+        @Override
+        public void onLoopItem(String loop, Map<String, String> record) {
+            if (mLoops.add(loop)) {
+                putAll(record);
+            }
+        }
+    }
+
+    JsonClient(@NonNull EventBus eventBus) {
+        super(eventBus);
+    }
+
+    @Override
+    public void initialize() {
+        connectionState.setConnectionState(mEventBus, ConnectionState.DISCONNECTED);
+    }
+
+    @Override
+    public void startConnect(final SqueezeService service, String hostPort, final String userName,
+                             final String password) {
+        Log.v(TAG, "startConnect");
+        hostPort = ConnectionState.cleanHostPort(hostPort);
+        final String host = Util.parseHost(hostPort);
+        final int port = Util.parsePort(hostPort);
+        // The server address is normally given with the CLI port.
+        final int httpPort = (port == CLI_PORT ? HTTP_PORT : port);
+        connectionState.setCurrentHost(host);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Ensuring service is disconnected");
+                service.disconnect();
+
+                JsonRpcConnection connection = new JsonRpcConnection(host, httpPort, userName, password);
+                Log.d(TAG, "Connecting to: " + connection);
+                connectionState.setConnectionState(mEventBus, ConnectionState.CONNECTION_STARTED);
+
+                // There is no separate login; each request carries the credentials, so the
+                // first request shows whether the server is there and accepts them.
+                FlatResult version = new FlatResult();
+                try {
+                    connection.request(null, Arrays.asList("version", "?"), version);
+                } catch (JsonRpcConnection.HttpStatusException e) {
+                    Log.e(TAG, "HTTP status " + e.status + " connecting to: " + connection);
+                    connectionState.setConnectionState(mEventBus,
+                            e.status == HttpURLConnection.HTTP_UNAUTHORIZED ?
+                                    ConnectionState.LOGIN_FAILED : ConnectionState.CONNECTION_FAILED);
+                    return;
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException connecting to: " + connection);
+                    connectionState.setConnectionState(mEventBus, ConnectionState.CONNECTION_FAILED);
+                    return;
+                }
+
+                connectionState.setConnectionState(mEventBus, ConnectionState.CONNECTION_COMPLETED);
+                connectionState.setConnectionState(mEventBus, ConnectionState.LOGIN_COMPLETED);
+                connectionState.setHttpPort(httpPort);
+                mUrlPrefix = "http://" + host + ":" + httpPort;
+                mConnection.set(connection);
+
+                onConnected(connection, version.get("_version"));
+            }
+        });
+    }
+
+    /**
+     * Handshake with the server: learn some of its supported features, and subscribe to
+     * asynchronous updates of server state.
+     */
+    private void onConnected(JsonRpcConnection connection, String version) {
+        fetchPlayers();
+
+        connectionState.setCanMusicfolder(queryFlag(connection, "can", "musicfolder", "?"));
+        connectionState.setCanRandomplay(queryFlag(connection, "can", "randomplay", "?"));
+        connectionState.setCanFavorites(queryFlag(connection, "can", "favorites", "items", "?"));
+        connectionState.setCanMyApps(queryFlag(connection, "can", "myapps", "items", "?"));
+        String albumSort = query(connection, "pref", "jivealbumsort", "?").get("_p2");
+        if (albumSort != null) {
+            connectionState.setPreferedAlbumSort(albumSort);
+        }
+        String mediaDirs = query(connection, "pref", "mediadirs", "?").get("_p2");
+        if (mediaDirs != null) {
+            connectionState.setMediaDirs(mediaDirs);
+        }
+
+        startCometd(connection);
+
+        Log.i(TAG, "Version received: " + version);
+        Crashlytics.setString("server_version", version);
+        mEventBus.postSticky(new HandshakeComplete(
+                connectionState.canFavorites(), connectionState.canMusicfolder(),
+                connectionState.canMyApps(), connectionState.canRandomplay()));
+    }
+
+    /**
+     * Start a Cometd session for the connection, subscribe to server status updates, and start
+     * polling for them.
+     * <p>
+     * Without Cometd the client still works, but player status is only fetched after each
+     * command.
+     */
+    private void startCometd(JsonRpcConnection connection) {
+        String clientId;
+        try {
+            clientId = connection.handshake();
+            for (JsonRpcConnection.Message message : connection.subscribe(clientId, null,
+                    Arrays.asList("serverstatus", "0", "255", "subscribe:60"),
+                    "/" + clientId + "/slim/serverstatus")) {
+                onMessage(clientId, message);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cometd unavailable, status updates will not be received: " + e);
+            return;
+        }
+
+        mClientId.set(clientId);
+        new PollingThread(connection, clientId, mGeneration.get()).start();
+    }
+
+    private Map<String, String> query(JsonRpcConnection connection, String... command) {
+        FlatResult result = new FlatResult();
+        try {
+            connection.request(null, Arrays.asList(command), result);
+        } catch (IOException e) {
+            Log.w(TAG, "Query failed: " + Arrays.toString(command) + ": " + e);
+        }
+        return result;
+    }
+
+    private boolean queryFlag(JsonRpcConnection connection, String... command) {
+        return Util.parseDecimalIntOrZero(query(connection, command).get("_can")) == 1;
+    }
+
+    /**
+     * Receives Cometd messages until the connection is replaced or lost.
+     */
+    private class PollingThread extends Thread {
+        private final JsonRpcConnection connection;
+
+        private final String clientId;
+
+        private final int generationNumber;
+
+        private PollingThread(JsonRpcConnection connection, String clientId, int generationNumber) {
+            super("JsonClient.PollingThread");
+            this.connection = connection;
+            this.clientId = clientId;
+            this.generationNumber = generationNumber;
+        }
+
+        @Override
+        public void run() {
+            Log.d(TAG, "Polling thread started");
+
+            while (mGeneration.get() == generationNumber) {
+                final List<JsonRpcConnection.Message> messages;
+                try {
+                    messages = connection.poll(clientId);
+                } catch (IOException e) {
+                    // Expected if we're not the current connection anymore, else we should
+                    // notify about it.
+                    if (mGeneration.get() == generationNumber) {
+                        Log.v(TAG, "Server disconnected; exception=" + e);
+                        disconnect(false);
+                    } else {
+                        Log.v(TAG, "Old generation connection disconnected, as expected.");
+                    }
+                    return;
+                }
+
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mGeneration.get() != generationNumber) {
+                            return;
+                        }
+                        for (JsonRpcConnection.Message message : messages) {
+                            onMessage(clientId, message);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static String statusChannel(String clientId, String playerId) {
+        return "/" + clientId + "/slim/playerstatus/" + playerId;
+    }
+
+    /**
+     * Handle a message received through Cometd.
+     */
+    private void onMessage(String clientId, JsonRpcConnection.Message message) {
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "RECV: " + message);
+        }
+        String prefix = "/" + clientId + "/slim/";
+        if (message.channel == null || !message.channel.startsWith(prefix)) {
+            return;
+        }
+
+        String channel = message.channel.substring(prefix.length());
+        if ("serverstatus".equals(channel)) {
+            onServerStatus(message);
+        } else if (channel.startsWith("playerstatus/")) {
+            String playerId = channel.substring("playerstatus/".length());
+            Player player = mPlayers.get(playerId);
+            if (player == null) {
+                return;
+            }
+
+            Map<String, String> status = new HashMap<String, String>(message.fields);
+            List<Map<String, String>> playlist = message.loops.get("playlist_loop");
+            if (playlist != null && !playlist.isEmpty()) {
+                status.putAll(playlist.get(0));
+            }
+            String subscription = mStatusSubscriptions.get(playerId);
+            if (subscription != null) {
+                status.put("subscribe", subscription);
+            }
+            parseStatus(player, status);
+        }
+    }
+
+    /**
+     * The server status is sent when something changes on the server. Something may have
+     * happened to the player list, in which case the full list is fetched again, or to the music
+     * library, which the library index is told about.
+     */
+    private void onServerStatus(JsonRpcConnection.Message message) {
+        if ("1".equals(message.fields.get("rescan"))) {
+            mEventBus.post(new LibraryChanged(null));
+        } else if (message.fields.get("lastscan") != null) {
+            mEventBus.post(new LibraryChanged(message.fields.get("lastscan")));
+        }
+
+        Set<String> playerIds = new HashSet<String>();
+        List<Map<String, String>> players = message.loops.get("players_loop");
+        if (players != null) {
+            for (Map<String, String> player : players) {
+                playerIds.add(player.get("playerid"));
+            }
+        }
+        if (!playerIds.equals(mPlayers.keySet())) {
+            fetchPlayers();
+        }
+    }
+
+    @Override
+    public void disconnect(boolean loginFailed) {
+        mGeneration.incrementAndGet();
+        final JsonRpcConnection connection = mConnection.getAndSet(null);
+        final String clientId = mClientId.getAndSet(null);
+        if (connection != null && clientId != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.disconnect(clientId);
+                    } catch (IOException e) {
+                        Log.v(TAG, "Cometd disconnect failed: " + e);
+                    }
+                }
+            });
+        }
+        mStatusSubscriptions.clear();
+        connectionState.disconnect(mEventBus, loginFailed);
+        mPlayers.clear();
+    }
+
+    /**
+     * Split a CLI command in to words and decode them.
+     */
+    private static List<String> decode(String command) {
+        List<String> words = new ArrayList<String>();
+        for (String word : mSpaceSplitter.split(command)) {
+            words.add(Util.decode(word));
+        }
+        return words;
+    }
+
+    @Override
+    public void sendCommand(String... commands) {
+        for (String command : commands) {
+            execute(null, command);
+        }
+    }
+
+    @Override
+    public void sendCommandImmediately(String... commands) {
+        for (String command : commands) {
+            List<String> words = decode(command);
+            if (!words.isEmpty()) {
+                executeImmediately(null, words);
+            }
+        }
+    }
+
+    @Override
+    public void sendPlayerCommand(Player player, String command) {
+        execute(player.getId(), command);
+    }
+
+    private void execute(@Nullable final String playerId, String command) {
+        final List<String> words = decode(command);
+        if (words.isEmpty()) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executeImmediately(playerId, words);
+            }
+        });
+    }
+
+    /**
+     * Execute a command, and handle its result.
+     * <p>
+     * <b>Note</b> only call this on the executor thread.
+     *
+     * @param playerId The player the command is for, or null for server commands.
+     * @param words The decoded words of the command.
+     */
+    private void executeImmediately(@Nullable String playerId, List<String> words) {
+        JsonRpcConnection connection = mConnection.get();
+        if (connection == null) {
+            return;
+        }
+
+        // The CLI echoes the tagged parameters of a command, and the handlers expect them.
+        FlatResult result = new FlatResult();
+        List<String> command = new ArrayList<String>(words.size());
+        String subscription = null;
+        for (String word : words) {
+            int colon = word.indexOf(':');
+            if (colon > 0) {
+                String key = word.substring(0, colon);
+                result.put(key, word.substring(colon + 1));
+                if ("subscribe".equals(key)) {
+                    subscription = word.substring(colon + 1);
+                    continue;
+                }
+            }
+            command.add(word);
+        }
+
+        if (playerId != null && subscription != null && "status".equals(words.get(0))) {
+            if (updateStatusSubscription(connection, playerId, words, subscription)) {
+                return;
+            }
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "SEND: " + playerId + " " + command);
+        }
+        Crashlytics.setString("lastCommands", String.valueOf(command));
+        try {
+            connection.request(playerId, command, result);
+        } catch (IOException e) {
+            onRequestFailed(command, e);
+            return;
+        }
+
+        onCommandResult(playerId, command, result);
+    }
+
+    /**
+     * Subscribe to, or unsubscribe from, status updates of a player.
+     *
+     * @return True if the subscription delivers the status, false if it must be fetched.
+     */
+    private boolean updateStatusSubscription(JsonRpcConnection connection, String playerId,
+                                             List<String> words, String subscription) {
+        String clientId = mClientId.get();
+        if (clientId == null) {
+            return false;
+        }
+
+        String channel = statusChannel(clientId, playerId);
+        try {
+            if (PlayerState.NOTIFY_NONE.equals(subscription)) {
+                if (mStatusSubscriptions.remove(playerId) != null) {
+                    connection.unsubscribe(clientId, channel);
+                }
+                return false;
+            }
+
+            mStatusSubscriptions.put(playerId, subscription);
+            for (JsonRpcConnection.Message message : connection.subscribe(clientId, playerId, words, channel)) {
+                onMessage(clientId, message);
+            }
+        } catch (IOException e) {
+            onRequestFailed(words, e);
+        }
+        return true;
+    }
+
+    private void onRequestFailed(List<String> command, IOException e) {
+        Log.w(TAG, "Request failed: " + command + ": " + e);
+        if (e instanceof JsonRpcConnection.HttpStatusException
+                && ((JsonRpcConnection.HttpStatusException) e).status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            disconnect(true);
+        }
+    }
+
+    /**
+     * Handle the result of a command, and post events for the changes the CLI would have
+     * notified us about.
+     */
+    private void onCommandResult(@Nullable String playerId, List<String> command, Map<String, String> result) {
+        String cmd = command.get(0);
+        String subCmd = (command.size() > 1 ? command.get(1) : "");
+
+        if (playerId == null) {
+            if ("playlists".equals(cmd)) {
+                if ("new".equals(subCmd)) {
+                    onPlaylistsNew(result);
+                } else if ("rename".equals(subCmd)) {
+                    onPlaylistsRename(result);
+                }
+            } else if ("getstring".equals(cmd)) {
+                onStringsReceived(result);
+            }
+            return;
+        }
+
+        Player player = mPlayers.get(playerId);
+        if (player == null) {
+            return;
+        }
+
+        if ("status".equals(cmd)) {
+            parseStatus(player, result);
+            return;
+        }
+
+        if ("playerpref".equals(cmd)) {
+            if (command.size() >= 3 && Player.Pref.VALID_PLAYER_PREFS.contains(subCmd)) {
+                String value = ("?".equals(command.get(2)) ? result.get("_p2") : command.get(2));
+                if (value != null) {
+                    mEventBus.post(new PlayerPrefReceived(player, subCmd, value));
+                }
+            }
+            return;
+        }
+
+        if ("playlistcontrol".equals(cmd)) {
+            String playlistCmd = result.get("cmd");
+            if ("delete".equals(playlistCmd)) {
+                mEventBus.postSticky(new PlaylistTracksDeleted());
+            } else if ("add".equals(playlistCmd) || "insert".equals(playlistCmd)) {
+                mEventBus.postSticky(new PlaylistTracksAdded());
+            }
+        } else if ("playlist".equals(cmd)) {
+            if ("delete".equals(subCmd) || "clear".equals(subCmd)) {
+                mEventBus.postSticky(new PlaylistTracksDeleted());
+            } else if ("add".equals(subCmd) || "insert".equals(subCmd)) {
+                mEventBus.postSticky(new PlaylistTracksAdded());
+            }
+        }
+
+        // The server doesn't tell us about the effect of a command unless the player's status
+        // is subscribed to, so fetch it.
+        if (!mStatusSubscriptions.containsKey(playerId)) {
+            executeImmediately(playerId, decode("status - 1 tags:" + SqueezeService.SONGTAGS));
+        }
+    }
+
+    /**
+     * Send an asynchronous request to the server for the specified items.
+     * <p>
+     * Paging works as for {@link CliClient}: if start is zero one item is ordered first, to
+     * quickly learn the number of items, and if start is < 0 the entire list is ordered, page
+     * by page.
+     *
+     * @param playerId Id of the current player or null
+     * @param cmd Identifies the type of items
+     * @param start First item to return, or -1 for all items
+     * @param parameters Item specific parameters for the request
+     */
+    private void internalRequestItems(@Nullable String playerId, String cmd, int start,
+                                      @Nullable List<String> parameters, IServiceItemListCallback callback) {
+        boolean fullList = (start < 0);
+        internalRequestItems(playerId, cmd, (fullList ? 0 : start), (start == 0 ? 1 : pageSize),
+                parameters, fullList, callback);
+    }
+
+    private void internalRequestItems(@Nullable String playerId, String cmd, final int start,
+                                      final int pageSize, @Nullable List<String> parameters,
+                                      boolean fullList, IServiceItemListCallback callback) {
+        ListCmd listCmd = listCmds.get(cmd.endsWith(" items") ? "items" : cmd);
+        if (listCmd == null) {
+            Log.e(TAG, "No list command for: " + cmd);
+            return;
+        }
+
+        int correlationId = mCorrelationId.getAndIncrement();
+        pendingRequests.put(correlationId, callback);
+        final ListRequest request = new ListRequest(correlationId, playerId, cmd, listCmd,
+                parameters, fullList);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fetchPages(request, start, pageSize);
+            }
+        });
+    }
+
+    /**
+     * Fetch pages of a list and give them to the request's callback, until the callback has
+     * been cancelled or has received everything it asked for.
+     *
+     * @param request The request.
+     * @param start First item to fetch.
+     * @param count Number of items in the first page.
+     */
+    private void fetchPages(ListRequest request, int start, int count) {
+        while (true) {
+            JsonRpcConnection connection = mConnection.get();
+            if (connection == null || !pendingRequests.containsKey(request.correlationId)) {
+                pendingRequests.remove(request.correlationId);
+                return;
+            }
+
+            List<String> command = new ArrayList<String>(request.cmd.size() + 2 + request.parameters.size());
+            command.addAll(request.cmd);
+            command.add(String.valueOf(start));
+            command.add(String.valueOf(count));
+            command.addAll(request.parameters);
+
+            for (LoopInfo loopInfo : request.listCmd.loops) {
+                loopInfo.handler.clear();
+            }
+            request.resultParameters = new HashMap<String, String>();
+            request.counts.clear();
+
+            if (BuildConfig.DEBUG) {
+                Log.v(TAG, "SEND: " + request.playerId + " " + command);
+            }
+            try {
+                connection.request(request.playerId, command, request);
+            } catch (IOException e) {
+                onRequestFailed(command, e);
+                pendingRequests.remove(request.correlationId);
+                return;
+            }
+
+            int end = start + count;
+            int max = 0;
+            IServiceItemListCallback callback = pendingRequests.get(request.correlationId);
+            for (LoopInfo loopInfo : request.listCmd.loops) {
+                Integer total = request.counts.get(loopInfo.countId);
+                int totalValue = (total == null ? 0 : total);
+                if (total != null || start == 0) {
+                    if (callback != null) {
+                        callback.onItemsReceived(totalValue, start, request.resultParameters,
+                                loopInfo.handler.getItems(), loopInfo.handler.getDataType());
+                    }
+                    if (totalValue > max) {
+                        max = totalValue;
+                    }
+                }
+            }
+
+            // If the client is still around check if we need to order more items,
+            // otherwise were done, so remove the callback
+            if (callback == null) {
+                return;
+            }
+            if ((request.fullList || end % pageSize != 0) && end < max) {
+                int next = (end + pageSize > max ? max - end : request.fullList ? pageSize : pageSize - count);
+                start = end;
+                count = next;
+            } else {
+                pendingRequests.remove(request.correlationId);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void requestItems(String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
+        internalRequestItems(null, cmd, start, parameters, callback);
+    }
+
+    @Override
+    public void requestItems(String cmd, int start, int pageSize, IServiceItemListCallback callback) {
+        internalRequestItems(null, cmd, start, pageSize, null, false, callback);
+    }
+
+    @Override
+    public void requestPlayerItems(@Nullable Player player, String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
+        if (player == null) {
+            return;
+        }
+        internalRequestItems(player.getId(), cmd, start, parameters, callback);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.isConnected();
+    }
+
+    @Override
+    public boolean isConnectInProgress() {
+        return connectionState.isConnectInProgress();
+    }
+
+    @Override
+    public int getHttpPort() {
+        return connectionState.getHttpPort();
+    }
+
+    @Override
+    public String getCurrentHost() {
+        return connectionState.getCurrentHost();
+    }
+
+    @Override
+    public String[] getMediaDirs() {
+        return connectionState.getMediaDirs();
+    }
 
+    @Override
+    public String getPreferredAlbumSort() {
+        return connectionState.getPreferredAlbumSort();
+    }
 }
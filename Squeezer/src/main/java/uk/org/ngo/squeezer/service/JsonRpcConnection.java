@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.bluelinelabs.logansquare.LoganSquare;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Talks to the JSON-RPC (<code>/jsonrpc.js</code>) and Cometd (<code>/cometd</code>) endpoints
+ * of the server's web interface.
+ * <p>
+ * Results are read with a streaming parser and handed to a {@link ResultHandler} one value at a
+ * time. Items of result lists (the <code>xxx_loop</code> arrays) are collected in a single record
+ * that is reused for every item, so a large page never exists as a tree of JSON objects.
+ * <p>
+ * This class has no Android dependencies, so it can be tested against a local HTTP server.
+ */
+class JsonRpcConnection {
+
+    /** Path of the JSON-RPC endpoint. */
+    static final String JSONRPC_PATH = "/jsonrpc.js";
+
+    /** Path of the Cometd endpoint. */
+    static final String COMETD_PATH = "/cometd";
+
+    private static final int CONNECT_TIMEOUT = 4000;
+
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Read timeout for Cometd long-polls. The server holds a poll for up to a minute before
+     * answering with an empty reply.
+     */
+    private static final int POLL_TIMEOUT = 90000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the result of a request.
+     */
+    interface ResultHandler {
+        /**
+         * Called for each plain value in the result. Numbers are given as their text, and
+         * booleans as "1" or "0", the same as the CLI. Arrays of plain values are passed one
+         * element at a time.
+         *
+         * @param key Name of the value.
+         * @param value The value.
+         */
+        void onField(String key, String value);
+
+        /**
+         * Called for each item in a result list.
+         *
+         * @param loop Name of the list, e.g. <code>albums_loop</code>.
+         * @param record The plain values of the item. The map is reused for the next item, so
+         *     copy anything that must be kept.
+         */
+        void onLoopItem(String loop, Map<String, String> record);
+    }
+
+    /**
+     * Thrown if the server answers with an HTTP status other than 200.
+     */
+    static class HttpStatusException extends IOException {
+        final int status;
+
+        HttpStatusException(int status) {
+            super("HTTP status " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * A message received through Cometd.
+     */
+    static class Message implements ResultHandler {
+        String channel;
+
+        String clientId;
+
+        boolean successful;
+
+        /** Plain values of the message's data. */
+        final Map<String, String> fields = new HashMap<String, String>();
+
+        /** Result lists in the message's data, by name. */
+        final Map<String, List<Map<String, String>>> loops
+                = new HashMap<String, List<Map<String, String>>>();
+
+        @Override
+        public void onField(String key, String value) {
+            fields.put(key, value);
+        }
+
+        @Override
+        public void onLoopItem(String loop, Map<String, String> record) {
+            List<Map<String, String>> items = loops.get(loop);
+            if (items == null) {
+                items = new ArrayList<Map<String, String>>();
+                loops.put(loop, items);
+            }
+            items.add(new HashMap<String, String>(record));
+        }
+
+        @Override
+        public String toString() {
+            return "{ channel:'" + channel + "', successful:" + successful + ", fields:" + fields
+                    + ", loops:" + loops.keySet() + " }";
+        }
+    }
+
+    private final String mBaseUrl;
+
+    @Nullable private final String mAuthorization;
+
+    private final AtomicInteger mRequestId = new AtomicInteger();
+
+    /**
+     * @param host Host name or address of the server.
+     * @param port HTTP port of the server.
+     * @param userName User name if the server is password protected, otherwise null.
+     * @param password Password if the server is password protected, otherwise null.
+     */
+    JsonRpcConnection(String host, int port, @Nullable String userName, @Nullable String password) {
+        mBaseUrl = "http://" + host + ":" + port;
+        if (userName != null && userName.length() > 0) {
+            mAuthorization = "Basic " + BaseEncoding.base64().encode(
+                    (userName + ":" + (password == null ? "" : password)).getBytes(UTF_8));
+        } else {
+            mAuthorization = null;
+        }
+    }
+
+    /**
+     * Execute a command on the server.
+     *
+     * @param playerId The player the command is for, or null for server commands.
+     * @param command The words of the command, without any URL encoding.
+     * @param handler Receives the result.
+     * @throws IOException If the request failed, or the server reported an error.
+     */
+    void request(@Nullable String playerId, List<String> command, ResultHandler handler)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+        JsonGenerator generator = LoganSquare.JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeNumberField("id", mRequestId.incrementAndGet());
+        generator.writeStringField("method", "slim.request");
+        generator.writeFieldName("params");
+        writeRequest(generator, playerId, command);
+        generator.writeEndObject();
+        generator.close();
+
+        InputStream in = post(JSONRPC_PATH, body.toByteArray(), READ_TIMEOUT);
+        try {
+            JsonParser parser = LoganSquare.JSON_FACTORY.createParser(in);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Malformed response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("result".equals(key) && token == JsonToken.START_OBJECT) {
+                    readObject(parser, handler, new HashMap<String, String>());
+                } else if ("error".equals(key) && token != JsonToken.VALUE_NULL) {
+                    throw new IOException("Server error: " + (token.isScalarValue() ? parser.getText() : token));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            parser.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Start a Cometd session.
+     *
+     * @return The client ID of the new session. All channels of the session are subscribed.
+     * @throws IOException If the server did not accept the handshake.
+     */
+    @NonNull
+    String handshake() throws IOException {
+        JsonGenerator generator = startMessage("/meta/handshake", null);
+        generator.writeStringField("version", "1.0");
+        generator.writeArrayFieldStart("supportedConnectionTypes");
+        generator.writeString("long-polling");
+        generator.writeEndArray();
+        Message reply = findReply(sendMessage(generator, READ_TIMEOUT), "/meta/handshake");
+        if (reply.clientId == null) {
+            throw new IOException("Handshake did not return a client ID");
+        }
+
+        generator = startMessage("/meta/subscribe", reply.clientId);
+        generator.writeStringField("subscription", "/" + reply.clientId + "/**");
+        findReply(sendMessage(generator, READ_TIMEOUT), "/meta/subscribe");
+
+        return reply.clientId;
+    }
+
+    /**
+     * Ask the server to run a command every time the data it reports changes, and to deliver the
+     * result on a channel of this session.
+     *
+     * @param clientId The session's client ID.
+     * @param playerId The player the command is for, or null for server commands.
+     * @param command The words of the command, including the <code>subscribe:</code> parameter.
+     * @param response The channel the results are delivered to.
+     * @return Any messages the server sent in reply.
+     * @throws IOException If the request failed.
+     */
+    List<Message> subscribe(String clientId, @Nullable String playerId, List<String> command,
+                            String response) throws IOException {
+        JsonGenerator generator = startMessage("/slim/subscribe", clientId);
+        generator.writeObjectFieldStart("data");
+        generator.writeFieldName("request");
+        writeRequest(generator, playerId, command);
+        generator.writeStringField("response", response);
+        generator.writeEndObject();
+        return sendMessage(generator, READ_TIMEOUT);
+    }
+
+    /**
+     * Stop the subscription that delivers results to the given channel.
+     *
+     * @param clientId The session's client ID.
+     * @param response The channel given to {@link #subscribe(String, String, List, String)}.
+     * @throws IOException If the request failed.
+     */
+    void unsubscribe(String clientId, String response) throws IOException {
+        JsonGenerator generator = startMessage("/slim/unsubscribe", clientId);
+        generator.writeObjectFieldStart("data");
+        generator.writeStringField("unsubscribe", response);
+        generator.writeEndObject();
+        sendMessage(generator, READ_TIMEOUT);
+    }
+
+    /**
+     * Wait for messages on the session's channels. Blocks until the server has something to
+     * deliver, or decides the poll has lasted long enough.
+     *
+     * @param clientId The session's client ID.
+     * @return The delivered messages, including the reply to the poll itself.
+     * @throws IOException If the poll failed, or the server rejected it.
+     */
+    List<Message> poll(String clientId) throws IOException {
+        JsonGenerator generator = startMessage("/meta/connect", clientId);
+        generator.writeStringField("connectionType", "long-polling");
+        List<Message> messages = sendMessage(generator, POLL_TIMEOUT);
+        findReply(messages, "/meta/connect");
+        return messages;
+    }
+
+    /**
+     * End a Cometd session.
+     *
+     * @param clientId The session's client ID.
+     * @throws IOException If the request failed.
+     */
+    void disconnect(String clientId) throws IOException {
+        sendMessage(startMessage("/meta/disconnect", clientId), READ_TIMEOUT);
+    }
+
+    /**
+     * Write a request as the <code>[playerid, [command...]]</code> pair the server expects.
+     */
+    private static void writeRequest(JsonGenerator generator, @Nullable String playerId,
+                                     List<String> command) throws IOException {
+        generator.writeStartArray();
+        generator.writeString(playerId == null ? "" : playerId);
+        generator.writeStartArray();
+        for (String word : command) {
+            generator.writeString(word);
+        }
+        generator.writeEndArray();
+        generator.writeEndArray();
+    }
+
+    /**
+     * Start writing a Cometd message. Finish it with {@link #sendMessage(JsonGenerator, int)}.
+     */
+    private JsonGenerator startMessage(String channel, @Nullable String clientId) throws IOException {
+        JsonGenerator generator = LoganSquare.JSON_FACTORY.createGenerator(
+                new ByteArrayOutputStream(256), JsonEncoding.UTF8);
+        generator.writeStartArray();
+        generator.writeStartObject();
+        generator.writeStringField("channel", channel);
+        if (clientId != null) {
+            generator.writeStringField("clientId", clientId);
+        }
+        generator.writeNumberField("id", mRequestId.incrementAndGet());
+        return generator;
+    }
+
+    /**
+     * Finish the message started with {@link #startMessage(String, String)}, send it, and read
+     * the messages the server sends back.
+     */
+    private List<Message> sendMessage(JsonGenerator generator, int readTimeout) throws IOException {
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.close();
+        byte[] body = ((ByteArrayOutputStream) generator.getOutputTarget()).toByteArray();
+
+        List<Message> messages = new ArrayList<Message>();
+        InputStream in = post(COMETD_PATH, body, readTimeout);
+        try {
+            JsonParser parser = LoganSquare.JSON_FACTORY.createParser(in);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Malformed Cometd response");
+            }
+            Map<String, String> record = new HashMap<String, String>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                messages.add(readMessage(parser, record));
+            }
+            parser.close();
+        } finally {
+            in.close();
+        }
+        return messages;
+    }
+
+    private static Message readMessage(JsonParser parser, Map<String, String> record)
+            throws IOException {
+        Message message = new Message();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("data".equals(key) && token == JsonToken.START_OBJECT) {
+                readObject(parser, message, record);
+            } else if ("channel".equals(key)) {
+                message.channel = parser.getText();
+            } else if ("clientId".equals(key)) {
+                message.clientId = parser.getText();
+            } else if ("successful".equals(key)) {
+                message.successful = (token == JsonToken.VALUE_TRUE);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Find the server's reply to a Cometd meta message.
+     *
+     * @throws IOException If there is no reply, or it reports a failure.
+     */
+    private static Message findReply(List<Message> messages, String channel) throws IOException {
+        for (Message message : messages) {
+            if (channel.equals(message.channel)) {
+                if (!message.successful) {
+                    throw new IOException(channel + " failed");
+                }
+                return message;
+            }
+        }
+        throw new IOException("No reply to " + channel);
+    }
+
+    /**
+     * Read the members of the object the parser is positioned on, and pass them to the handler.
+     * Objects nested in the result or in list items are skipped.
+     *
+     * @param parser The parser, positioned on a START_OBJECT token.
+     * @param handler Receives the values.
+     * @param record Scratch map for list items.
+     */
+    private static void readObject(JsonParser parser, ResultHandler handler,
+                                   Map<String, String> record) throws IOException {
+        JsonToken token;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            // Field names are canonicalized by the parser, so this does not allocate.
+            String key = parser.getCurrentName();
+            token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == JsonToken.START_OBJECT) {
+                        record.clear();
+                        readRecord(parser, record);
+                        handler.onLoopItem(key, record);
+                    } else if (token.isScalarValue()) {
+                        if (token != JsonToken.VALUE_NULL) {
+                            handler.onField(key, valueAsText(parser, token));
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                parser.skipChildren();
+            } else if (token != JsonToken.VALUE_NULL) {
+                handler.onField(key, valueAsText(parser, token));
+            }
+        }
+    }
+
+    private static void readRecord(JsonParser parser, Map<String, String> record)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                parser.skipChildren();
+            } else if (token != JsonToken.VALUE_NULL) {
+                record.put(key, valueAsText(parser, token));
+            }
+        }
+    }
+
+    private static String valueAsText(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_TRUE:
+                return "1";
+            case VALUE_FALSE:
+                return "0";
+            default:
+                return parser.getText();
+        }
+    }
+
+    /**
+     * POST a JSON body to the server.
+     *
+     * @return The response body. The caller must close it, which leaves the connection available
+     *     for reuse.
+     * @throws HttpStatusException If the server did not answer with 200 OK.
+     */
+    private InputStream post(String path, byte[] body, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (mAuthorization != null) {
+            connection.setRequestProperty("Authorization", mAuthorization);
+        }
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new HttpStatusException(status);
+        }
+        return connection.getInputStream();
+    }
+
+    @Override
+    public String toString() {
+        return "JsonRpcConnection{" + mBaseUrl + "}";
+    }
+}
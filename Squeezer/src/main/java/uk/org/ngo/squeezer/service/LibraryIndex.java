@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ListPageCache;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+
+/**
+ * An offline index of the pages of the server's music library that have been browsed.
+ * <p>
+ * Pages of albums, artists, songs and genres are stored as they arrive from the server, keyed by
+ * the server, the query (command, sort order, search string and filters) and the start of the
+ * page. When the same page is asked for again it is read from the index, so lists open without a
+ * round trip to the server, and only pages that have not been seen before go over the network.
+ * <p>
+ * The index of a server is dropped when the server reports a rescan, or a last scan time that
+ * differs from the one the index was built against. Items are stored in their parcelled form, so
+ * the whole index is also dropped when the app or the platform is updated.
+ * <p>
+ * Items from the server and from the index are also added to the {@link LibrarySearch}, and both
+ * the search and the in-memory {@link ListPageCache} are emptied when the index is dropped.
+ * <p>
+ * All database work is done on a single background thread. Callbacks are called on that thread
+ * for pages served from the index, and on the client's threads for pages from the server.
+ */
+class LibraryIndex {
+    private static final String TAG = "LibraryIndex";
+
+    private class LIBRARY_DATABASE {
+        private static final String NAME = "library";
+        private static final int VERSION = 1;
+
+        private class PAGE {
+            private static final String TABLE = "page";
+
+            private class COLUMNS {
+                private static final String SERVER = "server";
+                private static final String QUERY = "query";
+                private static final String START = "start";
+                private static final String TOTAL = "total";
+                private static final String ITEMS = "items";
+                private static final String LAST_USED = "last_used";
+            }
+        }
+
+        private class SERVER {
+            private static final String TABLE = "server";
+
+            private class COLUMNS {
+                private static final String SERVER = "server";
+                private static final String LAST_SCAN = "last_scan";
+            }
+        }
+
+        private class META {
+            private static final String TABLE = "meta";
+
+            private class COLUMNS {
+                private static final String BUILD = "build";
+            }
+        }
+    }
+
+    /** The number of pages kept. The least recently used pages beyond this are dropped. */
+    private static final int MAX_PAGES = 5000;
+
+    /** Check the number of pages after this many pages have been stored. */
+    private static final int TRIM_INTERVAL = 50;
+
+    private final Context mContext;
+
+    private final int mPageSize;
+
+    private final LibrarySearch mSearch;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /** Opened on first use, on the executor thread. */
+    private SQLiteDatabase mDb;
+
+    private int mStoresSinceTrim;
+
+    LibraryIndex(Context context, int pageSize, LibrarySearch search) {
+        mContext = context.getApplicationContext();
+        mPageSize = pageSize;
+        mSearch = search;
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+
+        private static final Object mInstanceLock = new Object();
+        private static OpenHelper mInstance;
+
+        private OpenHelper(Context context) {
+            super(context, LIBRARY_DATABASE.NAME, null, LIBRARY_DATABASE.VERSION);
+        }
+
+        public static OpenHelper getInstance(Context context) {
+            if (mInstance == null) {
+                synchronized (mInstanceLock) {
+                    if (mInstance == null) {
+                        mInstance = new OpenHelper(context);
+                    }
+                }
+            }
+            return mInstance;
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + LIBRARY_DATABASE.PAGE.TABLE + "(" +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.SERVER + " TEXT NOT NULL, " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.QUERY + " TEXT NOT NULL, " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.START + " INTEGER NOT NULL, " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.TOTAL + " INTEGER NOT NULL, " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.ITEMS + " BLOB NOT NULL, " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.LAST_USED + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + LIBRARY_DATABASE.PAGE.COLUMNS.SERVER + ", " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.QUERY + ", " +
+                    LIBRARY_DATABASE.PAGE.COLUMNS.START + "))");
+            db.execSQL("CREATE TABLE " + LIBRARY_DATABASE.SERVER.TABLE + "(" +
+                    LIBRARY_DATABASE.SERVER.COLUMNS.SERVER + " TEXT PRIMARY KEY, " +
+                    LIBRARY_DATABASE.SERVER.COLUMNS.LAST_SCAN + " TEXT)");
+            db.execSQL("CREATE TABLE " + LIBRARY_DATABASE.META.TABLE + "(" +
+                    LIBRARY_DATABASE.META.COLUMNS.BUILD + " TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The index only holds copies of what is on the server, so it is simply rebuilt.
+            db.execSQL("DROP TABLE IF EXISTS " + LIBRARY_DATABASE.PAGE.TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + LIBRARY_DATABASE.SERVER.TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + LIBRARY_DATABASE.META.TABLE);
+            onCreate(db);
+        }
+
+        /**
+         * Drop the index if it was written by another build of the app or the platform, as the
+         * parcelled items may not be readable.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (db.isReadOnly()) {
+                return;
+            }
+
+            String build = BuildConfig.VERSION_CODE + "/" + Build.FINGERPRINT;
+            Cursor cursor = db.query(LIBRARY_DATABASE.META.TABLE,
+                    new String[]{LIBRARY_DATABASE.META.COLUMNS.BUILD}, null, null, null, null, null);
+            try {
+                if (cursor.moveToFirst() && build.equals(cursor.getString(0))) {
+                    return;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            db.beginTransaction();
+            try {
+                db.delete(LIBRARY_DATABASE.PAGE.TABLE, null, null);
+                db.delete(LIBRARY_DATABASE.SERVER.TABLE, null, null);
+                db.delete(LIBRARY_DATABASE.META.TABLE, null, null);
+                ContentValues values = new ContentValues();
+                values.put(LIBRARY_DATABASE.META.COLUMNS.BUILD, build);
+                db.insert(LIBRARY_DATABASE.META.TABLE, null, values);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Deliver the requested page of items to the callback, from the index if it is there, or
+     * otherwise from the server, in which case the page is added to the index.
+     *
+     * @param client The client to request the page from, if it is not in the index.
+     * @param cmd The command, e.g. <code>albums</code>.
+     * @param start The first item of the page. Full lists (-1) are not indexed.
+     * @param parameters The parameters of the request.
+     * @param callback Receives the items.
+     * @param dataType The type of the items.
+     * @param creator Used to recreate the items from the index.
+     */
+    <T extends Item> void requestItems(final IClient client, final String cmd, final int start,
+                                       final List<String> parameters,
+                                       final IServiceItemListCallback<T> callback,
+                                       final Class<T> dataType,
+                                       final Parcelable.Creator<T> creator) {
+        if (start < 0) {
+            client.requestItems(cmd, start, parameters, callback);
+            return;
+        }
+
+        final String server = serverKey(client);
+        final String query = queryKey(cmd, parameters);
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Page<T> page = readPage(server, query, start, creator);
+                    if (page != null) {
+                        if (BuildConfig.DEBUG) {
+                            Log.v(TAG, "Index hit: " + query + ", start: " + start);
+                        }
+                        callback.onItemsReceived(page.total, start,
+                                new HashMap<String, String>(), page.items, dataType);
+                        touchPage(server, query, start);
+                        mSearch.addAll(server, page.items);
+                        return;
+                    }
+
+                    client.requestItems(cmd, start, parameters,
+                            new PageRecorder<T>(server, query, start, callback));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed, go straight to the server.
+            client.requestItems(cmd, start, parameters, callback);
+        }
+    }
+
+    /**
+     * Drop the index of the current server if the library has changed.
+     *
+     * @param client The client connected to the server.
+     * @param lastScan The time of the server's last scan, or null if a scan was seen.
+     */
+    void onLibraryChanged(IClient client, @Nullable final String lastScan) {
+        final String server = serverKey(client);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                if (db == null) {
+                    return;
+                }
+
+                if (lastScan != null && lastScan.equals(readLastScan(db, server))) {
+                    return;
+                }
+
+                Log.i(TAG, "Library of " + server + " changed, last scan: " + lastScan);
+                mSearch.clear();
+                ListPageCache.getInstance().clear();
+                db.beginTransaction();
+                try {
+                    db.delete(LIBRARY_DATABASE.PAGE.TABLE,
+                            LIBRARY_DATABASE.PAGE.COLUMNS.SERVER + "=?", new String[]{server});
+                    ContentValues values = new ContentValues();
+                    values.put(LIBRARY_DATABASE.SERVER.COLUMNS.SERVER, server);
+                    values.put(LIBRARY_DATABASE.SERVER.COLUMNS.LAST_SCAN, lastScan);
+                    db.replace(LIBRARY_DATABASE.SERVER.TABLE, null, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop using the index. Work already queued is finished first.
+     */
+    void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return The key of the server, which includes the HTTP port as it is part of the artwork
+     *     URLs of the items.
+     */
+    private static String serverKey(IClient client) {
+        return client.getCurrentHost() + ":" + client.getHttpPort();
+    }
+
+    private static String queryKey(String cmd, List<String> parameters) {
+        StringBuilder sb = new StringBuilder(cmd);
+        for (String parameter : parameters) {
+            sb.append(' ').append(parameter);
+        }
+        return sb.toString();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * @return The database, or null if it can not be opened. Only call on the executor thread.
+     */
+    @Nullable
+    private SQLiteDatabase getDatabase() {
+        if (mDb == null) {
+            try {
+                mDb = OpenHelper.getInstance(mContext).getWritableDatabase();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Can't open the library index: " + e);
+            }
+        }
+        return mDb;
+    }
+
+    @Nullable
+    private static String readLastScan(SQLiteDatabase db, String server) {
+        Cursor cursor = db.query(LIBRARY_DATABASE.SERVER.TABLE,
+                new String[]{LIBRARY_DATABASE.SERVER.COLUMNS.LAST_SCAN},
+                LIBRARY_DATABASE.SERVER.COLUMNS.SERVER + "=?", new String[]{server},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** A page read from the index. */
+    private static class Page<T extends Item> {
+        final int total;
+
+        final List<T> items;
+
+        Page(int total, List<T> items) {
+            this.total = total;
+            this.items = items;
+        }
+    }
+
+    @Nullable
+    private <T extends Item> Page<T> readPage(String server, String query, int start,
+                                              Parcelable.Creator<T> creator) {
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            return null;
+        }
+
+        Cursor cursor = db.query(LIBRARY_DATABASE.PAGE.TABLE,
+                new String[]{LIBRARY_DATABASE.PAGE.COLUMNS.TOTAL, LIBRARY_DATABASE.PAGE.COLUMNS.ITEMS},
+                LIBRARY_DATABASE.PAGE.COLUMNS.SERVER + "=? AND " +
+                        LIBRARY_DATABASE.PAGE.COLUMNS.QUERY + "=? AND " +
+                        LIBRARY_DATABASE.PAGE.COLUMNS.START + "=?",
+                new String[]{server, query, String.valueOf(start)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new Page<T>(cursor.getInt(0), unmarshall(cursor.getBlob(1), creator));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void touchPage(String server, String query, int start) {
+        ContentValues values = new ContentValues();
+        values.put(LIBRARY_DATABASE.PAGE.COLUMNS.LAST_USED, System.currentTimeMillis());
+        mDb.update(LIBRARY_DATABASE.PAGE.TABLE, values,
+                LIBRARY_DATABASE.PAGE.COLUMNS.SERVER + "=? AND " +
+                        LIBRARY_DATABASE.PAGE.COLUMNS.QUERY + "=? AND " +
+                        LIBRARY_DATABASE.PAGE.COLUMNS.START + "=?",
+                new String[]{server, query, String.valueOf(start)});
+    }
+
+    private void storePage(final String server, final String query, final int start,
+                           final int total, final List<? extends Item> items) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                if (db == null) {
+                    return;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(LIBRARY_DATABASE.PAGE.COLUMNS.SERVER, server);
+                values.put(LIBRARY_DATABASE.PAGE.COLUMNS.QUERY, query);
+                values.put(LIBRARY_DATABASE.PAGE.COLUMNS.START, start);
+                values.put(LIBRARY_DATABASE.PAGE.COLUMNS.TOTAL, total);
+                values.put(LIBRARY_DATABASE.PAGE.COLUMNS.ITEMS, marshall(items));
+                values.put(LIBRARY_DATABASE.PAGE.COLUMNS.LAST_USED, System.currentTimeMillis());
+                db.replace(LIBRARY_DATABASE.PAGE.TABLE, null, values);
+                mSearch.addAll(server, items);
+
+                if (++mStoresSinceTrim >= TRIM_INTERVAL) {
+                    mStoresSinceTrim = 0;
+                    db.execSQL("DELETE FROM " + LIBRARY_DATABASE.PAGE.TABLE +
+                            " WHERE rowid IN (SELECT rowid FROM " + LIBRARY_DATABASE.PAGE.TABLE +
+                            " ORDER BY " + LIBRARY_DATABASE.PAGE.COLUMNS.LAST_USED + " DESC" +
+                            " LIMIT -1 OFFSET " + MAX_PAGES + ")");
+                }
+            }
+        });
+    }
+
+    @NonNull
+    private static byte[] marshall(List<? extends Item> items) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(items);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @NonNull
+    private static <T extends Item> List<T> unmarshall(byte[] bytes, Parcelable.Creator<T> creator) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(creator);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Passes the items from the server on to the real callback, and collects the chunks that
+     * make up the requested page. Once the page is complete it is stored in the index.
+     */
+    private class PageRecorder<T extends Item> implements IServiceItemListCallback<T> {
+        private final String mServer;
+
+        private final String mQuery;
+
+        private final int mStart;
+
+        private final IServiceItemListCallback<T> mCallback;
+
+        private final List<T> mItems = new ArrayList<T>();
+
+        private boolean mDone;
+
+        PageRecorder(String server, String query, int start, IServiceItemListCallback<T> callback) {
+            mServer = server;
+            mQuery = query;
+            mStart = start;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onItemsReceived(int count, int start, Map<String, String> parameters,
+                                    List<T> items, Class<T> dataType) {
+            record(count, start, parameters, items);
+            mCallback.onItemsReceived(count, start, parameters, items, dataType);
+        }
+
+        private synchronized void record(int count, int start, Map<String, String> parameters,
+                                         List<T> items) {
+            if (mDone) {
+                return;
+            }
+
+            // Don't index a library that is being scanned, or chunks that don't line up.
+            if ("1".equals(parameters.get("rescan")) || start != mStart + mItems.size()) {
+                mDone = true;
+                return;
+            }
+
+            mItems.addAll(items);
+            int end = mStart + mItems.size();
+            if (end % mPageSize == 0 || end >= count) {
+                mDone = true;
+                storePage(mServer, mQuery, mStart, count, mItems);
+            }
+        }
+
+        @Override
+        public Object getClient() {
+            return mCallback.getClient();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.org.ngo.squeezer.framework.Item;
+
+/**
+ * Instant, local search of the library items that have been fetched from the server.
+ * <p>
+ * Items of each type are kept in their own {@link SearchIndex}, by name. The index is filled by
+ * the {@link LibraryIndex} as pages of items arrive or are read back, so it covers the parts of
+ * the library that have been browsed or searched before. The server is still asked, to fill in
+ * what has not been seen.
+ * <p>
+ * The index holds the items of one server at a time, and is emptied when the server's library
+ * changes.
+ */
+class LibrarySearch {
+
+    private final Map<Class<? extends Item>, SearchIndex<Item>> mIndexes
+            = new ConcurrentHashMap<Class<? extends Item>, SearchIndex<Item>>();
+
+    /** The server the indexed items are from. */
+    private String mServer;
+
+    /**
+     * Add items to the index.
+     *
+     * @param server The server the items are from.
+     * @param items The items.
+     */
+    void addAll(String server, List<? extends Item> items) {
+        synchronized (this) {
+            if (!server.equals(mServer)) {
+                clear();
+                mServer = server;
+            }
+        }
+
+        if (items.isEmpty()) {
+            return;
+        }
+
+        Class<? extends Item> dataType = items.get(0).getClass();
+        SearchIndex<Item> index = mIndexes.get(dataType);
+        if (index == null) {
+            synchronized (this) {
+                index = mIndexes.get(dataType);
+                if (index == null) {
+                    index = new SearchIndex<Item>();
+                    mIndexes.put(dataType, index);
+                }
+            }
+        }
+
+        for (Item item : items) {
+            if (item.getId() != null) {
+                index.put(item.getId(), item.getName(), item);
+            }
+        }
+    }
+
+    /**
+     * Find items whose names match the query.
+     *
+     * @param dataType The type of items to find.
+     * @param query The words to look for, see {@link SearchIndex#search(String, int)}.
+     * @param limit The maximum number of items to return.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Item> List<T> search(Class<T> dataType, String query, int limit) {
+        SearchIndex<Item> index = mIndexes.get(dataType);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return (List<T>) index.search(query, limit);
+    }
+
+    /**
+     * Empty the index.
+     */
+    synchronized void clear() {
+        for (SearchIndex<Item> index : mIndexes.values()) {
+            index.clear();
+        }
+    }
+}
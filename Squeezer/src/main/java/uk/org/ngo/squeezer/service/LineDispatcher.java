@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the lines received from the server to worker threads, so that parsing a large list does
+ * not hold up status updates and control responses.
+ * <p>
+ * Lines are sorted in to lanes. The lines in a lane are handled one at a time, in the order they
+ * were received, but different lanes run in parallel:
+ * <ul>
+ *     <li>List replies, recognised by their <code>correlationid</code>, get a lane per
+ *     correlation id on the parse pool, which has a thread per spare core. Pages of the same
+ *     request stay in order, pages of different requests are parsed in parallel.</li>
+ *     <li>Other lines that start with a player ID, such as status updates and notifications,
+ *     get a lane per player on the fast pool.</li>
+ *     <li>Everything else, e.g. replies to <code>login</code>, <code>version</code> and
+ *     <code>pref</code>, goes to a single control lane on the fast pool.</li>
+ * </ul>
+ * A dispatcher is used for one connection, and shut down when the connection ends.
+ */
+class LineDispatcher {
+
+    /** Receives the lines, on the worker threads. */
+    interface LineHandler {
+        void onLineReceived(String line);
+    }
+
+    /** Start of the URL encoded <code>correlationid:</code> tag. */
+    private static final String CORRELATION_ID_TAG = " correlationid%3A";
+
+    /** URL encoded ':', as found in player IDs. */
+    private static final String ENCODED_COLON = "%3A";
+
+    private static final String CONTROL_LANE = "control";
+
+    private final LineHandler mHandler;
+
+    private final ExecutorService mParsePool;
+
+    private final ExecutorService mFastPool;
+
+    /** Lanes with work queued or running, by key. A lane is removed once it runs dry. */
+    private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+
+    LineDispatcher(LineHandler handler) {
+        this(handler,
+                Executors.newFixedThreadPool(
+                        Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                        new NamedThreadFactory("CliParse", Thread.NORM_PRIORITY - 1)),
+                Executors.newFixedThreadPool(2,
+                        new NamedThreadFactory("CliFast", Thread.NORM_PRIORITY)));
+    }
+
+    LineDispatcher(LineHandler handler, ExecutorService parsePool, ExecutorService fastPool) {
+        mHandler = handler;
+        mParsePool = parsePool;
+        mFastPool = fastPool;
+    }
+
+    /**
+     * Queue a line in its lane.
+     */
+    void dispatch(final String line) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                mHandler.onLineReceived(line);
+            }
+        };
+
+        int correlationIdStart = line.indexOf(CORRELATION_ID_TAG);
+        if (correlationIdStart != -1) {
+            execute(laneKey(line, correlationIdStart), mParsePool, task);
+            return;
+        }
+
+        String playerId = playerId(line);
+        execute(playerId != null ? playerId : CONTROL_LANE, mFastPool, task);
+    }
+
+    /**
+     * Stop the worker threads once the work that has started is done. Lines still queued in a
+     * lane are dropped.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mLanes.clear();
+        }
+        mParsePool.shutdown();
+        mFastPool.shutdown();
+    }
+
+    private synchronized void execute(String key, Executor executor, Runnable task) {
+        Lane lane = mLanes.get(key);
+        if (lane == null) {
+            lane = new Lane(key, executor);
+            mLanes.put(key, lane);
+        }
+        lane.execute(task);
+    }
+
+    /**
+     * @return The key of the lane for a list reply, e.g. <code>c42</code>.
+     */
+    private static String laneKey(String line, int correlationIdStart) {
+        int start = correlationIdStart + CORRELATION_ID_TAG.length();
+        int end = line.indexOf(' ', start);
+        return "c" + line.substring(start, end == -1 ? line.length() : end);
+    }
+
+    /**
+     * @return The first token of the line, if it is a (URL encoded) player ID, otherwise null.
+     */
+    static String playerId(String line) {
+        int end = line.indexOf(' ');
+        if (end == -1) {
+            return null;
+        }
+        int colon = line.indexOf(ENCODED_COLON);
+        return (colon != -1 && colon < end) ? line.substring(0, end) : null;
+    }
+
+    /**
+     * Runs its tasks one at a time, in order, on a shared executor.
+     */
+    private class Lane implements Executor {
+        private final String mKey;
+
+        private final Executor mExecutor;
+
+        /** Not an ArrayDeque, that needs API 9. */
+        private final Queue<Runnable> mTasks = new LinkedList<Runnable>();
+
+        private Runnable mActive;
+
+        Lane(String key, Executor executor) {
+            mKey = key;
+            mExecutor = executor;
+        }
+
+        /** Called with the dispatcher locked. */
+        @Override
+        public void execute(final Runnable r) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private void scheduleNext() {
+            synchronized (LineDispatcher.this) {
+                if ((mActive = mTasks.poll()) != null) {
+                    try {
+                        mExecutor.execute(mActive);
+                    } catch (RejectedExecutionException e) {
+                        // Shut down, the connection is gone.
+                        mTasks.clear();
+                        mActive = null;
+                    }
+                } else if (mLanes.get(mKey) == this) {
+                    mLanes.remove(mKey);
+                }
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        private final int mPriority;
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        NamedThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + " #" + mCount.getAndIncrement());
+            thread.setPriority(mPriority);
+            return thread;
+        }
+    }
+}
@@ -22,7 +22,7 @@ import java.util.Map;
 import uk.org.ngo.squeezer.framework.Item;
 
 /**
- * Implement this and give it to {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for each
+ * Implement this and give it to {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, CliLineTokenizer)} for each
  * extended query format command you wish to support. </p>
  *
  * @author Kurt Aaholst
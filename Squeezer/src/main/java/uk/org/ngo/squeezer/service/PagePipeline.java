@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fetches a long list as a window of page requests that are in flight at the same time, and
+ * hands the pages over in order.
+ * <p>
+ * Fetching a page at a time costs a full round trip per page, and on Wi-Fi the round trip, not
+ * the bandwidth, is what limits how fast a library loads. Instead, up to {@link #getWindow()}
+ * requests are kept outstanding. Pages that arrive out of order are held back until the pages
+ * before them have arrived.
+ * <p>
+ * The window and the page size adapt to the measured round trip time (RTT):
+ * <ul>
+ *     <li>While the smoothed RTT stays close to the smallest RTT seen, requests are not queueing
+ *     at the server, so the window grows by one per page, up to {@link #MAX_WINDOW}. Once the
+ *     smoothed RTT is more than twice the smallest, the window shrinks by one.</li>
+ *     <li>Pages that arrive within {@link #TARGET_PAGE_NANOS} double in size, up to
+ *     {@link #MAX_PAGE_SIZE}, to save round trips. Pages that take more than twice that long
+ *     halve in size, so the caller still sees regular progress.</li>
+ * </ul>
+ * <p>
+ * This class is not thread safe. Feed it from the thread that handles the responses.
+ *
+ * @param <P> Type of the received pages.
+ */
+class PagePipeline<P> {
+
+    /** Largest number of page requests in flight. */
+    static final int MAX_WINDOW = 8;
+
+    /** Largest page size the pipeline will grow to. */
+    static final int MAX_PAGE_SIZE = 500;
+
+    /** Pages that arrive faster than this grow, pages much slower than this shrink. */
+    static final long TARGET_PAGE_NANOS = 250 * 1000 * 1000L;
+
+    /**
+     * Sends page requests.
+     */
+    interface Sender {
+        /**
+         * Request a page of the list.
+         *
+         * @param start Index of the first item in the page.
+         * @param count Number of items in the page.
+         */
+        void requestPage(int start, int count);
+    }
+
+    /** Smallest page size, the page size the pipeline starts with. */
+    private final int mMinPageSize;
+
+    private int mPageSize;
+
+    private int mWindow = 2;
+
+    /** Total number of items in the list. */
+    private int mTotal;
+
+    /** Start of the next page to request. */
+    private int mNextRequest;
+
+    /** Start of the next page to hand over. */
+    private int mNextDelivery;
+
+    /** Send times of the requests in flight, by the start of the page. */
+    private final Map<Integer, Long> mSentAt = new HashMap<Integer, Long>();
+
+    /** Pages that arrived ahead of an earlier page, by their start. */
+    private final TreeMap<Integer, P> mHeldBack = new TreeMap<Integer, P>();
+
+    /** Number of items in each held back page, by start. */
+    private final Map<Integer, Integer> mHeldBackCounts = new HashMap<Integer, Integer>();
+
+    /** Smoothed RTT, as in TCP (RFC 6298). */
+    private long mSmoothedRtt;
+
+    /** Smallest RTT seen at the current page size. */
+    private long mMinRtt;
+
+    /**
+     * @param pageSize The initial and smallest page size.
+     * @param start The start of the first page that has not been requested.
+     * @param total The total number of items in the list.
+     */
+    PagePipeline(int pageSize, int start, int total) {
+        mMinPageSize = Math.max(1, pageSize);
+        mPageSize = mMinPageSize;
+        mNextRequest = start;
+        mNextDelivery = start;
+        mTotal = total;
+    }
+
+    /**
+     * Request pages until the window is full, or the whole list has been requested.
+     *
+     * @param sender Sends the requests.
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    void fill(Sender sender, long now) {
+        while (mSentAt.size() < mWindow && mNextRequest < mTotal) {
+            int count = Math.min(mPageSize, mTotal - mNextRequest);
+            mSentAt.put(mNextRequest, now);
+            sender.requestPage(mNextRequest, count);
+            mNextRequest += count;
+        }
+    }
+
+    /**
+     * Take in a received page.
+     *
+     * @param start The start of the page.
+     * @param count The number of items requested for the page.
+     * @param total The total number of items in the list, as reported with the page.
+     * @param page The page.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return The pages that can now be handed over, in order. Usually just this page, but it
+     *     may be none if an earlier page is still outstanding, or several if this page was the
+     *     one holding them back.
+     */
+    List<P> onPageReceived(int start, int count, int total, P page, long now) {
+        Long sentAt = mSentAt.remove(start);
+        if (sentAt != null) {
+            onRttSample(now - sentAt);
+        }
+
+        // The list may have changed size, e.g. because of a rescan.
+        mTotal = total;
+
+        List<P> ready = new ArrayList<P>(1);
+        if (start != mNextDelivery) {
+            mHeldBack.put(start, page);
+            mHeldBackCounts.put(start, count);
+            return ready;
+        }
+
+        ready.add(page);
+        mNextDelivery = start + count;
+        while (!mHeldBack.isEmpty() && mHeldBack.firstKey() == mNextDelivery) {
+            int next = mHeldBack.firstKey();
+            ready.add(mHeldBack.remove(next));
+            mNextDelivery = next + mHeldBackCounts.remove(next);
+        }
+        return ready;
+    }
+
+    private void onRttSample(long rtt) {
+        mSmoothedRtt = (mSmoothedRtt == 0 ? rtt : mSmoothedRtt + (rtt - mSmoothedRtt) / 8);
+        if (mMinRtt == 0 || rtt < mMinRtt) {
+            mMinRtt = rtt;
+        }
+
+        if (mSmoothedRtt > 2 * mMinRtt) {
+            mWindow = Math.max(1, mWindow - 1);
+        } else {
+            mWindow = Math.min(MAX_WINDOW, mWindow + 1);
+        }
+
+        int pageSize = mPageSize;
+        if (rtt < TARGET_PAGE_NANOS) {
+            pageSize = Math.min(MAX_PAGE_SIZE, mPageSize * 2);
+        } else if (rtt > 2 * TARGET_PAGE_NANOS) {
+            pageSize = Math.max(mMinPageSize, mPageSize / 2);
+        }
+        if (pageSize != mPageSize) {
+            // Bigger pages take longer to serve, so the RTT seen so far no longer applies.
+            mPageSize = pageSize;
+            mSmoothedRtt = 0;
+            mMinRtt = 0;
+        }
+    }
+
+    /**
+     * @return True once every page has been handed over.
+     */
+    boolean isComplete() {
+        return mNextDelivery >= mTotal;
+    }
+
+    int getWindow() {
+        return mWindow;
+    }
+
+    int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return The number of requests in flight.
+     */
+    int getInFlight() {
+        return mSentAt.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PagePipeline{next request=" + mNextRequest + ", next delivery=" + mNextDelivery
+                + ", total=" + mTotal + ", window=" + mWindow + ", page size=" + mPageSize
+                + ", in flight=" + mSentAt.size() + ", srtt=" + mSmoothedRtt / 1000000 + "ms}";
+    }
+}
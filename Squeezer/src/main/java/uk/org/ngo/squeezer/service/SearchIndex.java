@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory inverted index of names, for instant search results.
+ * <p>
+ * Names are split in to words, and each word maps to the entries that contain it. A query
+ * matches an entry if each word of the query is the start of a word of the entry's name, so
+ * "ro ab" matches "Abbey Road". Case and the accents of the Latin-1 letters are ignored.
+ * <p>
+ * The words are kept sorted, so all the words that start with a query word are found with one
+ * range lookup. A query is answered from the range of its longest word, as that is usually the
+ * most selective, and the other words are checked against the candidates.
+ * <p>
+ * This class is thread safe.
+ *
+ * @param <T> The type of the indexed values.
+ */
+class SearchIndex<T> {
+
+    /** Accent free versions of the characters from U+00C0 to U+00FF, in lower case. */
+    private static final String LATIN1_FOLDED =
+            "aaaaaaaceeeeiiiidnooooo\u00d7ouuuuy\u00fe\u00df" +
+            "aaaaaaaceeeeiiiidnooooo\u00f7ouuuuy\u00fey";
+
+    private static class Entry<T> {
+        final String name;
+
+        final String[] words;
+
+        T value;
+
+        Entry(String name, String[] words, T value) {
+            this.name = name;
+            this.words = words;
+            this.value = value;
+        }
+    }
+
+    /** Entries, by position. Replaced entries leave a null behind. */
+    private final List<Entry<T>> mEntries = new ArrayList<Entry<T>>();
+
+    /** Position of the entry of each key. */
+    private final Map<String, Integer> mPositions = new HashMap<String, Integer>();
+
+    /** Positions of the entries that contain each word. */
+    private final TreeMap<String, Postings> mWords = new TreeMap<String, Postings>();
+
+    private final Comparator<Entry<T>> mByName = new Comparator<Entry<T>>() {
+        @Override
+        public int compare(Entry<T> lhs, Entry<T> rhs) {
+            return lhs.name.compareToIgnoreCase(rhs.name);
+        }
+    };
+
+    /** A growable list of entry positions, in increasing order. */
+    private static class Postings {
+        int[] positions = new int[2];
+
+        int size;
+
+        void add(int position) {
+            if (size == positions.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(positions, 0, grown, 0, size);
+                positions = grown;
+            }
+            positions[size++] = position;
+        }
+    }
+
+    /**
+     * Add a value to the index, or update it if the key is already there.
+     *
+     * @param key Identifies the value, e.g. the item ID.
+     * @param name The name to search.
+     * @param value The value.
+     */
+    synchronized void put(String key, String name, T value) {
+        if (name == null) {
+            return;
+        }
+
+        Integer position = mPositions.get(key);
+        if (position != null) {
+            Entry<T> entry = mEntries.get(position);
+            if (entry.name.equals(name)) {
+                entry.value = value;
+                return;
+            }
+            // Renamed, the old words no longer apply.
+            mEntries.set(position, null);
+        }
+
+        String[] words = words(name);
+        position = mEntries.size();
+        mEntries.add(new Entry<T>(name, words, value));
+        mPositions.put(key, position);
+        for (String word : words) {
+            Postings postings = mWords.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                mWords.put(word, postings);
+            }
+            postings.add(position);
+        }
+    }
+
+    /**
+     * Find the values whose names match the query.
+     *
+     * @param query The words to search for.
+     * @param limit The maximum number of values to return.
+     * @return Up to limit matching values, sorted by name. If there are more matches, the ones
+     *     returned are those with the alphabetically first matching words.
+     */
+    synchronized List<T> search(String query, int limit) {
+        String[] queryWords = words(query);
+        if (queryWords.length == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Look up the longest word, and check the others.
+        String longest = queryWords[0];
+        for (String word : queryWords) {
+            if (word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+
+        List<Entry<T>> matches = new ArrayList<Entry<T>>();
+        BitSet seen = new BitSet(mEntries.size());
+        candidates:
+        for (Postings postings : wordsStartingWith(longest).values()) {
+            for (int i = 0; i < postings.size; i++) {
+                int position = postings.positions[i];
+                if (seen.get(position)) {
+                    continue;
+                }
+                seen.set(position);
+
+                Entry<T> entry = mEntries.get(position);
+                if (entry != null && matchesAll(entry, queryWords)) {
+                    matches.add(entry);
+                    if (matches.size() == limit) {
+                        break candidates;
+                    }
+                }
+            }
+        }
+
+        Collections.sort(matches, mByName);
+        List<T> values = new ArrayList<T>(matches.size());
+        for (Entry<T> entry : matches) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    /**
+     * Remove all values from the index.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        mPositions.clear();
+        mWords.clear();
+    }
+
+    /**
+     * @return The number of values in the index.
+     */
+    synchronized int size() {
+        return mPositions.size();
+    }
+
+    private SortedMap<String, Postings> wordsStartingWith(String prefix) {
+        return mWords.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private static boolean matchesAll(Entry<?> entry, String[] queryWords) {
+        for (String queryWord : queryWords) {
+            boolean found = false;
+            for (String word : entry.words) {
+                if (word.startsWith(queryWord)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a name in to its distinct, normalised words. Anything that is not a letter or digit
+     * separates words.
+     */
+    static String[] words(String name) {
+        Set<String> words = new LinkedHashSet<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= name.length(); i++) {
+            char c = (i < name.length() ? name.charAt(i) : ' ');
+            if (Character.isLetterOrDigit(c)) {
+                word.append(fold(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * @return The character in lower case, without accent if it is a Latin-1 letter.
+     */
+    private static char fold(char c) {
+        if (c >= '\u00c0' && c <= '\u00ff') {
+            return LATIN1_FOLDED.charAt(c - '\u00c0');
+        }
+        return Character.toLowerCase(c);
+    }
+}
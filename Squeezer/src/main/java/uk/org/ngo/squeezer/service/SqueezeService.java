@@ -17,7 +17,6 @@
 package uk.org.ngo.squeezer.service;
 
 import android.annotation.TargetApi;
-import android.app.DownloadManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -33,26 +32,28 @@ import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Environment;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
-import android.util.Base64;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.RemoteViews;
 
-import com.crashlytics.android.Crashlytics;
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicReference;
@@ -66,6 +67,8 @@ import uk.org.ngo.squeezer.Squeezer;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.BaseActivity;
 import uk.org.ngo.squeezer.framework.FilterItem;
+import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.ListPageCache;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.itemlist.PluginItemListActivity;
@@ -85,10 +88,13 @@ import uk.org.ngo.squeezer.model.PluginItem;
 import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.model.Year;
 import uk.org.ngo.squeezer.service.event.ConnectionChanged;
+import uk.org.ngo.squeezer.service.event.DownloadProgressChanged;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.service.event.LibraryChanged;
 import uk.org.ngo.squeezer.service.event.MusicChanged;
 import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
 import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateDiff;
 import uk.org.ngo.squeezer.service.event.PlayersChanged;
 import uk.org.ngo.squeezer.service.event.SongTimeChanged;
 import uk.org.ngo.squeezer.util.ImageFetcher;
@@ -102,6 +108,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
     private static final int PLAYBACKSERVICE_STATUS = 1;
 
+    private static final int DOWNLOAD_STATUS = 2;
+
     /** {@link java.util.regex.Pattern} that splits strings on spaces. */
     private static final Pattern mSpaceSplitPattern = Pattern.compile(" ");
 
@@ -158,7 +166,26 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         callbacks.remove(item);
     }
 
-    final CliClient cli = new CliClient(mEventBus);
+    /** Client for the server, using the protocol chosen in the preferences. */
+    volatile IClient cli;
+
+    /** Pages of the music library that have been browsed, see {@link LibraryIndex}. */
+    private LibraryIndex mLibraryIndex;
+
+    /** Downloads songs, null before Gingerbread. */
+    @Nullable private DownloadEngine mDownloadEngine;
+
+    /** Instant search of the library items seen so far, see {@link LibrarySearch}. */
+    private final LibrarySearch mLibrarySearch = new LibrarySearch();
+
+    /** Number of items in a page of a list. */
+    private int mPageSize;
+
+    /** Whether to talk to the server with JSON-RPC instead of the CLI. */
+    boolean mUseJsonClient;
+
+    /** Limit on the total rate of the downloads, in bytes per second, 0 for no limit. */
+    private long mDownloadRateLimit;
 
     /**
      * Is scrobbling enabled?
@@ -190,6 +217,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     private static final String ACTION_PLAY = "uk.org.ngo.squeezer.service.ACTION_PLAY";
     private static final String ACTION_PAUSE = "uk.org.ngo.squeezer.service.ACTION_PAUSE";
     private static final String ACTION_CLOSE = "uk.org.ngo.squeezer.service.ACTION_CLOSE";
+    static final String ACTION_CANCEL_DOWNLOADS = "uk.org.ngo.squeezer.service.ACTION_CANCEL_DOWNLOADS";
 
     /**
      * Thrown when the service is asked to send a command to the server before the server
@@ -212,6 +240,13 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         nm.cancel(PLAYBACKSERVICE_STATUS);
 
         cachePreferences();
+        cli = createClient();
+        mPageSize = getResources().getInteger(R.integer.PageSize);
+        mLibraryIndex = new LibraryIndex(this, mPageSize, mLibrarySearch);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            mDownloadEngine = new DownloadEngine(this, mEventBus);
+            mDownloadEngine.setBandwidthLimiter(BandwidthLimiter.create(mDownloadRateLimit));
+        }
 
         setWifiLock(((WifiManager) getSystemService(Context.WIFI_SERVICE)).createWifiLock(
                 WifiManager.WIFI_MODE_FULL, "Squeezer_WifiLock"));
@@ -234,6 +269,10 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                     squeezeService.pause();
                 } else if (intent.getAction().equals(ACTION_CLOSE)) {
                     squeezeService.disconnect();
+                } else if (intent.getAction().equals(ACTION_CANCEL_DOWNLOADS)) {
+                    if (mDownloadEngine != null) {
+                        mDownloadEngine.cancelAll();
+                    }
                 }
             }
         } catch(Exception e) {
@@ -251,6 +290,20 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         mFadeInSecs = preferences.getInt(Preferences.KEY_FADE_IN_SECS, 0);
         mShowNotificationWhenNotPlaying = preferences
                 .getBoolean(Preferences.KEY_NOTIFY_OF_CONNECTION, false);
+        mUseJsonClient = preferences.getBoolean(Preferences.KEY_CLIENT_JSON, false);
+        try {
+            mDownloadRateLimit = Long.parseLong(
+                    preferences.getString(Preferences.KEY_DOWNLOAD_RATE_LIMIT, "0"));
+        } catch (NumberFormatException e) {
+            mDownloadRateLimit = 0;
+        }
+    }
+
+    /**
+     * @return A new client for the protocol chosen in the preferences.
+     */
+    private IClient createClient() {
+        return mUseJsonClient ? new JsonClient(mEventBus) : new CliClient(mEventBus);
     }
 
     @Override
@@ -276,6 +329,10 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         super.onDestroy();
         disconnect();
         mEventBus.unregister(this);
+        mLibraryIndex.close();
+        if (mDownloadEngine != null) {
+            mDownloadEngine.shutdown();
+        }
     }
 
     void disconnect() {
@@ -409,7 +466,9 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         Player activePlayer = this.mActivePlayer.get();
 
         if (mEventBus.hasSubscriberForEvent(PlayerStateChanged.class) ||
-                (mEventBus.hasSubscriberForEvent(SongTimeChanged.class) && player.equals(activePlayer))) {
+                ((mEventBus.hasSubscriberForEvent(PlayerStateDiff.class)
+                        || mEventBus.hasSubscriberForEvent(SongTimeChanged.class))
+                        && player.equals(activePlayer))) {
             if (player.equals(activePlayer)) {
                 // If it's the active player then get second-to-second updates.
                 return PlayerState.NOTIFY_REAL_TIME;
@@ -577,7 +636,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                             builder.setLargeIcon(bitmap);
                             nm.notify(PLAYBACKSERVICE_STATUS, builder.build());
                         }
-                    });
+                    }, ImageWorker.PRIORITY_NOTIFICATION);
         } else {
             NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
 
@@ -659,6 +718,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     public void onEvent(ConnectionChanged event) {
         if (event.connectionState == ConnectionState.DISCONNECTED) {
             mPlayers.clear();
+            ListPageCache.getInstance().clear();
             mEventBus.removeAllStickyEvents();
             mActivePlayer.set(null);
             mHandshakeComplete = false;
@@ -671,6 +731,11 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         strings();
     }
 
+    public void onEvent(LibraryChanged event) {
+        mLibraryIndex.onLibraryChanged(cli, event.lastScan);
+        ImageFetcher.getInstance(this).onLibraryChanged(event.lastScan);
+    }
+
     public void onEvent(MusicChanged event) {
         if (event.player.equals(mActivePlayer.get())) {
             updateOngoingNotification();
@@ -712,13 +777,17 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         cli.sendCommandImmediately("getstring " + ServerString.values()[0].name());
     }
 
-    /** A download request will be passed to the download manager for each song called back to this */
+    /** The songs called back to this are passed to the download engine, a page at a time */
     private final IServiceItemListCallback<Song> songDownloadCallback = new IServiceItemListCallback<Song>() {
         @Override
         public void onItemsReceived(int count, int start, Map<String, String> parameters, List<Song> items, Class<Song> dataType) {
+            List<DownloadEngine.Request> requests = new ArrayList<DownloadEngine.Request>(items.size());
             for (Song item : items) {
-                downloadSong(item.getDownloadUrl(), item.getName(), item.getUrl());
+                if (!item.isRemote()) {
+                    addDownloadRequest(requests, item.getDownloadUrl(), item.getName(), item.getUrl());
+                }
             }
+            downloadSongs(requests);
         }
 
         @Override
@@ -730,14 +799,20 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     /**
      * For each item called to this:
      * If it is a folder: recursive lookup items in the folder
-     * If is is a track: Enqueue a download request to the download manager
+     * If is is a track: Download it, together with the other tracks of the page
      */
     private final IServiceItemListCallback<MusicFolderItem> musicFolderDownloadCallback = new IServiceItemListCallback<MusicFolderItem>() {
         @Override
         public void onItemsReceived(int count, int start, Map<String, String> parameters, List<MusicFolderItem> items, Class<MusicFolderItem> dataType) {
+            List<DownloadEngine.Request> requests = new ArrayList<DownloadEngine.Request>(items.size());
             for (MusicFolderItem item : items) {
-                squeezeService.downloadItem(item);
+                if ("track".equals(item.getType())) {
+                    addDownloadRequest(requests, item.getDownloadUrl(), item.getName(), item.getUrl());
+                } else {
+                    squeezeService.downloadItem(item);
+                }
             }
+            downloadSongs(requests);
         }
 
         @Override
@@ -746,37 +821,133 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         }
     };
 
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
     private void downloadSong(@NonNull Uri url, String title, @NonNull Uri serverUrl) {
-        if (url.equals(Uri.EMPTY)) {
-            return;
+        List<DownloadEngine.Request> requests = new ArrayList<DownloadEngine.Request>(1);
+        addDownloadRequest(requests, url, title, serverUrl);
+        downloadSongs(requests);
+    }
+
+    private void addDownloadRequest(List<DownloadEngine.Request> requests, @NonNull Uri url,
+            String title, @NonNull Uri serverUrl) {
+        if (!url.equals(Uri.EMPTY) && !serverUrl.equals(Uri.EMPTY)) {
+            requests.add(new DownloadEngine.Request(url, title, getLocalFile(serverUrl)));
         }
+    }
 
-        // If running on Gingerbread or greater use the Download Manager
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            DownloadManager downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-            DownloadDatabase downloadDatabase = new DownloadDatabase(this);
-            String localPath = getLocalFile(serverUrl);
-            String tempFile = UUID.randomUUID().toString();
-            String credentials = mUsername + ":" + mPassword;
-            String base64EncodedCredentials = Base64.encodeToString(credentials.getBytes(), Base64.NO_WRAP);
-            DownloadManager.Request request = new DownloadManager.Request(url)
-                    .setTitle(title)
-                    .setDestinationInExternalFilesDir(this, Environment.DIRECTORY_MUSIC, tempFile)
-                    .setVisibleInDownloadsUi(false)
-                    .addRequestHeader("Authorization", "Basic " + base64EncodedCredentials);
-            long downloadId = downloadManager.enqueue(request);
-
-            Crashlytics.log("Registering new download");
-            Crashlytics.log("downloadId: " + downloadId);
-            Crashlytics.log("tempFile: " + tempFile);
-            Crashlytics.log("localPath: " + localPath);
-
-            if (!downloadDatabase.registerDownload(downloadId, tempFile, localPath)) {
-                Crashlytics.log(Log.WARN, TAG, "Could not register download entry for: " + downloadId);
-                downloadManager.remove(downloadId);
+    /**
+     * Lists a music folder and the folders in it, and passes the tracks to the download engine
+     * to sync. When the whole folder is listed, the downloaded songs that were not listed are
+     * deleted, if that was asked for.
+     */
+    private class FolderSync implements IServiceItemListCallback<MusicFolderItem> {
+        /** Path of the folder, relative to the music folder on the device. */
+        private final String mFolderPath;
+
+        private final boolean mDeleteRemoved;
+
+        /** Local paths of the tracks listed so far. */
+        private final Set<String> mListedPaths = new HashSet<String>();
+
+        /** Number of folders that are not completely listed yet. */
+        private int mPendingFolders;
+
+        FolderSync(@NonNull MusicFolderItem folder, boolean deleteRemoved) {
+            String folderPath = getLocalFile(folder.getUrl());
+            mFolderPath = folderPath.endsWith("/")
+                    ? folderPath.substring(0, folderPath.length() - 1) : folderPath;
+            mDeleteRemoved = deleteRemoved;
+        }
+
+        synchronized void list(MusicFolderItem folder) {
+            mPendingFolders++;
+            squeezeService.musicFolders(-1, folder, this);
+        }
+
+        @Override
+        public synchronized void onItemsReceived(int count, int start, Map<String, String> parameters, List<MusicFolderItem> items, Class<MusicFolderItem> dataType) {
+            List<DownloadEngine.Request> requests = new ArrayList<DownloadEngine.Request>(items.size());
+            for (MusicFolderItem item : items) {
+                if ("track".equals(item.getType())) {
+                    Uri url = item.getUrl();
+                    if (!url.equals(Uri.EMPTY) && !item.getDownloadUrl().equals(Uri.EMPTY)) {
+                        String localPath = getLocalFile(url);
+                        mListedPaths.add(localPath);
+                        requests.add(new DownloadEngine.Request(item.getDownloadUrl(),
+                                item.getName(), localPath, true));
+                    }
+                } else if ("folder".equals(item.getType())) {
+                    list(item);
+                }
+            }
+            downloadSongs(requests);
+
+            // The pages of a full list arrive in order.
+            if (start + items.size() >= count && --mPendingFolders == 0 && mDeleteRemoved) {
+                mDownloadEngine.deleteRemoved(mFolderPath, new HashSet<String>(mListedPaths));
             }
         }
+
+        @Override
+        public Object getClient() {
+            return this;
+        }
+    }
+
+    /**
+     * Pass the songs to the download engine, which needs Gingerbread or greater.
+     */
+    private void downloadSongs(List<DownloadEngine.Request> requests) {
+        if (mDownloadEngine == null || requests.isEmpty()) {
+            return;
+        }
+
+        String authorization = null;
+        if (mUsername != null && mUsername.length() > 0) {
+            authorization = "Basic " + BaseEncoding.base64().encode(
+                    (mUsername + ":" + (mPassword == null ? "" : mPassword)).getBytes(Charsets.UTF_8));
+        }
+        mDownloadEngine.enqueue(requests, authorization);
+    }
+
+    /**
+     * Shows the progress of the downloads in a notification. Posted from a download thread.
+     */
+    public void onEvent(DownloadProgressChanged event) {
+        NotificationManagerCompat nm = NotificationManagerCompat.from(this);
+        int files = event.fileCount;
+        int completed = event.completedCount;
+        int failed = event.failedCount;
+
+        if (event.isDone() && failed == 0) {
+            nm.cancel(DOWNLOAD_STATUS);
+            return;
+        }
+
+        Intent cancelDownloads = new Intent(this, CancelDownloadsActivity.class);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setCategory(NotificationCompat.CATEGORY_PROGRESS);
+
+        if (event.isDone()) {
+            builder.setSmallIcon(android.R.drawable.stat_notify_error)
+                    .setContentTitle(getString(R.string.download_failed, failed, files))
+                    .setAutoCancel(true)
+                    .setContentIntent(PendingIntent.getActivity(this, 0, new Intent(), 0));
+        } else {
+            String rate = Formatter.formatShortFileSize(this, event.bytesPerSecond);
+            long secondsLeft = event.secondsLeft;
+            builder.setOngoing(true)
+                    .setOnlyAlertOnce(true)
+                    .setContentTitle(getString(R.string.downloading,
+                            Math.min(completed + failed + 1, files), files))
+                    .setContentText(secondsLeft < 0
+                            ? getString(R.string.download_rate, rate)
+                            : getString(R.string.download_rate_time_left, rate,
+                                    DateUtils.formatElapsedTime(secondsLeft)))
+                    .setProgress(files, completed + failed, false)
+                    .setContentIntent(PendingIntent.getActivity(this, 0, cancelDownloads, 0));
+        }
+        nm.notify(DOWNLOAD_STATUS, builder.build());
     }
 
     /**
@@ -1293,6 +1464,22 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                 disconnect();
                 return;
             }
+
+            if (Preferences.KEY_DOWNLOAD_RATE_LIMIT.equals(key)) {
+                if (mDownloadEngine != null) {
+                    mDownloadEngine.setBandwidthLimiter(
+                            BandwidthLimiter.create(mDownloadRateLimit));
+                }
+                return;
+            }
+
+            // A different protocol needs a new client, and a new connection.
+            if (Preferences.KEY_CLIENT_JSON.equals(key)) {
+                SqueezeService.this.disconnect();
+                cli = createClient();
+                cli.initialize();
+                return;
+            }
         }
 
 
@@ -1411,7 +1598,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             for (FilterItem filter : filters)
                 if (filter != null)
                     parameters.add(filter.getFilterParameter());
-            cli.requestItems("albums", start, parameters, callback);
+            mLibraryIndex.requestItems(cli, "albums", start, parameters, callback,
+                    Album.class, Album.CREATOR);
         }
 
 
@@ -1428,7 +1616,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             for (FilterItem filter : filters)
                 if (filter != null)
                     parameters.add(filter.getFilterParameter());
-            cli.requestItems("artists", start, parameters, callback);
+            mLibraryIndex.requestItems(cli, "artists", start, parameters, callback,
+                    Artist.class, Artist.CREATOR);
         }
 
         /* Start an async fetch of the SqueezeboxServer's years */
@@ -1450,7 +1639,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             if (searchString != null && searchString.length() > 0) {
                 parameters.add("search:" + searchString);
             }
-            cli.requestItems("genres", start, parameters, callback);
+            mLibraryIndex.requestItems(cli, "genres", start, parameters, callback,
+                    Genre.class, Genre.CREATOR);
         }
 
         /**
@@ -1497,7 +1687,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             for (FilterItem filter : filters)
                 if (filter != null)
                     parameters.add(filter.getFilterParameter());
-            cli.requestItems("songs", start, parameters, callback);
+            mLibraryIndex.requestItems(cli, "songs", start, parameters, callback,
+                    Song.class, Song.CREATOR);
         }
 
         /* Start an async fetch of the SqueezeboxServer's current playlist */
@@ -1579,19 +1770,51 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
         /* Start an asynchronous search of the SqueezeboxServer's library */
         @Override
-        public void search(int start, String searchString, IServiceItemListCallback itemListCallback) throws HandshakeNotCompleteException {
+        public void search(final int start, final String searchString, final IServiceItemListCallback itemListCallback) throws HandshakeNotCompleteException {
             if (!mHandshakeComplete) {
                 throw new HandshakeNotCompleteException("Handshake with server has not completed.");
             }
 
-            AlbumViewDialog.AlbumsSortOrder albumSortOrder = AlbumViewDialog.AlbumsSortOrder
+            final AlbumViewDialog.AlbumsSortOrder albumSortOrder = AlbumViewDialog.AlbumsSortOrder
                     .valueOf(
                             preferredAlbumSort());
 
-            artists(itemListCallback, start, searchString);
-            albums(itemListCallback, start, albumSortOrder.name().replace("__", ""), searchString);
-            genres(start, searchString, itemListCallback);
-            songs(itemListCallback, start, SongViewDialog.SongsSortOrder.title.name(), searchString);
+            // Show the matches among the items seen so far straight away, then let the server
+            // fill in the rest. The server is asked after the local results are delivered, so
+            // they can't overwrite the server's results.
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (start == 0) {
+                        searchLocally(Artist.class, searchString, itemListCallback);
+                        searchLocally(Album.class, searchString, itemListCallback);
+                        searchLocally(Genre.class, searchString, itemListCallback);
+                        searchLocally(Song.class, searchString, itemListCallback);
+                    }
+
+                    try {
+                        artists(itemListCallback, start, searchString);
+                        albums(itemListCallback, start, albumSortOrder.name().replace("__", ""), searchString);
+                        genres(start, searchString, itemListCallback);
+                        songs(itemListCallback, start, SongViewDialog.SongsSortOrder.title.name(), searchString);
+                    } catch (HandshakeNotCompleteException e) {
+                        // Disconnected since the search was started.
+                    }
+                }
+            });
+        }
+
+        /**
+         * Give the callback the items of the given type that the {@link LibrarySearch} finds for
+         * the search string, as the first page of results.
+         */
+        private <T extends Item> void searchLocally(Class<T> dataType, String searchString,
+                                                    IServiceItemListCallback<T> callback) {
+            List<T> items = mLibrarySearch.search(dataType, searchString, mPageSize);
+            if (!items.isEmpty()) {
+                callback.onItemsReceived(items.size(), 0, new HashMap<String, String>(), items,
+                        dataType);
+            }
         }
 
         /* Start an asynchronous fetch of the squeezeservers radio type plugins */
@@ -1652,6 +1875,17 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                 songs(songDownloadCallback, -1, SongViewDialog.SongsSortOrder.title.name(), null, item);
             }
         }
+
+        @Override
+        public void syncMusicFolder(MusicFolderItem item) throws HandshakeNotCompleteException {
+            if (mDownloadEngine == null || item.getUrl().equals(Uri.EMPTY)) {
+                return;
+            }
+
+            boolean deleteRemoved = getSharedPreferences(Preferences.NAME, MODE_PRIVATE)
+                    .getBoolean(Preferences.KEY_SYNC_DELETE_REMOVED, false);
+            new FolderSync(item, deleteRemoved).list(item);
+        }
     }
 
     /**
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.service.event.MusicChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateDiff;
+import uk.org.ngo.squeezer.service.event.PowerStatusChanged;
+import uk.org.ngo.squeezer.service.event.RepeatStatusChanged;
+import uk.org.ngo.squeezer.service.event.ShuffleStatusChanged;
+import uk.org.ngo.squeezer.service.event.SongTimeChanged;
+
+/**
+ * Merges the status changes of each player into one {@link PlayerStateDiff} per frame.
+ * <p>
+ * With real time status updates from several players, posting an event for every aspect of
+ * every status line floods the main thread. Instead, changes are collected with
+ * {@link #add(Player, int, boolean, boolean)}, and {@link #flush()} posts a single
+ * {@link PlayerStateDiff} for each player that changed, followed by the older per aspect events
+ * for subscribers that still use them.
+ * <p>
+ * This class is thread safe. Changes may be added from any thread, and are posted from the
+ * thread that calls {@link #flush()}.
+ */
+class StatusEventCoalescer {
+
+    /** How long changes are collected before they are posted. */
+    static final long FRAME_MILLIS = 16;
+
+    private final EventBus mEventBus;
+
+    /** Pending changes, by player ID, in the order the players first changed. */
+    private final Map<String, PendingChanges> mPending = new LinkedHashMap<String, PendingChanges>();
+
+    private static class PendingChanges {
+        final Player player;
+
+        int changes;
+
+        boolean initialShuffleStatus;
+
+        boolean initialRepeatStatus;
+
+        PendingChanges(Player player) {
+            this.player = player;
+        }
+    }
+
+    StatusEventCoalescer(EventBus eventBus) {
+        mEventBus = eventBus;
+    }
+
+    /**
+     * Record changes to a player's state.
+     *
+     * @param player The player that changed.
+     * @param changes What changed, a combination of the <code>CHANGED_*</code> flags in
+     *     {@link PlayerStateDiff}.
+     * @param unknownShuffleStatus Whether the shuffle status was unknown before this change.
+     * @param unknownRepeatStatus Whether the repeat status was unknown before this change.
+     * @return True if these are the first changes since the last {@link #flush()}, and the caller
+     *     must arrange for it to be called.
+     */
+    synchronized boolean add(Player player, @PlayerStateDiff.Changes int changes,
+            boolean unknownShuffleStatus, boolean unknownRepeatStatus) {
+        if (changes == 0) {
+            return false;
+        }
+
+        boolean first = mPending.isEmpty();
+        PendingChanges pending = mPending.get(player.getId());
+        if (pending == null) {
+            pending = new PendingChanges(player);
+            mPending.put(player.getId(), pending);
+        }
+
+        // The first change in the frame decides whether the status was previously unknown.
+        if ((changes & PlayerStateDiff.CHANGED_SHUFFLE) != 0
+                && (pending.changes & PlayerStateDiff.CHANGED_SHUFFLE) == 0) {
+            pending.initialShuffleStatus = unknownShuffleStatus;
+        }
+        if ((changes & PlayerStateDiff.CHANGED_REPEAT) != 0
+                && (pending.changes & PlayerStateDiff.CHANGED_REPEAT) == 0) {
+            pending.initialRepeatStatus = unknownRepeatStatus;
+        }
+        pending.changes |= changes;
+        return first;
+    }
+
+    /**
+     * Post the pending changes.
+     */
+    void flush() {
+        List<PendingChanges> pendingChanges;
+        synchronized (this) {
+            pendingChanges = new ArrayList<PendingChanges>(mPending.values());
+            mPending.clear();
+        }
+
+        for (PendingChanges pending : pendingChanges) {
+            post(pending);
+        }
+    }
+
+    private void post(PendingChanges pending) {
+        Player player = pending.player;
+        PlayerState playerState = player.getPlayerState();
+        PlayerStateDiff diff = new PlayerStateDiff(player, playerState, pending.changes,
+                pending.initialShuffleStatus, pending.initialRepeatStatus);
+
+        mEventBus.post(diff);
+
+        // Events for subscribers that have not moved to PlayerStateDiff. Apart from MusicChanged,
+        // which is sticky, they are only built if someone is listening.
+        if (diff.changed(PlayerStateDiff.PLAYER_STATE_CHANGES)
+                && mEventBus.hasSubscriberForEvent(PlayerStateChanged.class)) {
+            mEventBus.post(new PlayerStateChanged(player, playerState));
+        }
+
+        if (diff.changed(PlayerStateDiff.CHANGED_POWER)
+                && mEventBus.hasSubscriberForEvent(PowerStatusChanged.class)) {
+            mEventBus.post(new PowerStatusChanged(
+                    player,
+                    !playerState.isPoweredOn(),
+                    !playerState.isPoweredOn()));
+        }
+
+        if (diff.changed(PlayerStateDiff.CHANGED_SONG)) {
+            mEventBus.postSticky(new MusicChanged(player, playerState));
+        }
+
+        if (diff.changed(PlayerStateDiff.CHANGED_SHUFFLE)
+                && mEventBus.hasSubscriberForEvent(ShuffleStatusChanged.class)) {
+            mEventBus.post(new ShuffleStatusChanged(player,
+                    diff.initialShuffleStatus, playerState.getShuffleStatus()));
+        }
+
+        if (diff.changed(PlayerStateDiff.CHANGED_REPEAT)
+                && mEventBus.hasSubscriberForEvent(RepeatStatusChanged.class)) {
+            mEventBus.post(new RepeatStatusChanged(player,
+                    diff.initialRepeatStatus, playerState.getRepeatStatus()));
+        }
+
+        if (diff.changed(PlayerStateDiff.CHANGED_SONG_TIME)
+                && mEventBus.hasSubscriberForEvent(SongTimeChanged.class)) {
+            mEventBus.post(new SongTimeChanged(player,
+                    playerState.getCurrentTimeSecond(),
+                    playerState.getCurrentSongDuration()));
+        }
+    }
+}
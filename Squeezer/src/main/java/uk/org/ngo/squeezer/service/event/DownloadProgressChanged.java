@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service.event;
+
+/**
+ * Event sent while songs are downloading, and when they are all done.
+ * <p>
+ * The counts cover the songs asked for since the downloads were last all done.
+ */
+public class DownloadProgressChanged {
+    /** The number of songs being downloaded. */
+    public final int fileCount;
+
+    /** The number of songs that have been downloaded. */
+    public final int completedCount;
+
+    /** The number of songs that could not be downloaded. */
+    public final int failedCount;
+
+    /** The number of bytes downloaded. */
+    public final long bytes;
+
+    /** The recent download rate. */
+    public final long bytesPerSecond;
+
+    /** The estimated number of seconds until the downloads are done, or -1 if not known yet. */
+    public final long secondsLeft;
+
+    public DownloadProgressChanged(int fileCount, int completedCount, int failedCount, long bytes,
+                                   long bytesPerSecond, long secondsLeft) {
+        this.fileCount = fileCount;
+        this.completedCount = completedCount;
+        this.failedCount = failedCount;
+        this.bytes = bytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.secondsLeft = secondsLeft;
+    }
+
+    /**
+     * @return True if every song has been downloaded or failed.
+     */
+    public boolean isDone() {
+        return completedCount + failedCount >= fileCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadProgressChanged{" + completedCount + "+" + failedCount + "/" + fileCount +
+                ", " + bytes + " bytes, " + bytesPerSecond + " bytes/s, " + secondsLeft + " s left}";
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service.event;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Event sent when the server's music library may have changed, either because a rescan was
+ * seen, or because the time of the last scan was learnt.
+ */
+public class LibraryChanged {
+    /**
+     * The time of the last completed scan, as reported by the server, or null if a rescan is
+     * in progress or has just finished.
+     */
+    @Nullable
+    public final String lastScan;
+
+    public LibraryChanged(@Nullable String lastScan) {
+        this.lastScan = lastScan;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryChanged{lastScan='" + lastScan + "'}";
+    }
+}
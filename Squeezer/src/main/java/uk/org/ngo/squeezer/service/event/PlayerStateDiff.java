@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service.event;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.PlayerState;
+
+/**
+ * Event sent at most once per frame for each player whose state has changed, with a bitmask of
+ * everything that changed since the previous event.
+ * <p>
+ * Subscribers that want several aspects of the player state should prefer this to the separate
+ * {@link PlayerStateChanged}, {@link PowerStatusChanged}, {@link MusicChanged},
+ * {@link ShuffleStatusChanged}, {@link RepeatStatusChanged} and {@link SongTimeChanged} events.
+ */
+public class PlayerStateDiff {
+    @IntDef(flag=true, value={
+            CHANGED_POWER, CHANGED_SHUFFLE, CHANGED_REPEAT, CHANGED_PLAYLIST, CHANGED_SLEEP,
+            CHANGED_SONG, CHANGED_SONG_TIME, CHANGED_VOLUME, CHANGED_SYNC, CHANGED_SUBSCRIPTION
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Changes {}
+    public static final int CHANGED_POWER = 1;
+    public static final int CHANGED_SHUFFLE = 1 << 1;
+    public static final int CHANGED_REPEAT = 1 << 2;
+    /** The current playlist or the position in it. */
+    public static final int CHANGED_PLAYLIST = 1 << 3;
+    /** The sleep time or the time left until sleep. */
+    public static final int CHANGED_SLEEP = 1 << 4;
+    public static final int CHANGED_SONG = 1 << 5;
+    /** The position in the song or the song's duration. */
+    public static final int CHANGED_SONG_TIME = 1 << 6;
+    public static final int CHANGED_VOLUME = 1 << 7;
+    /** The sync master or the sync slaves. */
+    public static final int CHANGED_SYNC = 1 << 8;
+    public static final int CHANGED_SUBSCRIPTION = 1 << 9;
+
+    /** Changes that are reported by {@link PlayerStateChanged}. */
+    public static final int PLAYER_STATE_CHANGES = CHANGED_POWER | CHANGED_SLEEP | CHANGED_VOLUME
+            | CHANGED_SONG | CHANGED_SYNC;
+
+    /** The player with changed state. */
+    @NonNull public final Player player;
+
+    /** The player's new state. */
+    @NonNull public final PlayerState playerState;
+
+    /** What changed. */
+    @Changes public final int changes;
+
+    /** True if the shuffle status changed, and the previous shuffle status was unknown. */
+    public final boolean initialShuffleStatus;
+
+    /** True if the repeat status changed, and the previous repeat status was unknown. */
+    public final boolean initialRepeatStatus;
+
+    public PlayerStateDiff(@NonNull Player player, @NonNull PlayerState playerState,
+            @Changes int changes, boolean initialShuffleStatus, boolean initialRepeatStatus) {
+        this.player = player;
+        this.playerState = playerState;
+        this.changes = changes;
+        this.initialShuffleStatus = initialShuffleStatus;
+        this.initialRepeatStatus = initialRepeatStatus;
+    }
+
+    /**
+     * @param changes The changes to test for.
+     *
+     * @return True if any of the given changes happened.
+     */
+    public boolean changed(@Changes int changes) {
+        return (this.changes & changes) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerStateDiff{player=" + player + ", changes=0x" + Integer.toHexString(changes)
+                + '}';
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of bitmaps that have left the memory cache, for decodes to reuse through {@link
+ * BitmapFactory.Options#inBitmap} rather than allocate a new bitmap each time.
+ * <p>
+ * Bitmaps are kept by the size of their allocation. From API 19 a decode can reuse any
+ * mutable bitmap that is at least as large as the decoded image; before that the bitmap has to
+ * have the same size and configuration as the decoded image, and the image can't be sampled
+ * down. To avoid pinning large bitmaps for small images, a bitmap is only reused for an image
+ * that needs at least half of it.
+ * <p>
+ * A bitmap that is still displayed when it leaves the memory cache is only added once it is no
+ * longer displayed, see {@link RecyclingBitmapDrawable}.
+ * <p>
+ * This class is thread safe.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class BitmapPool {
+
+    /** The maximum number of bytes of bitmaps the pool holds. */
+    private final int mMaxSize;
+
+    private int mSize;
+
+    /** Pooled bitmaps by allocation size. */
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBitmapsBySize =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+
+    /** Pooled bitmaps, least recently added first. */
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<Bitmap>();
+
+    /**
+     * The number of drawables displaying each bitmap. Weak, so a bitmap whose view went away
+     * without being cleared isn't kept alive.
+     */
+    private final WeakHashMap<Bitmap, Integer> mDisplayCounts = new WeakHashMap<Bitmap, Integer>();
+
+    /** Bitmaps that left the memory cache while displayed, to add once they no longer are. */
+    private final WeakHashMap<Bitmap, Boolean> mEvictedWhileDisplayed =
+            new WeakHashMap<Bitmap, Boolean>();
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mReusedBytes;
+
+    /**
+     * @param maxSize The maximum number of bytes of bitmaps to hold. The least recently added
+     *     bitmaps are dropped to stay under it.
+     */
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds a bitmap that has left the memory cache to the pool, if it can be reused. If it is
+     * still displayed, it is added once it no longer is.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (mDisplayCounts.containsKey(bitmap)) {
+            mEvictedWhileDisplayed.put(bitmap, Boolean.TRUE);
+            return;
+        }
+        add(bitmap);
+    }
+
+    /**
+     * Counts a drawable displaying a bitmap in or out, see {@link RecyclingBitmapDrawable}.
+     */
+    synchronized void setDisplayed(Bitmap bitmap, boolean displayed) {
+        Integer count = mDisplayCounts.get(bitmap);
+        if (displayed) {
+            mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+            // It left the memory cache between being looked up and displayed.
+            if (mBitmaps.remove(bitmap)) {
+                removeBySize(bitmap);
+                mEvictedWhileDisplayed.put(bitmap, Boolean.TRUE);
+            }
+        } else if (count != null) {
+            if (count > 1) {
+                mDisplayCounts.put(bitmap, count - 1);
+            } else {
+                mDisplayCounts.remove(bitmap);
+                if (mEvictedWhileDisplayed.remove(bitmap) != null) {
+                    add(bitmap);
+                }
+            }
+        }
+    }
+
+    private void add(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        int size = ImageCache.getBitmapSize(bitmap);
+        if (size > mMaxSize / 2 || mBitmaps.contains(bitmap)) {
+            return;
+        }
+
+        LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(size);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            mBitmapsBySize.put(size, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mBitmaps.add(bitmap);
+        mSize += size;
+
+        // Drop the least recently added bitmaps, the GC takes it from here.
+        Iterator<Bitmap> oldest = mBitmaps.iterator();
+        while (mSize > mMaxSize && oldest.hasNext()) {
+            Bitmap dropped = oldest.next();
+            oldest.remove();
+            removeBySize(dropped);
+        }
+    }
+
+    /**
+     * Sets {@link BitmapFactory.Options#inBitmap} to a pooled bitmap the decode can reuse, if
+     * there is one. The options must be for a decode of a known image size, with the sample
+     * size set.
+     *
+     * @return True if a bitmap was found.
+     */
+    synchronized boolean addInBitmapOptions(BitmapFactory.Options options) {
+        Bitmap bitmap = findReusable(options);
+        if (bitmap == null) {
+            mMissCount++;
+            return false;
+        }
+
+        mBitmaps.remove(bitmap);
+        removeBySize(bitmap);
+        mHitCount++;
+        mReusedBytes += ImageCache.getBitmapSize(bitmap);
+        options.inBitmap = bitmap;
+        return true;
+    }
+
+    @Nullable
+    private Bitmap findReusable(BitmapFactory.Options options) {
+        Bitmap.Config config = options.inPreferredConfig != null ?
+                options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+
+        if (UIUtils.hasKitKat()) {
+            // The decoder only samples by powers of two, so the image may be larger than
+            // inSampleSize suggests.
+            int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+            int width = (options.outWidth + sampleSize - 1) / sampleSize;
+            int height = (options.outHeight + sampleSize - 1) / sampleSize;
+            int needed = width * height * getBytesPerPixel(config);
+
+            Map.Entry<Integer, LinkedList<Bitmap>> entry = mBitmapsBySize.ceilingEntry(needed);
+            if (entry != null && entry.getKey() <= needed * 2) {
+                return entry.getValue().getLast();
+            }
+            return null;
+        }
+
+        if (options.inSampleSize > 1) {
+            return null;
+        }
+        LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(
+                options.outWidth * options.outHeight * getBytesPerPixel(config));
+        if (bitmaps != null) {
+            for (Bitmap bitmap : bitmaps) {
+                if (bitmap.getWidth() == options.outWidth
+                        && bitmap.getHeight() == options.outHeight
+                        && bitmap.getConfig() == config) {
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void removeBySize(Bitmap bitmap) {
+        int size = ImageCache.getBitmapSize(bitmap);
+        LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(size);
+        if (bitmaps != null) {
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                mBitmapsBySize.remove(size);
+            }
+        }
+        mSize -= size;
+    }
+
+    /**
+     * Empties the pool.
+     */
+    synchronized void clear() {
+        mBitmapsBySize.clear();
+        mBitmaps.clear();
+        mEvictedWhileDisplayed.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of bytes of bitmaps in the pool.
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of decodes that were given a bitmap to reuse.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return The number of decodes that had to allocate a new bitmap.
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The number of bytes of bitmaps that decodes reused rather than allocated.
+     */
+    synchronized long getReusedBytes() {
+        return mReusedBytes;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
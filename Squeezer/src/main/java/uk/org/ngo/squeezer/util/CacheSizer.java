@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import uk.org.ngo.squeezer.BuildConfig;
+
+/**
+ * Chooses the sizes of an {@link ImageCache}, and adapts them to the device.
+ * <p>
+ * The memory cache starts as a share of the memory class that depends on the class of device.
+ * Running low on memory shrinks the share for the next start. Being put in the background
+ * without having run low lets it grow back.
+ * <p>
+ * The disk cache starts at {@link #MIN_DISK_CACHE_SIZE}. It grows by half each time it is
+ * found to have evicted entries, while free space allows, and shrinks when the free space does.
+ * <p>
+ * The learned sizes are kept in their own shared preferences.
+ */
+class CacheSizer {
+    private static final String TAG = "CacheSizer";
+
+    private static final String PREFERENCES_NAME = "uk.org.ngo.squeezer.cachesizes";
+
+    private static final String KEY_MEMORY_FRACTION = "memoryFraction";
+
+    private static final String KEY_DISK_CACHE_SIZE = "diskCacheSize";
+
+    /** Share of the memory class for the memory cache of low RAM devices. */
+    static final float LOW_RAM_MEMORY_FRACTION = 0.08f;
+
+    /** Share of the memory class for the memory cache of most devices. */
+    static final float DEFAULT_MEMORY_FRACTION = 0.12f;
+
+    /** Share of the memory class for the memory cache of devices with a large memory class. */
+    static final float LARGE_MEMORY_FRACTION = 0.2f;
+
+    /** Memory class, in megabytes, from which a device counts as having a large one. */
+    static final int LARGE_MEMORY_CLASS = 128;
+
+    /** Memory class, in megabytes, up to which a device counts as low RAM. */
+    static final int LOW_RAM_MEMORY_CLASS = 32;
+
+    /** The memory cache never shrinks below this share of the memory class. */
+    static final float MIN_MEMORY_FRACTION = 0.05f;
+
+    /** The memory cache never grows beyond this share of the memory class. */
+    static final float MAX_MEMORY_FRACTION = 0.25f;
+
+    static final int MIN_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+
+    static final int MAX_DISK_CACHE_SIZE = 1024 * 1024 * 256; // 256MB
+
+    /** The disk cache never takes more than this share of the space it could use. */
+    static final int DISK_SPACE_DIVISOR = 10;
+
+    private final SharedPreferences mPreferences;
+
+    /** Memory class of the device, in megabytes. */
+    private final int mMemoryClass;
+
+    private final boolean mLowRam;
+
+    /** Whether memory ran low since the process started. */
+    private boolean mMemoryPressure;
+
+    CacheSizer(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mMemoryClass = activityManager.getMemoryClass();
+        mLowRam = isLowRamDevice(activityManager) || mMemoryClass <= LOW_RAM_MEMORY_CLASS;
+    }
+
+    @TargetApi(19)
+    private static boolean isLowRamDevice(ActivityManager activityManager) {
+        return UIUtils.hasKitKat() && activityManager.isLowRamDevice();
+    }
+
+    /**
+     * @return The size of the memory cache, in bytes.
+     */
+    int getMemCacheSize() {
+        return getMemCacheSize(getMemoryFraction(), mMemoryClass);
+    }
+
+    /**
+     * @return The learned size of the disk cache, in bytes.
+     */
+    int getDiskCacheSize() {
+        return mPreferences.getInt(KEY_DISK_CACHE_SIZE, MIN_DISK_CACHE_SIZE);
+    }
+
+    private float getMemoryFraction() {
+        return mPreferences.getFloat(KEY_MEMORY_FRACTION, getDefaultMemoryFraction(mMemoryClass,
+                mLowRam));
+    }
+
+    /**
+     * Learn from the system asking for memory back.
+     *
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
+     */
+    void onTrimMemory(int level) {
+        float fraction = getMemoryFraction();
+        float learned = learnMemoryFraction(fraction, level, mMemoryPressure, mLowRam);
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level == ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            mMemoryPressure = true;
+        }
+
+        if (learned != fraction) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Memory cache share for next start: " + learned);
+            }
+            mPreferences.edit().putFloat(KEY_MEMORY_FRACTION, learned).commit();
+        }
+    }
+
+    /**
+     * Learn the size of the disk cache from how it is used.
+     *
+     * @param maxSize The current maximum size of the disk cache, in bytes.
+     * @param used The bytes in the disk cache.
+     * @param usable The free space where the disk cache is, in bytes.
+     * @param evicted Whether the disk cache evicted entries since it was last sized.
+     * @return The new maximum size of the disk cache, in bytes.
+     */
+    int onDiskCacheUsage(int maxSize, long used, long usable, boolean evicted) {
+        int size = chooseDiskCacheSize(maxSize, used, usable, evicted);
+        if (size != maxSize) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Disk cache size: " + size);
+            }
+            mPreferences.edit().putInt(KEY_DISK_CACHE_SIZE, size).commit();
+        }
+        return size;
+    }
+
+    /**
+     * @param memoryClass The memory class of the device, in megabytes.
+     * @param lowRam Whether the device is a low RAM device.
+     * @return The share of the memory class to start the memory cache at.
+     */
+    static float getDefaultMemoryFraction(int memoryClass, boolean lowRam) {
+        if (lowRam) {
+            return LOW_RAM_MEMORY_FRACTION;
+        }
+        if (memoryClass >= LARGE_MEMORY_CLASS) {
+            return LARGE_MEMORY_FRACTION;
+        }
+        return DEFAULT_MEMORY_FRACTION;
+    }
+
+    /**
+     * @return The size of the memory cache in bytes, for a share of the memory class.
+     */
+    static int getMemCacheSize(float fraction, int memoryClass) {
+        return Math.round(fraction * memoryClass * 1024 * 1024);
+    }
+
+    /**
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
+     * @param hadMemoryPressure Whether memory ran low since the process started.
+     * @return The share of the memory class for the memory cache to start at next time.
+     */
+    static float learnMemoryFraction(float fraction, int level, boolean hadMemoryPressure,
+                                     boolean lowRam) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return Math.max(MIN_MEMORY_FRACTION, fraction * 3 / 4);
+
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                if (hadMemoryPressure) {
+                    return fraction;
+                }
+                float max = (lowRam ? DEFAULT_MEMORY_FRACTION : MAX_MEMORY_FRACTION);
+                return Math.max(fraction, Math.min(max, fraction * 9 / 8));
+
+            default:
+                return fraction;
+        }
+    }
+
+    /**
+     * @param maxSize The maximum size of the memory cache, in bytes.
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
+     * @return The size, in bytes, to trim the memory cache to. The more the system needs memory
+     *     back, the less is kept.
+     */
+    static int getTrimmedMemCacheSize(int maxSize, int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return maxSize / 4;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return maxSize / 2;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Only the UI went away, it may well come straight back.
+            return maxSize;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return maxSize / 4;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return maxSize / 2;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return maxSize * 3 / 4;
+        }
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize The current maximum size of the disk cache, in bytes.
+     * @param used The bytes in the disk cache.
+     * @param usable The free space where the disk cache is, in bytes.
+     * @param evicted Whether the disk cache evicted entries since it was last sized.
+     * @return The maximum size for the disk cache, in bytes.
+     */
+    static int chooseDiskCacheSize(int maxSize, long used, long usable, boolean evicted) {
+        long size = (evicted ? maxSize + maxSize / 2L : maxSize);
+        size = Math.min(MAX_DISK_CACHE_SIZE, Math.max(MIN_DISK_CACHE_SIZE, size));
+
+        // The space the cache takes now is space it could use.
+        long limit = (usable + used) / DISK_SPACE_DIVISOR;
+        return (int) Math.min(size, limit);
+    }
+}
@@ -18,11 +18,11 @@ package uk.org.ngo.squeezer.util;
 
 import android.support.annotation.NonNull;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -157,14 +157,22 @@ public final class DiskLruCache implements Closeable {
     private final File journalFile;
     private final File journalFileTmp;
     private final int appVersion;
-    private final long maxSize;
+    private long maxSize;
     private final int valueCount;
     private long size = 0;
+    private long evictionCount;
     private Writer journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /** Number of READ lines batched before they are written to the journal. */
+    private static final int READ_BATCH_SIZE = 64;
+
+    /** READ lines not yet written to the journal. */
+    private final StringBuilder pendingReads = new StringBuilder();
+    private int pendingReadCount;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -271,6 +279,18 @@ public final class DiskLruCache implements Closeable {
     /** This cache uses a single background thread to evict entries. */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Callable<Void> writePendingReadsCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    return null; // closed
+                }
+                writePendingReads();
+            }
+            return null;
+        }
+    };
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
@@ -339,37 +359,112 @@ public final class DiskLruCache implements Closeable {
         return cache;
     }
 
+    /**
+     * Reads the journal. The whole journal is read in one go and split in to
+     * lines in memory, rather than a byte at a time; compaction keeps it to
+     * a few lines per entry.
+     */
     private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        JournalReader in = new JournalReader(readFileFully(journalFile));
+        String magic = in.readLine();
+        String version = in.readLine();
+        String appVersionString = in.readLine();
+        String valueCountString = in.readLine();
+        String blank = in.readLine();
+        if (!MAGIC.equals(magic)
+                || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)
+                || !Integer.toString(valueCount).equals(valueCountString)
+                || !"".equals(blank)) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+        }
+
+        while (true) {
+            try {
+                readJournalLine(in.readLine());
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the contents of {@code file}.
+     */
+    static byte[] readFileFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
         try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
-            }
-
-            while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
+            long length = in.getChannel().size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("journal too large: " + length);
+            }
+            byte[] data = new byte[(int) length];
+            int count = 0;
+            while (count < data.length) {
+                int read = in.read(data, count, data.length - count);
+                if (read == -1) {
                     break;
                 }
+                count += read;
+            }
+            if (count < data.length) {
+                byte[] truncated = new byte[count];
+                System.arraycopy(data, 0, truncated, 0, count);
+                data = truncated;
             }
+            return data;
         } finally {
             closeQuietly(in);
         }
     }
 
+    /**
+     * Splits the bytes of a journal in to ASCII lines, like {@link
+     * #readAsciiLine(InputStream)} does for a stream.
+     */
+    static final class JournalReader {
+        private final byte[] data;
+        private int position;
+        private char[] chars = new char[80];
+
+        JournalReader(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * Returns the characters up to but not including the next "\r\n",
+         * or "\n".
+         *
+         * @throws java.io.EOFException if the data is exhausted before the
+         *     next newline character.
+         */
+        String readLine() throws EOFException {
+            int end = position;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            if (end == data.length) {
+                throw new EOFException();
+            }
+
+            int length = end - position;
+            if (length > 0 && data[end - 1] == '\r') {
+                length--;
+            }
+            if (length > chars.length) {
+                chars = new char[length];
+            }
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (data[position + i] & 0xff);
+            }
+            position = end + 1;
+            return new String(chars, 0, length);
+        }
+    }
+
     private void readJournalLine(String line) throws IOException {
-        String[] parts = line.split(" ");
+        String[] parts = splitJournalLine(line);
         if (parts.length < 2) {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -400,6 +495,33 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Splits a journal line at its spaces, like {@code line.split(" ")}
+     * but without a regular expression.
+     */
+    private static String[] splitJournalLine(String line) {
+        // Like split(), drop trailing empty parts.
+        int length = line.length();
+        while (length > 0 && line.charAt(length - 1) == ' ') {
+            length--;
+        }
+        line = line.substring(0, length);
+
+        int count = 1;
+        for (int i = line.indexOf(' '); i != -1; i = line.indexOf(' ', i + 1)) {
+            count++;
+        }
+        String[] parts = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int space = line.indexOf(' ', start);
+            parts[i] = line.substring(start, space);
+            start = space + 1;
+        }
+        parts[count - 1] = line.substring(start);
+        return parts;
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
@@ -432,6 +554,11 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
+        // The new journal lists the entries in LRU order, which already
+        // accounts for the pending reads.
+        pendingReads.setLength(0);
+        pendingReadCount = 0;
+
         Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
         writer.write(MAGIC);
         writer.write("\n");
@@ -474,40 +601,92 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
-            return null;
-        }
 
         /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
+         * The files are opened without holding the lock, so that reads of
+         * different entries proceed in parallel. Open all streams eagerly to
+         * guarantee that we see a single published snapshot: if an edit was
+         * committed while they were being opened they may come from different
+         * edits, so the streams are discarded and opened again.
          */
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        while (true) {
+            Entry entry;
+            long sequenceNumber;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if (entry == null || !entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+
+            FileInputStream[] ins = new FileInputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually, or the entry was removed
+                closeAll(ins);
+                return null;
+            }
+
+            synchronized (this) {
+                if (journalWriter == null) {
+                    closeAll(ins);
+                    throw new IllegalStateException("cache is closed");
+                }
+                if (lruEntries.get(key) != entry) {
+                    closeAll(ins);
+                    return null;
+                }
+                if (entry.sequenceNumber != sequenceNumber) {
+                    closeAll(ins);
+                    continue;
+                }
+
+                redundantOpCount++;
+                recordRead(key);
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+
+            return new Snapshot(key, sequenceNumber, ins);
         }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    /**
+     * Adds a READ line to the batch of pending reads. Batches are written to
+     * the journal by the background thread, or before any other line is
+     * written, so that the journal keeps the order of operations.
+     */
+    private void recordRead(String key) {
+        pendingReads.append(READ).append(' ').append(key).append('\n');
+        pendingReadCount++;
+        if (pendingReadCount == READ_BATCH_SIZE) {
+            executorService.submit(writePendingReadsCallable);
+        }
+    }
+
+    /**
+     * Writes the batch of pending READ lines to the journal.
+     */
+    private void writePendingReads() throws IOException {
+        if (pendingReadCount > 0) {
+            journalWriter.append(pendingReads);
+            pendingReads.setLength(0);
+            pendingReadCount = 0;
         }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    private static void closeAll(FileInputStream[] ins) {
+        for (InputStream in : ins) {
+            closeQuietly(in);
+        }
     }
 
     /**
@@ -537,6 +716,7 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // flush the journal before creating files to prevent file leaks
+        writePendingReads();
         journalWriter.write(DIRTY + ' ' + key + '\n');
         journalWriter.flush();
         return editor;
@@ -553,10 +733,19 @@ public final class DiskLruCache implements Closeable {
      * Returns the maximum number of bytes that this cache should use to store
      * its data.
      */
-    public long maxSize() {
+    public synchronized long maxSize() {
         return maxSize;
     }
 
+    /**
+     * Changes the maximum number of bytes the cache can store and queues a job
+     * to trim the existing store, if necessary.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        executorService.submit(cleanupCallable);
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
@@ -566,6 +755,14 @@ public final class DiskLruCache implements Closeable {
         return size;
     }
 
+    /**
+     * Returns the number of entries that have been removed to keep the cache
+     * within its max size.
+     */
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
     private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
         if (entry.currentEditor != editor) {
@@ -600,6 +797,7 @@ public final class DiskLruCache implements Closeable {
 
         redundantOpCount++;
         entry.currentEditor = null;
+        writePendingReads();
         if (entry.readable | success) {
             entry.readable = true;
             journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
@@ -650,6 +848,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
+        writePendingReads();
         journalWriter.append(REMOVE + ' ' + key + '\n');
         lruEntries.remove(key);
 
@@ -679,6 +878,7 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
+        writePendingReads();
         journalWriter.flush();
     }
 
@@ -696,6 +896,7 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
+        writePendingReads();
         journalWriter.close();
         journalWriter = null;
     }
@@ -705,6 +906,7 @@ public final class DiskLruCache implements Closeable {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
             final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
             remove(toEvict.getKey());
+            evictionCount++;
         }
     }
 
@@ -735,9 +937,9 @@ public final class DiskLruCache implements Closeable {
     public final class Snapshot implements Closeable {
         private final String key;
         private final long sequenceNumber;
-        private final InputStream[] ins;
+        private final FileInputStream[] ins;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, FileInputStream[] ins) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
@@ -759,6 +961,16 @@ public final class DiskLruCache implements Closeable {
             return ins[index];
         }
 
+        /**
+         * Returns the file descriptor of the value for {@code index}, for
+         * readers such as {@code BitmapFactory.decodeFileDescriptor} that can
+         * read the file directly instead of from a copy on the heap. The
+         * descriptor is valid until this snapshot is closed.
+         */
+        public FileDescriptor getFileDescriptor(int index) throws IOException {
+            return ins[index].getFD();
+        }
+
         /**
          * Returns the string value for {@code index}.
          */
@@ -826,6 +1038,23 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Sets the value at {@code index} to the contents of {@code file},
+         * by moving it. The file must be on the same filesystem as the cache.
+         */
+        public void setFile(int index, File file) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                File dirty = entry.getDirtyFile(index);
+                deleteIfExists(dirty);
+                if (!file.renameTo(dirty)) {
+                    throw new IOException("failed to move " + file + " to " + dirty);
+                }
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import com.google.common.base.Strings;
+
+import java.net.HttpURLConnection;
+
+import javax.annotation.Nullable;
+
+/**
+ * The validators of a cached HTTP response, used to check with the server whether the response
+ * is still current with a conditional GET, which costs a 304 rather than the whole response if
+ * it is.
+ * <p>
+ * They are kept as the metadata of the disk cache entry, see {@link
+ * ImageCache#DISK_CACHE_METADATA_INDEX}, along with the library generation they were validated
+ * in, so the entry is revalidated after a rescan rather than when it is a day old.
+ */
+class HttpValidators {
+
+    /** How long a response is used before it is revalidated. */
+    static final long REVALIDATE_AFTER_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** The ETag header of the response, or null. */
+    @Nullable
+    final String etag;
+
+    /** The Last-Modified header of the response, or null. */
+    @Nullable
+    final String lastModified;
+
+    /** When the response was fetched or last revalidated, in milliseconds since the epoch. */
+    final long validatedAt;
+
+    /**
+     * The library generation when the response was fetched or last revalidated, see {@link
+     * ImageFetcher#onLibraryChanged(String)}.
+     */
+    final int generation;
+
+    HttpValidators(@Nullable String etag, @Nullable String lastModified, long validatedAt,
+            int generation) {
+        this.etag = Strings.emptyToNull(etag);
+        this.lastModified = Strings.emptyToNull(lastModified);
+        this.validatedAt = validatedAt;
+        this.generation = generation;
+    }
+
+    /**
+     * @param connection A connection that has received a response.
+     * @param now The current time, in milliseconds since the epoch.
+     * @param generation The current library generation.
+     * @return The validators of the response.
+     */
+    static HttpValidators fromResponse(HttpURLConnection connection, long now, int generation) {
+        return new HttpValidators(connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"), now, generation);
+    }
+
+    /**
+     * @param metadata Validators as written by {@link #toString()}. Entries written before the
+     *     generation was kept are of the first generation.
+     * @return The validators, or null if there are none.
+     */
+    @Nullable
+    static HttpValidators parse(@Nullable String metadata) {
+        if (metadata == null || metadata.length() == 0) {
+            return null;
+        }
+
+        String[] fields = metadata.split("\n", -1);
+        if (fields.length != 3 && fields.length != 4) {
+            return null;
+        }
+        try {
+            return new HttpValidators(fields[0], fields[1], Long.parseLong(fields[2]),
+                    fields.length == 4 ? Integer.parseInt(fields[3]) : 0);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if the server gave anything to revalidate the response with.
+     */
+    boolean canRevalidate() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * @param now The current time, in milliseconds since the epoch.
+     * @param generation The current library generation.
+     * @return True if the response should be revalidated before it is used, because it is old,
+     *     or was validated before the library last changed.
+     */
+    boolean isStale(long now, int generation) {
+        return canRevalidate() && (now - validatedAt > REVALIDATE_AFTER_MILLIS || now < validatedAt
+                || this.generation != generation);
+    }
+
+    /**
+     * Make a request conditional on the response having changed.
+     *
+     * @param connection A connection that has not been connected yet.
+     */
+    void addTo(HttpURLConnection connection) {
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * @param now The current time, in milliseconds since the epoch.
+     * @param generation The current library generation.
+     * @return The same validators, revalidated now.
+     */
+    HttpValidators revalidated(long now, int generation) {
+        return new HttpValidators(etag, lastModified, now, generation);
+    }
+
+    /**
+     * @return The validators in the form read by {@link #parse(String)}.
+     */
+    @Override
+    public String toString() {
+        return Strings.nullToEmpty(etag) + "\n" + Strings.nullToEmpty(lastModified) + "\n"
+                + validatedAt + "\n" + generation;
+    }
+}
@@ -34,9 +34,11 @@ import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import uk.org.ngo.squeezer.BuildConfig;
 
@@ -58,7 +60,23 @@ public class ImageCache {
 
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
 
-    private static final int DISK_CACHE_INDEX = 0;
+    /** Index of the value in disk cache entries. */
+    static final int DISK_CACHE_INDEX = 0;
+
+    /**
+     * Index of the metadata of the value in disk cache entries, e.g. what is needed to revalidate
+     * it with the server. Empty if there is none.
+     */
+    static final int DISK_CACHE_METADATA_INDEX = 1;
+
+    /** Number of values in disk cache entries. */
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+
+    /**
+     * Version of the disk cache layout. A cache written with a different version is discarded
+     * when it is opened.
+     */
+    private static final int DISK_CACHE_VERSION = 2;
 
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
@@ -73,12 +91,31 @@ public class ImageCache {
 
     private LruCache<String, Bitmap> mMemoryCache;
 
+    /** Bitmaps evicted from the memory cache, for reuse. Only on API 11 and later. */
+    @Nullable
+    private BitmapPool mBitmapPool;
+
     private ImageCacheParams mCacheParams;
 
+    /** Guards {@link #mDiskCacheStarting}. */
     private final Object mDiskCacheLock = new Object();
 
     private boolean mDiskCacheStarting = true;
 
+    /**
+     * Reads and writes of the disk cache hold the read lock, so they run in parallel. Opening,
+     * clearing and closing the disk cache hold the write lock.
+     */
+    private final ReadWriteLock mDiskCacheAccessLock = new ReentrantReadWriteLock();
+
+    /** Number of locks that writes to the disk cache are spread over, by key. */
+    private static final int DISK_CACHE_STRIPES = 16;
+
+    private final Object[] mDiskCacheStripes = new Object[DISK_CACHE_STRIPES];
+
+    /** Evictions from the disk cache when it was last sized, see {@link #resizeDiskCache()}. */
+    private long mDiskCacheEvictions;
+
     private static final HashFunction mHashFunction = Hashing.md5();
 
     /**
@@ -135,15 +172,34 @@ public class ImageCache {
     private void init(ImageCacheParams cacheParams) {
         mCacheParams = cacheParams;
 
+        for (int i = 0; i < DISK_CACHE_STRIPES; i++) {
+            mDiskCacheStripes[i] = new Object();
+        }
+
         // Set up memory cache
         if (mCacheParams.memoryCacheEnabled) {
             if (BuildConfig.DEBUG) {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
+            // Bitmaps that leave the memory cache can be reused by later decodes once they are
+            // no longer displayed, see BitmapFactory.Options#inBitmap and
+            // RecyclingBitmapDrawable.
+            if (UIUtils.hasHoneycomb()) {
+                mBitmapPool = new BitmapPool(mCacheParams.memCacheSize / 4);
+            }
+
             mMemoryCache = new LruCache<String, Bitmap>(mCacheParams.memCacheSize) {
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
-                    return (bitmap.getRowBytes() * bitmap.getHeight());
+                    return getBitmapSize(bitmap);
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                            Bitmap newValue) {
+                    if (evicted && mBitmapPool != null) {
+                        mBitmapPool.put(oldValue);
+                    }
                 }
             };
         }
@@ -164,20 +220,27 @@ public class ImageCache {
      */
     public void initDiskCache() {
         // Set up disk cache
-        synchronized (mDiskCacheLock) {
+        mDiskCacheAccessLock.writeLock().lock();
+        try {
             if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
                 File diskCacheDir = mCacheParams.diskCacheDir;
                 if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
                     if (!diskCacheDir.exists()) {
                         diskCacheDir.mkdirs();
                     }
-                    if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
+                    // An adaptive cache is sized to the free space once it is open.
+                    int neededSpace = (mCacheParams.sizer != null
+                            ? CacheSizer.MIN_DISK_CACHE_SIZE : mCacheParams.diskCacheSize);
+                    if (getUsableSpace(diskCacheDir) > neededSpace) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, DISK_CACHE_VERSION,
+                                    DISK_CACHE_VALUE_COUNT, mCacheParams.diskCacheSize);
+                            deleteDiskCacheTempFiles(diskCacheDir);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized in " + diskCacheDir);
                             }
+                            mDiskCacheEvictions = 0;
+                            resizeDiskCache();
                         } catch (final IOException e) {
                             mCacheParams.diskCacheDir = null;
                             Log.e(TAG, "initDiskCache - " + e);
@@ -185,11 +248,36 @@ public class ImageCache {
                     }
                 }
             }
-            mDiskCacheStarting = false;
-            mDiskCacheLock.notifyAll();
+            synchronized (mDiskCacheLock) {
+                mDiskCacheStarting = false;
+                mDiskCacheLock.notifyAll();
+            }
+        } finally {
+            mDiskCacheAccessLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Waits until the disk cache has been initialized, see {@link #initDiskCache()}.
+     */
+    private void awaitDiskCacheStarted() {
+        synchronized (mDiskCacheLock) {
+            while (mDiskCacheStarting) {
+                try {
+                    mDiskCacheLock.wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The lock that serialises writes of the given disk cache key.
+     */
+    private Object diskCacheStripe(String key) {
+        return mDiskCacheStripes[(key.hashCode() & 0x7fffffff) % DISK_CACHE_STRIPES];
+    }
+
     /**
      * Adds a bitmap to both memory and disk cache.
      *
@@ -233,38 +321,47 @@ public class ImageCache {
             return;
         }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            bitmap.compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
+        final String key = hashKeyForDisk(data);
+        mDiskCacheAccessLock.readLock().lock();
+        try {
+            // Writers of the same key are serialised, so only one of them does the work.
+            synchronized (diskCacheStripe(key)) {
+                // Add to disk cache
+                if (mDiskLruCache != null) {
+                    OutputStream out = null;
                     try {
-                        if (out != null) {
-                            out.close();
+                        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                        if (snapshot == null) {
+                            final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                            if (editor != null) {
+                                out = editor.newOutputStream(DISK_CACHE_INDEX);
+                                // Keep transparency, e.g. of plugin icons.
+                                bitmap.compress(bitmap.hasAlpha() ? CompressFormat.PNG :
+                                        mCacheParams.compressFormat,
+                                        mCacheParams.compressQuality, out);
+                                editor.set(DISK_CACHE_METADATA_INDEX, "");
+                                editor.commit();
+                                out.close();
+                            }
+                        } else {
+                            snapshot.close();
+                        }
+                    } catch (final IOException e) {
+                        Log.e(TAG, "addBitmapToCache - " + e);
+                    } catch (Exception e) {
+                        Log.e(TAG, "addBitmapToCache - " + e);
+                    } finally {
+                        try {
+                            if (out != null) {
+                                out.close();
+                            }
+                        } catch (IOException e) {
                         }
-                    } catch (IOException e) {
                     }
                 }
             }
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
         }
     }
 
@@ -279,37 +376,244 @@ public class ImageCache {
             return;
         }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            out.write(bytes);
-                            editor.commit();
-                            out.close();
+        final String key = hashKeyForDisk(data);
+        mDiskCacheAccessLock.readLock().lock();
+        try {
+            // Writers of the same key are serialised, so only one of them does the work.
+            synchronized (diskCacheStripe(key)) {
+                // Add to disk cache
+                if (mDiskLruCache != null) {
+                    OutputStream out = null;
+                    try {
+                        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                        if (snapshot == null) {
+                            final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                            if (editor != null) {
+                                out = editor.newOutputStream(DISK_CACHE_INDEX);
+                                out.write(bytes);
+                                editor.set(DISK_CACHE_METADATA_INDEX, "");
+                                editor.commit();
+                                out.close();
+                            }
+                        } else {
+                            snapshot.close();
+                        }
+                    } catch (final IOException e) {
+                        Log.e(TAG, "addBitmapToCache - " + e);
+                    } catch (Exception e) {
+                        Log.e(TAG, "addBitmapToCache - " + e);
+                    } finally {
+                        try {
+                            if (out != null) {
+                                out.close();
+                            }
+                        } catch (IOException e) {
                         }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
+                }
+            }
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the value of a disk cache entry, see {@link #writeToDiskCache(String, String,
+     * DiskCacheWriter)}.
+     */
+    public interface DiskCacheWriter {
+        /**
+         * Write the value.
+         *
+         * @param out Where to write the value to.
+         * @return True if the value was written in full, false to leave the entry unchanged.
+         * @throws IOException If the value could not be read from its source.
+         */
+        boolean write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Adds a value to the disk cache, or replaces it, streaming it in to a file rather than
+     * collecting it on the heap first.
+     * <p>
+     * The value is written to a temporary file without holding any of the disk cache locks, so
+     * a slow source doesn't hold up other writers, or closing and clearing the cache. The locks
+     * are only taken to move the file in to the cache.
+     *
+     * @param data Unique identifier for the value to store
+     * @param metadata Metadata for the value, see {@link #DISK_CACHE_METADATA_INDEX}
+     * @param writer Writes the value
+     * @return True if the value was stored, false if there is no disk cache or the writer failed
+     * @throws IOException If the writer threw an exception.
+     */
+    public boolean writeToDiskCache(String data, String metadata, DiskCacheWriter writer)
+            throws IOException {
+        final String key = hashKeyForDisk(data);
+        final File tempFile = createDiskCacheTempFile();
+        if (tempFile == null) {
+            return false;
+        }
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                if (!writer.write(out)) {
+                    return false;
+                }
+            } finally {
+                out.close();
+            }
+
+            mDiskCacheAccessLock.readLock().lock();
+            try {
+                // Writers of the same key are serialised, so they don't fail to get an editor.
+                synchronized (diskCacheStripe(key)) {
+                    if (mDiskLruCache == null) {
+                        return false;
+                    }
+                    final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                    if (editor == null) {
+                        return false;
+                    }
+                    boolean committed = false;
+                    try {
+                        editor.setFile(DISK_CACHE_INDEX, tempFile);
+                        editor.set(DISK_CACHE_METADATA_INDEX, metadata);
+                        editor.commit();
+                        committed = true;
+                    } finally {
+                        if (!committed) {
+                            editor.abort();
+                        }
+                    }
+                    return true;
+                }
+            } finally {
+                mDiskCacheAccessLock.readLock().unlock();
+            }
+        } finally {
+            // Already gone if it was moved in to the cache.
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * @return A new file to write a value to before it is moved in to the disk cache, or null
+     *     if there is no disk cache.
+     */
+    @Nullable
+    private File createDiskCacheTempFile() throws IOException {
+        File diskCacheDir = mCacheParams.diskCacheDir;
+        if (diskCacheDir == null || !hasDiskCache()) {
+            return null;
+        }
+        File tempDir = getDiskCacheTempDir(diskCacheDir);
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+        return File.createTempFile("value", null, tempDir);
+    }
+
+    /**
+     * Deletes what was left behind by writes that didn't finish, see {@link
+     * #writeToDiskCache(String, String, DiskCacheWriter)}.
+     */
+    private static void deleteDiskCacheTempFiles(File diskCacheDir) {
+        File[] files = getDiskCacheTempDir(diskCacheDir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return The directory for values that are being written to the disk cache. It is next to
+     *     the cache rather than in it, as the cache owns its directory, and on the same
+     *     filesystem, so values can be moved in to the cache.
+     */
+    private static File getDiskCacheTempDir(File diskCacheDir) {
+        return new File(diskCacheDir.getParentFile(), diskCacheDir.getName() + ".tmp");
+    }
+
+    /**
+     * Replaces the metadata of an entry in the disk cache, keeping its value.
+     *
+     * @param data Unique identifier for the entry
+     * @param metadata The new metadata
+     */
+    public void setDiskCacheMetadata(String data, String metadata) {
+        final String key = hashKeyForDisk(data);
+        awaitDiskCacheStarted();
+        mDiskCacheAccessLock.readLock().lock();
+        try {
+            synchronized (diskCacheStripe(key)) {
+                if (mDiskLruCache != null) {
                     try {
-                        if (out != null) {
-                            out.close();
+                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                        if (editor != null) {
+                            editor.set(DISK_CACHE_METADATA_INDEX, metadata);
+                            editor.commit();
                         }
-                    } catch (IOException e) {
+                    } catch (final IOException e) {
+                        Log.e(TAG, "setDiskCacheMetadata - " + e);
                     }
                 }
             }
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The metadata of the entry in a disk cache snapshot, see {@link
+     *     #DISK_CACHE_METADATA_INDEX}, or null if it could not be read.
+     */
+    @Nullable
+    public static String getDiskCacheMetadata(DiskLruCache.Snapshot snapshot) {
+        try {
+            return snapshot.getString(DISK_CACHE_METADATA_INDEX);
+        } catch (IOException e) {
+            Log.e(TAG, "getDiskCacheMetadata - " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return True if there is a disk cache to add images to.
+     */
+    public boolean hasDiskCache() {
+        awaitDiskCacheStarted();
+        mDiskCacheAccessLock.readLock().lock();
+        try {
+            return mDiskLruCache != null && !mDiskLruCache.isClosed();
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add the sizes and eviction counts of the caches to a report, one per line. Doesn't wait
+     * for the disk cache, so it can be called from the main thread.
+     */
+    void appendStats(StringBuilder report) {
+        if (mMemoryCache != null) {
+            report.append("Memory cache: ").append(mMemoryCache.size() / 1024)
+                    .append(" of ").append(mMemoryCache.maxSize() / 1024)
+                    .append(" KB, ").append(mMemoryCache.evictionCount())
+                    .append(" evictions\n");
+        }
+
+        if (mDiskCacheAccessLock.readLock().tryLock()) {
+            try {
+                if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                    report.append("Disk cache: ").append(mDiskLruCache.size() / 1024)
+                            .append(" of ").append(mDiskLruCache.maxSize() / 1024)
+                            .append(" KB, ").append(mDiskLruCache.evictionCount())
+                            .append(" evictions\n");
+                }
+            } finally {
+                mDiskCacheAccessLock.readLock().unlock();
+            }
         }
     }
 
@@ -342,6 +646,15 @@ public class ImageCache {
         return bitmap;
     }
 
+    /**
+     * @return The pool of bitmaps evicted from the memory cache, or null before API 11, where
+     *     bitmaps can't be reused.
+     */
+    @Nullable
+    BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     /**
      * Get from disk cache.
      *
@@ -352,38 +665,31 @@ public class ImageCache {
     @Nullable
     public Bitmap getBitmapFromDiskCache(String data) {
         final String key = hashKeyForDisk(data);
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                }
-            }
+        awaitDiskCacheStarted();
+        mDiskCacheAccessLock.readLock().lock();
+        try {
             if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+                DiskLruCache.Snapshot snapshot = null;
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    snapshot = mDiskLruCache.get(key);
                     if (snapshot != null) {
                         if (BuildConfig.DEBUG) {
                             Log.d(TAG, "Disk cache hit");
                         }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            return BitmapFactory.decodeStream(inputStream);
-                        }
+                        return BitmapFactory.decodeStream(
+                                snapshot.getInputStream(DISK_CACHE_INDEX));
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "getBitmapFromDiskCache - " + e);
                 } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
+                    if (snapshot != null) {
+                        snapshot.close();
                     }
                 }
             }
             return null;
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
         }
     }
 
@@ -397,38 +703,63 @@ public class ImageCache {
     @Nullable
     public byte[] getBytesFromDiskCache(String data) {
         final String key = hashKeyForDisk(data);
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                }
-            }
+        awaitDiskCacheStarted();
+        mDiskCacheAccessLock.readLock().lock();
+        try {
             if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+                DiskLruCache.Snapshot snapshot = null;
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    snapshot = mDiskLruCache.get(key);
                     if (snapshot != null) {
                         if (BuildConfig.DEBUG) {
                             Log.d(TAG, "Disk cache hit");
                         }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            return ByteStreams.toByteArray(inputStream);
-                        }
+                        return ByteStreams.toByteArray(
+                                snapshot.getInputStream(DISK_CACHE_INDEX));
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "getBitmapFromDiskCache - " + e);
                 } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
+                    if (snapshot != null) {
+                        snapshot.close();
+                    }
+                }
+            }
+            return null;
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of an entry in the disk cache, so that its file can be read directly, e.g.
+     * with {@link DiskLruCache.Snapshot#getFileDescriptor(int)}, rather than copied to the heap
+     * first. The caller must close the snapshot.
+     *
+     * @param data Unique identifier for which item to get
+     *
+     * @return The snapshot of the entry in the cache, null otherwise
+     */
+    @Nullable
+    public DiskLruCache.Snapshot getSnapshotFromDiskCache(String data) {
+        final String key = hashKeyForDisk(data);
+        awaitDiskCacheStarted();
+        mDiskCacheAccessLock.readLock().lock();
+        try {
+            if (mDiskLruCache != null) {
+                try {
+                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    if (snapshot != null && BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
                     }
+                    return snapshot;
+                } catch (final IOException e) {
+                    Log.e(TAG, "getSnapshotFromDiskCache - " + e);
                 }
             }
             return null;
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
         }
     }
 
@@ -439,8 +770,11 @@ public class ImageCache {
     public void clearCache() {
         clearMemoryCache();
 
-        synchronized (mDiskCacheLock) {
-            mDiskCacheStarting = true;
+        mDiskCacheAccessLock.writeLock().lock();
+        try {
+            synchronized (mDiskCacheLock) {
+                mDiskCacheStarting = true;
+            }
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
                     mDiskLruCache.delete();
@@ -453,6 +787,8 @@ public class ImageCache {
                 mDiskLruCache = null;
                 initDiskCache();
             }
+        } finally {
+            mDiskCacheAccessLock.writeLock().unlock();
         }
     }
 
@@ -461,6 +797,55 @@ public class ImageCache {
             mMemoryCache.evictAll();
             Log.d(TAG, "Memory cache cleared");
         }
+        // The bitmaps that were just evicted may still be displayed, and the memory is wanted
+        // back anyway.
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
+    }
+
+    /**
+     * Give memory back, depending on how badly the system needs it. The memory cache is trimmed
+     * in proportion, and the bitmaps kept for reuse are dropped.
+     *
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (mMemoryCache != null) {
+            int size = CacheSizer.getTrimmedMemCacheSize(mMemoryCache.maxSize(), level);
+            if (size < mMemoryCache.maxSize()) {
+                mMemoryCache.trimToSize(size);
+                if (mBitmapPool != null) {
+                    mBitmapPool.clear();
+                }
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Memory cache trimmed to " + size + " for level " + level);
+                }
+            }
+        }
+
+        if (mCacheParams.sizer != null) {
+            mCacheParams.sizer.onTrimMemory(level);
+        }
+    }
+
+    /**
+     * Resize an adaptive disk cache to how it is used and the free space. Must be called with
+     * a lock on the disk cache held.
+     */
+    private synchronized void resizeDiskCache() {
+        if (mCacheParams.sizer == null || mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            return;
+        }
+
+        long evictions = mDiskLruCache.evictionCount();
+        int maxSize = (int) mDiskLruCache.maxSize();
+        int size = mCacheParams.sizer.onDiskCacheUsage(maxSize, mDiskLruCache.size(),
+                getUsableSpace(mCacheParams.diskCacheDir), evictions > mDiskCacheEvictions);
+        mDiskCacheEvictions = evictions;
+        if (size != maxSize && size > 0) {
+            mDiskLruCache.setMaxSize(size);
+        }
     }
 
     /**
@@ -468,17 +853,21 @@ public class ImageCache {
      * access so this should not be executed on the main/UI thread.
      */
     public void flush() {
-        synchronized (mDiskCacheLock) {
+        mDiskCacheAccessLock.readLock().lock();
+        try {
             if (mDiskLruCache != null) {
                 try {
                     mDiskLruCache.flush();
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "Disk cache flushed");
                     }
+                    resizeDiskCache();
                 } catch (IOException e) {
                     Log.e(TAG, "flush - " + e);
                 }
             }
+        } finally {
+            mDiskCacheAccessLock.readLock().unlock();
         }
     }
 
@@ -487,7 +876,8 @@ public class ImageCache {
      * access so this should not be executed on the main/UI thread.
      */
     public void close() {
-        synchronized (mDiskCacheLock) {
+        mDiskCacheAccessLock.writeLock().lock();
+        try {
             if (mDiskLruCache != null) {
                 try {
                     if (!mDiskLruCache.isClosed()) {
@@ -501,6 +891,8 @@ public class ImageCache {
                     Log.e(TAG, "close - " + e);
                 }
             }
+        } finally {
+            mDiskCacheAccessLock.writeLock().unlock();
         }
     }
 
@@ -511,7 +903,11 @@ public class ImageCache {
 
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
 
-        public final int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+
+        /** Adapts the sizes of the caches to the device, if set. */
+        @Nullable
+        CacheSizer sizer;
 
         public File diskCacheDir;
 
@@ -554,6 +950,18 @@ public class ImageCache {
             memCacheSize = Math.round(percent * getMemoryClass(context) * 1024 * 1024);
         }
 
+        /**
+         * Sizes the caches for the device, and adapts the sizes to how they are used, see
+         * {@link CacheSizer}. Replaces {@link #setMemCacheSizePercent(Context, float)}.
+         *
+         * @param context Context to use to fetch the memory class and learned sizes
+         */
+        public void setAdaptiveSizes(Context context) {
+            sizer = new CacheSizer(context);
+            memCacheSize = sizer.getMemCacheSize();
+            diskCacheSize = sizer.getDiskCacheSize();
+        }
+
         private static int getMemoryClass(Context context) {
             return ((ActivityManager) context.getSystemService(
                     Context.ACTIVITY_SERVICE)).getMemoryClass();
@@ -590,14 +998,18 @@ public class ImageCache {
     }
 
     /**
-     * Get the size in bytes of a bitmap.
+     * Get the size in bytes of a bitmap. From API 19 this is the size of its allocation, which
+     * may be larger than its pixels need if it was reused for a smaller image.
      *
      * @param bitmap Bitmap to examine.
      *
      * @return size in bytes
      */
-    @TargetApi(12)
+    @TargetApi(19)
     public static int getBitmapSize(Bitmap bitmap) {
+        if (UIUtils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
         if (UIUtils.hasHoneycombMR1()) {
             return bitmap.getByteCount();
         }
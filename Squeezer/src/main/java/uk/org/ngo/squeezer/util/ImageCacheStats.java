@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts where the images an {@link ImageWorker} loads come from, and what loading them costs,
+ * so the sizes of the caches can be chosen from data.
+ * <p>
+ * Each image asked for is counted once, as served from the memory cache, the disk cache, the
+ * network, or failed. Decode times are kept in a histogram with power of two buckets.
+ * <p>
+ * This class is thread safe.
+ */
+public final class ImageCacheStats {
+
+    /** Upper bounds, exclusive, of the decode time buckets in milliseconds. The last bucket is
+     * open ended. */
+    static final long[] DECODE_BUCKET_MILLIS = {4, 8, 16, 32, 64, 128, 256};
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+
+    private final AtomicLong mDiskHits = new AtomicLong();
+
+    private final AtomicLong mNetworkLoads = new AtomicLong();
+
+    private final AtomicLong mFailures = new AtomicLong();
+
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+    private final AtomicLong mDecodeCount = new AtomicLong();
+
+    private final AtomicLong mDecodeMillis = new AtomicLong();
+
+    private final AtomicLongArray mDecodeHistogram =
+            new AtomicLongArray(DECODE_BUCKET_MILLIS.length + 1);
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    void recordMemoryHit() {
+        mMemoryHits.incrementAndGet();
+    }
+
+    void recordDiskHit() {
+        mDiskHits.incrementAndGet();
+    }
+
+    void recordNetworkLoad() {
+        mNetworkLoads.incrementAndGet();
+    }
+
+    void recordFailure() {
+        mFailures.incrementAndGet();
+    }
+
+    void recordBytesDownloaded(long bytes) {
+        mBytesDownloaded.addAndGet(bytes);
+    }
+
+    /**
+     * @param millis How long a decode took.
+     */
+    void recordDecode(long millis) {
+        mDecodeCount.incrementAndGet();
+        mDecodeMillis.addAndGet(millis);
+        mDecodeHistogram.incrementAndGet(getDecodeBucket(millis));
+    }
+
+    /**
+     * @param depth The number of loads waiting to run, as seen by a load that starts.
+     */
+    void recordQueueDepth(int depth) {
+        mQueueDepth.set(depth);
+        int max;
+        do {
+            max = mMaxQueueDepth.get();
+        } while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth));
+    }
+
+    /**
+     * @return The index of the histogram bucket for a decode time.
+     */
+    static int getDecodeBucket(long millis) {
+        for (int i = 0; i < DECODE_BUCKET_MILLIS.length; i++) {
+            if (millis < DECODE_BUCKET_MILLIS[i]) {
+                return i;
+            }
+        }
+        return DECODE_BUCKET_MILLIS.length;
+    }
+
+    /**
+     * @return The number of images asked for, whatever they were served from.
+     */
+    public long getRequestCount() {
+        return mMemoryHits.get() + mDiskHits.get() + mNetworkLoads.get() + mFailures.get();
+    }
+
+    public long getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    public long getNetworkLoadCount() {
+        return mNetworkLoads.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    public long getDecodeCount() {
+        return mDecodeCount.get();
+    }
+
+    /**
+     * @param bucket A bucket, from 0 to the length of {@link #DECODE_BUCKET_MILLIS}.
+     * @return The number of decodes that took as long as the bucket covers.
+     */
+    public long getDecodeHistogramCount(int bucket) {
+        return mDecodeHistogram.get(bucket);
+    }
+
+    /**
+     * @return The queue depth seen by the most recent load.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Start counting afresh, e.g. before trying different cache sizes.
+     */
+    public void reset() {
+        mMemoryHits.set(0);
+        mDiskHits.set(0);
+        mNetworkLoads.set(0);
+        mFailures.set(0);
+        mBytesDownloaded.set(0);
+        mDecodeCount.set(0);
+        mDecodeMillis.set(0);
+        for (int i = 0; i < mDecodeHistogram.length(); i++) {
+            mDecodeHistogram.set(i, 0);
+        }
+        mQueueDepth.set(0);
+        mMaxQueueDepth.set(0);
+    }
+
+    /**
+     * Add the counts to a report, one per line.
+     */
+    void appendTo(StringBuilder report) {
+        long requests = getRequestCount();
+        report.append("Requests: ").append(requests).append('\n');
+        appendRate(report, "Memory hits", mMemoryHits.get(), requests);
+        appendRate(report, "Disk hits", mDiskHits.get(), requests);
+        appendRate(report, "Network loads", mNetworkLoads.get(), requests);
+        appendRate(report, "Failures", mFailures.get(), requests);
+        report.append("Downloaded: ").append(mBytesDownloaded.get() / 1024).append(" KB\n");
+
+        long decodes = mDecodeCount.get();
+        report.append("Decodes: ").append(decodes);
+        if (decodes > 0) {
+            report.append(", mean ").append(mDecodeMillis.get() / decodes).append(" ms");
+        }
+        report.append('\n');
+        for (int i = 0; i <= DECODE_BUCKET_MILLIS.length; i++) {
+            report.append(i < DECODE_BUCKET_MILLIS.length
+                    ? "  < " + DECODE_BUCKET_MILLIS[i] + " ms: "
+                    : "  >= " + DECODE_BUCKET_MILLIS[i - 1] + " ms: ")
+                    .append(mDecodeHistogram.get(i)).append('\n');
+        }
+
+        report.append("Queue depth: ").append(mQueueDepth.get())
+                .append(", max ").append(mMaxQueueDepth.get()).append('\n');
+    }
+
+    private static void appendRate(StringBuilder report, String label, long count, long total) {
+        report.append(label).append(": ").append(count);
+        if (total > 0) {
+            report.append(String.format(Locale.US, " (%.1f%%)", 100f * count / total));
+        }
+        report.append('\n');
+    }
+}
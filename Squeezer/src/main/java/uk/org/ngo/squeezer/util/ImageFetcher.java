@@ -17,6 +17,7 @@
 package uk.org.ngo.squeezer.util;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.util.Log;
@@ -25,8 +26,11 @@ import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -40,8 +44,42 @@ public class ImageFetcher extends ImageWorker {
 
     private volatile static ImageFetcher sImageFetcher;
 
+    private static final String PREFERENCES_NAME = "uk.org.ngo.squeezer.artwork";
+
+    private static final String KEY_LIBRARY_GENERATION = "libraryGeneration";
+
+    private static final String KEY_LAST_SCAN = "lastScan";
+
+    private final SharedPreferences mPreferences;
+
+    /** Incremented when the server's library changes, see {@link #onLibraryChanged(String)}. */
+    private volatile int mLibraryGeneration;
+
     private ImageFetcher(Context context) {
         super(context);
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mLibraryGeneration = mPreferences.getInt(KEY_LIBRARY_GENERATION, 0);
+    }
+
+    /**
+     * Call this when the server's library may have changed. If it has, the memory cache is
+     * cleared, and the images in the disk cache are revalidated the next time they are used, so
+     * changed artwork is fetched again, and unchanged artwork costs a 304.
+     *
+     * @param lastScan The time of the server's last scan, or null if a scan was seen, see
+     *     {@link uk.org.ngo.squeezer.service.event.LibraryChanged#lastScan}.
+     */
+    public synchronized void onLibraryChanged(@Nullable String lastScan) {
+        if (lastScan != null && lastScan.equals(mPreferences.getString(KEY_LAST_SCAN, null))) {
+            return;
+        }
+
+        mLibraryGeneration++;
+        mPreferences.edit()
+                .putInt(KEY_LIBRARY_GENERATION, mLibraryGeneration)
+                .putString(KEY_LAST_SCAN, lastScan)
+                .commit();
+        clearMemoryCacheInternal();
     }
 
     /**
@@ -60,7 +98,7 @@ public class ImageFetcher extends ImageWorker {
                     sImageFetcher = new ImageFetcher(context);
                     sImageFetcher.setLoadingImage(R.drawable.icon_pending_artwork);
                     ImageCache.ImageCacheParams imageCacheParams = new ImageCache.ImageCacheParams(context, "artwork");
-                    imageCacheParams.setMemCacheSizePercent(context, 0.12f);
+                    imageCacheParams.setAdaptiveSizes(context);
                     sImageFetcher.addImageCache(imageCacheParams);
                 }
             }
@@ -69,14 +107,16 @@ public class ImageFetcher extends ImageWorker {
     }
 
     /**
-     * Call this in low memory situations. Clears the memory cache.
+     * Call this when the system asks for memory back. Trims the memory cache.
+     *
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
      */
-    public static void onLowMemory() {
+    public static void onTrimMemory(int level) {
         if (sImageFetcher == null) {
             return;
         }
 
-        sImageFetcher.clearMemoryCache();
+        sImageFetcher.trimMemory(level);
     }
 
     /**
@@ -103,22 +143,137 @@ public class ImageFetcher extends ImageWorker {
             urlConnection = (HttpURLConnection) url.openConnection();
             in = urlConnection.getInputStream();
             bytes = ByteStreams.toByteArray(in);
+            getStats().recordBytesDownloaded(bytes.length);
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadUrlToStream - " + data + e);
+            if (urlConnection != null) {
+                drainAndClose(urlConnection.getErrorStream());
+            }
         } finally {
+            // The connection is not disconnected, so it can be kept alive and reused for the
+            // next image from the server.
+            drainAndClose(in);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Streams the image in to the disk cache, with its validators as the entry's metadata. A
+     * stale entry is revalidated with a conditional GET, so an unchanged image costs a 304
+     * rather than the whole image.
+     */
+    @Override
+    protected boolean fetchToDiskCache(@NonNull ImageCache imageCache, @NonNull String diskData,
+                                       @NonNull BitmapWorkerTaskParams params,
+                                       @Nullable String cachedMetadata) {
+        String data = params.data.toString();
+        Log.d(TAG, "fetchToDiskCache: " + data);
+
+        disableConnectionReuseIfNecessary();
+
+        HttpValidators cached = HttpValidators.parse(cachedMetadata);
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+
+        try {
+            final URL url = new URL(data);
+            urlConnection = (HttpURLConnection) url.openConnection();
+            if (cached != null) {
+                cached.addTo(urlConnection);
+            }
+
+            int responseCode = urlConnection.getResponseCode();
+            long now = System.currentTimeMillis();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                imageCache.setDiskCacheMetadata(diskData, cached.revalidated(now, mLibraryGeneration).toString());
+                return true;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "Error in fetchToDiskCache - " + data + " " + responseCode);
+                drainAndClose(urlConnection.getErrorStream());
+                return false;
+            }
+
+            HttpValidators validators = HttpValidators.fromResponse(urlConnection, now,
+                    mLibraryGeneration);
+            in = urlConnection.getInputStream();
+            final InputStream response = in;
+            return imageCache.writeToDiskCache(diskData, validators.toString(),
+                    new ImageCache.DiskCacheWriter() {
+                        @Override
+                        public boolean write(OutputStream out) throws IOException {
+                            getStats().recordBytesDownloaded(ByteStreams.copy(response, out));
+                            return true;
+                        }
+                    });
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in fetchToDiskCache - " + data + e);
             if (urlConnection != null) {
-                urlConnection.disconnect();
+                drainAndClose(urlConnection.getErrorStream());
             }
+            return false;
+        } finally {
+            drainAndClose(in);
+        }
+    }
+
+    /**
+     * Revalidates entries with validators once they are older than {@link
+     * HttpValidators#REVALIDATE_AFTER_MILLIS}, or were validated before the library last
+     * changed.
+     */
+    @Override
+    protected boolean needsRevalidation(@Nullable String metadata) {
+        HttpValidators validators = HttpValidators.parse(metadata);
+        return validators != null && validators.isStale(System.currentTimeMillis(),
+                mLibraryGeneration);
+    }
+
+    /**
+     * Read what's left of a response and close it, which lets {@link HttpURLConnection} return
+     * the connection to its keep-alive pool.
+     */
+    private static void drainAndClose(@Nullable InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        } catch (final IOException e) {
+            // The connection can't be reused, nothing else depends on it.
+        } finally {
             try {
-                if (in != null) {
-                    in.close();
-                }
+                in.close();
             } catch (final IOException e) {
                 Log.e(TAG, "Closing input stream failed");
             }
         }
+    }
 
-        return bytes;
+    /**
+     * Artwork on the server, as synthesised by {@code BaseClient.addArtworkUrlTag}. The server
+     * resizes it if the size is added to the name, e.g. {@code /music/123/cover_192x192_o.jpg}.
+     */
+    private static final Pattern SERVER_ARTWORK =
+            Pattern.compile("^(.*/music/[^/]+/cover)\\.jpg$");
+
+    /**
+     * Asks the server to resize its artwork, so small images don't need the original to be
+     * fetched and decoded.
+     *
+     * @return The URL of the artwork resized to fit in the square, or null if the URL is not
+     *     for artwork on the server.
+     */
+    @Nullable
+    @Override
+    protected String getResizedUrl(@NonNull String data, int size) {
+        Matcher matcher = SERVER_ARTWORK.matcher(data);
+        if (!matcher.matches()) {
+            return null;
+        }
+        // The "o" mode keeps the aspect ratio of the original.
+        return matcher.group(1) + "_" + size + "x" + size + "_o.jpg";
     }
 
     /**
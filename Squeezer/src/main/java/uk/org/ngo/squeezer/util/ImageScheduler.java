@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work of loading images, most urgent first.
+ * <p>
+ * Work is queued in one of the lanes given by the {@link ImageWorker.Priority} values, and lower
+ * values run first. Within the {@link ImageWorker#PRIORITY_VISIBLE} lane the most recently
+ * queued work runs first, so when a list is scrolled the rows that were bound last, which are
+ * the ones still on screen, are loaded before rows that have already scrolled away. The other
+ * lanes run in the order the work was queued.
+ * <p>
+ * Fetching and opening images, and decoding them, have separate thread pools. Fetches mostly
+ * wait on the network or the disk, so there are twice as many I/O threads as processors, while
+ * the decode pool has a thread per processor. I/O work hands its decodes to {@link
+ * #decode(int, Callable)}, so slow downloads never leave a processor idle and decodes never
+ * outnumber the processors.
+ * <p>
+ * This class is thread safe.
+ */
+class ImageScheduler {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final PriorityBlockingQueue<Runnable> mIoQueue = new PriorityBlockingQueue<Runnable>();
+
+    private final ThreadPoolExecutor mIoExecutor;
+
+    private final ThreadPoolExecutor mDecodeExecutor;
+
+    /** The executor of each lane. */
+    private final Executor[] mLaneExecutors = new Executor[ImageWorker.PRIORITY_PREFETCH + 1];
+
+    /** Work in the visible lane held back while paused, see {@link #setPaused(boolean)}. */
+    private final List<Job> mHeldJobs = new ArrayList<Job>();
+
+    private boolean mPaused;
+
+    /**
+     * A piece of work, with the order it runs in.
+     */
+    private static class Job implements Runnable, Comparable<Job> {
+        final int priority;
+
+        final long sequence;
+
+        final Runnable runnable;
+
+        Job(int priority, long sequence, Runnable runnable) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            if (sequence == other.sequence) {
+                return 0;
+            }
+            // Newest first in the visible lane, oldest first in the others.
+            boolean older = sequence < other.sequence;
+            return (older == (priority == ImageWorker.PRIORITY_VISIBLE)) ? 1 : -1;
+        }
+    }
+
+    /**
+     * Creates a scheduler with thread pools sized to the number of processors, whose threads run
+     * at background priority.
+     */
+    ImageScheduler() {
+        this(Math.max(2, CPU_COUNT * 2), CPU_COUNT, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ImageScheduler #" + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * @param ioThreads The number of threads that fetch and open images.
+     * @param decodeThreads The number of threads that decode images.
+     * @param threadFactory Creates the threads.
+     */
+    ImageScheduler(int ioThreads, int decodeThreads, ThreadFactory threadFactory) {
+        mIoExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+                mIoQueue, threadFactory);
+        mDecodeExecutor = new ThreadPoolExecutor(decodeThreads, decodeThreads, 0L,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+
+        for (int i = 0; i < mLaneExecutors.length; i++) {
+            final int priority = i;
+            mLaneExecutors[i] = new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    Job job = new Job(priority, mSequence.incrementAndGet(), runnable);
+                    if (priority == ImageWorker.PRIORITY_VISIBLE) {
+                        synchronized (mHeldJobs) {
+                            if (mPaused) {
+                                mHeldJobs.add(job);
+                                return;
+                            }
+                        }
+                    }
+                    mIoExecutor.execute(job);
+                }
+            };
+        }
+    }
+
+    /**
+     * @param priority One of the {@link ImageWorker.Priority} values.
+     * @return An executor that queues work in the lane for the priority, for example for {@link
+     *     AsyncTask#executeOnExecutor(Executor, Object[])}.
+     */
+    Executor getExecutor(int priority) {
+        return mLaneExecutors[priority];
+    }
+
+    /**
+     * Run a decode on the decode pool, and wait for it. If the calling thread is interrupted the
+     * decode is still waited for, as other threads may share its result, and the interrupt is
+     * kept for the caller to see.
+     *
+     * @param priority The priority of the work the decode is for.
+     * @param work The decode.
+     * @return The result of the decode.
+     * @throws RuntimeException If the decode threw an exception.
+     */
+    <V> V decode(int priority, Callable<V> work) {
+        FutureTask<V> task = new FutureTask<V>(work);
+        mDecodeExecutor.execute(new Job(priority, mSequence.incrementAndGet(), task));
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hold back work in the {@link ImageWorker#PRIORITY_VISIBLE} lane that has not started,
+     * e.g. while a list is flung, or let it run again. Held work keeps its place, and the other
+     * lanes carry on.
+     */
+    void setPaused(boolean paused) {
+        List<Job> released;
+        synchronized (mHeldJobs) {
+            mPaused = paused;
+            if (paused || mHeldJobs.isEmpty()) {
+                return;
+            }
+            released = new ArrayList<Job>(mHeldJobs);
+            mHeldJobs.clear();
+        }
+        // Newest first, in case there are idle threads to take them straight away.
+        for (int i = released.size() - 1; i >= 0; i--) {
+            mIoExecutor.execute(released.get(i));
+        }
+    }
+
+    /**
+     * Remove the work of a lane that has not started yet.
+     *
+     * @param priority One of the {@link ImageWorker.Priority} values.
+     * @return The work that was removed, as passed to the lane's executor.
+     */
+    List<Runnable> cancel(int priority) {
+        List<Runnable> cancelled = new ArrayList<Runnable>();
+        for (Runnable runnable : mIoQueue.toArray(new Runnable[0])) {
+            Job job = (Job) runnable;
+            if (job.priority == priority && mIoQueue.remove(job)) {
+                cancelled.add(job.runnable);
+            }
+        }
+        synchronized (mHeldJobs) {
+            for (int i = mHeldJobs.size() - 1; i >= 0; i--) {
+                if (mHeldJobs.get(i).priority == priority) {
+                    cancelled.add(mHeldJobs.remove(i).runnable);
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return The number of pieces of work waiting for an I/O thread, including held work.
+     */
+    int getQueuedCount() {
+        synchronized (mHeldJobs) {
+            return mIoQueue.size() + mHeldJobs.size();
+        }
+    }
+
+    /**
+     * Stop the threads once the work already queued is done.
+     */
+    void shutdown() {
+        mIoExecutor.shutdown();
+        mDecodeExecutor.shutdown();
+    }
+}
@@ -30,6 +30,7 @@ import android.graphics.Path;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.SystemClock;
 import android.support.annotation.IdRes;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
@@ -41,9 +42,14 @@ import android.widget.RemoteViews;
 
 import com.google.common.base.Joiner;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
 
@@ -68,10 +74,6 @@ public abstract class ImageWorker {
 
     private boolean mExitTasksEarly = false;
 
-    protected boolean mPauseWork = false;
-
-    private final Object mPauseWorkLock = new Object();
-
     protected final Resources mResources;
 
     @IntDef({MESSAGE_CLEAR, MESSAGE_INIT_DISK_CACHE, MESSAGE_FLUSH, MESSAGE_CLOSE,
@@ -84,6 +86,25 @@ public abstract class ImageWorker {
     private static final int MESSAGE_CLOSE = 3;
     private static final int MESSAGE_CLEAR_MEMORY_CACHE = 4;
 
+    /**
+     * How urgently an image is wanted. Images with a lower value are loaded first.
+     */
+    @IntDef({PRIORITY_VISIBLE, PRIORITY_NOW_PLAYING, PRIORITY_NOTIFICATION, PRIORITY_PREFETCH})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Priority {}
+
+    /** An image on screen, e.g. in a list row. The most recently asked for are loaded first. */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /** The artwork of the song that is playing. */
+    public static final int PRIORITY_NOW_PLAYING = 1;
+
+    /** An image in a notification. */
+    public static final int PRIORITY_NOTIFICATION = 2;
+
+    /** An image that is not on screen yet, see {@link #prefetch(Object, int, int)}. */
+    public static final int PRIORITY_PREFETCH = 3;
+
     /** Joiner for the components that make up a key in the memory cache. */
     protected static final Joiner mMemCacheKeyJoiner = Joiner.on(':');
 
@@ -99,6 +120,42 @@ public abstract class ImageWorker {
     /** Colour of debug swatch for images loaded from network (no caching). */
     private static final int mCacheDebugColorNetwork = Color.RED;
 
+    /**
+     * Sizes of the resized variants of images kept in the disk cache: thumbnails for list rows
+     * and notifications, and grid cells. Larger sizes use the original image.
+     */
+    private static final int[] BUCKET_SIZES = {192, 512};
+
+    /** Image bytes being fetched, by URL. */
+    private final InFlightRequests<byte[]> mInFlightFetches = new InFlightRequests<byte[]>();
+
+    /** Images being fetched in to the disk cache, by URL. */
+    private final InFlightRequests<Boolean> mInFlightDiskFetches = new InFlightRequests<Boolean>();
+
+    /** Bitmaps being decoded, by memory cache key (URL and size). */
+    private final InFlightRequests<Bitmap> mInFlightDecodes = new InFlightRequests<Bitmap>();
+
+    /** Runs the loading of images, most urgent first. */
+    private final ImageScheduler mScheduler = new ImageScheduler();
+
+    /** Where the images asked for came from, and what loading them cost. */
+    private final ImageCacheStats mStats = new ImageCacheStats();
+
+    /** Memory cache keys of the prefetches that are waiting or running. */
+    private final ConcurrentHashMap<String, Boolean> mPrefetchKeys =
+            new ConcurrentHashMap<String, Boolean>();
+
+    // Time to first pixel of the images loaded in to ImageViews. Only used from the main thread.
+
+    /** The number of images shown. */
+    private long mShownCount;
+
+    /** The number of images shown straight from the memory cache. */
+    private long mShownFromMemoryCount;
+
+    /** The total time from asking for the images shown to showing them, in milliseconds. */
+    private long mTimeToFirstPixelMillis;
+
     protected ImageWorker(Context context) {
         mResources = context.getResources();
     }
@@ -115,6 +172,18 @@ public abstract class ImageWorker {
      * @param imageView The ImageView to bind the downloaded image to
      */
     public void loadImage(final Object data, final ImageView imageView) {
+        loadImage(data, imageView, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Like {@link #loadImage(Object, ImageView)} but with an explicit priority.
+     *
+     * @param data The URL of the image to download
+     * @param imageView The ImageView to bind the downloaded image to
+     * @param priority How urgently the image is wanted
+     */
+    public void loadImage(final Object data, final ImageView imageView,
+                          @Priority final int priority) {
         if (data == null) {
             return;
         }
@@ -139,7 +208,7 @@ public abstract class ImageWorker {
                     imageView.getViewTreeObserver().removeOnPreDrawListener(this);
                     // If the imageView is still assigned to the URL then we can load in to it.
                     if (data.equals(imageView.getTag())) {
-                        loadImage(data, imageView);
+                        loadImage(data, imageView, priority);
                     }
                     return true;
                 }
@@ -147,7 +216,7 @@ public abstract class ImageWorker {
             return;
         }
 
-        loadImage(data, imageView, width, height);
+        loadImage(data, imageView, width, height, priority);
     }
 
     /**
@@ -159,6 +228,20 @@ public abstract class ImageWorker {
      * @param height Resize the image to this height (and save it in the memory cache as such)
      */
     public void loadImage(final Object data, final ImageView imageView, int width, int height) {
+        loadImage(data, imageView, width, height, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Like {@link #loadImage(Object, ImageView, int, int)} but with an explicit priority.
+     *
+     * @param data The URL of the image to download
+     * @param imageView The ImageView to bind the downloaded image to
+     * @param width Resize the image to this width (and save it in the memory cache as such)
+     * @param height Resize the image to this height (and save it in the memory cache as such)
+     * @param priority How urgently the image is wanted
+     */
+    public void loadImage(final Object data, final ImageView imageView, int width, int height,
+                          @Priority int priority) {
         Bitmap bitmap = null;
         String memCacheKey = hashKeyForMemory(String.valueOf(data), width, height);
 
@@ -171,18 +254,88 @@ public abstract class ImageWorker {
             if (BuildConfig.DEBUG) {
                 addDebugSwatch(new Canvas(bitmap), mCacheDebugColorMemory);
             }
-            imageView.setImageBitmap(bitmap);
+            mStats.recordMemoryHit();
+            setImageDrawable(imageView, newBitmapDrawable(bitmap));
+            mShownCount++;
+            mShownFromMemoryCount++;
         } else if (cancelPotentialWork(data, imageView)) {
-            final ImageViewBitmapWorkerTask task = new ImageViewBitmapWorkerTask(imageView);
+            final ImageViewBitmapWorkerTask task = new ImageViewBitmapWorkerTask(data, imageView);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
-            imageView.setImageDrawable(asyncDrawable);
+            setImageDrawable(imageView, asyncDrawable);
 
             // NOTE: This uses a custom version of AsyncTask that has been pulled from the
             // framework and slightly modified. Refer to the docs at the top of the class
             // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR,
-                    new BitmapWorkerTaskParams(width, height, data, memCacheKey));
+            task.executeOnExecutor(mScheduler.getExecutor(priority),
+                    new BitmapWorkerTaskParams(width, height, data, memCacheKey, priority));
+        }
+    }
+
+    /**
+     * Load an image in to the memory cache, ready for when it is shown with {@link
+     * #loadImage(Object, ImageView, int, int)} with the same size. Images that are not in the
+     * disk cache yet are fetched and added to it.
+     * <p>
+     * Prefetches run in the order they were asked for, after the other images, and they are not
+     * paused by {@link #setPauseWork(boolean)}. {@link #cancelPrefetches()} drops those that
+     * have not started.
+     *
+     * @param data The URL of the image to download
+     * @param width Resize the image to this width
+     * @param height Resize the image to this height
+     */
+    public void prefetch(final Object data, int width, int height) {
+        if (data == null || mImageCache == null) {
+            return;
+        }
+
+        final String memCacheKey = hashKeyForMemory(String.valueOf(data), width, height);
+        if (mImageCache.getBitmapFromMemCache(memCacheKey) != null
+                || mPrefetchKeys.putIfAbsent(memCacheKey, Boolean.TRUE) != null) {
+            return;
+        }
+
+        final BitmapWorkerTaskParams params =
+                new BitmapWorkerTaskParams(width, height, data, memCacheKey, PRIORITY_PREFETCH);
+        mScheduler.getExecutor(PRIORITY_PREFETCH).execute(new PrefetchRunnable(memCacheKey) {
+            @Override
+            public void run() {
+                try {
+                    if (!mExitTasksEarly) {
+                        mInFlightDecodes.get(memCacheKey, new Callable<Bitmap>() {
+                            @Override
+                            public Bitmap call() {
+                                return decodeBitmap(params);
+                            }
+                        });
+                    }
+                } finally {
+                    mPrefetchKeys.remove(memCacheKey);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the prefetches that have not started yet, e.g. because the list they were for is now
+     * scrolling the other way.
+     */
+    public void cancelPrefetches() {
+        List<Runnable> cancelled = mScheduler.cancel(PRIORITY_PREFETCH);
+        for (Runnable runnable : cancelled) {
+            mPrefetchKeys.remove(((PrefetchRunnable) runnable).memCacheKey);
+        }
+        if (BuildConfig.DEBUG && !cancelled.isEmpty()) {
+            Log.d(TAG, "cancelPrefetches - cancelled " + cancelled.size() + " prefetches");
+        }
+    }
+
+    private abstract static class PrefetchRunnable implements Runnable {
+        final String memCacheKey;
+
+        PrefetchRunnable(String memCacheKey) {
+            this.memCacheKey = memCacheKey;
         }
     }
 
@@ -210,6 +363,21 @@ public abstract class ImageWorker {
      * @param callback The callback
      */
     public void loadImage(final Object data, int width, int height, ImageWorkerCallback callback) {
+        loadImage(data, width, height, callback, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Like {@link #loadImage(Object, int, int, ImageWorkerCallback)} but with an explicit
+     * priority.
+     *
+     * @param data The URL of the image to download
+     * @param width Resize the image to this width (and save it in the memory cache as such)
+     * @param height Resize the image to this height (and save it in the memory cache as such)
+     * @param callback The callback
+     * @param priority How urgently the image is wanted
+     */
+    public void loadImage(final Object data, int width, int height, ImageWorkerCallback callback,
+                          @Priority int priority) {
         Bitmap bitmap = null;
         String memCacheKey = hashKeyForMemory(String.valueOf(data), width, height);
         if (mImageCache != null) {
@@ -221,12 +389,13 @@ public abstract class ImageWorker {
             if (BuildConfig.DEBUG) {
                 addDebugSwatch(new Canvas(bitmap), mCacheDebugColorMemory);
             }
+            mStats.recordMemoryHit();
             callback.process(data, bitmap);
         } else {
             final CallbackBitmapWorkerTask task = new CallbackBitmapWorkerTask(callback);
 
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR,
-                    new BitmapWorkerTaskParams(width, height, data, memCacheKey));
+            task.executeOnExecutor(mScheduler.getExecutor(priority),
+                    new BitmapWorkerTaskParams(width, height, data, memCacheKey, priority));
         }
     }
 
@@ -258,7 +427,8 @@ public abstract class ImageWorker {
             if (BuildConfig.DEBUG) {
                 addDebugSwatch(new Canvas(bitmap), mCacheDebugColorMemory);
             }
-            remoteViews.setImageViewBitmap(viewId, bitmap);
+            mStats.recordMemoryHit();
+            setImageViewBitmap(remoteViews, viewId, bitmap);
             nm.notify(notificationId, notification);
         } else {
             final RemoteViewBitmapWorkerTask task = new RemoteViewBitmapWorkerTask(
@@ -269,8 +439,9 @@ public abstract class ImageWorker {
             // NOTE: This uses a custom version of AsyncTask that has been pulled from the
             // framework and slightly modified. Refer to the docs at the top of the class
             // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR,
-                    new BitmapWorkerTaskParams(width, height, data, memCacheKey));
+            task.executeOnExecutor(mScheduler.getExecutor(PRIORITY_NOTIFICATION),
+                    new BitmapWorkerTaskParams(width, height, data, memCacheKey,
+                            PRIORITY_NOTIFICATION));
         }
     }
 
@@ -288,6 +459,29 @@ public abstract class ImageWorker {
         return mMemCacheKeyJoiner.join(width, height, data);
     }
 
+    /**
+     * Returns the bucket an image size falls in. Images that fit in a bucket are decoded from a
+     * variant of the image resized to the bucket, which is much quicker to decode than the
+     * original if that is large.
+     *
+     * @param width Target width for the bitmap.
+     * @param height Target height for the bitmap.
+     * @return The size of the square of the smallest bucket the size fits in, or 0 if the
+     *     original image should be used.
+     */
+    static int getBucketSize(int width, int height) {
+        int size = Math.max(width, height);
+        if (size <= 0) {
+            return 0;
+        }
+        for (int bucketSize : BUCKET_SIZES) {
+            if (size <= bucketSize) {
+                return bucketSize;
+            }
+        }
+        return 0;
+    }
+
     /**
      * Set placeholder bitmap that shows when the the background thread is running.
      *
@@ -374,6 +568,58 @@ public abstract class ImageWorker {
         mExitTasksEarly = exitTasksEarly;
     }
 
+    /**
+     * Subclasses that can fetch images ready resized should override this.
+     *
+     * @param data The identifier for the full size image (e.g., URL).
+     * @param size The size of the square the image has to fit in.
+     * @return The identifier for the image resized to fit the square, for {@link
+     *     #processBitmap(BitmapWorkerTaskParams)}, or null if it can't be fetched resized.
+     */
+    @Nullable
+    protected String getResizedUrl(@NonNull String data, int size) {
+        return null;
+    }
+
+    /**
+     * Fetch an image in to the disk cache. The default fetches the bytes with {@link
+     * #processBitmap(BitmapWorkerTaskParams)} and adds them to the cache.
+     * <p>
+     * Subclasses that can should override this to stream the image in to the cache with {@link
+     * ImageCache#writeToDiskCache(String, String, ImageCache.DiskCacheWriter)} instead of
+     * holding it on the heap, and to revalidate entries (see {@link
+     * #needsRevalidation(String)}). This will be executed in a background thread.
+     *
+     * @param imageCache The cache to add the image to.
+     * @param diskData Identifies the image in the disk cache.
+     * @param params The parameters that identify the image to fetch.
+     * @param cachedMetadata The metadata of the entry in the disk cache to revalidate, or null
+     *     to fetch the image.
+     * @return True if the disk cache has a current entry for the image afterwards.
+     */
+    protected boolean fetchToDiskCache(@NonNull ImageCache imageCache, @NonNull String diskData,
+                                       @NonNull BitmapWorkerTaskParams params,
+                                       @Nullable String cachedMetadata) {
+        byte[] bytes = processBitmap(params);
+        if (bytes == null || bytes.length == 0) {
+            return false;
+        }
+        imageCache.addBytesToDiskCache(diskData, bytes);
+        return true;
+    }
+
+    /**
+     * Subclasses that revalidate entries in the disk cache should override this.
+     *
+     * @param metadata The metadata of an entry in the disk cache, see {@link
+     *     ImageCache#DISK_CACHE_METADATA_INDEX}.
+     * @return True if the entry must be revalidated with {@link #fetchToDiskCache(ImageCache,
+     *     String, BitmapWorkerTaskParams, String)} before it is used. The default is false.
+     */
+    protected boolean needsRevalidation(@Nullable String metadata) {
+        return false;
+    }
+
     /**
      * Subclasses should override this to define any processing or work that must happen to produce
      * the final bitmap. This will be executed in a background thread and be long running. For
@@ -457,12 +703,22 @@ public abstract class ImageWorker {
         @NonNull
         public final String memCacheKey;
 
+        /** How urgently the bitmap is wanted. */
+        @Priority
+        public final int priority;
+
         public BitmapWorkerTaskParams(int width, int height,
                                       @NonNull Object data, @NonNull String memCacheKey) {
+            this(width, height, data, memCacheKey, PRIORITY_VISIBLE);
+        }
+
+        public BitmapWorkerTaskParams(int width, int height, @NonNull Object data,
+                                      @NonNull String memCacheKey, @Priority int priority) {
             this.width = width;
             this.height = height;
             this.data = data;
             this.memCacheKey = memCacheKey;
+            this.priority = priority;
         }
     }
 
@@ -484,166 +740,421 @@ public abstract class ImageWorker {
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * Decode the image at the requested size.
+     * <p>
+     * Sizes that fit in a bucket (see {@link #getBucketSize(int, int)}) are decoded from a
+     * variant of the image resized to the bucket, rather than from the original. The variant
+     * is read from the disk cache if it is there. Otherwise it is fetched ready resized if
+     * the subclass can (see {@link #getResizedUrl(String, int)}), or made from the original
+     * image, and added to the disk cache for next time.
      */
-    private class BitmapWorkerTask extends AsyncTask<BitmapWorkerTaskParams, Void, Bitmap> {
-        protected static final String TAG = "BitmapWorkerTask";
-        protected Object data;
+    private Bitmap decodeBitmap(final BitmapWorkerTaskParams params) {
+        // A task for this image and size may have finished since the memory cache was
+        // checked.
+        if (mImageCache != null) {
+            Bitmap bitmap = mImageCache.getBitmapFromMemCache(params.memCacheKey);
+            if (bitmap != null) {
+                mStats.recordMemoryHit();
+                return bitmap;
+            }
+        }
+        mStats.recordQueueDepth(mScheduler.getQueuedCount());
+
+        final String dataString = String.valueOf(params.data);
+        final int bucketSize = getBucketSize(params.width, params.height);
+        Bitmap scaledBitmap = null;
+        boolean loadedFromNetwork = false;
+
+        if (bucketSize == 0) {
+            // Decode straight from the cache file, without copying it to the heap first.
+            DiskLruCache.Snapshot snapshot = getCurrentSnapshot(dataString, params);
+            if (snapshot != null) {
+                scaledBitmap = decodeSnapshot(snapshot, params.width, params.height,
+                        params.priority);
+            } else {
+                scaledBitmap = fetchAndDecode(dataString, params, params.width, params.height);
+                loadedFromNetwork = true;
+            }
+        } else {
+            final String variantData = hashKeyForMemory(dataString, bucketSize, bucketSize);
+            String resizedUrl = getResizedUrl(dataString, bucketSize);
+            BitmapWorkerTaskParams resizedParams = (resizedUrl == null ? null :
+                    new BitmapWorkerTaskParams(params.width, params.height, resizedUrl,
+                            params.memCacheKey, params.priority));
+            DiskLruCache.Snapshot snapshot = getCurrentSnapshot(variantData, resizedParams);
+            if (snapshot != null) {
+                scaledBitmap = decodeSnapshot(snapshot, params.width, params.height,
+                        params.priority);
+            } else {
+                Bitmap variant = null;
+                snapshot = getCurrentSnapshot(dataString, params);
+                if (snapshot != null) {
+                    variant = decodeSnapshot(snapshot, bucketSize, bucketSize, params.priority);
+                } else {
+                    loadedFromNetwork = true;
+                    if (resizedParams != null) {
+                        scaledBitmap = fetchAndDecode(variantData, resizedParams,
+                                params.width, params.height);
+                    }
+                    if (scaledBitmap == null) {
+                        variant = fetchAndDecode(dataString, params, bucketSize, bucketSize);
+                    }
+                }
 
-        /**
-         * Background processing.
-         */
-        @TargetApi(11)
-        @Override
-        protected Bitmap doInBackground(BitmapWorkerTaskParams... params) {
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - starting work");
+                if (variant != null) {
+                    scaledBitmap = fitInside(variant, bucketSize);
+                    if (mImageCache != null) {
+                        mImageCache.addBitmapToDiskCache(variantData, scaledBitmap);
+                    }
+                }
             }
+        }
 
-            boolean loadedFromNetwork = false;
+        // If the bitmap was processed and the image cache is available, then add the processed
+        // bitmap to the memory cache for future use. Note we don't check if the task was
+        // cancelled here, if it was, and the thread is still running, we may as well add the
+        // processed bitmap to our cache as it might be used again in the future.
+        if (scaledBitmap != null && mImageCache != null) {
+            mImageCache.addBitmapToMemoryCache(params.memCacheKey, scaledBitmap);
+        }
 
-            data = params[0].data;
-            final String dataString = String.valueOf(data);
-            byte[] bytes = null;
-            Bitmap scaledBitmap = null;
+        if (scaledBitmap == null) {
+            mStats.recordFailure();
+        } else if (loadedFromNetwork) {
+            mStats.recordNetworkLoad();
+        } else {
+            mStats.recordDiskHit();
+        }
 
-            // Wait here if work is paused and the task is not cancelled
-            synchronized (mPauseWorkLock) {
-                while (mPauseWork && !isCancelled()) {
-                    try {
-                        mPauseWorkLock.wait();
-                    } catch (InterruptedException e) {
-                    }
+        if (BuildConfig.DEBUG && scaledBitmap != null) {
+            if (loadedFromNetwork) {
+                addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorNetwork);
+            } else {
+                addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorDisk);
+            }
+        }
+        return scaledBitmap;
+    }
+
+    @Nullable
+    private DiskLruCache.Snapshot getSnapshotFromDiskCache(String data) {
+        return mImageCache != null ? mImageCache.getSnapshotFromDiskCache(data) : null;
+    }
+
+    /**
+     * Get a snapshot of an entry in the disk cache, revalidating the entry first if it needs to
+     * be, see {@link #needsRevalidation(String)}.
+     *
+     * @param diskData Identifies the entry in the disk cache.
+     * @param fetchParams Fetches the image of the entry, or null if it can't be revalidated.
+     */
+    @Nullable
+    private DiskLruCache.Snapshot getCurrentSnapshot(String diskData,
+                                                     @Nullable BitmapWorkerTaskParams fetchParams) {
+        DiskLruCache.Snapshot snapshot = getSnapshotFromDiskCache(diskData);
+        if (snapshot == null || fetchParams == null) {
+            return snapshot;
+        }
+
+        String metadata = ImageCache.getDiskCacheMetadata(snapshot);
+        if (!needsRevalidation(metadata)) {
+            return snapshot;
+        }
+
+        // The entry is kept if it can't be revalidated, e.g. when the server is unreachable.
+        snapshot.close();
+        sharedFetchToDiskCache(diskData, fetchParams, metadata);
+        return getSnapshotFromDiskCache(diskData);
+    }
+
+    /**
+     * Fetch the image and decode it. The image is streamed in to the disk cache and decoded
+     * from there, or fetched on to the heap if there is no disk cache.
+     *
+     * @param diskData Identifies the image in the disk cache.
+     * @param params The parameters that identify the image to fetch.
+     * @param width Target width for the bitmap.
+     * @param height Target height for the bitmap.
+     */
+    @Nullable
+    private Bitmap fetchAndDecode(String diskData, BitmapWorkerTaskParams params,
+                                  int width, int height) {
+        ImageCache imageCache = mImageCache;
+        if (imageCache != null && imageCache.hasDiskCache()) {
+            if (sharedFetchToDiskCache(diskData, params, null)) {
+                DiskLruCache.Snapshot snapshot = getSnapshotFromDiskCache(diskData);
+                if (snapshot != null) {
+                    return decodeSnapshot(snapshot, width, height, params.priority);
                 }
             }
+            return null;
+        }
+
+        byte[] bytes = fetchBytes(diskData, params);
+        if (bytes != null && bytes.length != 0) {
+            return decodeSampledBitmap(bytes, null, width, height, params.priority);
+        }
+        return null;
+    }
+
+    /**
+     * Calls {@link #fetchToDiskCache(ImageCache, String, BitmapWorkerTaskParams, String)}.
+     * Concurrent fetches of the same URL share one call.
+     */
+    private boolean sharedFetchToDiskCache(final String diskData,
+                                           final BitmapWorkerTaskParams params,
+                                           @Nullable final String cachedMetadata) {
+        final ImageCache imageCache = mImageCache;
+        if (imageCache == null) {
+            return false;
+        }
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and there's nothing to indicate this task should cancel then try and fetch
-            // the bitmap bytes from the cache.
-            if (mImageCache != null && !isCancelled() && !shouldCancel()) {
-                bytes = mImageCache.getBytesFromDiskCache(dataString);
+        Boolean fetched = mInFlightDiskFetches.get(String.valueOf(params.data),
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return fetchToDiskCache(imageCache, diskData, params, cachedMetadata);
+                    }
+                });
+        return fetched != null && fetched;
+    }
+
+    /**
+     * Decode the image in a disk cache snapshot, and close the snapshot.
+     */
+    @Nullable
+    private Bitmap decodeSnapshot(DiskLruCache.Snapshot snapshot, int width, int height,
+                                  @Priority int priority) {
+        try {
+            if (width > 0 && height > 0) {
+                return decodeSampledBitmap(null,
+                        snapshot.getFileDescriptor(ImageCache.DISK_CACHE_INDEX), width, height,
+                        priority);
             }
+        } catch (IOException e) {
+            Log.e(TAG, "decodeSnapshot - " + e);
+        } finally {
+            snapshot.close();
+        }
+        return null;
+    }
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and there's nothing to indicate that this task should cancel, then
-            // call the main process method (as implemented by a subclass)
-            if ((bytes == null || bytes.length == 0) && !isCancelled() && !shouldCancel()) {
-                bytes = processBitmap(params[0]);
-                loadedFromNetwork = true;
+    /**
+     * Scale a bitmap down so that it fits in a square of the given size, keeping its aspect
+     * ratio.
+     */
+    private Bitmap fitInside(Bitmap bitmap, int size) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= size && height <= size) {
+            return bitmap;
+        }
 
-                // If the bitmap bytes were loaded then add them to the disk cache.
-                if (bytes != null && bytes.length != 0 && mImageCache != null) {
-                    mImageCache.addBytesToDiskCache(dataString, bytes);
+        float scale = Math.min((float) size / width, (float) size / height);
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)),
+                true);
+        if (scaledBitmap != bitmap) {
+            bitmap.recycle();
+        }
+        return scaledBitmap;
+    }
+
+    /**
+     * Like {@link #decodeSampledBitmap(byte[], FileDescriptor, int, int)}, but on the decode
+     * threads of the scheduler. Waits for the decode to finish.
+     */
+    @Nullable
+    private Bitmap decodeSampledBitmap(@Nullable final byte[] bytes,
+                                       @Nullable final FileDescriptor fd,
+                                       final int width, final int height,
+                                       @Priority int priority) {
+        return mScheduler.decode(priority, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                long start = SystemClock.uptimeMillis();
+                Bitmap bitmap = decodeSampledBitmap(bytes, fd, width, height);
+                mStats.recordDecode(SystemClock.uptimeMillis() - start);
+                return bitmap;
+            }
+        });
+    }
+
+    /**
+     * Create a bitmap from either the bytes or the file descriptor, scaled to the
+     * appropriate size.
+     */
+    @TargetApi(11)
+    @Nullable
+    private Bitmap decodeSampledBitmap(@Nullable byte[] bytes, @Nullable FileDescriptor fd,
+                                       int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(bytes, fd, options);
+
+        options.inSampleSize = calculateInSampleSize(options, width, height);
+
+        options.inJustDecodeBounds = false;
+
+        // API 11 and above can decode in to a bitmap that has left the memory cache. The
+        // result is mutable, so it can be reused in turn, and debug builds can add the debug
+        // swatch to it.
+        if (UIUtils.hasHoneycomb()) {
+            options.inMutable = true;
+            BitmapPool bitmapPool = (mImageCache != null ? mImageCache.getBitmapPool() : null);
+            if (bitmapPool != null && bitmapPool.addInBitmapOptions(options)) {
+                try {
+                    return decode(bytes, fd, options);
+                } catch (IllegalArgumentException e) {
+                    // The image didn't fit the bitmap after all, decode in to a new one.
+                    options.inBitmap = null;
                 }
             }
+            return decode(bytes, fd, options);
+        }
 
-            // Create a bitmap from the bytes, scaled to the appropriate size.
-            if (bytes != null && bytes.length != 0 && params[0].width > 0 && params[0].height > 0) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (! BuildConfig.DEBUG) {
+            // Not a debug build, just need the scaled bitmap.
+            return decode(bytes, fd, options);
+        }
 
-                options.inSampleSize = calculateInSampleSize(
-                        options, params[0].width, params[0].height);
+        // Debug build, need a mutable bitmap to add the debug swatch later, earlier APIs
+        // need to make a copy of the bitmap.
+        Bitmap immutableBitmap = decode(bytes, fd, options);
+        if (immutableBitmap == null) {
+            return null;
+        }
+        Bitmap scaledBitmap = immutableBitmap.copy(Bitmap.Config.ARGB_8888, true);
+        immutableBitmap.recycle();
+        return scaledBitmap;
+    }
 
-                options.inJustDecodeBounds = false;
+    /**
+     * Decode the bytes if given, otherwise the file descriptor. Decoding a file descriptor
+     * does not move its position, so it can be decoded again.
+     */
+    private Bitmap decode(@Nullable byte[] bytes, @Nullable FileDescriptor fd,
+                          BitmapFactory.Options options) {
+        if (bytes != null) {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+    }
 
-                if (! BuildConfig.DEBUG) {
-                    // Not a debug build, just need the scaled bitmap.
-                    scaledBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
-                } else {
-                    // Debug build, need a mutable bitmap to add the debug swatch later. API 11
-                    // and above can set an option, earlier APIs need to make a copy of the bitmap.
-                    if (UIUtils.hasHoneycomb()) {
-                        options.inMutable = true;
-                        scaledBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
-                    } else {
-                        Bitmap immutableBitmap = BitmapFactory.decodeByteArray(
-                                bytes, 0, bytes.length, options);
-                        scaledBitmap = immutableBitmap.copy(Bitmap.Config.ARGB_8888, true);
-                        immutableBitmap.recycle();
-                    }
+    /**
+     * Fetch the bytes of the image by calling the main process method (as implemented by a
+     * subclass), and add them to the disk cache. Concurrent fetches of the same URL share
+     * one call.
+     *
+     * @param diskData Identifies the bytes in the disk cache.
+     * @param params The parameters for the main process method.
+     */
+    @Nullable
+    private byte[] fetchBytes(final String diskData, final BitmapWorkerTaskParams params) {
+        return mInFlightFetches.get(String.valueOf(params.data), new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                byte[] bytes = processBitmap(params);
+
+                // If the bitmap bytes were loaded then add them to the disk cache.
+                if (bytes != null && bytes.length != 0 && mImageCache != null) {
+                    mImageCache.addBytesToDiskCache(diskData, bytes);
                 }
+                return bytes;
             }
+        });
+    }
 
-            // If the bitmap was processed and the image cache is available, then add the processed
-            // bitmap to the memory cache for future use. Note we don't check if the task was
-            // cancelled here, if it was, and the thread is still running, we may as well add the
-            // processed bitmap to our cache as it might be used again in the future.
-            if (scaledBitmap != null && mImageCache != null) {
-                mImageCache.addBitmapToMemoryCache(params[0].memCacheKey, scaledBitmap);
+    /**
+     * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
+     * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
+     * the closest inSampleSize that will result in the final decoded bitmap having a width and
+     * height equal to or larger than the requested width and height. This implementation does not
+     * ensure a power of 2 is returned for inSampleSize which can be faster when decoding but
+     * results in a larger bitmap which isn't as useful for caching purposes.
+     *
+     * @param options An options object with out* params already populated (run through a decode*
+     * method with inJustDecodeBounds==true
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     *
+     * @return The value to be used for inSampleSize
+     */
+    private static int calculateInSampleSize(BitmapFactory.Options options,
+                                             int reqWidth, int reqHeight) {
+        // Raw height and width of image
+        final int height = options.outHeight;
+        final int width = options.outWidth;
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            if (width > height) {
+                inSampleSize = Math.round((float) height / (float) reqHeight);
+            } else {
+                inSampleSize = Math.round((float) width / (float) reqWidth);
             }
 
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - finished work");
-            }
+            // This offers some additional logic in case the image has a strange
+            // aspect ratio. For example, a panorama may have a much larger
+            // width than height. In these cases the total pixels might still
+            // end up being too large to fit comfortably in memory, so we should
+            // be more aggressive with sample down the image (=larger
+            // inSampleSize).
 
-            if (BuildConfig.DEBUG && scaledBitmap != null) {
-                if (loadedFromNetwork) {
-                    addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorNetwork);
-                } else {
-                    addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorDisk);
-                }
+            final float totalPixels = width * height;
+
+            // Anything more than 2x the requested pixels we'll sample down
+            // further.
+            final float totalReqPixelsCap = reqWidth * reqHeight * 2;
 
+            while (totalPixels / (inSampleSize * inSampleSize) > totalReqPixelsCap) {
+                inSampleSize++;
             }
-            return scaledBitmap;
         }
+        return inSampleSize;
+    }
+
+    /**
+     * The actual AsyncTask that will asynchronously process the image.
+     */
+    private class BitmapWorkerTask extends AsyncTask<BitmapWorkerTaskParams, Void, Bitmap> {
+        protected static final String TAG = "BitmapWorkerTask";
+        protected Object data;
 
         /**
-         * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
-         * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
-         * the closest inSampleSize that will result in the final decoded bitmap having a width and
-         * height equal to or larger than the requested width and height. This implementation does not
-         * ensure a power of 2 is returned for inSampleSize which can be faster when decoding but
-         * results in a larger bitmap which isn't as useful for caching purposes.
-         *
-         * @param options An options object with out* params already populated (run through a decode*
-         * method with inJustDecodeBounds==true
-         * @param reqWidth The requested width of the resulting bitmap
-         * @param reqHeight The requested height of the resulting bitmap
-         *
-         * @return The value to be used for inSampleSize
+         * Background processing.
+         * <p>
+         * Tasks for the same image share the work: the bytes are fetched once per URL, and
+         * decoded once per URL and size, however many tasks are waiting for them.
          */
-        public int calculateInSampleSize(BitmapFactory.Options options,
-                                                int reqWidth, int reqHeight) {
-            // Raw height and width of image
-            final int height = options.outHeight;
-            final int width = options.outWidth;
-            int inSampleSize = 1;
-
-            if (height > reqHeight || width > reqWidth) {
-                if (width > height) {
-                    inSampleSize = Math.round((float) height / (float) reqHeight);
-                } else {
-                    inSampleSize = Math.round((float) width / (float) reqWidth);
-                }
-
-                // This offers some additional logic in case the image has a strange
-                // aspect ratio. For example, a panorama may have a much larger
-                // width than height. In these cases the total pixels might still
-                // end up being too large to fit comfortably in memory, so we should
-                // be more aggressive with sample down the image (=larger
-                // inSampleSize).
+        @Override
+        protected Bitmap doInBackground(BitmapWorkerTaskParams... params) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "doInBackground - starting work");
+            }
 
-                final float totalPixels = width * height;
+            final BitmapWorkerTaskParams taskParams = params[0];
+            data = taskParams.data;
 
-                // Anything more than 2x the requested pixels we'll sample down
-                // further.
-                final float totalReqPixelsCap = reqWidth * reqHeight * 2;
+            // If this task has been cancelled by another thread or there's something to indicate
+            // this task should cancel then there's nothing to do. Once the work is shared with
+            // other tasks it is seen through, as they may still want the result.
+            if (isCancelled() || shouldCancel()) {
+                return null;
+            }
 
-                while (totalPixels / (inSampleSize * inSampleSize) > totalReqPixelsCap) {
-                    inSampleSize++;
+            Bitmap bitmap = mInFlightDecodes.get(taskParams.memCacheKey, new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return decodeBitmap(taskParams);
                 }
-            }
-            return inSampleSize;
-        }
+            });
 
-        @Override
-        protected void onCancelled(Bitmap bitmap) {
-            super.onCancelled(bitmap);
-            synchronized (mPauseWorkLock) {
-                mPauseWorkLock.notifyAll();
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "doInBackground - finished work");
             }
+
+            return bitmap;
         }
 
         /**
@@ -663,8 +1174,14 @@ public abstract class ImageWorker {
     private class ImageViewBitmapWorkerTask extends BitmapWorkerTask {
         protected final WeakReference<ImageView> imageViewReference;
 
-        public ImageViewBitmapWorkerTask(ImageView imageView) {
+        /** When the image was asked for, see {@link SystemClock#uptimeMillis()}. */
+        private final long mStartTime = SystemClock.uptimeMillis();
+
+        public ImageViewBitmapWorkerTask(Object data, ImageView imageView) {
             super();
+            // Set now rather than when the task runs, so that binding the same image again
+            // while the task is queued does not cancel it, see cancelPotentialWork().
+            this.data = data;
             imageViewReference = new WeakReference<ImageView>(imageView);
         }
 
@@ -684,6 +1201,8 @@ public abstract class ImageWorker {
                     Log.d(TAG, "onPostExecute - setting bitmap");
                 }
                 setImageBitmap(imageView, bitmap);
+                mShownCount++;
+                mTimeToFirstPixelMillis += SystemClock.uptimeMillis() - mStartTime;
             }
         }
 
@@ -770,7 +1289,7 @@ public abstract class ImageWorker {
                     Log.d(TAG, "onPostExecute - setting bitmap");
                 }
                 Log.d(TAG, "Setting notification bitmap");
-                mRemoteViews.setImageViewBitmap(mViewId, bitmap);
+                setImageViewBitmap(mRemoteViews, mViewId, bitmap);
             }
 
             // Always post the notification.
@@ -819,23 +1338,175 @@ public abstract class ImageWorker {
             final TransitionDrawable td =
                     new TransitionDrawable(new Drawable[]{
                             imageView.getDrawable(),
-                            new BitmapDrawable(mResources, bitmap)
+                            newBitmapDrawable(bitmap)
                     });
 
-            imageView.setImageDrawable(td);
+            setImageDrawable(imageView, td);
             td.startTransition(FADE_IN_TIME);
         } else {
-            imageView.setImageDrawable(new BitmapDrawable(mResources, bitmap));
+            setImageDrawable(imageView, newBitmapDrawable(bitmap));
         }
     }
 
-    public void setPauseWork(boolean pauseWork) {
-        synchronized (mPauseWorkLock) {
-            mPauseWork = pauseWork;
-            if (!mPauseWork) {
-                mPauseWorkLock.notifyAll();
-            }
+    /**
+     * @return A drawable for a bitmap from the memory cache, that keeps the bitmap from being
+     *     reused while it is displayed.
+     */
+    private Drawable newBitmapDrawable(Bitmap bitmap) {
+        BitmapPool bitmapPool = (mImageCache != null ? mImageCache.getBitmapPool() : null);
+        return new RecyclingBitmapDrawable(mResources, bitmap, bitmapPool);
+    }
+
+    /**
+     * Sets the drawable of a view, counting it in as displayed and the drawable it replaces out,
+     * see {@link RecyclingBitmapDrawable}.
+     */
+    private static void setImageDrawable(ImageView imageView, @Nullable Drawable drawable) {
+        Drawable previous = imageView.getDrawable();
+        // Counted in first, as it may hold on to the previous drawable to fade from it.
+        RecyclingBitmapDrawable.setIsDisplayed(drawable, true);
+        imageView.setImageDrawable(drawable);
+        RecyclingBitmapDrawable.setIsDisplayed(previous, false);
+    }
+
+    /**
+     * Removes the image from a view, so its bitmap can be reused once it has left the memory
+     * cache.
+     *
+     * @param imageView The view to clear.
+     */
+    public static void clearImage(ImageView imageView) {
+        setImageDrawable(imageView, null);
+    }
+
+    /**
+     * Sets the bitmap of a view in remote views. The remote views hold on to the bitmap, to send
+     * it again whenever the notification is posted, so it is never reused.
+     */
+    private void setImageViewBitmap(RemoteViews remoteViews, @IdRes int viewId, Bitmap bitmap) {
+        BitmapPool bitmapPool = (mImageCache != null ? mImageCache.getBitmapPool() : null);
+        if (bitmapPool != null) {
+            bitmapPool.setDisplayed(bitmap, true);
+        }
+        remoteViews.setImageViewBitmap(viewId, bitmap);
+    }
+
+    /**
+     * @return The number of image fetches from the network that were asked for.
+     */
+    public long getFetchRequestCount() {
+        return mInFlightFetches.getRequestCount() + mInFlightDiskFetches.getRequestCount();
+    }
+
+    /**
+     * @return The number of image fetches that shared a fetch of the same URL already in
+     *     progress.
+     */
+    public long getFetchDedupHitCount() {
+        return mInFlightFetches.getDedupHitCount() + mInFlightDiskFetches.getDedupHitCount();
+    }
+
+    /**
+     * @return The number of bitmap decodes that were asked for.
+     */
+    public long getDecodeRequestCount() {
+        return mInFlightDecodes.getRequestCount();
+    }
+
+    /**
+     * @return The number of bitmap decodes that shared a decode of the same URL and size already
+     *     in progress.
+     */
+    public long getDecodeDedupHitCount() {
+        return mInFlightDecodes.getDedupHitCount();
+    }
+
+    /**
+     * @return The number of decodes that reused a bitmap evicted from the memory cache.
+     */
+    public long getBitmapPoolHitCount() {
+        BitmapPool bitmapPool = (mImageCache != null ? mImageCache.getBitmapPool() : null);
+        return bitmapPool != null ? bitmapPool.getHitCount() : 0;
+    }
+
+    /**
+     * @return The number of decodes that had to allocate a new bitmap.
+     */
+    public long getBitmapPoolMissCount() {
+        BitmapPool bitmapPool = (mImageCache != null ? mImageCache.getBitmapPool() : null);
+        return bitmapPool != null ? bitmapPool.getMissCount() : 0;
+    }
+
+    /**
+     * @return The number of bytes of bitmaps that decodes reused rather than allocated.
+     */
+    public long getBitmapPoolReusedBytes() {
+        BitmapPool bitmapPool = (mImageCache != null ? mImageCache.getBitmapPool() : null);
+        return bitmapPool != null ? bitmapPool.getReusedBytes() : 0;
+    }
+
+    /**
+     * @return The number of images shown in ImageViews.
+     */
+    public long getShownCount() {
+        return mShownCount;
+    }
+
+    /**
+     * @return The number of images shown in ImageViews that were in the memory cache.
+     */
+    public long getShownFromMemoryCount() {
+        return mShownFromMemoryCount;
+    }
+
+    /**
+     * @return The total time from asking for the images shown in ImageViews to showing them, in
+     *     milliseconds. Images from the memory cache are shown at once, and count as 0.
+     */
+    public long getTimeToFirstPixelMillis() {
+        return mTimeToFirstPixelMillis;
+    }
+
+    /**
+     * @return Where the images asked for came from, and what loading them cost.
+     */
+    @NonNull
+    public ImageCacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return A readable report of {@link #getStats()} and of the sizes of the caches, one
+     *     figure per line.
+     */
+    @NonNull
+    public String getStatsReport() {
+        StringBuilder report = new StringBuilder();
+        mStats.appendTo(report);
+        report.append("Queued now: ").append(mScheduler.getQueuedCount()).append('\n');
+        ImageCache imageCache = mImageCache;
+        if (imageCache != null) {
+            imageCache.appendStats(report);
         }
+        return report.toString();
+    }
+
+    /**
+     * Write {@link #getStatsReport()} to the log.
+     */
+    public void logStats() {
+        for (String line : getStatsReport().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    /**
+     * Hold back the loading of {@link #PRIORITY_VISIBLE} images that has not started, e.g.
+     * while a list is flung, or let it carry on. The most recently asked for are loaded first
+     * when work carries on.
+     */
+    public void setPauseWork(boolean pauseWork) {
+        mScheduler.setPaused(pauseWork);
     }
 
     protected class CacheAsyncTask extends AsyncTask<Object, Void, Void> {
@@ -901,6 +1572,19 @@ public abstract class ImageWorker {
 
     public void clearMemoryCache() { new CacheAsyncTask().execute(MESSAGE_CLEAR_MEMORY_CACHE); }
 
+    /**
+     * Give memory back, depending on how badly the system needs it. Unlike the other cache
+     * operations this runs at once, as the memory is wanted now.
+     *
+     * @param level The level passed to {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        ImageCache imageCache = mImageCache;
+        if (imageCache != null) {
+            imageCache.trimMemory(level);
+        }
+    }
+
     public void flushCache() {
         new CacheAsyncTask().execute(MESSAGE_FLUSH);
     }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A table of the requests that are in progress, so that concurrent requests for the same key
+ * share one piece of work.
+ * <p>
+ * The first thread to ask for a key does the work, on its own thread. Threads that ask for the
+ * same key while that is in progress wait for it, and are all given the same result. Once the
+ * work is done the key is removed, so later requests start afresh (by then the result is
+ * normally in a cache).
+ * <p>
+ * This class is thread safe.
+ *
+ * @param <V> The type of the results.
+ */
+class InFlightRequests<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> mRequests =
+            new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /** Number of calls to {@link #get(String, Callable)}. */
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /** Number of calls that were given the result of work already in progress. */
+    private final AtomicLong mDedupHitCount = new AtomicLong();
+
+    /**
+     * Get the result for a key, doing the work unless it is already in progress.
+     *
+     * @param key Identifies the work.
+     * @param work Does the work, if no other thread is already doing it.
+     * @return The result of the work, or null if the calling thread was interrupted while
+     *     waiting for another thread to do the work.
+     * @throws RuntimeException If the work threw an exception; the exception is passed to all
+     *     the callers that waited for it.
+     */
+    V get(String key, Callable<V> work) {
+        mRequestCount.incrementAndGet();
+
+        FutureTask<V> task = new FutureTask<V>(work);
+        FutureTask<V> inFlight = mRequests.putIfAbsent(key, task);
+        if (inFlight == null) {
+            try {
+                task.run();
+            } finally {
+                mRequests.remove(key, task);
+            }
+            inFlight = task;
+        } else {
+            mDedupHitCount.incrementAndGet();
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return The number of keys with work in progress.
+     */
+    int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * @return The number of requests made.
+     */
+    long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return The number of requests that shared work already in progress, rather than doing
+     *     it again.
+     */
+    long getDedupHitCount() {
+        return mDedupHitCount.get();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.util;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
+import android.support.annotation.Nullable;
+
+/**
+ * A {@link BitmapDrawable} for a bitmap from the memory cache, that tells the {@link
+ * BitmapPool} while it is displayed, so that decodes don't reuse the bitmap while it's on
+ * screen.
+ * <p>
+ * {@link ImageWorker} marks the drawable as displayed when it sets it on a view, and as no
+ * longer displayed when it replaces it. A drawable that is replaced by other means stays
+ * marked, which only means its bitmap isn't reused.
+ * <p>
+ * This class must only be used on the main thread.
+ */
+class RecyclingBitmapDrawable extends BitmapDrawable {
+
+    @Nullable
+    private final BitmapPool mBitmapPool;
+
+    /** The number of views, or layers of their drawables, this is displayed in. */
+    private int mDisplayCount;
+
+    /**
+     * @param bitmapPool The pool the bitmap may end up in, or null if there is none.
+     */
+    RecyclingBitmapDrawable(Resources res, Bitmap bitmap, @Nullable BitmapPool bitmapPool) {
+        super(res, bitmap);
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Counts the drawable in or out of being displayed.
+     */
+    void setIsDisplayed(boolean isDisplayed) {
+        if (isDisplayed) {
+            if (mDisplayCount++ == 0 && mBitmapPool != null) {
+                mBitmapPool.setDisplayed(getBitmap(), true);
+            }
+        } else if (mDisplayCount > 0) {
+            if (--mDisplayCount == 0 && mBitmapPool != null) {
+                mBitmapPool.setDisplayed(getBitmap(), false);
+            }
+        }
+    }
+
+    /**
+     * Counts a drawable in or out of being displayed, if it is a RecyclingBitmapDrawable, or
+     * the ones it is made of if it is a {@link LayerDrawable}, such as the {@link
+     * android.graphics.drawable.TransitionDrawable} that fades in an image.
+     */
+    static void setIsDisplayed(@Nullable Drawable drawable, boolean isDisplayed) {
+        if (drawable instanceof RecyclingBitmapDrawable) {
+            ((RecyclingBitmapDrawable) drawable).setIsDisplayed(isDisplayed);
+        } else if (drawable instanceof LayerDrawable) {
+            LayerDrawable layerDrawable = (LayerDrawable) drawable;
+            for (int i = 0; i < layerDrawable.getNumberOfLayers(); i++) {
+                setIsDisplayed(layerDrawable.getDrawable(i), isDisplayed);
+            }
+        }
+    }
+}
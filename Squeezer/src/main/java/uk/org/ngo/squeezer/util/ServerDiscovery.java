@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds servers on the local network.
+ * <p>
+ * A request is broadcast to UDP port 3483 on every network interface, and servers reply with a
+ * packet that starts 'E' followed by the tuples that were asked for. UDP is unreliable, so the
+ * request is sent again a few times, waiting twice as long for replies each time. Each server is
+ * reported once, as soon as its first reply arrives.
+ * <p>
+ * See the Slim::Networking::Discovery module in the server for more details.
+ */
+public class ServerDiscovery {
+
+    /** UDP port to broadcast discovery requests to. */
+    public static final int DISCOVERY_PORT = 3483;
+
+    /** Time to wait for replies to the first request (ms). Later requests wait longer. */
+    static final int INITIAL_TIMEOUT = 250;
+
+    /** Number of requests to send. */
+    static final int MAX_ATTEMPTS = 4;
+
+    /**
+     * Size of the request packet. The server uses the size of the request to limit the size of
+     * the reply.
+     */
+    private static final int PACKET_SIZE = 512;
+
+    /** Tuple types to ask for. */
+    private static final String[] TYPES = {
+            "IPAD", // IP address
+            "NAME", // Server name
+            "JSON", // HTTP port, which the JSON-RPC interface is on
+            "VERS", // Server version
+            "UUID", // Server id
+    };
+
+    /** A server that replied. */
+    public static class Server {
+        /** Orders servers by name, and servers with the same name by address. */
+        public static final Comparator<Server> BY_NAME = new Comparator<Server>() {
+            @Override
+            public int compare(Server lhs, Server rhs) {
+                int result = lhs.name.compareToIgnoreCase(rhs.name);
+                return result != 0 ? result : lhs.address.compareTo(rhs.address);
+            }
+        };
+
+        /** IP address the reply came from. */
+        @NonNull
+        public final String address;
+
+        @NonNull
+        public final String name;
+
+        /** HTTP port, or -1 if not known. */
+        public final int httpPort;
+
+        @Nullable
+        public final String version;
+
+        @Nullable
+        public final String uuid;
+
+        public Server(@NonNull String address, @NonNull String name, int httpPort,
+                      @Nullable String version, @Nullable String uuid) {
+            this.address = address;
+            this.name = name;
+            this.httpPort = httpPort;
+            this.version = version;
+            this.uuid = uuid;
+        }
+
+        /**
+         * @return Identifies the server: its UUID, or its address if it didn't send one. Names
+         *     are not unique.
+         */
+        @NonNull
+        public String getId() {
+            return uuid != null ? uuid : address;
+        }
+
+        @Override
+        public String toString() {
+            return "Server{" + name + " at " + address + ", httpPort=" + httpPort + ", version="
+                    + version + ", uuid=" + uuid + "}";
+        }
+    }
+
+    /** Receives the servers as they are found, on the discovering thread. */
+    public interface Listener {
+        void onServerFound(Server server);
+    }
+
+    private final DatagramSocket mSocket;
+
+    private final List<InetAddress> mBroadcastAddresses;
+
+    private final int mPort;
+
+    private final int mInitialTimeout;
+
+    private final int mAttempts;
+
+    /**
+     * @param socket The socket to send requests and receive replies on. It is not closed.
+     * @param broadcastAddresses The addresses to send the requests to.
+     */
+    public ServerDiscovery(DatagramSocket socket, List<InetAddress> broadcastAddresses) {
+        this(socket, broadcastAddresses, DISCOVERY_PORT, INITIAL_TIMEOUT, MAX_ATTEMPTS);
+    }
+
+    ServerDiscovery(DatagramSocket socket, List<InetAddress> broadcastAddresses, int port,
+                    int initialTimeout, int attempts) {
+        mSocket = socket;
+        mBroadcastAddresses = broadcastAddresses;
+        mPort = port;
+        mInitialTimeout = initialTimeout;
+        mAttempts = attempts;
+    }
+
+    /**
+     * Send the requests, and report the servers that reply. Blocks until the last request has
+     * had its time to be answered, or the thread is interrupted.
+     *
+     * @param listener Told about each server that replies.
+     * @throws IOException If the requests could not be sent to any of the addresses.
+     */
+    public void discover(Listener listener) throws IOException {
+        byte[] request = createRequest();
+        byte[] buffer = new byte[PACKET_SIZE];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        Set<String> found = new HashSet<String>();
+
+        for (int attempt = 0; attempt < mAttempts; attempt++) {
+            send(request);
+
+            long deadline = System.nanoTime() + (long) (mInitialTimeout << attempt) * 1000000;
+            while (!Thread.currentThread().isInterrupted()) {
+                int timeout = (int) ((deadline - System.nanoTime()) / 1000000);
+                if (timeout <= 0) {
+                    break;
+                }
+                // Wake up now and then, to notice the thread being interrupted.
+                mSocket.setSoTimeout(Math.min(timeout, INITIAL_TIMEOUT));
+                reply.setLength(buffer.length);
+                try {
+                    mSocket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+
+                Server server = parseReply(reply.getAddress().getHostAddress(), buffer,
+                        reply.getLength());
+                // Replies to repeated requests, and to requests on other interfaces, are
+                // dropped.
+                if (server != null && found.add(server.getId())) {
+                    listener.onServerFound(server);
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send the request to each address. An address that can't be reached, e.g. because its
+     * interface went down, is skipped.
+     */
+    private void send(byte[] request) throws IOException {
+        IOException error = null;
+        int sent = 0;
+        for (InetAddress address : mBroadcastAddresses) {
+            try {
+                mSocket.send(new DatagramPacket(request, request.length, address, mPort));
+                sent++;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (sent == 0 && error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return The request, 'e' followed by the null terminated types of the tuples to return,
+     *     padded to the size of the reply wanted.
+     */
+    static byte[] createRequest() {
+        byte[] request = new byte[PACKET_SIZE];
+        int i = 0;
+        request[i++] = 'e';
+        for (String type : TYPES) {
+            for (int j = 0; j < type.length(); j++) {
+                request[i++] = (byte) type.charAt(j);
+            }
+            request[i++] = 0;
+        }
+        return request;
+    }
+
+    /**
+     * @param address The address the reply came from.
+     * @return The server that sent the reply, or null if it is not a discovery reply.
+     */
+    @Nullable
+    static Server parseReply(@NonNull String address, byte[] buffer, int length) {
+        if (length < 1 || buffer[0] != 'E') {
+            return null;
+        }
+
+        Map<String, String> tuples = parseTuples(buffer, length);
+        String name = tuples.get("NAME");
+        int httpPort = -1;
+        if (tuples.containsKey("JSON")) {
+            try {
+                httpPort = Integer.parseInt(tuples.get("JSON"));
+            } catch (NumberFormatException e) {
+                // Leave it unknown.
+            }
+        }
+        // The reply's source address is used rather than IPAD, as it is known to be reachable.
+        return new Server(address, (name != null ? name : address), httpPort,
+                tuples.get("VERS"), tuples.get("UUID"));
+    }
+
+    /**
+     * Extract the tuples from a reply.
+     * <p>
+     * The reply consists of a literal 'E' followed by packed tuples that follow the format
+     * {4-byte-type}{1-byte-length}{[length]-bytes-value}. See the server's
+     * Slim::Networking::Discovery::gotTLVRequest() method for how the reply is constructed.
+     * <p>
+     * A truncated tuple ends the reply, the tuples before it are returned.
+     *
+     * @param buffer The reply.
+     * @param length The length of the reply in the buffer.
+     * @return The values of the tuples, by type.
+     */
+    @NonNull
+    static Map<String, String> parseTuples(byte[] buffer, int length) {
+        Map<String, String> tuples = new HashMap<String, String>();
+        int i = 1;  // Skip over the initial 'E'.
+        while (i + 5 <= length && buffer[i] != 0) {
+            String type = decode(buffer, i, 4);
+            int valueLength = buffer[i + 4] & 0xff;
+            i += 5;
+            if (i + valueLength > length) {
+                break;
+            }
+            tuples.put(type, decode(buffer, i, valueLength));
+            i += valueLength;
+        }
+        return tuples;
+    }
+
+    private static String decode(byte[] buffer, int offset, int length) {
+        try {
+            return new String(buffer, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Can't happen, every Java platform supports UTF-8. String(byte[], Charset) needs
+            // API level 9.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The broadcast address of each network interface that is up, and the limited
+     *     broadcast address, which some devices only deliver on one interface.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    @NonNull
+    public static List<InetAddress> getBroadcastAddresses() throws IOException {
+        Set<InetAddress> addresses = new LinkedHashSet<InetAddress>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        if (interfaces != null) {
+            for (NetworkInterface networkInterface : Collections.list(interfaces)) {
+                try {
+                    if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                        continue;
+                    }
+                } catch (SocketException e) {
+                    continue;
+                }
+                for (InterfaceAddress interfaceAddress
+                        : networkInterface.getInterfaceAddresses()) {
+                    // Null for IPv6, which has no broadcast.
+                    InetAddress broadcast = interfaceAddress.getBroadcast();
+                    if (broadcast != null) {
+                        addresses.add(broadcast);
+                    }
+                }
+            }
+        }
+        addresses.add(getLimitedBroadcastAddress());
+        return new ArrayList<InetAddress>(addresses);
+    }
+
+    @NonNull
+    public static InetAddress getLimitedBroadcastAddress() throws IOException {
+        return InetAddress.getByName("255.255.255.255");
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import android.content.ComponentCallbacks2;
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ListPageCacheTest extends TestCase {
+
+    private static final int PAGE_SIZE = 20;
+
+    private static class TestItem extends Item {
+        TestItem(int id) {
+            setId(String.valueOf(id));
+        }
+
+        @Override
+        public String getName() {
+            return getId();
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+        }
+    }
+
+    private static List<TestItem> items(int start, int count) {
+        List<TestItem> items = new ArrayList<TestItem>();
+        for (int i = start; i < start + count; i++) {
+            items.add(new TestItem(i));
+        }
+        return items;
+    }
+
+    private ListPageCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new ListPageCache(PAGE_SIZE, 100);
+    }
+
+    public void testPageIsCachedWhenAllChunksHaveArrived() {
+        // Page 0 arrives as one item, then the rest, as the client orders it.
+        mCache.add("albums", 50, 0, items(0, 1));
+        assertNull(mCache.get("albums", 0));
+        mCache.add("albums", 50, 1, items(1, 19));
+
+        ListPageCache.Page page = mCache.get("albums", 0);
+        assertNotNull(page);
+        assertEquals(50, page.count);
+        assertEquals(PAGE_SIZE, page.items.size());
+        assertEquals("19", page.items.get(19).getId());
+
+        assertNull(mCache.get("artists", 0));
+        assertNull(mCache.get("albums", 20));
+    }
+
+    public void testShortLastPage() {
+        mCache.add("albums", 45, 40, items(40, 5));
+
+        assertEquals(5, mCache.get("albums", 40).items.size());
+    }
+
+    public void testChunkOutOfOrderIsDropped() {
+        mCache.add("albums", 50, 0, items(0, 1));
+        mCache.add("albums", 50, 5, items(5, 15));
+
+        assertNull(mCache.get("albums", 0));
+    }
+
+    public void testLeastRecentlyUsedPagesAreEvicted() {
+        for (int start = 0; start < 120; start += PAGE_SIZE) {
+            mCache.add("songs", 1000, start, items(start, PAGE_SIZE));
+        }
+
+        // 100 items fit, so the first page went.
+        assertNull(mCache.get("songs", 0));
+        assertNotNull(mCache.get("songs", 100));
+    }
+
+    public void testTrimMemory() {
+        for (int start = 0; start < 100; start += PAGE_SIZE) {
+            mCache.add("songs", 1000, start, items(start, PAGE_SIZE));
+        }
+        mCache.get("songs", 0);
+
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertNotNull("Recently used page is kept", mCache.get("songs", 0));
+        assertNull(mCache.get("songs", 20));
+
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertNull(mCache.get("songs", 0));
+    }
+}
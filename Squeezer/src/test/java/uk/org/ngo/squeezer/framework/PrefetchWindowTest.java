@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import junit.framework.TestCase;
+
+public class PrefetchWindowTest extends TestCase {
+
+    public void testNothingUntilTheListMoves() {
+        PrefetchWindow window = new PrefetchWindow();
+
+        assertFalse(window.update(0, 10, 1000, 0));
+        assertEquals(0, window.getEnd() - window.getStart());
+
+        assertFalse(window.update(0, 10, 1000, 100));
+        assertEquals(0, window.getEnd() - window.getStart());
+    }
+
+    public void testSlowScrollPrefetchesOneScreen() {
+        PrefetchWindow window = new PrefetchWindow();
+        window.update(0, 10, 1000, 0);
+
+        // One item a second.
+        assertFalse(window.update(1, 10, 1000, 1000));
+        assertEquals(1, window.getDirection());
+        assertEquals(11, window.getStart());
+        assertEquals(21, window.getEnd());
+
+        // Only the newly needed position is handed out.
+        window.update(2, 10, 1000, 2000);
+        assertEquals(21, window.getStart());
+        assertEquals(22, window.getEnd());
+    }
+
+    public void testFastScrollPrefetchesFurther() {
+        PrefetchWindow window = new PrefetchWindow();
+        window.update(0, 10, 1000, 0);
+
+        // 20 items in 100ms, 200 items a second, capped at MAX_SCREENS screens.
+        window.update(20, 10, 1000, 100);
+        assertEquals(30, window.getStart());
+        assertEquals(30 + 10 * PrefetchWindow.MAX_SCREENS, window.getEnd());
+
+        // 3 items in 100ms, smoothed to 115 items a second.
+        window.update(23, 10, 1000, 200);
+        assertEquals(115, Math.round(window.getVelocity()));
+        assertEquals(70, window.getStart());
+        assertEquals(23 + 10 + 40, window.getEnd());
+    }
+
+    public void testEndOfList() {
+        PrefetchWindow window = new PrefetchWindow();
+        window.update(80, 10, 100, 0);
+
+        window.update(85, 10, 100, 100);
+        assertEquals(95, window.getStart());
+        assertEquals(100, window.getEnd());
+
+        window.update(90, 10, 100, 200);
+        assertEquals(0, window.getEnd() - window.getStart());
+    }
+
+    public void testScrollUp() {
+        PrefetchWindow window = new PrefetchWindow();
+        window.update(100, 10, 1000, 0);
+
+        window.update(99, 10, 1000, 1000);
+        assertEquals(-1, window.getDirection());
+        assertEquals(89, window.getStart());
+        assertEquals(99, window.getEnd());
+
+        window.update(5, 10, 1000, 1100);
+        assertEquals(0, window.getStart());
+        assertEquals(5, window.getEnd());
+    }
+
+    public void testReversal() {
+        PrefetchWindow window = new PrefetchWindow();
+        window.update(100, 10, 1000, 0);
+        window.update(101, 10, 1000, 1000);
+
+        // Turning round hands out the positions on the other side.
+        assertTrue(window.update(100, 10, 1000, 2000));
+        assertEquals(90, window.getStart());
+        assertEquals(100, window.getEnd());
+
+        // And back again, the positions below are handed out again.
+        assertTrue(window.update(101, 10, 1000, 3000));
+        assertEquals(111, window.getStart());
+        assertEquals(121, window.getEnd());
+    }
+
+    public void testReset() {
+        PrefetchWindow window = new PrefetchWindow();
+        window.update(0, 10, 1000, 0);
+        window.update(1, 10, 1000, 1000);
+
+        window.reset();
+        assertEquals(0, window.getDirection());
+        assertFalse(window.update(0, 10, 1000, 5000));
+        assertFalse(window.update(1, 10, 1000, 6000));
+        assertEquals(11, window.getStart());
+        assertEquals(21, window.getEnd());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class CliLineReaderTest extends TestCase {
+
+    /** Serves the given bytes a few at a time, as a slow network would. */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final byte[] mData;
+
+        private final int mChunkSize;
+
+        private int mPosition;
+
+        ChunkedChannel(String data, int chunkSize) throws UnsupportedEncodingException {
+            mData = data.getBytes("UTF-8");
+            mChunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (mPosition == mData.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(mChunkSize, dst.remaining()), mData.length - mPosition);
+            dst.put(mData, mPosition, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testLines() throws IOException {
+        CliLineReader reader = new CliLineReader(
+                new ChunkedChannel("version 7.8.0\nplayers 0 1 count%3A1\n", 1000), 1000);
+
+        assertEquals("version 7.8.0", reader.readLine());
+        assertEquals("players 0 1 count%3A1", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    public void testLinesSplitAcrossReads() throws IOException {
+        CliLineReader reader = new CliLineReader(
+                new ChunkedChannel("version 7.8.0\nplayers 0 1 count%3A1\n", 3), 1000);
+
+        assertEquals("version 7.8.0", reader.readLine());
+        assertEquals("players 0 1 count%3A1", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    public void testUtf8SplitAcrossReads() throws IOException {
+        // The two bytes of the e acute arrive in different reads.
+        CliLineReader reader = new CliLineReader(new ChunkedChannel("Caf\u00e9\n", 4), 1000);
+
+        assertEquals("Caf\u00e9", reader.readLine());
+    }
+
+    public void testCarriageReturnAndEmptyLines() throws IOException {
+        CliLineReader reader = new CliLineReader(new ChunkedChannel("a\r\n\nb", 1000), 1000);
+
+        assertEquals("a", reader.readLine());
+        assertEquals("", reader.readLine());
+        // The unterminated last line.
+        assertEquals("b", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    public void testLongLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            line.append(" id%3A").append(i);
+        }
+        CliLineReader reader = new CliLineReader(
+                new ChunkedChannel("songs 0 10000" + line + "\nversion 7.8.0\n",
+                        CliLineReader.BUFFER_SIZE), 1024 * 1024);
+
+        assertEquals("songs 0 10000" + line, reader.readLine());
+        assertEquals("version 7.8.0", reader.readLine());
+    }
+
+    public void testOverlongLineIsSkipped() throws IOException {
+        CliLineReader reader = new CliLineReader(
+                new ChunkedChannel("short\n0123456789abcdef\nshort again\n", 5), 12);
+
+        assertEquals("short", reader.readLine());
+        assertEquals("short again", reader.readLine());
+        assertEquals(1, reader.getSkippedLines());
+        assertNull(reader.readLine());
+    }
+}
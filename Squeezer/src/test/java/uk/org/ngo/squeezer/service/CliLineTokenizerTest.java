@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+public class CliLineTokenizerTest extends TestCase {
+    private static final Pattern SPACE = Pattern.compile(" ");
+
+    private final CliLineTokenizer tokenizer = new CliLineTokenizer();
+
+    public void testSplitsLikePattern() {
+        String[] lines = {
+                "players 0 1 count%3A2",
+                "a  b",
+                "trailing space ",
+                "trailing spaces   ",
+                " leading",
+                "single",
+        };
+
+        for (String line : lines) {
+            assertEquals(line, Arrays.asList(SPACE.split(line)), tokenizer.reset(line));
+        }
+    }
+
+    public void testKeysAndValuesDecodeLikeUrlDecoder() throws UnsupportedEncodingException {
+        String[][] table = {
+                {"title", "Simple"},
+                {"title", "With spaces and: colons"},
+                {"artist", "Mot\u00f6rhead"},
+                {"album", "\u65e5\u672c\u8a9e\u306e\u30a2\u30eb\u30d0\u30e0"},
+                {"emoji", "\ud83c\udfb5 notes"},
+                {"url", "http://host:9000/music/1/cover.jpg?a=b&c=d"},
+                {"playlist index", "3"},
+                {"empty", ""},
+        };
+
+        for (String[] kv : table) {
+            String token = encode(kv[0]) + "%3A" + encode(kv[1]);
+            tokenizer.reset("00%3A04%3A20%3A17%3A1c%3A44 status " + token);
+            assertTrue(token, tokenizer.hasValue(2));
+            assertEquals(token, URLDecoder.decode(encode(kv[0]), "UTF-8"), tokenizer.key(2));
+            assertEquals(token, kv[1], tokenizer.value(2));
+        }
+
+        // A plus sign is a space, as with URLDecoder.
+        tokenizer.reset("x title%3AA+B");
+        assertEquals("A B", tokenizer.value(1));
+
+        // Tokens without a value.
+        tokenizer.reset("00%3A04%3A20%3A17%3A1c%3A44 status");
+        assertFalse(tokenizer.hasValue(1));
+        assertNull(tokenizer.value(1));
+        assertEquals("status", tokenizer.key(1));
+    }
+
+    public void testPlayerIdIsNotSplitOnColon() {
+        // The encoded colons in a player ID belong to the key, the first one is the separator.
+        tokenizer.reset("00%3A04%3A20%3A17%3A1c%3A44 status");
+        assertEquals("00:04:20:17:1c:44", tokenizer.decoded(0));
+    }
+
+    public void testMalformedEscapesAreKept() {
+        tokenizer.reset("x name%3A100%25 y%3A%zz z%3A%E2%82");
+        assertEquals("100%", tokenizer.value(1));
+        assertEquals("%zz", tokenizer.value(2));
+        assertEquals("\ufffd", tokenizer.value(3));
+    }
+
+    public void testKeysAreShared() {
+        tokenizer.reset("songs 0 1 id%3A1 title%3Aa");
+        String id = tokenizer.key(3);
+        tokenizer.reset("songs 1 1 id%3A2 title%3Ab");
+        assertSame(id, tokenizer.key(3));
+    }
+
+    public void testIntValue() {
+        tokenizer.reset("x count%3A1234 rescan%3A1 duration%3A245.36 bad%3Aabc neg%3A-5 none");
+        assertEquals(1234, tokenizer.intValueOrZero(1));
+        assertEquals(1, tokenizer.intValueOrZero(2));
+        assertEquals(245, tokenizer.intValueOrZero(3));
+        assertEquals(0, tokenizer.intValueOrZero(4));
+        assertEquals(-5, tokenizer.intValueOrZero(5));
+        assertEquals(-1, tokenizer.intValue(6, -1));
+    }
+
+    /**
+     * Compares the heap allocated for reading every key and value of a 500 song page with the
+     * tokenizer, against splitting the line and decoding each token with URLDecoder. Beyond the
+     * decoded strings themselves, the tokenizer should allocate next to nothing.
+     */
+    public void testAllocatesLessThanSplitAndDecode() throws UnsupportedEncodingException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        String line = songsPage(500);
+        int rounds = 20;
+
+        // Warm up both paths.
+        for (int i = 0; i < rounds; i++) {
+            splitAndDecode(line);
+            tokenize(line);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < rounds; i++) {
+            splitAndDecode(line);
+        }
+        long splitBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < rounds; i++) {
+            tokenize(line);
+        }
+        long tokenizerBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("tokenizer=" + tokenizerBytes / rounds + " per page of " + line.length()
+                + " chars", tokenizerBytes / rounds < line.length() * 8L);
+        assertTrue("tokenizer=" + tokenizerBytes + ", split+decode=" + splitBytes,
+                tokenizerBytes * 2 < splitBytes);
+    }
+
+    private int splitAndDecode(String line) throws UnsupportedEncodingException {
+        int length = 0;
+        for (String token : SPACE.split(line)) {
+            int colonPos = token.indexOf("%3A");
+            if (colonPos == -1) {
+                continue;
+            }
+            String key = URLDecoder.decode(token.substring(0, colonPos), "UTF-8");
+            String value = URLDecoder.decode(token.substring(colonPos + 3), "UTF-8");
+            length += key.length() + value.length();
+        }
+        return length;
+    }
+
+    private int tokenize(String line) {
+        int length = 0;
+        tokenizer.reset(line);
+        for (int i = 0; i < tokenizer.size(); i++) {
+            if (!tokenizer.hasValue(i)) {
+                continue;
+            }
+            length += tokenizer.key(i).length() + tokenizer.value(i).length();
+        }
+        return length;
+    }
+
+    private static String songsPage(int count) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder("songs 0 ").append(count).append(" tags%3AaCdejJKlstxyu");
+        for (int i = 0; i < count; i++) {
+            sb.append(" id%3A").append(i)
+                    .append(" title%3A").append(encode("Song number " + i))
+                    .append(" artist%3A").append(encode("Some Artist"))
+                    .append(" album%3A").append(encode("An Album: Deluxe Edition"))
+                    .append(" duration%3A").append(180 + i % 120).append(".5")
+                    .append(" tracknum%3A").append(i % 12 + 1)
+                    .append(" year%3A1999")
+                    .append(" artist_id%3A").append(i % 50)
+                    .append(" album_id%3A").append(i % 40);
+        }
+        sb.append(" correlationid%3A7 count%3A").append(count);
+        return sb.toString();
+    }
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+    }
+}
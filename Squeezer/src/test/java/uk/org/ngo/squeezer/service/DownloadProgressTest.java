@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import uk.org.ngo.squeezer.service.event.DownloadProgressChanged;
+
+public class DownloadProgressTest extends TestCase {
+
+    public void testThroughputIsSmoothed() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(1);
+
+        progress.addBytes(0, 0);
+        progress.addBytes(1000, 1000);
+        assertEquals(1000f, progress.getBytesPerSecond(), 0.1f);
+
+        // A burst moves the average only part of the way.
+        progress.addBytes(2000, 2000);
+        assertEquals(1300f, progress.getBytesPerSecond(), 0.1f);
+    }
+
+    public void testSamplesAreNotTakenTooOften() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(1);
+
+        progress.addBytes(0, 0);
+        progress.addBytes(1000, DownloadProgress.SAMPLE_INTERVAL_MILLIS / 2);
+        assertEquals(0f, progress.getBytesPerSecond());
+
+        progress.addBytes(1000, DownloadProgress.SAMPLE_INTERVAL_MILLIS * 2);
+        assertEquals(1000f, progress.getBytesPerSecond(), 0.1f);
+    }
+
+    public void testSecondsLeft() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(3);
+        progress.addBytes(0, 0);
+        assertEquals(-1, progress.getSecondsLeft());
+
+        progress.addBytes(10000, 10000);
+        progress.fileCompleted(10000, 10000);
+        // Two files of 10000 bytes to go, at 1000 bytes a second.
+        assertEquals(20, progress.getSecondsLeft());
+
+        progress.addBytes(4000, 14000);
+        assertEquals(16, progress.getSecondsLeft());
+    }
+
+    public void testResumedFileCountsItsWholeLength() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(2);
+        progress.addBytes(0, 0);
+
+        // Half of the first file was already there.
+        progress.addBytes(5000, 5000);
+        progress.fileCompleted(10000, 5000);
+        assertEquals(10, progress.getSecondsLeft());
+    }
+
+    public void testDone() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(2);
+        assertFalse(progress.isDone());
+
+        progress.fileCompleted(100, 100);
+        progress.fileFailed(0);
+        assertTrue(progress.isDone());
+        assertEquals(1, progress.getCompletedCount());
+        assertEquals(1, progress.getFailedCount());
+    }
+
+    public void testEvent() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(3);
+        progress.fileCompleted(100, 100);
+        progress.fileFailed(20);
+
+        DownloadProgressChanged event = progress.toEvent();
+        assertEquals(3, event.fileCount);
+        assertEquals(1, event.completedCount);
+        assertEquals(1, event.failedCount);
+        assertEquals(progress.getBytes(), event.bytes);
+        assertFalse(event.isDone());
+    }
+
+    public void testUnchangedFilesAreNotCounted() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(2);
+
+        progress.fileUnchanged();
+        assertEquals(1, progress.getFileCount());
+        assertFalse(progress.isDone());
+
+        progress.fileCompleted(100, 100);
+        assertTrue(progress.isDone());
+    }
+
+    public void testNewBatchStartsAfresh() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(1);
+        progress.addBytes(100, 0);
+        progress.fileCompleted(100, 100);
+
+        progress.addFiles(2);
+        assertEquals(2, progress.getFileCount());
+        assertEquals(0, progress.getCompletedCount());
+        assertEquals(0, progress.getBytes());
+    }
+
+    public void testMoreFilesWhileBusyAreAdded() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(2);
+        progress.fileCompleted(100, 100);
+
+        progress.addFiles(2);
+        assertEquals(4, progress.getFileCount());
+        assertEquals(1, progress.getCompletedCount());
+    }
+
+    public void testCancelRemaining() {
+        DownloadProgress progress = new DownloadProgress();
+        progress.addFiles(3);
+        progress.fileCompleted(100, 100);
+
+        progress.cancelRemaining();
+        assertTrue(progress.isDone());
+        assertEquals(1, progress.getFileCount());
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+public class FileDownloaderTest extends TestCase {
+
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private static final String ETAG = "\"1\"";
+
+    private static final byte[] SONG = new byte[100 * 1024];
+
+    /** The song after it was changed on the server. */
+    private static final byte[] NEW_SONG = new byte[SONG.length];
+
+    static {
+        for (int i = 0; i < SONG.length; i++) {
+            SONG[i] = (byte) i;
+            NEW_SONG[i] = (byte) ~i;
+        }
+    }
+
+    private HttpServer mServer;
+
+    private URL mUrl;
+
+    private File mFolder;
+
+    private File mPartFile;
+
+    private File mFile;
+
+    /** Whether the stub honours Range headers. */
+    private volatile boolean mRanges = true;
+
+    /** Whether the stub honours If-Modified-Since headers. */
+    private volatile boolean mConditional = true;
+
+    /** What the stub serves. */
+    private volatile byte[] mSong = SONG;
+
+    /** The ETag the stub sends, or null to send none. */
+    private volatile String mETag = ETAG;
+
+    /** Whether the stub answers every range with the whole file, as a partial response. */
+    private volatile boolean mMisplacedRanges;
+
+    private volatile int mFullResponses;
+
+    private volatile String mLastRange;
+
+    private volatile String mLastIfRange;
+
+    private volatile String mLastAuthorization;
+
+    /** Send only this many bytes of the song, while promising all of them. */
+    private volatile int mTruncateAt = -1;
+
+    /** Records what the downloader reports. */
+    private static class RecordingListener implements FileDownloader.Listener {
+        long length;
+
+        long resumedFrom;
+
+        String lastModified;
+
+        long bytes;
+
+        @Override
+        public void onStarted(long length, long resumedFrom, String lastModified) {
+            this.length = length;
+            this.resumedFrom = resumedFrom;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public void onBytes(long count) {
+            bytes += count;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/song.mp3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteStreams.copy(exchange.getRequestBody(), ByteStreams.nullOutputStream());
+                mLastRange = exchange.getRequestHeaders().getFirst("Range");
+                mLastIfRange = exchange.getRequestHeaders().getFirst("If-Range");
+                mLastAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                if (mETag != null) {
+                    exchange.getResponseHeaders().set("ETag", mETag);
+                }
+                if (mConditional && LAST_MODIFIED.equals(
+                        exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                    exchange.close();
+                    return;
+                }
+
+                byte[] song = mSong;
+                int from = 0;
+                if (mRanges && mLastRange != null && isCurrent(mLastIfRange)) {
+                    from = (mMisplacedRanges ? 0
+                            : Integer.parseInt(mLastRange.replaceAll("bytes=(\\d+)-", "$1")));
+                    if (from >= song.length) {
+                        exchange.sendResponseHeaders(416, -1);
+                        exchange.close();
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + from + "-" + (song.length - 1) + "/" + song.length);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL,
+                            song.length - from);
+                } else {
+                    mFullResponses++;
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, song.length);
+                }
+                OutputStream out = exchange.getResponseBody();
+                int to = (mTruncateAt < 0 ? song.length : mTruncateAt);
+                out.write(song, from, to - from);
+                out.close();
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/song.mp3");
+
+        mFolder = Files.createTempDir();
+        mPartFile = new File(mFolder, "song.part");
+        mFile = new File(new File(mFolder, "Artist/Album"), "song.mp3");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        deleteRecursively(mFolder);
+        super.tearDown();
+    }
+
+    public void testDownload() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        new FileDownloader("Basic dXNlcjpwYXNz").download(mUrl, mPartFile, mFile, listener);
+
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+        assertFalse(mPartFile.exists());
+        assertNull(mLastRange);
+        assertEquals("Basic dXNlcjpwYXNz", mLastAuthorization);
+        assertEquals(SONG.length, listener.length);
+        assertEquals(SONG.length, listener.bytes);
+        assertEquals(LAST_MODIFIED, listener.lastModified);
+    }
+
+    public void testResume() throws IOException {
+        writePartFile(Arrays.copyOf(SONG, 1000), ETAG);
+
+        RecordingListener listener = new RecordingListener();
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, listener);
+
+        assertEquals("bytes=1000-", mLastRange);
+        assertNull(mLastAuthorization);
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+        assertEquals(SONG.length, listener.length);
+        assertEquals(1000, listener.resumedFrom);
+        assertEquals(SONG.length - 1000, listener.bytes);
+    }
+
+    public void testServerWithoutRangesStartsAgain() throws IOException {
+        mRanges = false;
+        Files.write(new byte[1000], mPartFile);
+
+        RecordingListener listener = new RecordingListener();
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, listener);
+
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+        assertEquals(0, listener.resumedFrom);
+        assertEquals(SONG.length, listener.bytes);
+    }
+
+    public void testExistingFileIsReplaced() throws IOException {
+        mFile.getParentFile().mkdirs();
+        Files.write(new byte[10], mFile);
+
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testUnsatisfiableRangeDropsPartFile() throws IOException {
+        writePartFile(new byte[SONG.length + 10], ETAG);
+
+        try {
+            new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(mPartFile.exists());
+        assertFalse(FileDownloader.getValidatorFile(mPartFile).exists());
+        assertFalse(mFile.exists());
+    }
+
+    public void testFailedDownloadKeepsPartFile() throws IOException {
+        FileDownloader.Listener failing = new RecordingListener() {
+            @Override
+            public void onBytes(long count) {
+                super.onBytes(count);
+                if (bytes >= 32 * 1024) {
+                    throw new IllegalStateException("Connection lost");
+                }
+            }
+        };
+        try {
+            new FileDownloader(null).download(mUrl, mPartFile, mFile, failing);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertTrue(mPartFile.length() >= 32 * 1024);
+        assertFalse(mFile.exists());
+
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testTruncatedResponseKeepsPartFile() throws IOException {
+        mTruncateAt = 40 * 1024;
+        try {
+            new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(40 * 1024, mPartFile.length());
+        assertFalse(mFile.exists());
+
+        mTruncateAt = -1;
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+        assertEquals("bytes=40960-", mLastRange);
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testBandwidthLimit() throws IOException {
+        long start = System.nanoTime();
+        new FileDownloader(null, BandwidthLimiter.create(200 * 1024)).download(mUrl, mPartFile,
+                mFile, new RecordingListener());
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        // The first chunk is free, the rest of the 100 KiB take a while at 200 KiB/s.
+        assertTrue("Took " + millis + " ms", millis >= 350);
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testNotModified() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        assertFalse(new FileDownloader(null).downloadIfModified(mUrl, mPartFile, mFile,
+                LAST_MODIFIED, SONG.length, listener));
+
+        assertFalse(mFile.exists());
+        assertEquals(0, mFullResponses);
+        assertEquals(0, listener.bytes);
+    }
+
+    public void testUnchangedWithoutConditionalSupport() throws IOException {
+        mConditional = false;
+        RecordingListener listener = new RecordingListener();
+        assertFalse(new FileDownloader(null).downloadIfModified(mUrl, mPartFile, mFile,
+                LAST_MODIFIED, SONG.length, listener));
+
+        assertFalse(mFile.exists());
+        assertEquals(0, listener.bytes);
+    }
+
+    public void testModified() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        assertTrue(new FileDownloader(null).downloadIfModified(mUrl, mPartFile, mFile,
+                "Tue, 20 Oct 2015 07:28:00 GMT", SONG.length, listener));
+
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+        assertEquals(LAST_MODIFIED, listener.lastModified);
+    }
+
+    public void testChangedLength() throws IOException {
+        mConditional = false;
+        assertTrue(new FileDownloader(null).downloadIfModified(mUrl, mPartFile, mFile,
+                LAST_MODIFIED, SONG.length - 1, new RecordingListener()));
+
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testPartFileIsResumedWithoutValidation() throws IOException {
+        writePartFile(Arrays.copyOf(SONG, 1000), ETAG);
+
+        assertTrue(new FileDownloader(null).downloadIfModified(mUrl, mPartFile, mFile,
+                LAST_MODIFIED, SONG.length, new RecordingListener()));
+
+        assertEquals("bytes=1000-", mLastRange);
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testResumeSendsIfRange() throws IOException {
+        writePartFile(Arrays.copyOf(SONG, 1000), ETAG);
+
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+
+        assertEquals(ETAG, mLastIfRange);
+        assertEquals(0, mFullResponses);
+        assertFalse(FileDownloader.getValidatorFile(mPartFile).exists());
+    }
+
+    public void testResumeWithLastModified() throws IOException {
+        mETag = null;
+        mTruncateAt = 40 * 1024;
+        try {
+            new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        mTruncateAt = -1;
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+
+        assertEquals(LAST_MODIFIED, mLastIfRange);
+        assertEquals(1, mFullResponses);
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testChangedFileIsNotResumed() throws IOException {
+        mTruncateAt = 40 * 1024;
+        try {
+            new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        mTruncateAt = -1;
+        mSong = NEW_SONG;
+        mETag = "\"2\"";
+        RecordingListener listener = new RecordingListener();
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, listener);
+
+        assertEquals(2, mFullResponses);
+        assertEquals(0, listener.resumedFrom);
+        assertTrue(Arrays.equals(NEW_SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testPartFileWithoutValidatorStartsAgain() throws IOException {
+        Files.write(new byte[1000], mPartFile);
+
+        RecordingListener listener = new RecordingListener();
+        new FileDownloader(null).download(mUrl, mPartFile, mFile, listener);
+
+        assertNull(mLastRange);
+        assertEquals(0, listener.resumedFrom);
+        assertTrue(Arrays.equals(SONG, Files.toByteArray(mFile)));
+    }
+
+    public void testMisplacedContentRangeDropsPartFile() throws IOException {
+        writePartFile(Arrays.copyOf(SONG, 1000), ETAG);
+        mMisplacedRanges = true;
+        try {
+            new FileDownloader(null).download(mUrl, mPartFile, mFile, new RecordingListener());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        assertFalse(mFile.exists());
+        assertFalse(mPartFile.exists());
+        assertFalse(FileDownloader.getValidatorFile(mPartFile).exists());
+    }
+
+    /** @return Whether an If-Range header, if any, names what the stub serves now. */
+    private boolean isCurrent(String ifRange) {
+        return ifRange == null || ifRange.equals(mETag != null ? mETag : LAST_MODIFIED);
+    }
+
+    private void writePartFile(byte[] bytes, String validator) throws IOException {
+        Files.write(bytes, mPartFile);
+        Files.write(validator, FileDownloader.getValidatorFile(mPartFile), Charsets.UTF_8);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
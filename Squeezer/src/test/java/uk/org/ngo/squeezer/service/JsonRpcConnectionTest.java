@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link JsonRpcConnection} against a stub server, which records the requests it gets and
+ * answers with canned responses.
+ */
+public class JsonRpcConnectionTest extends TestCase {
+
+    private HttpServer mServer;
+
+    private final StubHandler mJsonRpc = new StubHandler();
+
+    private final StubHandler mCometd = new StubHandler();
+
+    /** Records request bodies and answers with queued responses. */
+    private static class StubHandler implements HttpHandler {
+        final List<String> requests = new ArrayList<String>();
+
+        final List<String> authorizations = new ArrayList<String>();
+
+        final LinkedList<String> responses = new LinkedList<String>();
+
+        int status = 200;
+
+        @Override
+        public synchronized void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+            requests.add(body.toString("UTF-8"));
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+
+            byte[] response = (responses.isEmpty() ? "{}" : responses.removeFirst()).getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        }
+    }
+
+    /** Collects everything a {@link JsonRpcConnection.ResultHandler} receives. */
+    private static class Collector implements JsonRpcConnection.ResultHandler {
+        final Map<String, String> fields = new HashMap<String, String>();
+
+        final List<String> loops = new ArrayList<String>();
+
+        final List<Map<String, String>> items = new ArrayList<Map<String, String>>();
+
+        @Override
+        public void onField(String key, String value) {
+            fields.put(key, value);
+        }
+
+        @Override
+        public void onLoopItem(String loop, Map<String, String> record) {
+            loops.add(loop);
+            items.add(new HashMap<String, String>(record));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext(JsonRpcConnection.JSONRPC_PATH, mJsonRpc);
+        mServer.createContext(JsonRpcConnection.COMETD_PATH, mCometd);
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        super.tearDown();
+    }
+
+    private JsonRpcConnection connect(String userName, String password) {
+        return new JsonRpcConnection("127.0.0.1", mServer.getAddress().getPort(), userName, password);
+    }
+
+    public void testRequestBody() throws IOException {
+        connect(null, null).request("00:04:20:12:34:56",
+                Arrays.asList("status", "-", "1", "tags:aAl"), new Collector());
+
+        assertEquals(1, mJsonRpc.requests.size());
+        String body = mJsonRpc.requests.get(0);
+        assertTrue(body, body.contains("\"method\":\"slim.request\""));
+        assertTrue(body, body.contains("\"params\":[\"00:04:20:12:34:56\",[\"status\",\"-\",\"1\",\"tags:aAl\"]]"));
+        assertNull(mJsonRpc.authorizations.get(0));
+    }
+
+    public void testServerRequestHasEmptyPlayerId() throws IOException {
+        connect(null, null).request(null, Arrays.asList("version", "?"), new Collector());
+
+        assertTrue(mJsonRpc.requests.get(0).contains("\"params\":[\"\",[\"version\",\"?\"]]"));
+    }
+
+    public void testResultParsing() throws IOException {
+        mJsonRpc.responses.add("{\"id\":1,\"method\":\"slim.request\",\"params\":[\"\",[\"albums\",0,2]],"
+                + "\"result\":{\"count\":1234,\"rescan\":true,\"remoteMeta\":{\"title\":\"skip\"},"
+                + "\"albums_loop\":["
+                + "{\"id\":17,\"album\":\"Abbey Road\",\"year\":1969,\"compilation\":false,\"artwork\":{\"a\":1}},"
+                + "{\"id\":18,\"album\":\"Caf\\u00e9\",\"artist\":null}"
+                + "]}}");
+
+        Collector collector = new Collector();
+        connect(null, null).request(null, Arrays.asList("albums", "0", "2"), collector);
+
+        assertEquals("1234", collector.fields.get("count"));
+        assertEquals("1", collector.fields.get("rescan"));
+        assertFalse(collector.fields.containsKey("remoteMeta"));
+        assertFalse(collector.fields.containsKey("title"));
+
+        assertEquals(Arrays.asList("albums_loop", "albums_loop"), collector.loops);
+        Map<String, String> first = collector.items.get(0);
+        assertEquals("17", first.get("id"));
+        assertEquals("Abbey Road", first.get("album"));
+        assertEquals("1969", first.get("year"));
+        assertEquals("0", first.get("compilation"));
+        assertFalse(first.containsKey("artwork"));
+
+        // The record is reused, and does not leak values from the previous item.
+        Map<String, String> second = collector.items.get(1);
+        assertEquals("Caf\u00e9", second.get("album"));
+        assertFalse(second.containsKey("year"));
+        assertFalse(second.containsKey("artist"));
+    }
+
+    public void testArrayOfValues() throws IOException {
+        mJsonRpc.responses.add("{\"result\":{\"_p2\":[\"/music\"]}}");
+
+        Collector collector = new Collector();
+        connect(null, null).request(null, Arrays.asList("pref", "mediadirs", "?"), collector);
+
+        assertEquals("/music", collector.fields.get("_p2"));
+    }
+
+    public void testServerError() {
+        mJsonRpc.responses.add("{\"id\":1,\"error\":\"Invalid request\"}");
+
+        try {
+            connect(null, null).request(null, Arrays.asList("nonsense"), new Collector());
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid request"));
+        }
+    }
+
+    public void testAuthorization() throws IOException {
+        connect("user", "secret").request(null, Arrays.asList("version", "?"), new Collector());
+
+        // "user:secret" in base 64.
+        assertEquals("Basic dXNlcjpzZWNyZXQ=", mJsonRpc.authorizations.get(0));
+    }
+
+    public void testUnauthorized() {
+        mJsonRpc.status = 401;
+
+        try {
+            connect("user", "wrong").request(null, Arrays.asList("version", "?"), new Collector());
+            fail("Expected an HttpStatusException");
+        } catch (JsonRpcConnection.HttpStatusException e) {
+            assertEquals(401, e.status);
+        } catch (IOException e) {
+            fail("Unexpected " + e);
+        }
+    }
+
+    public void testCometdSession() throws IOException {
+        mCometd.responses.add("[{\"channel\":\"/meta/handshake\",\"successful\":true,\"clientId\":\"abc123\"}]");
+        mCometd.responses.add("[{\"channel\":\"/meta/subscribe\",\"successful\":true}]");
+        mCometd.responses.add("[{\"channel\":\"/slim/subscribe\",\"successful\":true}]");
+        mCometd.responses.add("[{\"channel\":\"/meta/connect\",\"successful\":true},"
+                + "{\"channel\":\"/abc123/slim/playerstatus/00:04:20:12:34:56\","
+                + "\"data\":{\"mode\":\"play\",\"mixer volume\":40,"
+                + "\"playlist_loop\":[{\"id\":99,\"title\":\"Something\"}]}}]");
+
+        JsonRpcConnection connection = connect(null, null);
+        String clientId = connection.handshake();
+        assertEquals("abc123", clientId);
+        assertTrue(mCometd.requests.get(1).contains("\"subscription\":\"/abc123/**\""));
+
+        connection.subscribe(clientId, "00:04:20:12:34:56",
+                Arrays.asList("status", "-", "1", "subscribe:1"),
+                "/abc123/slim/playerstatus/00:04:20:12:34:56");
+        String subscribe = mCometd.requests.get(2);
+        assertTrue(subscribe, subscribe.contains("\"channel\":\"/slim/subscribe\""));
+        assertTrue(subscribe, subscribe.contains("\"clientId\":\"abc123\""));
+        assertTrue(subscribe, subscribe.contains(
+                "\"request\":[\"00:04:20:12:34:56\",[\"status\",\"-\",\"1\",\"subscribe:1\"]]"));
+        assertTrue(subscribe, subscribe.contains(
+                "\"response\":\"/abc123/slim/playerstatus/00:04:20:12:34:56\""));
+
+        List<JsonRpcConnection.Message> messages = connection.poll(clientId);
+        assertEquals(2, messages.size());
+        JsonRpcConnection.Message status = messages.get(1);
+        assertEquals("/abc123/slim/playerstatus/00:04:20:12:34:56", status.channel);
+        assertEquals("play", status.fields.get("mode"));
+        assertEquals("40", status.fields.get("mixer volume"));
+        assertEquals("Something", status.loops.get("playlist_loop").get(0).get("title"));
+    }
+
+    public void testCometdHandshakeRejected() {
+        mCometd.responses.add("[{\"channel\":\"/meta/handshake\",\"successful\":false}]");
+
+        try {
+            connect(null, null).handshake();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testCometdPollRejected() {
+        mCometd.responses.add("[{\"channel\":\"/meta/connect\",\"successful\":false}]");
+
+        try {
+            connect(null, null).poll("abc123");
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class LineDispatcherTest extends TestCase {
+
+    private static final String PLAYER_1 = "00%3A04%3A20%3A00%3A00%3A01";
+
+    private static final String PLAYER_2 = "00%3A04%3A20%3A00%3A00%3A02";
+
+    private ExecutorService mParsePool;
+
+    private ExecutorService mFastPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParsePool = Executors.newFixedThreadPool(4);
+        mFastPool = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mParsePool.shutdownNow();
+        mFastPool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testPlayerId() {
+        assertEquals(PLAYER_1, LineDispatcher.playerId(PLAYER_1 + " status - 1 tags%3Aa"));
+        assertNull(LineDispatcher.playerId("version 7.8.0"));
+        assertNull(LineDispatcher.playerId("pref httpport 9000"));
+        assertNull(LineDispatcher.playerId("can musicfolder%3A1 ?"));
+        assertNull(LineDispatcher.playerId(PLAYER_1));
+    }
+
+    public void testLinesOfAPlayerStayInOrder() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(200);
+        LineDispatcher dispatcher = new LineDispatcher(new LineDispatcher.LineHandler() {
+            @Override
+            public void onLineReceived(String line) {
+                received.add(line);
+                done.countDown();
+            }
+        }, mParsePool, mFastPool);
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch(PLAYER_1 + " status - 1 time%3A" + i);
+            dispatcher.dispatch(PLAYER_2 + " status - 1 time%3A" + i);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(100, countInOrder(received, PLAYER_1));
+        assertEquals(100, countInOrder(received, PLAYER_2));
+    }
+
+    public void testPagesOfARequestStayInOrder() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(100);
+        LineDispatcher dispatcher = new LineDispatcher(new LineDispatcher.LineHandler() {
+            @Override
+            public void onLineReceived(String line) {
+                received.add(line);
+                done.countDown();
+            }
+        }, mParsePool, mFastPool);
+
+        for (int i = 0; i < 50; i++) {
+            dispatcher.dispatch("songs " + i + " 1 correlationid%3A1 id%3A" + i);
+            dispatcher.dispatch("albums " + i + " 1 correlationid%3A2 id%3A" + i);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(50, countInOrder(received, "songs"));
+        assertEquals(50, countInOrder(received, "albums"));
+    }
+
+    public void testStatusIsNotHeldUpByAListParse() throws InterruptedException {
+        final CountDownLatch statusHandled = new CountDownLatch(1);
+        final CountDownLatch controlHandled = new CountDownLatch(1);
+        final CountDownLatch parseDone = new CountDownLatch(1);
+        LineDispatcher dispatcher = new LineDispatcher(new LineDispatcher.LineHandler() {
+            @Override
+            public void onLineReceived(String line) {
+                if (line.startsWith("songs")) {
+                    // A slow parse, that only finishes after the other lines were handled.
+                    try {
+                        if (statusHandled.await(10, TimeUnit.SECONDS)
+                                && controlHandled.await(10, TimeUnit.SECONDS)) {
+                            parseDone.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (line.startsWith(PLAYER_1)) {
+                    statusHandled.countDown();
+                } else {
+                    controlHandled.countDown();
+                }
+            }
+        }, mParsePool, mFastPool);
+
+        dispatcher.dispatch("songs 0 10000 correlationid%3A7 id%3A1");
+        dispatcher.dispatch(PLAYER_1 + " mixer volume 50");
+        dispatcher.dispatch("version 7.8.0");
+
+        assertTrue(parseDone.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testShutdown() throws InterruptedException {
+        LineDispatcher dispatcher = new LineDispatcher(new LineDispatcher.LineHandler() {
+            @Override
+            public void onLineReceived(String line) {
+            }
+        }, mParsePool, mFastPool);
+
+        dispatcher.shutdown();
+
+        // Lines for a connection that has gone are dropped.
+        dispatcher.dispatch(PLAYER_1 + " status - 1");
+        assertTrue(mFastPool.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return The number of lines that start with the prefix, after checking that the last
+     *     token of those lines counts up from 0.
+     */
+    private static int countInOrder(List<String> lines, String prefix) {
+        int expected = 0;
+        for (String line : lines) {
+            if (line.startsWith(prefix)) {
+                assertTrue(line, line.endsWith("%3A" + expected));
+                expected++;
+            }
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PagePipelineTest extends TestCase {
+
+    private static final long MS = 1000 * 1000L;
+
+    /** Records the requested pages as {start, count} pairs. */
+    private static class RecordingSender implements PagePipeline.Sender {
+        final List<int[]> requests = new ArrayList<int[]>();
+
+        @Override
+        public void requestPage(int start, int count) {
+            requests.add(new int[]{start, count});
+        }
+
+        int[] take() {
+            return requests.remove(0);
+        }
+    }
+
+    public void testFillsWindow() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(20, 20, 1000);
+        RecordingSender sender = new RecordingSender();
+
+        pipeline.fill(sender, 0);
+
+        assertEquals(pipeline.getWindow(), sender.requests.size());
+        assertEquals(pipeline.getWindow(), pipeline.getInFlight());
+        assertEquals(20, sender.requests.get(0)[0]);
+        assertEquals(20, sender.requests.get(0)[1]);
+        assertEquals(40, sender.requests.get(1)[0]);
+
+        // A full window sends nothing more.
+        pipeline.fill(sender, 0);
+        assertEquals(pipeline.getWindow(), sender.requests.size());
+    }
+
+    public void testLastPageIsShort() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(20, 20, 50);
+        RecordingSender sender = new RecordingSender();
+
+        pipeline.fill(sender, 0);
+
+        assertEquals(2, sender.requests.size());
+        assertEquals(40, sender.requests.get(1)[0]);
+        assertEquals(10, sender.requests.get(1)[1]);
+    }
+
+    public void testInOrderDelivery() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(20, 20, 60);
+        RecordingSender sender = new RecordingSender();
+        pipeline.fill(sender, 0);
+
+        assertEquals(Arrays.asList("a"), pipeline.onPageReceived(20, 20, 60, "a", 10 * MS));
+        assertFalse(pipeline.isComplete());
+        assertEquals(Arrays.asList("b"), pipeline.onPageReceived(40, 20, 60, "b", 10 * MS));
+        assertTrue(pipeline.isComplete());
+    }
+
+    public void testOutOfOrderPagesAreHeldBack() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(10, 0, 20);
+        RecordingSender sender = new RecordingSender();
+        pipeline.fill(sender, 0);
+        assertEquals(2, sender.requests.size());
+
+        assertEquals(Collections.<String>emptyList(), pipeline.onPageReceived(10, 10, 20, "b", MS));
+        assertFalse(pipeline.isComplete());
+        assertEquals(Arrays.asList("a", "b"), pipeline.onPageReceived(0, 10, 20, "a", MS));
+        assertTrue(pipeline.isComplete());
+    }
+
+    public void testWindowGrowsWhileRttIsStable() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(PagePipeline.MAX_PAGE_SIZE, 0, 100000);
+        RecordingSender sender = new RecordingSender();
+        long now = 0;
+        pipeline.fill(sender, now);
+
+        // Every request takes 300 ms however many are in flight, as on a network where latency
+        // rather than the server is the bottleneck. Requests in flight complete together.
+        for (int i = 0; i < 10; i++) {
+            now += 300 * MS;
+            List<int[]> inFlight = new ArrayList<int[]>(sender.requests);
+            sender.requests.clear();
+            for (int[] request : inFlight) {
+                pipeline.onPageReceived(request[0], request[1], 100000, "page", now);
+            }
+            pipeline.fill(sender, now);
+        }
+
+        assertEquals(PagePipeline.MAX_WINDOW, pipeline.getWindow());
+        assertEquals(PagePipeline.MAX_WINDOW, pipeline.getInFlight());
+    }
+
+    public void testWindowShrinksWhenRequestsQueue() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(PagePipeline.MAX_PAGE_SIZE, 0, 100000);
+        RecordingSender sender = new RecordingSender();
+        pipeline.fill(sender, 0);
+
+        // The first page sets the minimum RTT, after that every page takes much longer.
+        int[] request = sender.take();
+        pipeline.onPageReceived(request[0], request[1], 100000, "page", 300 * MS);
+        int window = pipeline.getWindow();
+        long now = 300 * MS;
+        for (int i = 0; i < 3; i++) {
+            pipeline.fill(sender, now);
+            request = sender.take();
+            now += 3000 * MS;
+            pipeline.onPageReceived(request[0], request[1], 100000, "page", now);
+        }
+
+        assertTrue(pipeline.getWindow() < window);
+    }
+
+    public void testPageSizeAdaptsToRtt() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(20, 0, 100000);
+        RecordingSender sender = new RecordingSender();
+        long now = 0;
+        pipeline.fill(sender, now);
+
+        // Fast pages grow.
+        for (int i = 0; i < 10; i++) {
+            int[] request = sender.take();
+            now += MS;
+            pipeline.onPageReceived(request[0], request[1], 100000, "page", now);
+            pipeline.fill(sender, now);
+        }
+        assertEquals(PagePipeline.MAX_PAGE_SIZE, pipeline.getPageSize());
+
+        // Slow pages shrink, but never below the initial size.
+        for (int i = 0; i < 20; i++) {
+            int[] request = sender.take();
+            now += 10 * PagePipeline.TARGET_PAGE_NANOS;
+            pipeline.onPageReceived(request[0], request[1], 100000, "page", now);
+            pipeline.fill(sender, now);
+        }
+        assertEquals(20, pipeline.getPageSize());
+    }
+
+    public void testListShrinks() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(10, 10, 40);
+        RecordingSender sender = new RecordingSender();
+        pipeline.fill(sender, 0);
+
+        // The list lost items since the first page, e.g. after a rescan.
+        pipeline.onPageReceived(10, 10, 15, "b", MS);
+
+        assertTrue(pipeline.isComplete());
+    }
+
+    public void testEmptyList() {
+        PagePipeline<String> pipeline = new PagePipeline<String>(20, 20, 0);
+        RecordingSender sender = new RecordingSender();
+
+        pipeline.fill(sender, 0);
+
+        assertTrue(sender.requests.isEmpty());
+        assertTrue(pipeline.isComplete());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class SearchIndexTest extends TestCase {
+
+    private static final int TRACKS = 50000;
+
+    private static final int QUERIES = 10000;
+
+    private static final String[] WORDS = {
+            "love", "lovely", "night", "day", "blue", "moon", "heart", "road", "abbey", "river",
+            "fire", "rain", "song", "dance", "dream", "home", "light", "dark", "sun", "star",
+            "time", "life", "world", "girl", "boy", "man", "woman", "city", "street", "train",
+            "baby", "little", "wild", "sweet", "cold", "hot", "summer", "winter", "spring", "fall",
+            "gold", "silver", "black", "white", "red", "green", "ocean", "sky", "wind", "storm",
+            "\u00e9t\u00e9", "caf\u00e9", "ni\u00f1o", "m\u00fcller", "sk\u00e5l",
+    };
+
+    private SearchIndex<String> mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new SearchIndex<String>();
+    }
+
+    public void testWords() {
+        assertEquals(Arrays.asList("abbey", "road"), Arrays.asList(SearchIndex.words("Abbey Road")));
+        assertEquals(Arrays.asList("don", "t", "stop"), Arrays.asList(SearchIndex.words("Don't  stop!")));
+        assertEquals(Arrays.asList("beyonce"), Arrays.asList(SearchIndex.words("Beyonc\u00e9")));
+        assertEquals(Arrays.asList("la"), Arrays.asList(SearchIndex.words("La la LA")));
+        assertEquals(0, SearchIndex.words(" - ").length);
+    }
+
+    public void testPrefixSearch() {
+        mIndex.put("1", "Abbey Road", "Abbey Road");
+        mIndex.put("2", "Road to Nowhere", "Road to Nowhere");
+        mIndex.put("3", "Let It Be", "Let It Be");
+
+        assertEquals(Arrays.asList("Abbey Road", "Road to Nowhere"), mIndex.search("ro", 10));
+        assertEquals(Arrays.asList("Abbey Road"), mIndex.search("road ABB", 10));
+        assertEquals(Arrays.asList("Let It Be"), mIndex.search("be", 10));
+        assertEquals(Collections.emptyList(), mIndex.search("bbey", 10));
+        assertEquals(Collections.emptyList(), mIndex.search("  ", 10));
+        assertEquals(1, mIndex.search("ro", 1).size());
+    }
+
+    public void testAccentsAreIgnored() {
+        mIndex.put("1", "Beyonc\u00e9", "Beyonc\u00e9");
+
+        assertEquals(Arrays.asList("Beyonc\u00e9"), mIndex.search("beyonce", 10));
+        assertEquals(Arrays.asList("Beyonc\u00e9"), mIndex.search("BEYONC\u00c9", 10));
+    }
+
+    public void testPutReplacesByKey() {
+        mIndex.put("1", "Yesterday", "v1");
+        mIndex.put("1", "Yesterday", "v2");
+        assertEquals(Arrays.asList("v2"), mIndex.search("yes", 10));
+
+        mIndex.put("1", "Tomorrow", "v3");
+        assertEquals(Collections.emptyList(), mIndex.search("yes", 10));
+        assertEquals(Arrays.asList("v3"), mIndex.search("tom", 10));
+        assertEquals(1, mIndex.size());
+
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+        assertEquals(Collections.emptyList(), mIndex.search("tom", 10));
+    }
+
+    /**
+     * Measures the latency of as-you-type queries against the titles of a large library. The
+     * bounds on the median and 99th percentile are generous, so that only a query that has
+     * stopped using the index fails them.
+     */
+    public void testLatency() {
+        Random random = new Random(42);
+        long buildStart = System.nanoTime();
+        for (int i = 0; i < TRACKS; i++) {
+            int length = 1 + random.nextInt(4);
+            StringBuilder title = new StringBuilder();
+            for (int w = 0; w < length; w++) {
+                if (w > 0) {
+                    title.append(' ');
+                }
+                title.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            // Make most titles distinct, as in a real library.
+            title.append(' ').append(Integer.toString(i, 36));
+            mIndex.put(String.valueOf(i), title.toString(), title.toString());
+        }
+        long buildTime = System.nanoTime() - buildStart;
+
+        // Warm up, then time queries as they would be typed: growing prefixes of one or two words.
+        String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            String query = word.substring(0, 1 + random.nextInt(word.length()));
+            if (random.nextInt(3) == 0) {
+                String other = WORDS[random.nextInt(WORDS.length)];
+                query = query + " " + other.substring(0, 1 + random.nextInt(other.length()));
+            }
+            queries[i] = query;
+        }
+        for (String query : queries) {
+            mIndex.search(query, 20);
+        }
+
+        long[] latencies = new long[QUERIES];
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            long start = System.nanoTime();
+            List<String> results = mIndex.search(queries[i], 20);
+            latencies[i] = System.nanoTime() - start;
+            found += results.size();
+        }
+        Arrays.sort(latencies);
+
+        assertTrue(found > 0);
+        String report = String.format(
+                "%d tracks indexed in %d ms, query p50 %.1f us, p99 %.1f us",
+                TRACKS, buildTime / 1000000, latencies[QUERIES / 2] / 1e3,
+                latencies[QUERIES * 99 / 100] / 1e3);
+        assertTrue(report, buildTime < 10000000000L);
+        assertTrue(report, latencies[QUERIES / 2] < 1000000L);
+        assertTrue(report, latencies[QUERIES * 99 / 100] < 20000000L);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import android.content.ComponentCallbacks2;
+
+import junit.framework.TestCase;
+
+public class CacheSizerTest extends TestCase {
+
+    private static final int MB = 1024 * 1024;
+
+    public void testDefaultMemoryFraction() {
+        assertEquals(CacheSizer.LOW_RAM_MEMORY_FRACTION,
+                CacheSizer.getDefaultMemoryFraction(256, true));
+        assertEquals(CacheSizer.DEFAULT_MEMORY_FRACTION,
+                CacheSizer.getDefaultMemoryFraction(64, false));
+        assertEquals(CacheSizer.LARGE_MEMORY_FRACTION,
+                CacheSizer.getDefaultMemoryFraction(CacheSizer.LARGE_MEMORY_CLASS, false));
+    }
+
+    public void testMemCacheSize() {
+        assertEquals(16 * MB, CacheSizer.getMemCacheSize(0.25f, 64));
+    }
+
+    public void testTrimIsProportional() {
+        int maxSize = 16 * MB;
+
+        assertEquals(maxSize, CacheSizer.getTrimmedMemCacheSize(maxSize, 0));
+        assertEquals(12 * MB, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(8 * MB, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(4 * MB, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(maxSize, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(8 * MB, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(4 * MB, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertEquals(0, CacheSizer.getTrimmedMemCacheSize(maxSize,
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    public void testMemoryPressureShrinksFraction() {
+        float fraction = CacheSizer.learnMemoryFraction(0.2f,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, false, false);
+        assertEquals(0.15f, fraction, 0.0001f);
+
+        // Never below the minimum.
+        for (int i = 0; i < 20; i++) {
+            fraction = CacheSizer.learnMemoryFraction(fraction,
+                    ComponentCallbacks2.TRIM_MEMORY_COMPLETE, true, false);
+        }
+        assertEquals(CacheSizer.MIN_MEMORY_FRACTION, fraction);
+    }
+
+    public void testFractionGrowsBackWithoutPressure() {
+        assertEquals(0.1125f, CacheSizer.learnMemoryFraction(0.1f,
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, false, false), 0.0001f);
+        assertEquals(0.1f, CacheSizer.learnMemoryFraction(0.1f,
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, true, false));
+        assertEquals(CacheSizer.MAX_MEMORY_FRACTION, CacheSizer.learnMemoryFraction(
+                CacheSizer.MAX_MEMORY_FRACTION, ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                false, false));
+        // Low RAM devices don't grow past the default of other devices.
+        assertEquals(CacheSizer.DEFAULT_MEMORY_FRACTION, CacheSizer.learnMemoryFraction(
+                CacheSizer.DEFAULT_MEMORY_FRACTION, ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                false, true));
+    }
+
+    public void testDiskCacheGrowsWhenItEvicts() {
+        long plenty = 10000L * MB;
+
+        assertEquals(10 * MB, CacheSizer.chooseDiskCacheSize(10 * MB, 10 * MB, plenty, false));
+        assertEquals(15 * MB, CacheSizer.chooseDiskCacheSize(10 * MB, 10 * MB, plenty, true));
+        assertEquals(CacheSizer.MAX_DISK_CACHE_SIZE, CacheSizer.chooseDiskCacheSize(
+                CacheSizer.MAX_DISK_CACHE_SIZE, 256 * MB, plenty, true));
+    }
+
+    public void testDiskCacheShrinksWithFreeSpace() {
+        // A tenth of the free space plus what the cache takes already.
+        assertEquals(30 * MB, CacheSizer.chooseDiskCacheSize(100 * MB, 100 * MB, 200 * MB, true));
+        assertEquals(2 * MB, CacheSizer.chooseDiskCacheSize(10 * MB, 0, 20 * MB, false));
+    }
+}
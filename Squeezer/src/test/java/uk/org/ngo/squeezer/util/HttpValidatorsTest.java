@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+public class HttpValidatorsTest extends TestCase {
+
+    private static final String ETAG = "\"abc123\"";
+
+    private static final byte[] IMAGE = new byte[]{1, 2, 3, 4};
+
+    private HttpServer mServer;
+
+    private int mFullResponses;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/cover.jpg", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteStreams.copy(exchange.getRequestBody(), ByteStreams.nullOutputStream());
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                } else {
+                    mFullResponses++;
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, IMAGE.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(IMAGE);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        super.tearDown();
+    }
+
+    public void testRoundTrip() {
+        HttpValidators validators = new HttpValidators(ETAG, "Wed, 21 Oct 2015 07:28:00 GMT", 42,
+                7);
+        HttpValidators parsed = HttpValidators.parse(validators.toString());
+
+        assertEquals(ETAG, parsed.etag);
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", parsed.lastModified);
+        assertEquals(42, parsed.validatedAt);
+        assertEquals(7, parsed.generation);
+    }
+
+    public void testParseWithoutGeneration() {
+        HttpValidators parsed = HttpValidators.parse(ETAG + "\n\n42");
+
+        assertEquals(ETAG, parsed.etag);
+        assertEquals(42, parsed.validatedAt);
+        assertEquals(0, parsed.generation);
+    }
+
+    public void testRoundTripWithoutValidators() {
+        HttpValidators parsed = HttpValidators.parse(new HttpValidators(null, null, 42, 0).toString());
+
+        assertNull(parsed.etag);
+        assertNull(parsed.lastModified);
+        assertFalse(parsed.canRevalidate());
+    }
+
+    public void testParseInvalid() {
+        assertNull(HttpValidators.parse(null));
+        assertNull(HttpValidators.parse(""));
+        assertNull(HttpValidators.parse("etag\nlast-modified"));
+        assertNull(HttpValidators.parse("etag\nlast-modified\nnot a time"));
+        assertNull(HttpValidators.parse("etag\nlast-modified\n42\nnot a generation"));
+    }
+
+    public void testIsStale() {
+        HttpValidators validators = new HttpValidators(ETAG, null, 1000, 0);
+
+        assertFalse(validators.isStale(1000 + HttpValidators.REVALIDATE_AFTER_MILLIS, 0));
+        assertTrue(validators.isStale(1001 + HttpValidators.REVALIDATE_AFTER_MILLIS, 0));
+        // The clock went backwards.
+        assertTrue(validators.isStale(999, 0));
+        assertFalse(validators.revalidated(5000, 0).isStale(5000, 0));
+    }
+
+    public void testStaleAfterLibraryChanged() {
+        HttpValidators validators = new HttpValidators(ETAG, null, 1000, 3);
+
+        assertTrue(validators.isStale(1001, 4));
+        assertFalse(validators.revalidated(1001, 4).isStale(1001, 4));
+    }
+
+    public void testNothingToRevalidateIsNeverStale() {
+        assertFalse(new HttpValidators(null, null, 0, 0).isStale(Long.MAX_VALUE, 1));
+    }
+
+    public void testConditionalGet() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/cover.jpg");
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        HttpValidators validators = HttpValidators.fromResponse(connection, 1000, 0);
+        InputStream in = connection.getInputStream();
+        assertEquals(IMAGE.length, ByteStreams.toByteArray(in).length);
+        in.close();
+        assertEquals(ETAG, validators.etag);
+
+        connection = (HttpURLConnection) url.openConnection();
+        HttpValidators.parse(validators.toString()).addTo(connection);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+        assertEquals(1, mFullResponses);
+    }
+}
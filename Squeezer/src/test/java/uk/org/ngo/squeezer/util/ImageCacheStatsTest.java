@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import junit.framework.TestCase;
+
+public class ImageCacheStatsTest extends TestCase {
+
+    public void testRequestsBySource() {
+        ImageCacheStats stats = new ImageCacheStats();
+        stats.recordMemoryHit();
+        stats.recordMemoryHit();
+        stats.recordDiskHit();
+        stats.recordNetworkLoad();
+        stats.recordFailure();
+
+        assertEquals(5, stats.getRequestCount());
+        assertEquals(2, stats.getMemoryHitCount());
+        assertEquals(1, stats.getDiskHitCount());
+        assertEquals(1, stats.getNetworkLoadCount());
+        assertEquals(1, stats.getFailureCount());
+
+        StringBuilder report = new StringBuilder();
+        stats.appendTo(report);
+        assertTrue(report.toString(), report.toString().contains("Memory hits: 2 (40.0%)"));
+    }
+
+    public void testDecodeBuckets() {
+        assertEquals(0, ImageCacheStats.getDecodeBucket(0));
+        assertEquals(0, ImageCacheStats.getDecodeBucket(3));
+        assertEquals(1, ImageCacheStats.getDecodeBucket(4));
+        assertEquals(6, ImageCacheStats.getDecodeBucket(255));
+        assertEquals(7, ImageCacheStats.getDecodeBucket(256));
+        assertEquals(7, ImageCacheStats.getDecodeBucket(Long.MAX_VALUE));
+    }
+
+    public void testDecodeHistogram() {
+        ImageCacheStats stats = new ImageCacheStats();
+        stats.recordDecode(5);
+        stats.recordDecode(6);
+        stats.recordDecode(1000);
+
+        assertEquals(3, stats.getDecodeCount());
+        assertEquals(2, stats.getDecodeHistogramCount(1));
+        assertEquals(1, stats.getDecodeHistogramCount(ImageCacheStats.DECODE_BUCKET_MILLIS.length));
+    }
+
+    public void testQueueDepth() {
+        ImageCacheStats stats = new ImageCacheStats();
+        stats.recordQueueDepth(3);
+        stats.recordQueueDepth(9);
+        stats.recordQueueDepth(2);
+
+        assertEquals(2, stats.getQueueDepth());
+        assertEquals(9, stats.getMaxQueueDepth());
+    }
+
+    public void testReset() {
+        ImageCacheStats stats = new ImageCacheStats();
+        stats.recordMemoryHit();
+        stats.recordBytesDownloaded(1024);
+        stats.recordDecode(10);
+        stats.recordQueueDepth(4);
+        stats.reset();
+
+        assertEquals(0, stats.getRequestCount());
+        assertEquals(0, stats.getBytesDownloaded());
+        assertEquals(0, stats.getDecodeCount());
+        assertEquals(0, stats.getDecodeHistogramCount(2));
+        assertEquals(0, stats.getMaxQueueDepth());
+    }
+}
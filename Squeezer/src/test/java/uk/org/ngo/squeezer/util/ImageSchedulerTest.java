@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ImageSchedulerTest extends TestCase {
+
+    private ImageScheduler mScheduler;
+
+    private final List<String> mRun = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new ImageScheduler(1, 2, Executors.defaultThreadFactory());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.shutdown();
+        super.tearDown();
+    }
+
+    private Runnable record(final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRun.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    /** Occupies the only I/O thread until the latch is released. */
+    private CountDownLatch blockIoThread() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    public void testLanesRunInPriorityOrder() throws InterruptedException {
+        CountDownLatch release = blockIoThread();
+        CountDownLatch done = new CountDownLatch(7);
+
+        mScheduler.getExecutor(ImageWorker.PRIORITY_PREFETCH).execute(record("prefetch 1", done));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_NOTIFICATION).execute(
+                record("notification", done));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(record("visible 1", done));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_PREFETCH).execute(record("prefetch 2", done));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_NOW_PLAYING).execute(
+                record("now playing", done));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(record("visible 2", done));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(record("visible 3", done));
+        assertEquals(7, mScheduler.getQueuedCount());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // Newest first for visible images, oldest first for prefetches.
+        assertEquals(Arrays.asList("visible 3", "visible 2", "visible 1",
+                "now playing", "notification", "prefetch 1", "prefetch 2"), mRun);
+    }
+
+    public void testPausedVisibleWorkIsHeld() throws InterruptedException {
+        CountDownLatch visibleDone = new CountDownLatch(2);
+        CountDownLatch prefetchDone = new CountDownLatch(1);
+
+        mScheduler.setPaused(true);
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(
+                record("visible 1", visibleDone));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(
+                record("visible 2", visibleDone));
+        mScheduler.getExecutor(ImageWorker.PRIORITY_PREFETCH).execute(
+                record("prefetch", prefetchDone));
+
+        // Other lanes carry on.
+        assertTrue(prefetchDone.await(10, TimeUnit.SECONDS));
+        assertFalse(visibleDone.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, mScheduler.getQueuedCount());
+
+        mScheduler.setPaused(false);
+        assertTrue(visibleDone.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("prefetch", "visible 2", "visible 1"), mRun);
+    }
+
+    public void testCancelLane() throws InterruptedException {
+        CountDownLatch release = blockIoThread();
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable prefetch1 = record("prefetch 1", done);
+        Runnable prefetch2 = record("prefetch 2", done);
+
+        mScheduler.getExecutor(ImageWorker.PRIORITY_PREFETCH).execute(prefetch1);
+        mScheduler.getExecutor(ImageWorker.PRIORITY_PREFETCH).execute(prefetch2);
+        mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(record("visible", done));
+
+        List<Runnable> cancelled = mScheduler.cancel(ImageWorker.PRIORITY_PREFETCH);
+        assertEquals(2, cancelled.size());
+        assertTrue(cancelled.contains(prefetch1));
+        assertTrue(cancelled.contains(prefetch2));
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList("visible"), mRun);
+    }
+
+    public void testDecodesAreLimitedToTheDecodeThreads() throws InterruptedException {
+        mScheduler.shutdown();
+        mScheduler = new ImageScheduler(8, 2, Executors.defaultThreadFactory());
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            final int n = i;
+            mScheduler.getExecutor(ImageWorker.PRIORITY_VISIBLE).execute(new Runnable() {
+                @Override
+                public void run() {
+                    int result = mScheduler.decode(ImageWorker.PRIORITY_VISIBLE,
+                            new Callable<Integer>() {
+                                @Override
+                                public Integer call() throws InterruptedException {
+                                    int now = running.incrementAndGet();
+                                    synchronized (maxRunning) {
+                                        maxRunning.set(Math.max(maxRunning.get(), now));
+                                    }
+                                    Thread.sleep(20);
+                                    running.decrementAndGet();
+                                    return n * 2;
+                                }
+                            });
+                    assertEquals(n * 2, result);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    public void testDecodeSurvivesInterrupt() throws InterruptedException {
+        final CountDownLatch decoding = new CountDownLatch(1);
+        final List<Object> result = Collections.synchronizedList(new ArrayList<Object>());
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                result.add(mScheduler.decode(ImageWorker.PRIORITY_VISIBLE, new Callable<String>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                        decoding.countDown();
+                        Thread.sleep(100);
+                        return "bitmap";
+                    }
+                }));
+                result.add(Thread.currentThread().isInterrupted());
+            }
+        };
+        caller.start();
+        assertTrue(decoding.await(10, TimeUnit.SECONDS));
+        caller.interrupt();
+        caller.join(10000);
+
+        assertEquals(Arrays.asList((Object) "bitmap", Boolean.TRUE), result);
+    }
+
+    public void testDecodeException() {
+        try {
+            mScheduler.decode(ImageWorker.PRIORITY_VISIBLE, new Callable<Object>() {
+                @Override
+                public Object call() {
+                    throw new IllegalArgumentException("Problem decoding into existing bitmap");
+                }
+            });
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Problem decoding into existing bitmap", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InFlightRequestsTest extends TestCase {
+
+    private ExecutorService mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = Executors.newFixedThreadPool(8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testConcurrentRequestsShareTheWork() throws Exception {
+        final InFlightRequests<String> requests = new InFlightRequests<String>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> work = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                runs.incrementAndGet();
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return "artwork";
+            }
+        };
+
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        results.add(mPool.submit(new Request(requests, "http://server/cover.jpg", work)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 7; i++) {
+            results.add(mPool.submit(new Request(requests, "http://server/cover.jpg", work)));
+        }
+
+        // Wait for the other requests to join the one in progress.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (requests.getDedupHitCount() < 7 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("artwork", result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, runs.get());
+        assertEquals(8, requests.getRequestCount());
+        assertEquals(7, requests.getDedupHitCount());
+        assertEquals(0, requests.size());
+    }
+
+    public void testDifferentKeysDoNotShare() {
+        InFlightRequests<String> requests = new InFlightRequests<String>();
+
+        assertEquals("a", requests.get("120:120:a", constant("a")));
+        assertEquals("b", requests.get("60:60:a", constant("b")));
+        assertEquals(0, requests.getDedupHitCount());
+    }
+
+    public void testFinishedWorkIsNotReused() {
+        InFlightRequests<String> requests = new InFlightRequests<String>();
+
+        assertEquals("first", requests.get("key", constant("first")));
+        assertEquals("second", requests.get("key", constant("second")));
+        assertEquals(2, requests.getRequestCount());
+        assertEquals(0, requests.getDedupHitCount());
+    }
+
+    public void testExceptionIsPassedOn() {
+        InFlightRequests<String> requests = new InFlightRequests<String>();
+
+        try {
+            requests.get("key", new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new IllegalStateException("decode failed");
+                }
+            });
+            fail("Expected an exception");
+        } catch (IllegalStateException e) {
+            assertEquals("decode failed", e.getMessage());
+        }
+        assertEquals(0, requests.size());
+    }
+
+    private static Callable<String> constant(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+    private static class Request implements Callable<String> {
+        private final InFlightRequests<String> mRequests;
+
+        private final String mKey;
+
+        private final Callable<String> mWork;
+
+        Request(InFlightRequests<String> requests, String key, Callable<String> work) {
+            mRequests = requests;
+            mKey = key;
+            mWork = work;
+        }
+
+        @Override
+        public String call() {
+            return mRequests.get(mKey, mWork);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.util;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class ServerDiscoveryTest extends TestCase {
+
+    private static final String REPLY = "E" + tuple("IPAD", "10.0.0.81")
+            + tuple("NAME", "Kitchen") + tuple("JSON", "9000") + tuple("VERS", "7.9.0")
+            + tuple("UUID", "abcd1234");
+
+    private static String tuple(String type, String value) {
+        return type + (char) value.length() + value;
+    }
+
+    private static byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    public void testRequest() throws UnsupportedEncodingException {
+        byte[] request = ServerDiscovery.createRequest();
+        String expected = "eIPAD\0NAME\0JSON\0VERS\0UUID\0";
+
+        assertEquals(512, request.length);
+        assertEquals(expected, new String(request, 0, expected.length(), "ISO-8859-1"));
+        assertEquals(0, request[expected.length()]);
+    }
+
+    public void testParseTuples() throws UnsupportedEncodingException {
+        byte[] reply = bytes(REPLY);
+        Map<String, String> tuples = ServerDiscovery.parseTuples(reply, reply.length);
+
+        assertEquals("10.0.0.81", tuples.get("IPAD"));
+        assertEquals("Kitchen", tuples.get("NAME"));
+        assertEquals("9000", tuples.get("JSON"));
+        assertEquals("7.9.0", tuples.get("VERS"));
+        assertEquals("abcd1234", tuples.get("UUID"));
+    }
+
+    public void testParseTuplesIgnoresRestOfBuffer() throws UnsupportedEncodingException {
+        byte[] buffer = new byte[512];
+        byte[] reply = bytes("E" + tuple("NAME", "Test") + tuple("VERS", "7.9.0"));
+        System.arraycopy(reply, 0, buffer, 0, reply.length);
+        buffer[reply.length] = 'X';
+
+        // Only the reply's length is looked at.
+        assertEquals(2, ServerDiscovery.parseTuples(buffer, reply.length).size());
+        // Zero padding ends the reply.
+        buffer[reply.length] = 0;
+        assertEquals(2, ServerDiscovery.parseTuples(buffer, buffer.length).size());
+    }
+
+    public void testLongValue() throws UnsupportedEncodingException {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            name.append('n');
+        }
+        byte[] reply = bytes("E" + tuple("NAME", name.toString()));
+
+        assertEquals(name.toString(),
+                ServerDiscovery.parseTuples(reply, reply.length).get("NAME"));
+    }
+
+    public void testParseReply() throws UnsupportedEncodingException {
+        byte[] reply = bytes(REPLY);
+        ServerDiscovery.Server server = ServerDiscovery.parseReply("10.0.0.82", reply,
+                reply.length);
+
+        // The reply's source wins over IPAD.
+        assertEquals("10.0.0.82", server.address);
+        assertEquals("Kitchen", server.name);
+        assertEquals(9000, server.httpPort);
+        assertEquals("7.9.0", server.version);
+        assertEquals("abcd1234", server.uuid);
+    }
+
+    public void testParseReplyWithoutOptionalTuples() throws UnsupportedEncodingException {
+        byte[] reply = bytes("E" + tuple("JSON", "abc"));
+        ServerDiscovery.Server server = ServerDiscovery.parseReply("10.0.0.82", reply,
+                reply.length);
+
+        assertEquals("10.0.0.82", server.name);
+        assertEquals(-1, server.httpPort);
+        assertNull(server.version);
+        assertNull(server.uuid);
+    }
+
+    public void testServersWithTheSameName() {
+        ServerDiscovery.Server kitchen = new ServerDiscovery.Server("10.0.0.82", "Music", 9000,
+                null, "abcd1234");
+        ServerDiscovery.Server study = new ServerDiscovery.Server("10.0.0.81", "Music", 9000,
+                null, null);
+
+        // Told apart by UUID, or by address without one.
+        assertEquals("abcd1234", kitchen.getId());
+        assertEquals("10.0.0.81", study.getId());
+        assertTrue(ServerDiscovery.Server.BY_NAME.compare(study, kitchen) < 0);
+    }
+
+    public void testParseReplyRejectsOtherPackets() throws UnsupportedEncodingException {
+        byte[] request = ServerDiscovery.createRequest();
+        assertNull(ServerDiscovery.parseReply("10.0.0.82", request, request.length));
+        assertNull(ServerDiscovery.parseReply("10.0.0.82", new byte[0], 0));
+    }
+
+    public void testBroadcastAddresses() throws IOException {
+        List<InetAddress> addresses = ServerDiscovery.getBroadcastAddresses();
+
+        assertTrue(addresses.contains(ServerDiscovery.getLimitedBroadcastAddress()));
+    }
+
+    /**
+     * A server on the loopback interface that ignores the first request, and replies to the
+     * others.
+     */
+    public void testDiscoverRetries() throws Exception {
+        final DatagramSocket serverSocket =
+                new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    while (true) {
+                        packet.setLength(buffer.length);
+                        serverSocket.receive(packet);
+                        requests.add(new String(buffer, 0, 1, "ISO-8859-1"));
+                        if (requests.size() > 1) {
+                            byte[] reply = bytes(REPLY);
+                            serverSocket.send(new DatagramPacket(reply, reply.length,
+                                    packet.getSocketAddress()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        };
+        server.start();
+
+        DatagramSocket socket = new DatagramSocket();
+        final List<ServerDiscovery.Server> found = new ArrayList<ServerDiscovery.Server>();
+        try {
+            new ServerDiscovery(socket,
+                    Collections.singletonList(InetAddress.getByName("127.0.0.1")),
+                    serverSocket.getLocalPort(), 50, 3).discover(new ServerDiscovery.Listener() {
+                @Override
+                public void onServerFound(ServerDiscovery.Server server) {
+                    found.add(server);
+                }
+            });
+        } finally {
+            socket.close();
+            serverSocket.close();
+            server.join();
+        }
+
+        assertEquals(3, requests.size());
+        assertEquals("e", requests.get(0));
+        // Replied to twice, reported once.
+        assertEquals(1, found.size());
+        assertEquals("Kitchen", found.get(0).name);
+        assertEquals("127.0.0.1", found.get(0).address);
+    }
+
+    public void testDiscoverStopsWhenInterrupted() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        long start = System.nanoTime();
+        Thread.currentThread().interrupt();
+        try {
+            new ServerDiscovery(socket,
+                    Collections.singletonList(InetAddress.getByName("127.0.0.1")),
+                    socket.getLocalPort() + 1, 1000, 3).discover(new ServerDiscovery.Listener() {
+                @Override
+                public void onServerFound(ServerDiscovery.Server server) {
+                    fail("No server expected");
+                }
+            });
+        } finally {
+            socket.close();
+            // Clear the flag.
+            Thread.interrupted();
+        }
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+    }
+}